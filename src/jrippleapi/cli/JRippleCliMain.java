@@ -9,7 +9,13 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
+import jrippleapi.connection.RippleDaemonConnection;
+import jrippleapi.connection.RippleDaemonWebsocketConnection;
+import jrippleapi.core.RippleAddress;
 import jrippleapi.core.RippleSeedAddress;
+import jrippleapi.history.HistoryRecord;
+import jrippleapi.history.HistoryStore;
+import jrippleapi.history.HistorySynchronizer;
 
 import org.jboss.jreadline.complete.CompleteOperation;
 import org.jboss.jreadline.complete.Completion;
@@ -25,6 +31,9 @@ import org.json.simple.parser.JSONParser;
  * > lsaddr
  * rEQQNvhuLt1KTYmDWmw12mPvmJD4KCtxmS
  * rGwUWgN5BEg3QGNY3RX2HfYowjUTZdid3E
+ * > lshistory -sync rEQQNvhuLt1KTYmDWmw12mPvmJD4KCtxmS 10
+ * 12 new transactions
+ * 3452811 5A0D3C2B... Payment
  * > mkpayment r32fLio1qkmYqFFYkwdnsaVN7cxBwkW4cT 100XRP
  * payment1
  * > show payment1
@@ -114,6 +123,8 @@ public class JRippleCliMain {
 		}
 	};
 	private RippleSeedAddress rippleAccount;
+	private HistoryStore historyStore;
+	private RippleDaemonConnection connection;
 
 	public JRippleCliMain() throws Exception {
 		// Settings.getInstance().setAnsiConsole(false);
@@ -140,6 +151,9 @@ public class JRippleCliMain {
 				if (line.equalsIgnoreCase("lsaddr")) {
 					console.pushToConsole(this.rippleAccount.getPublicRippleAddress().toString()+"\n");
 				}
+				else if (line.startsWith("lshistory")) {
+					executeLsHistory(line);
+				}
 				else if (line.equalsIgnoreCase("mkpayment")) {
 					executeMkPayment(line);
 				}
@@ -149,6 +163,9 @@ public class JRippleCliMain {
 				
 			}
 		} finally {
+			if(historyStore!=null){
+				historyStore.close();
+			}
 			console.stop();
 		}
 	}
@@ -157,4 +174,43 @@ public class JRippleCliMain {
 		
 	}
 
+	/**
+	 * lshistory [-sync] [account] [count]
+	 * Lists the newest transactions of the account from the local history, after fetching the new ones from rippled with -sync
+	 */
+	private void executeLsHistory(String line) throws IOException {
+		boolean isSync=false;
+		RippleAddress account=rippleAccount.getPublicRippleAddress();
+		int count=20;
+		String[] arguments = line.split(" +");
+		for(int i=1; i<arguments.length; i++){
+			if(arguments[i].equals("-sync")){
+				isSync=true;
+			}
+			else if(arguments[i].startsWith("r")){
+				account = new RippleAddress(arguments[i]);
+			}
+			else{
+				count = Integer.parseInt(arguments[i]);
+			}
+		}
+		if(historyStore==null){
+			historyStore = new HistoryStore(new File("jrippleapi-history"));
+		}
+		if(isSync){
+			try {
+				if(connection==null){
+					connection = new RippleDaemonWebsocketConnection(RippleDaemonWebsocketConnection.RIPPLE_SERVER_URL);
+				}
+				int nbAdded = new HistorySynchronizer(connection, historyStore).synchronize(account);
+				console.pushToConsole(nbAdded+" new transactions\n");
+			} catch (Exception e) {
+				console.pushToConsole("Could not synchronize the history: "+e.getMessage()+"\n");
+			}
+		}
+		for(HistoryRecord record : historyStore.getAccountHistory(account, 0, -1, count)){
+			console.pushToConsole(record+"\n");
+		}
+	}
+
 }
@@ -0,0 +1,215 @@
+package jrippleapi.connection;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.simple.JSONObject;
+
+/**
+ * Accepts per account queries (account_info, account_lines, account_offers) for many accounts,
+ * and pipelines them over the connection without waiting for each response.
+ * Concurrent queries for the same command, account and ledger share the same request, each caller gets its own future
+ * and the request is only cancelled once all of them cancelled theirs.
+ * At most maxInFlight requests are outstanding, the others wait in a queue.
+ *
+ * @author pmarches
+ */
+public class AccountQueryBatcher {
+	public static final String CURRENT_LEDGER="current";
+	public static final String VALIDATED_LEDGER="validated";
+
+	final RippleDaemonConnection connection;
+	final int maxInFlight;
+	final AtomicInteger nbInFlight = new AtomicInteger();
+	final AtomicBoolean isDispatching = new AtomicBoolean();
+	final ConcurrentLinkedQueue<QueuedQuery<?>> queuedQueries = new ConcurrentLinkedQueue<QueuedQuery<?>>();
+	final ConcurrentHashMap<String, QueuedQuery<?>> pendingQueries = new ConcurrentHashMap<String, QueuedQuery<?>>();
+
+	final AtomicLong nbQueries = new AtomicLong();
+	final AtomicLong nbDeduplicated = new AtomicLong();
+	final AtomicLong nbSent = new AtomicLong();
+
+	class QueuedQuery<T extends JSONSerializable> {
+		final String key;
+		final JSONObject command;
+		final FutureJSONResponse<T> batchedResponse;
+		final AtomicInteger nbCallers = new AtomicInteger(); //Those which did not cancel, -1 once the query is cancelled
+		volatile FutureJSONResponse<T> sentResponse;
+
+		QueuedQuery(String key, JSONObject command, FutureJSONResponse<T> batchedResponse) {
+			this.key = key;
+			this.command = command;
+			this.batchedResponse = batchedResponse;
+		}
+
+		/**
+		 * @return false if all the callers already cancelled, the query must not be shared anymore
+		 */
+		boolean addCaller(){
+			while(true){
+				int callers = nbCallers.get();
+				if(callers<0){
+					return false;
+				}
+				if(nbCallers.compareAndSet(callers, callers+1)){
+					return true;
+				}
+			}
+		}
+
+		/**
+		 * Each caller deserializes the shared response into its own object, and cancels only its own future
+		 */
+		<C extends JSONSerializable> FutureJSONResponse<C> newCallerResponse(C unserializedResponse){
+			final FutureJSONResponse<C> callerResponse = new FutureJSONResponse<C>(batchedResponse.responseCounter, null, unserializedResponse);
+			callerResponse.command=command;
+			callerResponse.setCallbackExecutor(connection.callbackExecutor);
+			batchedResponse.addCompletionCallback(new Runnable() {
+				@Override
+				public void run() {
+					callerResponse.complete(batchedResponse.outcome);
+				}
+			});
+			callerResponse.addCompletionCallback(new Runnable() {
+				@Override
+				public void run() {
+					if(callerResponse.isCancelled() && nbCallers.decrementAndGet()==0 && nbCallers.compareAndSet(0, -1)){
+						cancel(); //Unless a new caller joined in between
+					}
+				}
+			});
+			return callerResponse;
+		}
+
+		void cancel(){
+			pendingQueries.remove(key, this);
+			batchedResponse.cancel(false);
+			FutureJSONResponse<T> sentResponse = this.sentResponse;
+			if(sentResponse!=null){
+				sentResponse.cancel(false);
+			}
+		}
+
+		void send(){
+			if(batchedResponse.isDone()){ //Cancelled while queued
+				nbInFlight.decrementAndGet();
+				return;
+			}
+			nbSent.incrementAndGet();
+			final FutureJSONResponse<T> response = connection.sendCommand(command, batchedResponse.unserializedObj);
+			sentResponse = response;
+			if(batchedResponse.isDone()){ //Cancelled while sent
+				response.cancel(false);
+			}
+			response.addCompletionCallback(new Runnable() {
+				@Override
+				public void run() {
+					pendingQueries.remove(key, QueuedQuery.this);
+					batchedResponse.complete(response.outcome);
+					nbInFlight.decrementAndGet();
+					dispatchQueuedQueries();
+				}
+			});
+		}
+	}
+
+	public AccountQueryBatcher(RippleDaemonConnection connection, int maxInFlight) {
+		this.connection = connection;
+		this.maxInFlight = maxInFlight;
+	}
+
+	public FutureJSONResponse<RippleAddressPublicInformation> getAccountInfoFuture(String account, Object ledgerIndex){
+		return query("account_info", account, ledgerIndex, new RippleAddressPublicInformation());
+	}
+
+	public FutureJSONResponse<TrustLines> getCreditLinesFuture(String account, Object ledgerIndex){
+		return query("account_lines", account, ledgerIndex, new TrustLines());
+	}
+
+	public FutureJSONResponse<ExchangeOffers> getAccountOffersFuture(String account, Object ledgerIndex){
+		return query("account_offers", account, ledgerIndex, new ExchangeOffers());
+	}
+
+	/**
+	 * @param ledgerIndex : A ledger sequence number, or one of "current", "closed", "validated"
+	 */
+	@SuppressWarnings("unchecked")
+	protected <T extends JSONSerializable> FutureJSONResponse<T> query(String commandName, String account, Object ledgerIndex, T unserializedResponse){
+		nbQueries.incrementAndGet();
+		String key = commandName+" "+account+" "+ledgerIndex;
+		JSONObject command = new JSONObject();
+		command.put("command", commandName);
+		command.put("account", account);
+		if(ledgerIndex!=null){
+			command.put("ledger_index", ledgerIndex);
+		}
+		FutureJSONResponse<T> batchedResponse = new FutureJSONResponse<T>(0, null, unserializedResponse);
+		QueuedQuery<T> newQuery = new QueuedQuery<T>(key, command, batchedResponse);
+		newQuery.addCaller();
+		while(true){
+			QueuedQuery<?> alreadyPending = pendingQueries.putIfAbsent(key, newQuery);
+			if(alreadyPending==null){
+				break;
+			}
+			if(alreadyPending.addCaller()){
+				nbDeduplicated.incrementAndGet();
+				return alreadyPending.newCallerResponse(unserializedResponse);
+			}
+			pendingQueries.remove(key, alreadyPending); //All its callers cancelled
+		}
+		FutureJSONResponse<T> callerResponse = newQuery.newCallerResponse(unserializedResponse);
+		queuedQueries.add(newQuery);
+		dispatchQueuedQueries();
+		return callerResponse;
+	}
+
+	/**
+	 * Only one thread dispatches at a time, the others leave their work to it. This also prevents
+	 * deep recursion when responses complete synchronously, e.g. when the connection is down.
+	 */
+	protected void dispatchQueuedQueries(){
+		do {
+			if(isDispatching.compareAndSet(false, true)==false){
+				return;
+			}
+			try {
+				while(nbInFlight.get()<maxInFlight){
+					QueuedQuery<?> query = queuedQueries.poll();
+					if(query==null){
+						break;
+					}
+					nbInFlight.incrementAndGet();
+					query.send();
+				}
+			} finally {
+				isDispatching.set(false);
+			}
+		} while(queuedQueries.isEmpty()==false && nbInFlight.get()<maxInFlight);
+	}
+
+	public int getNbInFlight() {
+		return nbInFlight.get();
+	}
+
+	public int getNbQueued() {
+		return queuedQueries.size();
+	}
+
+	public long getNbQueries() {
+		return nbQueries.get();
+	}
+
+	/**
+	 * @return the number of queries answered by a request already pending for the same account and ledger
+	 */
+	public long getNbDeduplicated() {
+		return nbDeduplicated.get();
+	}
+
+	public long getNbSent() {
+		return nbSent.get();
+	}
+}
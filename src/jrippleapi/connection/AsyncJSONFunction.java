@@ -0,0 +1,8 @@
+package jrippleapi.connection;
+
+/**
+ * One step of a chain of commands, see {@link FutureJSONResponse#thenSend(AsyncJSONFunction)} 
+ */
+public interface AsyncJSONFunction<I, O extends JSONSerializable> {
+	public FutureJSONResponse<O> apply(I previousResult) throws Exception;
+}
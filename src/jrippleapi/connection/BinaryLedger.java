@@ -0,0 +1,62 @@
+package jrippleapi.connection;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import javax.xml.bind.DatatypeConverter;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * The result of the ledger command in binary mode. The header is decoded from its fixed layout,
+ * the transactions are present only when they were requested.
+ */
+public class BinaryLedger implements JSONSerializable {
+	public long ledgerIndex;
+	public String ledgerHash;
+	public boolean validated;
+	public long totalDrops;
+	public byte[] parentHash;
+	public byte[] transactionHash;
+	public byte[] accountHash;
+	public long parentCloseTime;
+	public long closeTime;
+	public int closeResolution;
+	public int closeFlags;
+	public ArrayList<BinaryTransaction> transactions = new ArrayList<BinaryTransaction>();
+
+	@Override
+	public void copyFrom(JSONObject jsonCommandResult) {
+		ledgerHash = (String) jsonCommandResult.get("ledger_hash");
+		validated = Boolean.TRUE.equals(jsonCommandResult.get("validated"));
+		JSONObject jsonLedger = (JSONObject) jsonCommandResult.get("ledger");
+		Object ledgerData = jsonLedger.get("ledger_data");
+		if(ledgerData!=null){
+			readHeader(ByteBuffer.wrap(DatatypeConverter.parseHexBinary((String) ledgerData)));
+		}
+		JSONArray jsonTransactions = (JSONArray) jsonLedger.get("transactions");
+		for(int i=0; jsonTransactions!=null && i<jsonTransactions.size(); i++){
+			BinaryTransaction binaryTx = new BinaryTransaction();
+			binaryTx.copyFrom((JSONObject) jsonTransactions.get(i));
+			binaryTx.ledgerIndex = ledgerIndex;
+			binaryTx.validated = validated;
+			transactions.add(binaryTx);
+		}
+	}
+
+	protected void readHeader(ByteBuffer header) {
+		ledgerIndex = 0xFFFFFFFFl & header.getInt();
+		totalDrops = header.getLong();
+		parentHash = new byte[32];
+		header.get(parentHash);
+		transactionHash = new byte[32];
+		header.get(transactionHash);
+		accountHash = new byte[32];
+		header.get(accountHash);
+		parentCloseTime = 0xFFFFFFFFl & header.getInt();
+		closeTime = 0xFFFFFFFFl & header.getInt();
+		closeResolution = 0xFF & header.get();
+		closeFlags = 0xFF & header.get();
+	}
+}
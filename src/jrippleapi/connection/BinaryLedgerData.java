@@ -0,0 +1,39 @@
+package jrippleapi.connection;
+
+import java.util.ArrayList;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * One page of the result of ledger_data in binary mode
+ */
+public class BinaryLedgerData extends ArrayList<BinaryLedgerEntry> implements JSONSerializable {
+	private static final long serialVersionUID = 4386372167095245290L;
+
+	public long ledgerIndex;
+	public String ledgerHash;
+	/**
+	 * null on the last page
+	 */
+	public Object marker;
+
+	@Override
+	public void copyFrom(JSONObject jsonCommandResult) {
+		Object jsonLedgerIndex = jsonCommandResult.get("ledger_index");
+		if(jsonLedgerIndex instanceof Number){
+			ledgerIndex = ((Number) jsonLedgerIndex).longValue();
+		}
+		else if(jsonLedgerIndex instanceof String){
+			ledgerIndex = Long.parseLong((String) jsonLedgerIndex);
+		}
+		ledgerHash = (String) jsonCommandResult.get("ledger_hash");
+		marker = jsonCommandResult.get("marker");
+		JSONArray jsonState = (JSONArray) jsonCommandResult.get("state");
+		for(int i=0; jsonState!=null && i<jsonState.size(); i++){
+			BinaryLedgerEntry entry = new BinaryLedgerEntry();
+			entry.copyFrom((JSONObject) jsonState.get(i));
+			add(entry);
+		}
+	}
+}
@@ -0,0 +1,19 @@
+package jrippleapi.connection;
+
+import jrippleapi.serialization.RippleBinaryObject;
+
+import org.json.simple.JSONObject;
+
+/**
+ * A ledger entry (account root, trust line, offer, directory ...) as returned by ledger_data in binary mode
+ */
+public class BinaryLedgerEntry implements JSONSerializable {
+	public String index;
+	public RippleBinaryObject entry;
+
+	@Override
+	public void copyFrom(JSONObject jsonBinaryEntry) {
+		index = (String) jsonBinaryEntry.get("index");
+		entry = BinaryTransaction.readBinaryObject(BinaryTransaction.parseHex(jsonBinaryEntry.get("data")));
+	}
+}
@@ -0,0 +1,62 @@
+package jrippleapi.connection;
+
+import java.nio.ByteBuffer;
+
+import javax.xml.bind.DatatypeConverter;
+
+import jrippleapi.serialization.RippleBinaryObject;
+import jrippleapi.serialization.RippleBinarySerializer;
+
+import org.json.simple.JSONObject;
+
+/**
+ * A transaction and its metadata, as returned by rippled in binary mode
+ */
+public class BinaryTransaction implements JSONSerializable {
+	static final RippleBinarySerializer BINARY_SERIALIZER = new RippleBinarySerializer();
+
+	public RippleBinaryObject transaction;
+	public RippleBinaryObject meta;
+	public byte[] txBlob;
+	public byte[] metaBlob;
+	public String hash;
+	public long ledgerIndex;
+	/**
+	 * The close time of the ledger, in seconds since the ripple epoch. 0 when rippled did not send it
+	 */
+	public long date;
+	public boolean validated;
+
+	@Override
+	public void copyFrom(JSONObject jsonBinaryTx) {
+		Object txBlob = jsonBinaryTx.get("tx_blob");
+		if(txBlob==null){
+			txBlob = jsonBinaryTx.get("tx"); //The tx command names it differently
+		}
+		this.txBlob = parseHex(txBlob);
+		this.metaBlob = parseHex(jsonBinaryTx.get("meta"));
+		transaction = readBinaryObject(this.txBlob);
+		meta = readBinaryObject(this.metaBlob);
+		hash = (String) jsonBinaryTx.get("hash");
+		Object jsonLedgerIndex = jsonBinaryTx.get("ledger_index");
+		if(jsonLedgerIndex instanceof Number){
+			ledgerIndex = ((Number) jsonLedgerIndex).longValue();
+		}
+		date = StreamEvent.getLong(jsonBinaryTx, "date");
+		validated = Boolean.TRUE.equals(jsonBinaryTx.get("validated"));
+	}
+
+	static byte[] parseHex(Object hexBlob){
+		if(hexBlob instanceof String==false){
+			return null;
+		}
+		return DatatypeConverter.parseHexBinary((String) hexBlob);
+	}
+
+	static RippleBinaryObject readBinaryObject(byte[] blob){
+		if(blob==null){
+			return null;
+		}
+		return BINARY_SERIALIZER.readBinaryObject(ByteBuffer.wrap(blob));
+	}
+}
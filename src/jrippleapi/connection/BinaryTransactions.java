@@ -0,0 +1,38 @@
+package jrippleapi.connection;
+
+import java.util.ArrayList;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * The result of account_tx in binary mode
+ */
+public class BinaryTransactions extends ArrayList<BinaryTransaction> implements JSONSerializable {
+	private static final long serialVersionUID = -2806455532461574573L;
+
+	public String account;
+	/**
+	 * null when there are no more transactions
+	 */
+	public Object marker;
+	/**
+	 * The range of validated ledgers searched
+	 */
+	public long ledgerIndexMin;
+	public long ledgerIndexMax;
+
+	@Override
+	public void copyFrom(JSONObject jsonCommandResult) {
+		account = (String) jsonCommandResult.get("account");
+		ledgerIndexMin = StreamEvent.getLong(jsonCommandResult, "ledger_index_min");
+		ledgerIndexMax = StreamEvent.getLong(jsonCommandResult, "ledger_index_max");
+		marker = jsonCommandResult.get("marker");
+		JSONArray jsonTransactions = (JSONArray) jsonCommandResult.get("transactions");
+		for(int i=0; jsonTransactions!=null && i<jsonTransactions.size(); i++){
+			BinaryTransaction binaryTx = new BinaryTransaction();
+			binaryTx.copyFrom((JSONObject) jsonTransactions.get(i));
+			add(binaryTx);
+		}
+	}
+}
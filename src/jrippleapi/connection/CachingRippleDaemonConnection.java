@@ -0,0 +1,243 @@
+package jrippleapi.connection;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+/**
+ * Answers the repeated account and order book reads locally. The responses are cached by command and parameters:
+ * <ul>
+ * <li>for a validated ledger given by its index or hash, the response never changes, the least recently used ones are evicted</li>
+ * <li>for the current or last validated ledger, the responses are dropped each time a ledger closes,
+ * they may miss the transactions applied to the open ledger since they were read</li>
+ * </ul>
+ * Concurrent reads of the same command share the same request.
+ *
+ * @author pmarches
+ */
+public class CachingRippleDaemonConnection extends RippleDaemonConnection implements StreamEventHandler {
+	public static final int DEFAULT_MAX_ENTRIES=4096;
+
+	public static final Set<String> CACHEABLE_COMMANDS = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+			"account_currencies", "account_info", "account_lines", "account_offers", "book_offers", "ledger_entry")));
+
+	final RippleDaemonConnection connection;
+	final LRUCache validatedCache;
+	final LRUCache currentCache;
+	boolean isCachingCurrentLedger=true;
+	volatile long lastValidatedLedgerIndex;
+
+	final AtomicLong nbHits = new AtomicLong();
+	final AtomicLong nbMisses = new AtomicLong();
+	final AtomicLong nbInvalidations = new AtomicLong();
+
+	@SuppressWarnings("serial")
+	static class LRUCache extends LinkedHashMap<String, FutureJSONResponse<?>> {
+		final int maxEntries;
+
+		LRUCache(int maxEntries) {
+			super(256, 0.75f, true);
+			this.maxEntries = maxEntries;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, FutureJSONResponse<?>> eldest) {
+			return size()>maxEntries;
+		}
+	}
+
+	public CachingRippleDaemonConnection(RippleDaemonConnection connection) {
+		this(connection, DEFAULT_MAX_ENTRIES);
+	}
+
+	/**
+	 * @param maxEntries : the maximum number of responses kept, for the validated ledgers and for the current ledger each
+	 */
+	public CachingRippleDaemonConnection(RippleDaemonConnection connection, int maxEntries) {
+		this.connection = connection;
+		this.validatedCache = new LRUCache(maxEntries);
+		this.currentCache = new LRUCache(maxEntries);
+	}
+
+	/**
+	 * Subscribes to the ledger stream, the current ledger responses are only cached once started.
+	 * Over http, the ledger closes must be given to {@link #onEvent(StreamEvent, long, boolean)} instead.
+	 */
+	public void start(){
+		RippleDaemonWebsocketConnection streamConnection = connection.getStreamConnection();
+		streamConnection.addStreamEventHandler(this);
+		streamConnection.subscribeToStreamsFuture("ledger");
+	}
+
+	public void stop(){
+		RippleDaemonWebsocketConnection streamConnection = connection.getStreamConnection();
+		streamConnection.removeStreamEventHandler(this);
+		streamConnection.unsubscribeFromStreamsFuture("ledger");
+		invalidateCurrentLedger();
+		lastValidatedLedgerIndex=0;
+	}
+
+	/**
+	 * @param isCachingCurrentLedger : false to only cache the responses of the validated ledgers
+	 */
+	public void setCachingCurrentLedger(boolean isCachingCurrentLedger) {
+		this.isCachingCurrentLedger = isCachingCurrentLedger;
+	}
+
+	@Override
+	public void setRequestTimeout(long requestTimeout, TimeUnit unit) {
+		super.setRequestTimeout(requestTimeout, unit);
+		connection.setRequestTimeout(requestTimeout, unit);
+	}
+
+	@Override
+	public long getNbTimeouts() {
+		return connection.getNbTimeouts();
+	}
+
+	@Override
+	public void onEvent(StreamEvent event, long sequence, boolean endOfBatch) {
+		if(event instanceof LedgerClosedEvent){
+			lastValidatedLedgerIndex = ((LedgerClosedEvent) event).ledgerIndex;
+			invalidateCurrentLedger();
+		}
+	}
+
+	public void invalidateCurrentLedger(){
+		synchronized (currentCache) {
+			currentCache.clear();
+		}
+		nbInvalidations.incrementAndGet();
+	}
+
+	@Override
+	public <T extends JSONSerializable> FutureJSONResponse<T> sendCommand(JSONObject command, T unserializedResponse) {
+		LRUCache cache = selectCache(command);
+		if(cache==null){
+			return connection.sendCommand(command, unserializedResponse);
+		}
+		String key = getCacheKey(command);
+		FutureJSONResponse<?> cachedResponse;
+		FutureJSONResponse<T> sentResponse=null;
+		synchronized (cache) {
+			cachedResponse = cache.get(key);
+			if(cachedResponse==null){
+				sentResponse = new FutureJSONResponse<T>(requestCounter.getAndIncrement(), null, unserializedResponse);
+				cache.put(key, sentResponse);
+			}
+		}
+		if(sentResponse!=null){
+			nbMisses.incrementAndGet();
+			send(cache, key, command, sentResponse);
+			cachedResponse=sentResponse;
+		}
+		else{
+			nbHits.incrementAndGet();
+		}
+		return copyOf(cachedResponse, unserializedResponse);
+	}
+
+	/**
+	 * @return null when the response of the command is not cacheable
+	 */
+	protected LRUCache selectCache(JSONObject command){
+		if(CACHEABLE_COMMANDS.contains(command.get("command"))==false){
+			return null;
+		}
+		if(command.get("ledger_hash")!=null){
+			return validatedCache;
+		}
+		Object ledgerIndex = command.get("ledger_index");
+		if(ledgerIndex instanceof Number){
+			long validatedLedgerIndex = lastValidatedLedgerIndex;
+			if(validatedLedgerIndex!=0 && ((Number) ledgerIndex).longValue()<=validatedLedgerIndex){
+				return validatedCache;
+			}
+			return null; //Not validated yet, or we do not know
+		}
+		if(isCachingCurrentLedger && lastValidatedLedgerIndex!=0){
+			return currentCache;
+		}
+		return null;
+	}
+
+	@SuppressWarnings("unchecked")
+	protected String getCacheKey(JSONObject command){
+		TreeMap<Object, Object> commandParameters = new TreeMap<Object, Object>(command);
+		commandParameters.remove("id");
+		return JSONValue.toJSONString(commandParameters);
+	}
+
+	/**
+	 * The failed responses are not cached
+	 */
+	protected <T extends JSONSerializable> void send(final LRUCache cache, final String key, JSONObject command, final FutureJSONResponse<T> cachedResponse){
+		final FutureJSONResponse<T> response = connection.sendCommand(command, cachedResponse.unserializedObj);
+		response.addCompletionCallback(new Runnable() {
+			@Override
+			public void run() {
+				if(response.outcome instanceof JSONObject==false){
+					synchronized (cache) {
+						if(cache.get(key)==cachedResponse){
+							cache.remove(key);
+						}
+					}
+				}
+				cachedResponse.complete(response.outcome);
+			}
+		});
+	}
+
+	/**
+	 * Each caller deserializes the shared response into its own object
+	 */
+	protected <T extends JSONSerializable> FutureJSONResponse<T> copyOf(final FutureJSONResponse<?> cachedResponse, T unserializedResponse){
+		final FutureJSONResponse<T> copiedResponse = new FutureJSONResponse<T>(cachedResponse.responseCounter, null, unserializedResponse);
+		copiedResponse.setCallbackExecutor(callbackExecutor);
+		cachedResponse.addCompletionCallback(new Runnable() {
+			@Override
+			public void run() {
+				copiedResponse.complete(cachedResponse.outcome);
+			}
+		});
+		return copiedResponse;
+	}
+
+	public long getNbHits() {
+		return nbHits.get();
+	}
+
+	public long getNbMisses() {
+		return nbMisses.get();
+	}
+
+	public long getNbInvalidations() {
+		return nbInvalidations.get();
+	}
+
+	public double getHitRate() {
+		long hits = nbHits.get();
+		long total = hits+nbMisses.get();
+		return total==0 ? 0 : hits/(double) total;
+	}
+
+	public int getNbCachedResponses() {
+		int total;
+		synchronized (validatedCache) {
+			total=validatedCache.size();
+		}
+		synchronized (currentCache) {
+			total+=currentCache.size();
+		}
+		return total;
+	}
+}
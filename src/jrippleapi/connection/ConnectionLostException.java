@@ -0,0 +1,15 @@
+package jrippleapi.connection;
+
+import java.io.IOException;
+
+/**
+ * The session to rippled was lost while a command that is not safe to replay was waiting for its response.
+ * The command may or may not have been executed by the server.
+ */
+public class ConnectionLostException extends IOException {
+	private static final long serialVersionUID = -3106787924012547437L;
+
+	public ConnectionLostException(String message) {
+		super(message);
+	}
+}
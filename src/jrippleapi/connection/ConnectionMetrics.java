@@ -0,0 +1,61 @@
+package jrippleapi.connection;
+
+/**
+ * Receives the timings and the counts of a connection, see {@link RecordingConnectionMetrics}.
+ * The methods are called on the threads sending and receiving, they must not block.
+ *
+ * @author pmarches
+ */
+public interface ConnectionMetrics {
+	/**
+	 * Ignores everything, for the connections which are not measured
+	 */
+	public static final ConnectionMetrics NO_METRICS = new ConnectionMetrics() {
+		@Override
+		public void onRequest(String command) {
+		}
+
+		@Override
+		public void onBytesSent(int nbBytes) {
+		}
+
+		@Override
+		public void onBytesReceived(int nbBytes) {
+		}
+
+		@Override
+		public void onResponse(String command, long sendToFirstByteNanos, long parseNanos) {
+		}
+
+		@Override
+		public void onCompleted(String command, long endToEndNanos, String error) {
+		}
+	};
+
+	/**
+	 * A command was given to the connection, it is in flight until completed
+	 */
+	void onRequest(String command);
+
+	/**
+	 * A command sent again after a reconnection is counted again
+	 */
+	void onBytesSent(int nbBytes);
+
+	/**
+	 * Includes the messages of the subscribed streams
+	 */
+	void onBytesReceived(int nbBytes);
+
+	/**
+	 * @param sendToFirstByteNanos : from the last time the command was written to when its response started to arrive
+	 * @param parseNanos : the time to decode the JSON of the response
+	 */
+	void onResponse(String command, long sendToFirstByteNanos, long parseNanos);
+
+	/**
+	 * @param endToEndNanos : from the request to the completion of its future
+	 * @param error : the error code of rippled or the kind of failure, null when the command succeeded
+	 */
+	void onCompleted(String command, long endToEndNanos, String error);
+}
@@ -0,0 +1,39 @@
+package jrippleapi.connection;
+
+import java.util.Map;
+
+/**
+ * The JMX view of a {@link RecordingConnectionMetrics}, the latencies are in milliseconds.
+ * The histograms count since the start or the last reset, a monitor wanting the p99 of an interval resets after each read.
+ *
+ * @author pmarches
+ */
+public interface ConnectionMetricsMXBean {
+	int getNbInFlight();
+
+	long getNbRequests();
+
+	long getNbErrors();
+
+	long getBytesSent();
+
+	long getBytesReceived();
+
+	double getEndToEndP50Millis();
+
+	double getEndToEndP99Millis();
+
+	double getEndToEndMaxMillis();
+
+	Map<String, Long> getRequestCountsByCommand();
+
+	Map<String, Long> getErrorCountsByCode();
+
+	Map<String, Double> getEndToEndP99MillisByCommand();
+
+	Map<String, Double> getSendToFirstByteP99MillisByCommand();
+
+	Map<String, Double> getParseP99MillisByCommand();
+
+	void reset();
+}
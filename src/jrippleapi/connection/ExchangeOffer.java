@@ -10,6 +10,7 @@ public class ExchangeOffer implements JSONSerializable {
 	public long sequenceNumber;
 	public DenominatedIssuedCurrency takerGets;
 	public DenominatedIssuedCurrency takerPays;
+	static final JSONFieldFilter FIELD_FILTER = new JSONFieldFilter().select("seq", "taker_gets", "taker_pays");
 
 	@Override
 	public void copyFrom(JSONObject jsonOffer) {
@@ -5,13 +5,30 @@ import java.util.ArrayList;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 
-public class ExchangeOffers extends ArrayList<ExchangeOffer> implements JSONSerializable {
+public class ExchangeOffers extends ArrayList<ExchangeOffer> implements SelectiveJSONSerializable {
 	private static final long serialVersionUID = 5605897503055346397L;
+	static final JSONFieldFilter FIELD_FILTER = new JSONFieldFilter().select("offers", ExchangeOffer.FIELD_FILTER).select("marker", "ledger_index");
+
+	/**
+	 * null on the last page
+	 */
+	public Object marker;
+	/**
+	 * 0 unless a validated ledger was requested
+	 */
+	public long ledgerIndex;
+
+	@Override
+	public JSONFieldFilter getFieldFilter() {
+		return FIELD_FILTER;
+	}
 
 	@Override
 	public void copyFrom(JSONObject jsonCommandResult) {
+		marker = jsonCommandResult.get("marker");
+		ledgerIndex = StreamEvent.getLong(jsonCommandResult, "ledger_index");
 		JSONArray jsonOffers = (JSONArray) jsonCommandResult.get("offers");
-		for(int i=0; i<jsonOffers.size(); i++){
+		for(int i=0; jsonOffers!=null && i<jsonOffers.size(); i++){
 			JSONObject jsonOffer = (JSONObject) jsonOffers.get(i);
 			ExchangeOffer offer = new ExchangeOffer();
 			offer.copyFrom(jsonOffer);
@@ -0,0 +1,324 @@
+package jrippleapi.connection;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jrippleapi.core.DenominatedIssuedCurrency;
+import jrippleapi.serialization.RippleBinaryObject;
+import jrippleapi.serialization.RippleBinarySchema.BinaryFormatField;
+
+import org.json.simple.JSONObject;
+
+/**
+ * Keeps the current fee and reserves of the network in memory, so a transaction can be given its Fee without asking the server.
+ * The base fee and the reserves follow the ledger stream, the load factor follows the server stream,
+ * both are read once from the response to the subscription.
+ *
+ * The fee of a transaction is the base fee scaled by the load of the server, then by the {@link FeeEscalationPolicy},
+ * which decides how much more to pay each time a transaction is refused for its fee.
+ *
+ * @author pmarches
+ */
+public class FeeTracker implements StreamEventHandler {
+	public static final long DEFAULT_BASE_FEE = 10;
+	public static final long DEFAULT_RESERVE_BASE = 20000000;
+	public static final long DEFAULT_RESERVE_INCREMENT = 5000000;
+	public static final long DEFAULT_MAX_FEE = 100000;
+	public static final double DEFAULT_ESCALATION_FACTOR = 2.0;
+	static final long LOAD_BASE = 256; //The load_base of rippled, the LoadFee of a validation is relative to it
+
+	/**
+	 * Decides the fee to pay from the one the server asks for
+	 */
+	public interface FeeEscalationPolicy {
+		/**
+		 * @param loadedFee : the base fee scaled by the load of the server, in drops
+		 * @param attempt : 0 for the first submit, then the number of times the transaction was refused for its fee
+		 * @return the fee to pay in drops
+		 */
+		long getFee(long loadedFee, int attempt);
+	}
+
+	/**
+	 * Pays margin times the loaded fee, escalationFactor times more on each attempt, never more than maxFee
+	 */
+	public static class MultiplierEscalationPolicy implements FeeEscalationPolicy {
+		final double margin;
+		final double escalationFactor;
+		final long maxFee;
+
+		public MultiplierEscalationPolicy(double margin, double escalationFactor, long maxFee) {
+			if(margin<=0 || escalationFactor<1 || maxFee<=0){
+				throw new RuntimeException("Expected margin>0, escalationFactor>=1 and maxFee>0, was "+margin+", "+escalationFactor+", "+maxFee);
+			}
+			this.margin = margin;
+			this.escalationFactor = escalationFactor;
+			this.maxFee = maxFee;
+		}
+
+		@Override
+		public long getFee(long loadedFee, int attempt) {
+			double fee = Math.ceil(loadedFee*margin*Math.pow(escalationFactor, attempt));
+			return fee>=maxFee ? maxFee : (long) fee;
+		}
+	}
+
+	final RippleDaemonConnection connection;
+	volatile FeeEscalationPolicy escalationPolicy = new MultiplierEscalationPolicy(1, DEFAULT_ESCALATION_FACTOR, DEFAULT_MAX_FEE);
+
+	volatile long baseFee = DEFAULT_BASE_FEE; //In drops, for a reference transaction
+	volatile long reserveBase = DEFAULT_RESERVE_BASE;
+	volatile long reserveIncrement = DEFAULT_RESERVE_INCREMENT;
+	volatile double loadRatio = 1; //load_factor/load_base of the server, 1 when it is not loaded
+	volatile long ledgerIndex;
+	final AtomicLong nbUpdates = new AtomicLong();
+	final AtomicLong nbFailures = new AtomicLong();
+	volatile Throwable lastFailure;
+	volatile boolean isStale; //The last subscription or refresh failed, no update came since
+
+	public FeeTracker(RippleDaemonConnection connection) {
+		this.connection = connection;
+	}
+
+	/**
+	 * Subscribes to the ledger and server streams, the fees are known once the subscription responds
+	 */
+	public FutureJSONResponse<GenericJSONSerializable> start(){
+		RippleDaemonWebsocketConnection streamConnection = connection.getStreamConnection();
+		streamConnection.addStreamEventHandler(this);
+		FutureJSONResponse<GenericJSONSerializable> subscription = streamConnection.subscribeToStreamsFuture("ledger", "server");
+		subscription.addListener(new JSONResponseListener<GenericJSONSerializable>() {
+			@Override
+			public void onSuccess(GenericJSONSerializable subscriptionResult) {
+				//The subscription result holds the fields of the last ledger closed and of the server status
+				LedgerClosedEvent ledger = new LedgerClosedEvent();
+				ledger.copyFrom(subscriptionResult.jsonCommandResult);
+				onLedgerClosed(ledger);
+				ServerStatusEvent status = new ServerStatusEvent();
+				status.copyFrom(subscriptionResult.jsonCommandResult);
+				onServerStatus(status);
+			}
+
+			@Override
+			public void onFailure(Throwable cause) {
+				onUpdateFailed(cause);
+			}
+		}, RippleDaemonConnection.DIRECT_EXECUTOR);
+		return subscription;
+	}
+
+	public void stop(){
+		RippleDaemonWebsocketConnection streamConnection = connection.getStreamConnection();
+		streamConnection.removeStreamEventHandler(this);
+		streamConnection.unsubscribeFromStreamsFuture("ledger", "server");
+	}
+
+	@Override
+	public void onEvent(StreamEvent event, long sequence, boolean endOfBatch) {
+		if(event instanceof LedgerClosedEvent){
+			onLedgerClosed((LedgerClosedEvent) event);
+		}
+		else if(event instanceof ServerStatusEvent){
+			onServerStatus((ServerStatusEvent) event);
+		}
+	}
+
+	protected void onLedgerClosed(LedgerClosedEvent ledger){
+		if(ledger.feeBase>0){
+			baseFee = ledger.feeBase;
+		}
+		if(ledger.reserveBase>0){
+			reserveBase = ledger.reserveBase;
+			reserveIncrement = ledger.reserveIncrement;
+		}
+		if(ledger.ledgerIndex>ledgerIndex){
+			ledgerIndex = ledger.ledgerIndex;
+		}
+		updated();
+	}
+
+	protected void onServerStatus(ServerStatusEvent status){
+		if(status.loadBase>0){
+			loadRatio = status.loadFactor/(double) status.loadBase;
+		}
+		if(status.baseFee>0){
+			baseFee = status.baseFee;
+		}
+		updated();
+	}
+
+	/**
+	 * Reads the BaseFee, ReserveBase and ReserveIncrement of a FeeSettings ledger entry, or the LoadFee of a validation
+	 */
+	public void copyFrom(RippleBinaryObject feeObject){
+		Object baseFeeField = feeObject.getField(BinaryFormatField.BaseFee);
+		if(baseFeeField instanceof BigInteger){
+			baseFee = ((BigInteger) baseFeeField).longValue();
+		}
+		Object reserveBaseField = feeObject.getField(BinaryFormatField.ReserveBase);
+		if(reserveBaseField instanceof Long){
+			reserveBase = (Long) reserveBaseField;
+		}
+		Object reserveIncrementField = feeObject.getField(BinaryFormatField.ReserveIncrement);
+		if(reserveIncrementField instanceof Long){
+			reserveIncrement = (Long) reserveIncrementField;
+		}
+		Object loadFeeField = feeObject.getField(BinaryFormatField.LoadFee);
+		if(loadFeeField instanceof Long){
+			loadRatio = (Long) loadFeeField/(double) LOAD_BASE;
+		}
+		updated();
+	}
+
+	/**
+	 * Reads the fees from server_info, for the connections without a ledger stream.
+	 */
+	@SuppressWarnings("unchecked")
+	public FutureJSONResponse<GenericJSONSerializable> refresh(){
+		JSONObject serverInfoCommand = new JSONObject();
+		serverInfoCommand.put("command", "server_info");
+		FutureJSONResponse<GenericJSONSerializable> serverInfoResponse = connection.sendCommand(serverInfoCommand, new GenericJSONSerializable());
+		serverInfoResponse.addListener(new JSONResponseListener<GenericJSONSerializable>() {
+			@Override
+			public void onSuccess(GenericJSONSerializable serverInfo) {
+				JSONObject jsonInfo = (JSONObject) serverInfo.jsonCommandResult.get("info");
+				if(jsonInfo==null){
+					return;
+				}
+				if(jsonInfo.get("load_factor") instanceof Number){
+					loadRatio = ((Number) jsonInfo.get("load_factor")).doubleValue();
+				}
+				JSONObject jsonLedger = (JSONObject) jsonInfo.get("validated_ledger");
+				if(jsonLedger!=null){
+					long baseFeeDrops = xrpToDrops(jsonLedger.get("base_fee_xrp"));
+					if(baseFeeDrops>0){
+						baseFee = baseFeeDrops;
+					}
+					long reserveBaseDrops = xrpToDrops(jsonLedger.get("reserve_base_xrp"));
+					if(reserveBaseDrops>0){
+						reserveBase = reserveBaseDrops;
+						reserveIncrement = xrpToDrops(jsonLedger.get("reserve_inc_xrp"));
+					}
+				}
+				updated();
+			}
+
+			@Override
+			public void onFailure(Throwable cause) {
+				onUpdateFailed(cause);
+			}
+		}, RippleDaemonConnection.DIRECT_EXECUTOR);
+		return serverInfoResponse;
+	}
+
+	protected void updated(){
+		isStale = false;
+		nbUpdates.incrementAndGet();
+	}
+
+	protected void onUpdateFailed(Throwable cause){
+		lastFailure = cause;
+		nbFailures.incrementAndGet();
+		isStale = true;
+	}
+
+	static long xrpToDrops(Object xrpAmount){
+		if(xrpAmount instanceof Number){
+			return new BigDecimal(xrpAmount.toString()).movePointRight(6).longValue();
+		}
+		return 0;
+	}
+
+	public void setEscalationPolicy(FeeEscalationPolicy escalationPolicy) {
+		this.escalationPolicy = escalationPolicy;
+	}
+
+	/**
+	 * @return the fee the server asks for at its current load, in drops
+	 */
+	public long getLoadedFee(){
+		return (long) Math.ceil(baseFee*loadRatio);
+	}
+
+	/**
+	 * @param attempt : 0 for the first submit, then the number of times the transaction was refused for its fee
+	 * @return the fee to pay in drops
+	 */
+	public long getFeeDrops(int attempt){
+		return escalationPolicy.getFee(getLoadedFee(), attempt);
+	}
+
+	public DenominatedIssuedCurrency getFee(){
+		return getFee(0);
+	}
+
+	public DenominatedIssuedCurrency getFee(int attempt){
+		return new DenominatedIssuedCurrency(BigDecimal.valueOf(getFeeDrops(attempt)));
+	}
+
+	/**
+	 * Sets the Fee field of a transaction to sign
+	 */
+	public void fillFee(RippleBinaryObject transaction, int attempt){
+		transaction.putField(BinaryFormatField.Fee, getFee(attempt));
+	}
+
+	/**
+	 * @param ownerCount : the number of objects owned by the account, trust lines, offers...
+	 * @return the XRP the account must keep, in drops
+	 */
+	public long getAccountReserve(int ownerCount){
+		return reserveBase+ownerCount*reserveIncrement;
+	}
+
+	public long getBaseFee() {
+		return baseFee;
+	}
+
+	public long getReserveBase() {
+		return reserveBase;
+	}
+
+	public long getReserveIncrement() {
+		return reserveIncrement;
+	}
+
+	public double getLoadRatio() {
+		return loadRatio;
+	}
+
+	public long getLedgerIndex() {
+		return ledgerIndex;
+	}
+
+	/**
+	 * @return the number of ledgers, server statuses and refreshes read
+	 */
+	public long getNbUpdates() {
+		return nbUpdates.get();
+	}
+
+	/**
+	 * @return the number of subscriptions and refreshes which failed
+	 */
+	public long getNbFailures() {
+		return nbFailures.get();
+	}
+
+	public Throwable getLastFailure() {
+		return lastFailure;
+	}
+
+	/**
+	 * @return true if the last subscription or refresh failed and nothing updated the fees since, they may be out of date
+	 */
+	public boolean isStale() {
+		return isStale;
+	}
+
+	@Override
+	public String toString() {
+		return "fee "+getLoadedFee()+" drops (base "+baseFee+", load "+loadRatio+"), reserve "+reserveBase+"+"+reserveIncrement+" drops per object";
+	}
+}
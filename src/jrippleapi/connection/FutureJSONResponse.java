@@ -1,75 +1,301 @@
 package jrippleapi.connection;
 
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 import org.json.simple.JSONObject;
 
+/**
+ * Completion is lock-free: the websocket reader publishes the outcome with a single CAS
+ * and releases the waiting threads through a latch, it never takes a monitor.
+ *
+ * Listeners added with {@link #addListener(JSONResponseListener)} are called once the response
+ * arrives, so requests can be chained with {@link #thenSend(AsyncJSONFunction)} without parking a thread per request.
+ */
 public class FutureJSONResponse<T extends JSONSerializable> implements Future<T> {
+	@SuppressWarnings("rawtypes")
+	static final AtomicReferenceFieldUpdater<FutureJSONResponse, Object> OUTCOME_UPDATER = AtomicReferenceFieldUpdater.newUpdater(FutureJSONResponse.class, Object.class, "outcome");
+
+	@SuppressWarnings("rawtypes")
+	static final AtomicIntegerFieldUpdater<FutureJSONResponse> SENT_ON_EPOCH_UPDATER = AtomicIntegerFieldUpdater.newUpdater(FutureJSONResponse.class, "sentOnEpoch");
+
+	static final AtomicLong nbFailedCallbacks = new AtomicLong();
+	static volatile Throwable lastCallbackFailure;
+
 	public final int responseCounter;
 
 	JSONResponseHolder responseHolder;
-	JSONObject response;
+	JSONObject command;
+	volatile int sentOnEpoch=-1; //The connection epoch on which the command was last sent, see RippleDaemonWebsocketConnection
+	volatile long sentNanos; //When the command was last written, for the time to the first byte of the response
+	volatile Object outcome; //Either the JSONObject response, or a Failure
+	final CountDownLatch responseLatch = new CountDownLatch(1);
+	final ConcurrentLinkedQueue<Runnable> completionCallbacks = new ConcurrentLinkedQueue<Runnable>();
+	Executor callbackExecutor = RippleDaemonConnection.DIRECT_EXECUTOR;
 	T unserializedObj;
-	
+	boolean isDeserialized;
+	volatile HashedTimerWheel.Timeout deadline;
+
+	static class Failure {
+		final Throwable cause;
+		Failure(Throwable cause) {
+			this.cause = cause;
+		}
+	}
+
 	public FutureJSONResponse(int requestCounter, JSONResponseHolder responseHolder, T unserializedObj) {
 		this.responseCounter = requestCounter;
 		this.responseHolder =responseHolder;
 		this.unserializedObj = unserializedObj;
 	}
-	
+
+	public void setCallbackExecutor(Executor callbackExecutor) {
+		this.callbackExecutor = callbackExecutor;
+	}
+
 	@Override
 	public boolean cancel(boolean mayInterruptIfRunning) {
-		boolean hasCompleted = responseHolder.remove(this);
-		synchronized (this) {
-			notifyAll();
+		if(responseHolder!=null){
+			responseHolder.remove(this);
+		}
+		return complete(new Failure(new CancellationException("request "+responseCounter+" was cancelled")));
+	}
+
+	/**
+	 * Arms a deadline on the timer, on expiry the request is removed from the pending table and fails with a TimeoutException.
+	 * A response arriving after that is discarded by the holder.
+	 * @return the timeout, or null if the request is already done
+	 */
+	HashedTimerWheel.Timeout setDeadline(HashedTimerWheel timer, final long timeoutMillis, final Runnable onExpiry){
+		if(isDone()){
+			return null;
+		}
+		deadline = timer.newTimeout(new Runnable() {
+			@Override
+			public void run() {
+				if(responseHolder!=null){
+					responseHolder.remove(FutureJSONResponse.this);
+				}
+				Failure timeoutFailure = new Failure(new TimeoutException("request "+responseCounter+" got no response within "+timeoutMillis+"ms"));
+				if(OUTCOME_UPDATER.compareAndSet(FutureJSONResponse.this, null, timeoutFailure)==false){
+					return;
+				}
+				if(onExpiry!=null){
+					onExpiry.run(); //Before the waiters are released, so they see the count
+				}
+				release();
+			}
+		}, timeoutMillis, TimeUnit.MILLISECONDS);
+		if(isDone()){ //Completed while the deadline was armed
+			deadline.cancel();
+		}
+		return deadline;
+	}
+
+	public void set(JSONObject response){
+		if(response.get("error")!=null){
+			setException(new RippleDaemonException(response));
+		}
+		else{
+			complete(response);
+		}
+	}
+
+	public boolean setException(Throwable cause){
+		return complete(new Failure(cause));
+	}
+
+	protected synchronized boolean setResult(JSONObject response, T result){
+		if(isDone()){
+			return false;
+		}
+		unserializedObj=result;
+		isDeserialized=true;
+		return complete(response);
+	}
+
+	protected boolean complete(Object outcome){
+		if(OUTCOME_UPDATER.compareAndSet(this, null, outcome)==false){
+			return false; //Already completed or cancelled
+		}
+		HashedTimerWheel.Timeout deadline = this.deadline;
+		if(deadline!=null){
+			deadline.cancel();
 		}
-		return hasCompleted;
+		release();
+		return true;
 	}
 
-	synchronized public void set(JSONObject response){
-		this.response=response;
-		notifyAll();
+	protected void release(){
+		responseLatch.countDown();
+		runCompletionCallbacks();
 	}
 
-	public JSONObject getResponse() throws InterruptedException {
-		synchronized (this) {
-			if(response==null){
-				wait();
+	/**
+	 * @return the completion callbacks which threw, of all the responses
+	 */
+	public static long getNbFailedCallbacks() {
+		return nbFailedCallbacks.get();
+	}
+
+	/**
+	 * @return what the last failing completion callback threw, null if none failed
+	 */
+	public static Throwable getLastCallbackFailure() {
+		return lastCallbackFailure;
+	}
+
+	/**
+	 * A callback throwing does not keep the next ones from running, it is counted by {@link #getNbFailedCallbacks()}
+	 */
+	protected void runCompletionCallbacks(){
+		Runnable callback;
+		while((callback=completionCallbacks.poll())!=null){
+			try {
+				callback.run();
+			} catch (RuntimeException e) {
+				nbFailedCallbacks.incrementAndGet();
+				lastCallbackFailure = e;
 			}
-			if(response.get("error")!=null){
-				throw new RuntimeException("failed because "+response);
+		}
+	}
+
+	/**
+	 * Runs the callback on the completing thread, without deserializing the response 
+	 */
+	void addCompletionCallback(Runnable callback){
+		completionCallbacks.add(callback);
+		if(isDone()){
+			runCompletionCallbacks();
+		}
+	}
+
+	public void addListener(JSONResponseListener<? super T> listener){
+		addListener(listener, callbackExecutor);
+	}
+
+	public void addListener(final JSONResponseListener<? super T> listener, final Executor executor){
+		addCompletionCallback(new Runnable() {
+			@Override
+			public void run() {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						notifyListener(listener);
+					}
+				});
 			}
-			return response;
+		});
+	}
+
+	protected void notifyListener(JSONResponseListener<? super T> listener){
+		T result;
+		try {
+			result = deSerialize(checkOutcome());
+		} catch (ExecutionException e) {
+			listener.onFailure(e.getCause());
+			return;
+		} catch (RuntimeException e) {
+			listener.onFailure(e);
+			return;
 		}
+		listener.onSuccess(result);
 	}
-	
+
+	/**
+	 * Sends the next command once this one has succeeded. A failure at any step fails the returned future,
+	 * as does a step returning no future.
+	 */
+	public <R extends JSONSerializable> FutureJSONResponse<R> thenSend(final AsyncJSONFunction<? super T, R> nextCommand){
+		final FutureJSONResponse<R> chainedResponse = new FutureJSONResponse<R>(responseCounter, null, null);
+		chainedResponse.setCallbackExecutor(callbackExecutor);
+		addListener(new JSONResponseListener<T>() {
+			@Override
+			public void onSuccess(T result) {
+				final FutureJSONResponse<R> nextResponse;
+				try {
+					nextResponse = nextCommand.apply(result);
+				} catch (Exception e) {
+					chainedResponse.setException(e);
+					return;
+				}
+				if(nextResponse==null){
+					chainedResponse.setException(new NullPointerException(nextCommand+" returned no response to chain"));
+					return;
+				}
+				nextResponse.addListener(new JSONResponseListener<R>() {
+					@Override
+					public void onSuccess(R nextResult) {
+						chainedResponse.setResult((JSONObject) nextResponse.outcome, nextResult);
+					}
+
+					@Override
+					public void onFailure(Throwable cause) {
+						chainedResponse.setException(cause);
+					}
+				}, RippleDaemonConnection.DIRECT_EXECUTOR);
+			}
+
+			@Override
+			public void onFailure(Throwable cause) {
+				chainedResponse.setException(cause);
+			}
+		}, RippleDaemonConnection.DIRECT_EXECUTOR);
+		return chainedResponse;
+	}
+
+	public JSONObject getResponse() throws InterruptedException, ExecutionException {
+		responseLatch.await();
+		return checkOutcome();
+	}
+
+	protected JSONObject checkOutcome() throws ExecutionException {
+		Object outcome = this.outcome;
+		if(outcome instanceof Failure){
+			Throwable cause = ((Failure) outcome).cause;
+			if(cause instanceof CancellationException){
+				throw (CancellationException) cause;
+			}
+			throw new ExecutionException(cause);
+		}
+		return (JSONObject) outcome;
+	}
+
 	@Override
 	public T get() throws InterruptedException, ExecutionException {
 		JSONObject response = getResponse();
 		return deSerialize(response);
 	}
 
-	protected T deSerialize(JSONObject response) {
-		JSONObject result = (JSONObject) response.get("result");
+	synchronized protected T deSerialize(JSONObject response) {
+		if(isDeserialized){
+			return unserializedObj;
+		}
+		JSONObject result = response==null ? null : (JSONObject) response.get("result");
 		if(result==null || "success".equals(response.get("status"))==false){
 			unserializedObj=null;
 		}
 		else{
 			unserializedObj.copyFrom(result);
 		}
+		isDeserialized=true;
 		return unserializedObj;
 	}
 
-	public JSONObject getResponse(long timeout, TimeUnit unit) throws InterruptedException {
-		synchronized (this) {
-			if(response==null){
-				unit.timedWait(this, timeout);
-			}
-			return response;
+	public JSONObject getResponse(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		if(responseLatch.await(timeout, unit)==false){
+			throw new TimeoutException("request "+responseCounter+" still pending after "+unit.toMillis(timeout)+"ms");
 		}
+		return checkOutcome();
 	}
 
 	@Override
@@ -80,12 +306,13 @@ public class FutureJSONResponse<T extends JSONSerializable> implements Future<T>
 
 	@Override
 	public boolean isCancelled() {
-		return responseHolder.isCancelled(this);
+		Object outcome = this.outcome;
+		return outcome instanceof Failure && ((Failure) outcome).cause instanceof CancellationException;
 	}
 
 	@Override
 	public boolean isDone() {
-		return response!=null;
+		return outcome!=null;
 	}
 
 }
@@ -0,0 +1,255 @@
+package jrippleapi.connection;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs tasks after a delay, for a large number of timeouts which are mostly cancelled before expiring,
+ * like the deadlines of the requests. A single thread advances a wheel of buckets every tick, a timeout is
+ * hashed to the bucket of its deadline tick, along with the number of turns of the wheel left before it expires.
+ * Scheduling and cancelling are constant time and lock free, the precision is one tick.
+ *
+ * @author pmarches
+ */
+public class HashedTimerWheel {
+	public static final long DEFAULT_TICK_MILLIS=10;
+	public static final int DEFAULT_WHEEL_SIZE=512;
+	static HashedTimerWheel sharedTimer;
+
+	static final int STATE_PENDING=0;
+	static final int STATE_CANCELLED=1;
+	static final int STATE_EXPIRED=2;
+	static final AtomicIntegerFieldUpdater<Timeout> STATE_UPDATER = AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+	public class Timeout {
+		final Runnable task;
+		final long deadlineNanos; //Relative to the start of the timer
+		volatile int state=STATE_PENDING;
+		long remainingRounds;
+		Timeout next;
+		Timeout previous;
+		Bucket bucket;
+
+		Timeout(Runnable task, long deadlineNanos) {
+			this.task = task;
+			this.deadlineNanos = deadlineNanos;
+		}
+
+		/**
+		 * @return false if the task already ran, or was already cancelled
+		 */
+		public boolean cancel(){
+			if(STATE_UPDATER.compareAndSet(this, STATE_PENDING, STATE_CANCELLED)==false){
+				return false;
+			}
+			nbPendingTimeouts.decrementAndGet();
+			cancelledTimeouts.add(this);
+			return true;
+		}
+
+		public boolean isExpired(){
+			return state==STATE_EXPIRED;
+		}
+
+		void expire(){
+			if(STATE_UPDATER.compareAndSet(this, STATE_PENDING, STATE_EXPIRED)==false){
+				return;
+			}
+			nbPendingTimeouts.decrementAndGet();
+			nbExpired.incrementAndGet();
+			try {
+				task.run();
+			} catch (Throwable e) {
+				nbFailedTasks.incrementAndGet();
+				lastTaskFailure = e;
+			}
+		}
+	}
+
+	/**
+	 * A doubly linked list, so cancelled timeouts are removed in constant time
+	 */
+	static class Bucket {
+		Timeout head;
+		Timeout tail;
+
+		void add(Timeout timeout){
+			timeout.bucket=this;
+			if(head==null){
+				head=tail=timeout;
+			}
+			else{
+				tail.next=timeout;
+				timeout.previous=tail;
+				tail=timeout;
+			}
+		}
+
+		Timeout remove(Timeout timeout){
+			Timeout next = timeout.next;
+			if(timeout.previous!=null){
+				timeout.previous.next=next;
+			}
+			if(timeout.next!=null){
+				timeout.next.previous=timeout.previous;
+			}
+			if(timeout==head){
+				head=next;
+			}
+			if(timeout==tail){
+				tail=timeout.previous;
+			}
+			timeout.previous=null;
+			timeout.next=null;
+			timeout.bucket=null;
+			return next;
+		}
+	}
+
+	final long tickNanos;
+	final Bucket[] wheel;
+	final int wheelMask;
+	final ConcurrentLinkedQueue<Timeout> newTimeouts = new ConcurrentLinkedQueue<Timeout>();
+	final ConcurrentLinkedQueue<Timeout> cancelledTimeouts = new ConcurrentLinkedQueue<Timeout>();
+	final AtomicLong nbPendingTimeouts = new AtomicLong();
+	final AtomicLong nbExpired = new AtomicLong();
+	final AtomicLong nbFailedTasks = new AtomicLong();
+	volatile Throwable lastTaskFailure;
+	final long startNanos = System.nanoTime();
+	long tick; //Only used by the timer thread
+	Thread timerThread;
+	volatile boolean isStopped;
+
+	public static synchronized HashedTimerWheel getSharedTimer(){
+		if(sharedTimer==null){
+			sharedTimer = new HashedTimerWheel(DEFAULT_TICK_MILLIS, TimeUnit.MILLISECONDS, DEFAULT_WHEEL_SIZE);
+		}
+		return sharedTimer;
+	}
+
+	/**
+	 * @param wheelSize : rounded up to a power of two, timeouts further than a turn of the wheel are counted in rounds
+	 */
+	public HashedTimerWheel(long tickDuration, TimeUnit unit, int wheelSize) {
+		this.tickNanos = unit.toNanos(tickDuration);
+		int powerOfTwoSize = Integer.highestOneBit(Math.max(2, wheelSize)-1)<<1;
+		this.wheel = new Bucket[powerOfTwoSize];
+		for(int i=0; i<wheel.length; i++){
+			wheel[i] = new Bucket();
+		}
+		this.wheelMask = powerOfTwoSize-1;
+	}
+
+	/**
+	 * Can be called from any thread. The task runs on the timer thread, it must be short.
+	 */
+	public Timeout newTimeout(Runnable task, long delay, TimeUnit unit){
+		startIfNeeded();
+		Timeout timeout = new Timeout(task, System.nanoTime()-startNanos+unit.toNanos(delay));
+		nbPendingTimeouts.incrementAndGet();
+		newTimeouts.add(timeout);
+		return timeout;
+	}
+
+	protected synchronized void startIfNeeded(){
+		if(timerThread!=null || isStopped){
+			return;
+		}
+		timerThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				timerLoop();
+			}
+		}, "HashedTimerWheel");
+		timerThread.setDaemon(true);
+		timerThread.start();
+	}
+
+	public synchronized void stop(){
+		isStopped=true;
+		if(timerThread!=null){
+			timerThread.interrupt();
+		}
+	}
+
+	public long getNbPendingTimeouts() {
+		return nbPendingTimeouts.get();
+	}
+
+	public long getNbExpired() {
+		return nbExpired.get();
+	}
+
+	/**
+	 * @return the tasks which threw, the timer thread kept running the others
+	 */
+	public long getNbFailedTasks() {
+		return nbFailedTasks.get();
+	}
+
+	/**
+	 * @return what the last failing task threw, null if none failed
+	 */
+	public Throwable getLastTaskFailure() {
+		return lastTaskFailure;
+	}
+
+	protected void timerLoop(){
+		while(isStopped==false){
+			long sleepNanos = (tick+1)*tickNanos-(System.nanoTime()-startNanos);
+			if(sleepNanos>0){
+				try {
+					Thread.sleep(TimeUnit.NANOSECONDS.toMillis(sleepNanos), (int) (sleepNanos%1000000));
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+			removeCancelledTimeouts();
+			transferNewTimeouts();
+			expireTimeouts(wheel[(int) tick & wheelMask]);
+			tick++;
+		}
+	}
+
+	protected void removeCancelledTimeouts(){
+		Timeout timeout;
+		while((timeout=cancelledTimeouts.poll())!=null){
+			if(timeout.bucket!=null){
+				timeout.bucket.remove(timeout);
+			}
+		}
+	}
+
+	protected void transferNewTimeouts(){
+		Timeout timeout;
+		while((timeout=newTimeouts.poll())!=null){
+			if(timeout.state!=STATE_PENDING){
+				continue;
+			}
+			long deadlineTick = timeout.deadlineNanos/tickNanos;
+			timeout.remainingRounds = (deadlineTick-tick)/wheel.length;
+			long bucketTick = Math.max(deadlineTick, tick); //Already late ones expire on this tick
+			wheel[(int) bucketTick & wheelMask].add(timeout);
+		}
+	}
+
+	protected void expireTimeouts(Bucket bucket){
+		Timeout timeout = bucket.head;
+		while(timeout!=null){
+			if(timeout.remainingRounds<=0){
+				Timeout next = bucket.remove(timeout);
+				timeout.expire();
+				timeout = next;
+			}
+			else if(timeout.state==STATE_CANCELLED){
+				timeout = bucket.remove(timeout);
+			}
+			else{
+				timeout.remainingRounds--;
+				timeout = timeout.next;
+			}
+		}
+	}
+}
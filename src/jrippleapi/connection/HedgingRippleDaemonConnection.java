@@ -0,0 +1,317 @@
+package jrippleapi.connection;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.simple.JSONObject;
+
+/**
+ * Sends the read-only commands to a primary rippled, and if it has not answered after the hedge delay,
+ * sends the same command to a secondary one. The first response wins and the other request is cancelled.
+ * The hedge delay is a percentile of the recent response times of the primary, so only the slow tail
+ * of the requests is sent twice.
+ * The commands changing the ledger are only sent to the primary.
+ * The hedges are sent from the hedge executor, never from the thread of the shared timer.
+ *
+ * @author pmarches
+ */
+public class HedgingRippleDaemonConnection extends RippleDaemonConnection {
+	public static final double DEFAULT_HEDGE_PERCENTILE=0.95;
+	public static final long DEFAULT_MIN_HEDGE_DELAY_MILLIS=10;
+	public static final long DEFAULT_INITIAL_HEDGE_DELAY_MILLIS=500;
+	static final int NB_LATENCY_SAMPLES=1024;
+	static final int RECOMPUTE_EVERY_NB_SAMPLES=64;
+
+	static final Executor DEFAULT_HEDGE_EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread hedgeThread = new Thread(r, "HedgingRippleDaemonConnection hedge");
+			hedgeThread.setDaemon(true);
+			return hedgeThread;
+		}
+	});
+
+	final RippleDaemonConnection[] servers;
+	Executor hedgeExecutor = DEFAULT_HEDGE_EXECUTOR;
+	final AtomicInteger secondaryCounter = new AtomicInteger();
+	double hedgePercentile=DEFAULT_HEDGE_PERCENTILE;
+	long minHedgeDelayMillis=DEFAULT_MIN_HEDGE_DELAY_MILLIS;
+
+	final long[] latencySamples = new long[NB_LATENCY_SAMPLES]; //Response times of the primary in ms, a ring
+	final AtomicLong nbLatencySamples = new AtomicLong();
+	volatile long hedgeDelayMillis=DEFAULT_INITIAL_HEDGE_DELAY_MILLIS;
+
+	final AtomicLong nbHedgeableReads = new AtomicLong();
+	final AtomicLong nbHedges = new AtomicLong();
+	final AtomicLong nbHedgeWins = new AtomicLong();
+
+	class HedgedRead<T extends JSONSerializable> {
+		final JSONObject command;
+		final FutureJSONResponse<T> hedgedResponse;
+		final long startNanos = System.nanoTime();
+		volatile FutureJSONResponse<T> primaryResponse;
+		volatile FutureJSONResponse<T> secondaryResponse;
+		volatile HashedTimerWheel.Timeout hedgeTimeout;
+		final AtomicInteger nbAttemptsLeft = new AtomicInteger(1);
+		volatile Object lastFailedOutcome; //Written before its attempt is released
+		final AtomicBoolean isHedged = new AtomicBoolean();
+
+		HedgedRead(JSONObject command, FutureJSONResponse<T> hedgedResponse) {
+			this.command = command;
+			this.hedgedResponse = hedgedResponse;
+		}
+
+		void start(){
+			hedgedResponse.addCompletionCallback(new Runnable() {
+				@Override
+				public void run() {
+					cancelAttempts();
+				}
+			});
+			primaryResponse = sendAttempt(servers[0], false);
+			if(hedgedResponse.isDone()==false){
+				final Runnable hedger = new Runnable() {
+					@Override
+					public void run() {
+						hedge();
+					}
+				};
+				hedgeTimeout = timer.newTimeout(new Runnable() {
+					@Override
+					public void run() {
+						hedgeExecutor.execute(hedger); //Sending may block, the timer thread is shared
+					}
+				}, hedgeDelayMillis, TimeUnit.MILLISECONDS);
+			}
+		}
+
+		/**
+		 * Each server gets its own copy of the command, the transports write their request id in it
+		 */
+		@SuppressWarnings("unchecked")
+		FutureJSONResponse<T> sendAttempt(RippleDaemonConnection server, final boolean isSecondary){
+			JSONObject attemptCommand = new JSONObject();
+			attemptCommand.putAll(command);
+			final FutureJSONResponse<T> attemptResponse = server.sendCommand(attemptCommand, hedgedResponse.unserializedObj);
+			attemptResponse.addCompletionCallback(new Runnable() {
+				@Override
+				public void run() {
+					onAttemptDone(attemptResponse, isSecondary);
+				}
+			});
+			return attemptResponse;
+		}
+
+		/**
+		 * The attempt is counted before it is claimed, so a failing primary never sees its own attempt as the last one
+		 */
+		void hedge(){
+			if(hedgedResponse.isDone()){
+				return;
+			}
+			nbAttemptsLeft.incrementAndGet();
+			if(isHedged.compareAndSet(false, true)==false){
+				releaseAttempt(null);
+				return;
+			}
+			nbHedges.incrementAndGet();
+			secondaryResponse = sendAttempt(selectSecondary(), true);
+			if(hedgedResponse.isDone()){ //Completed while the hedge was sent
+				secondaryResponse.cancel(false);
+			}
+		}
+
+		/**
+		 * A response, even an error of rippled, is the answer. Only a transport failure or a timeout of the primary hedges early.
+		 */
+		void onAttemptDone(FutureJSONResponse<T> attemptResponse, boolean isSecondary){
+			Object outcome = attemptResponse.outcome;
+			if(outcome instanceof JSONObject || isDaemonError(outcome)){
+				if(isSecondary==false){
+					recordPrimaryLatency(startNanos);
+				}
+				if(isSecondary){
+					nbHedgeWins.incrementAndGet(); //Counted before the waiters are released, so they see it
+				}
+				if(hedgedResponse.complete(outcome)==false && isSecondary){
+					nbHedgeWins.decrementAndGet();
+				}
+				return;
+			}
+			if(attemptResponse.isCancelled() && hedgedResponse.isDone()){
+				return; //The loser
+			}
+			if(isSecondary==false){
+				HashedTimerWheel.Timeout hedgeTimeout = this.hedgeTimeout;
+				if(hedgeTimeout!=null){
+					hedgeTimeout.cancel();
+				}
+				hedge(); //The primary failed, no need to wait for the delay
+			}
+			releaseAttempt(outcome);
+		}
+
+		/**
+		 * @param failedOutcome : null when releasing an attempt which was never sent
+		 */
+		void releaseAttempt(Object failedOutcome){
+			if(failedOutcome!=null){
+				lastFailedOutcome=failedOutcome;
+			}
+			if(nbAttemptsLeft.decrementAndGet()==0){
+				hedgedResponse.complete(lastFailedOutcome);
+			}
+		}
+
+		boolean isDaemonError(Object outcome){
+			return outcome instanceof FutureJSONResponse.Failure && ((FutureJSONResponse.Failure) outcome).cause instanceof RippleDaemonException;
+		}
+
+		void cancelAttempts(){
+			HashedTimerWheel.Timeout hedgeTimeout = this.hedgeTimeout;
+			if(hedgeTimeout!=null){
+				hedgeTimeout.cancel();
+			}
+			FutureJSONResponse<T> primaryResponse = this.primaryResponse;
+			if(primaryResponse!=null && primaryResponse.isDone()==false){
+				recordPrimaryLatency(startNanos); //Only a lower bound, but leaving it out would hide the slow tail
+				primaryResponse.cancel(false);
+			}
+			FutureJSONResponse<T> secondaryResponse = this.secondaryResponse;
+			if(secondaryResponse!=null){
+				secondaryResponse.cancel(false);
+			}
+		}
+	}
+
+	/**
+	 * @param servers : The first one is the primary, the others are the secondaries used in turn for the hedged requests.
+	 * Their request timeouts should be longer than the hedge delay.
+	 */
+	public HedgingRippleDaemonConnection(RippleDaemonConnection... servers) {
+		if(servers.length<1){
+			throw new RuntimeException("At least one server is needed");
+		}
+		this.servers = servers;
+	}
+
+	/**
+	 * @param hedgePercentile : between 0 and 1, the fraction of the primary requests expected to be answered before the hedge is sent
+	 */
+	public void setHedgePercentile(double hedgePercentile) {
+		if(hedgePercentile<=0 || hedgePercentile>1){
+			throw new RuntimeException("The hedge percentile must be in ]0, 1], was "+hedgePercentile);
+		}
+		this.hedgePercentile = hedgePercentile;
+	}
+
+	/**
+	 * @param hedgeExecutor : sends the hedged requests once their delay expired, a shared pool of daemon threads by default
+	 */
+	public void setHedgeExecutor(Executor hedgeExecutor) {
+		this.hedgeExecutor = hedgeExecutor;
+	}
+
+	public void setMinHedgeDelay(long minHedgeDelay, TimeUnit unit) {
+		this.minHedgeDelayMillis = unit.toMillis(minHedgeDelay);
+	}
+
+	/**
+	 * Used until enough response times of the primary are known
+	 */
+	public void setInitialHedgeDelay(long initialHedgeDelay, TimeUnit unit) {
+		this.hedgeDelayMillis = unit.toMillis(initialHedgeDelay);
+	}
+
+	@Override
+	public void setRequestTimeout(long requestTimeout, TimeUnit unit) {
+		super.setRequestTimeout(requestTimeout, unit);
+		for(RippleDaemonConnection server : servers){
+			server.setRequestTimeout(requestTimeout, unit);
+		}
+	}
+
+	@Override
+	public long getNbTimeouts() {
+		long total=0;
+		for(RippleDaemonConnection server : servers){
+			total+=server.getNbTimeouts();
+		}
+		return total;
+	}
+
+	@Override
+	public <T extends JSONSerializable> FutureJSONResponse<T> sendCommand(JSONObject command, T unserializedResponse) {
+		if(isReadOnly(command)==false || servers.length==1){
+			return servers[0].sendCommand(command, unserializedResponse);
+		}
+		nbHedgeableReads.incrementAndGet();
+		FutureJSONResponse<T> hedgedResponse = new FutureJSONResponse<T>(requestCounter.getAndIncrement(), null, unserializedResponse);
+		hedgedResponse.command=command;
+		hedgedResponse.setCallbackExecutor(callbackExecutor);
+		new HedgedRead<T>(command, hedgedResponse).start();
+		return hedgedResponse;
+	}
+
+	protected RippleDaemonConnection selectSecondary(){
+		int secondaryIndex = 1+(secondaryCounter.getAndIncrement() & Integer.MAX_VALUE)%(servers.length-1);
+		return servers[secondaryIndex];
+	}
+
+	protected void recordPrimaryLatency(long startNanos){
+		long latencyMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-startNanos);
+		long sampleIndex = nbLatencySamples.getAndIncrement();
+		latencySamples[(int) (sampleIndex%NB_LATENCY_SAMPLES)] = latencyMillis;
+		if((sampleIndex+1)%RECOMPUTE_EVERY_NB_SAMPLES==0){
+			recomputeHedgeDelay(Math.min(sampleIndex+1, NB_LATENCY_SAMPLES));
+		}
+	}
+
+	/**
+	 * Runs every RECOMPUTE_EVERY_NB_SAMPLES responses, a racy copy of the ring is good enough for a percentile
+	 */
+	protected void recomputeHedgeDelay(long nbSamples){
+		long[] sortedSamples = Arrays.copyOf(latencySamples, (int) nbSamples);
+		Arrays.sort(sortedSamples);
+		int percentileIndex = (int) Math.min(nbSamples-1, (long) Math.ceil(hedgePercentile*nbSamples)-1);
+		hedgeDelayMillis = Math.max(minHedgeDelayMillis, sortedSamples[Math.max(0, percentileIndex)]);
+	}
+
+	public long getHedgeDelayMillis() {
+		return hedgeDelayMillis;
+	}
+
+	public long getNbHedgeableReads() {
+		return nbHedgeableReads.get();
+	}
+
+	public long getNbHedges() {
+		return nbHedges.get();
+	}
+
+	public long getNbHedgeWins() {
+		return nbHedgeWins.get();
+	}
+
+	/**
+	 * @return the fraction of the read commands which were also sent to a secondary
+	 */
+	public double getHedgeRate() {
+		long nbReads = nbHedgeableReads.get();
+		return nbReads==0 ? 0 : nbHedges.get()/(double) nbReads;
+	}
+
+	/**
+	 * @return the fraction of the hedged commands answered first by the secondary
+	 */
+	public double getHedgeWinRate() {
+		long hedges = nbHedges.get();
+		return hedges==0 ? 0 : nbHedgeWins.get()/(double) hedges;
+	}
+}
@@ -0,0 +1,33 @@
+package jrippleapi.connection;
+
+import java.util.HashMap;
+
+/**
+ * The fields of a JSON object a {@link SelectiveJSONSerializable} reads, the other fields are skipped by the {@link StreamingJSONDecoder}.
+ * A null filter selects the whole subtree. The filter of an array applies to each of its elements.
+ *
+ * @author pmarches
+ */
+public class JSONFieldFilter {
+	HashMap<String, JSONFieldFilter> selectedFields = new HashMap<String, JSONFieldFilter>();
+
+	public JSONFieldFilter select(String... fieldNames){
+		for(String fieldName : fieldNames){
+			selectedFields.put(fieldName, null);
+		}
+		return this;
+	}
+
+	public JSONFieldFilter select(String fieldName, JSONFieldFilter subFieldFilter){
+		selectedFields.put(fieldName, subFieldFilter);
+		return this;
+	}
+
+	public boolean isSelected(String fieldName){
+		return selectedFields.containsKey(fieldName);
+	}
+
+	public JSONFieldFilter getSubFilter(String fieldName){
+		return selectedFields.get(fieldName);
+	}
+}
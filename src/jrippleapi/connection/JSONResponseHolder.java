@@ -1,11 +1,26 @@
 package jrippleapi.connection;
 
-import java.util.Hashtable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.json.simple.JSONObject;
 
 public class JSONResponseHolder {
-	Hashtable<Integer, FutureJSONResponse> waitingResponses = new Hashtable<Integer, FutureJSONResponse>();
+	public static final int DEFAULT_CONCURRENCY_LEVEL=64;
+
+	ConcurrentHashMap<Integer, FutureJSONResponse> waitingResponses;
+	final AtomicLong nbLateResponses = new AtomicLong();
+
+	public JSONResponseHolder() {
+		this(DEFAULT_CONCURRENCY_LEVEL);
+	}
+
+	/**
+	 * @param concurrencyLevel : the number of lock stripes of the pending request table, roughly the number of threads expected to send concurrently
+	 */
+	public JSONResponseHolder(int concurrencyLevel) {
+		waitingResponses = new ConcurrentHashMap<Integer, FutureJSONResponse>(256, 0.75f, concurrencyLevel);
+	}
 
 	public boolean remove(FutureJSONResponse futureJSONResponse) {
 		if(waitingResponses.remove(futureJSONResponse.responseCounter)==null){
@@ -14,20 +29,30 @@ public class JSONResponseHolder {
 		return true;
 	}
 
-	public boolean isCancelled(FutureJSONResponse futureJSONResponse) {
+	public boolean isPending(FutureJSONResponse futureJSONResponse) {
 		return waitingResponses.containsKey(futureJSONResponse.responseCounter);
 	}
-	
+
 	public void addPendingResponse(FutureJSONResponse pendingResponse){
 		waitingResponses.put(pendingResponse.responseCounter, pendingResponse);
 	}
 
+	public int getNbPendingResponses(){
+		return waitingResponses.size();
+	}
+
+	/**
+	 * @return the number of responses received for a request no longer pending, usually one that timed out
+	 */
+	public long getNbLateResponses(){
+		return nbLateResponses.get();
+	}
+
 	public void setResponseContent(JSONObject jsonMessage) {
 		int id  = ((Long) jsonMessage.get("id")).intValue();
 		FutureJSONResponse response=waitingResponses.remove(id);
 		if(response==null){
-			System.err.println("did not find response "+jsonMessage.get("id"));
-			response.cancel(true);
+			nbLateResponses.incrementAndGet();
 		}
 		else{
 			response.set(jsonMessage);
@@ -40,12 +65,11 @@ public class JSONResponseHolder {
 			return;
 		}
 		int id  = ((Long) messageId).intValue();
-		FutureJSONResponse response=waitingResponses.get(id);
+		FutureJSONResponse response=waitingResponses.remove(id);
 		if(response==null){
-			System.err.println("did not find response "+jsonMessage.get("id"));
+			nbLateResponses.incrementAndGet();
 		}
 		else{
-			response.cancel(true);
 			response.set(jsonMessage);
 		}
 	}
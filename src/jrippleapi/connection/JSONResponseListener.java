@@ -0,0 +1,6 @@
+package jrippleapi.connection;
+
+public interface JSONResponseListener<T> {
+	public void onSuccess(T result);
+	public void onFailure(Throwable cause);
+}
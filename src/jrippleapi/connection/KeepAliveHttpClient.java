@@ -0,0 +1,532 @@
+package jrippleapi.connection;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A minimal HTTP/1.1 client POSTing to a single host over a few persistent connections.
+ * All the sockets are non-blocking and served by one selector thread, a request waits in a queue
+ * when all the connections are busy. The request bodies are written from the caller's buffers with a gathering write,
+ * the responses can be gzip encoded, and either chunked or delimited by their Content-Length.
+ * A request without a response after the request timeout fails, and its connection is closed so the next request gets a fresh one.
+ * The idle connections are still read, so those closed by the server are dropped before a request is given to them.
+ *
+ * Only plain http is supported, see {@link RippleDaemonRPCConnection} for https.
+ *
+ * @author pmarches
+ */
+public class KeepAliveHttpClient {
+	public static final int DEFAULT_MAX_CONNECTIONS=4;
+	static final Charset US_ASCII = Charset.forName("US-ASCII");
+	static final int READ_BUFFER_SIZE=64*1024;
+	static final long TIMEOUT_CHECK_INTERVAL_MS=50;
+
+	public interface ResponseHandler {
+		/**
+		 * Called on the selector thread, with the decompressed body
+		 */
+		public void onResponse(int statusCode, byte[] body);
+		public void onFailure(Throwable cause);
+	}
+
+	static class Request {
+		final ByteBuffer header;
+		final ByteBuffer body;
+		final ResponseHandler handler;
+		final long postedNanos = System.nanoTime();
+		int nbAttempts;
+
+		Request(ByteBuffer header, ByteBuffer body, ResponseHandler handler) {
+			this.header = header;
+			this.body = body;
+			this.handler = handler;
+		}
+	}
+
+	final InetSocketAddress address;
+	final String requestLineAndHost;
+	final int maxConnections;
+	final Selector selector;
+	final Thread selectorThread;
+	volatile boolean isClosed;
+	volatile Throwable selectorFailure; //Why the selector thread stopped, when it was not closed
+	volatile long requestTimeoutNanos;
+	final ConcurrentLinkedQueue<Request> submittedRequests = new ConcurrentLinkedQueue<Request>();
+
+	//Only used by the selector thread
+	final ArrayDeque<Request> waitingRequests = new ArrayDeque<Request>();
+	final ArrayDeque<HttpConnection> idleConnections = new ArrayDeque<HttpConnection>();
+	final ArrayList<HttpConnection> allConnections = new ArrayList<HttpConnection>();
+	final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+	volatile long nbRequests;
+	volatile long nbConnectionsOpened;
+
+	public KeepAliveHttpClient(URI uri, int maxConnections) throws IOException {
+		if("http".equals(uri.getScheme())==false){
+			throw new IllegalArgumentException("Only http is supported, not "+uri.getScheme());
+		}
+		int port = uri.getPort()==-1?80:uri.getPort();
+		this.address = new InetSocketAddress(uri.getHost(), port);
+		String path = (uri.getRawPath()==null || uri.getRawPath().isEmpty())?"/":uri.getRawPath();
+		this.requestLineAndHost = "POST "+path+" HTTP/1.1\r\nHost: "+uri.getHost()+":"+port+"\r\n";
+		this.maxConnections = maxConnections;
+		this.selector = Selector.open();
+		this.selectorThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				selectLoop();
+			}
+		}, "KeepAliveHttpClient "+uri.getHost());
+		selectorThread.setDaemon(true);
+		selectorThread.start();
+	}
+
+	/**
+	 * Can be called from any thread. The body is sent from its position to its limit.
+	 */
+	public void post(String contentType, ByteBuffer body, ResponseHandler handler){
+		StringBuilder header = new StringBuilder(256);
+		header.append(requestLineAndHost);
+		header.append("Content-Type: ").append(contentType).append("\r\n");
+		header.append("Accept-Encoding: gzip\r\n");
+		header.append("Connection: keep-alive\r\n");
+		header.append("Content-Length: ").append(body.remaining()).append("\r\n\r\n");
+		Request request = new Request(ByteBuffer.wrap(header.toString().getBytes(US_ASCII)), body, handler);
+		if(isClosed){
+			handler.onFailure(new ConnectionLostException("The http client is closed"));
+			return;
+		}
+		submittedRequests.add(request);
+		selector.wakeup();
+	}
+
+	/**
+	 * @param requestTimeout : from the post to the end of the response, 0 waits forever
+	 */
+	public void setRequestTimeout(long requestTimeout, TimeUnit unit) {
+		this.requestTimeoutNanos = unit.toNanos(requestTimeout);
+		selector.wakeup();
+	}
+
+	public void close(){
+		isClosed=true;
+		selector.wakeup();
+	}
+
+	public long getNbRequests() {
+		return nbRequests;
+	}
+
+	public long getNbConnectionsOpened() {
+		return nbConnectionsOpened;
+	}
+
+	protected void selectLoop(){
+		try {
+			while(isClosed==false){
+				if(requestTimeoutNanos>0){
+					selector.select(TIMEOUT_CHECK_INTERVAL_MS);
+				}
+				else{
+					selector.select();
+				}
+				Request submittedRequest;
+				while((submittedRequest=submittedRequests.poll())!=null){
+					waitingRequests.add(submittedRequest);
+				}
+				Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+				while(selectedKeys.hasNext()){
+					SelectionKey key = selectedKeys.next();
+					selectedKeys.remove();
+					HttpConnection connection = (HttpConnection) key.attachment();
+					try {
+						connection.onReady(key);
+					} catch (IOException e) {
+						connection.onError(e);
+					}
+				}
+				if(requestTimeoutNanos>0){
+					expireRequests();
+				}
+				startWaitingRequests();
+			}
+		} catch (Throwable e) {
+			selectorFailure = e;
+		} finally {
+			shutdown();
+		}
+	}
+
+	/**
+	 * Fails the requests posted longer than the request timeout ago. The connection of one in progress is closed,
+	 * its response could still arrive and be taken for the response to the next request.
+	 */
+	protected void expireRequests(){
+		long now = System.nanoTime();
+		for(HttpConnection connection : new ArrayList<HttpConnection>(allConnections)){
+			Request request = connection.currentRequest;
+			if(request!=null && now-request.postedNanos>requestTimeoutNanos){
+				connection.currentRequest=null;
+				connection.closeChannel();
+				request.handler.onFailure(createTimeoutException());
+			}
+		}
+		Iterator<Request> waiting = waitingRequests.iterator();
+		while(waiting.hasNext()){
+			Request request = waiting.next();
+			if(now-request.postedNanos>requestTimeoutNanos){
+				waiting.remove();
+				request.handler.onFailure(createTimeoutException());
+			}
+		}
+	}
+
+	TimeoutException createTimeoutException(){
+		return new TimeoutException("No http response from "+address+" within "+TimeUnit.NANOSECONDS.toMillis(requestTimeoutNanos)+"ms");
+	}
+
+	protected void startWaitingRequests(){
+		while(waitingRequests.isEmpty()==false){
+			HttpConnection connection = idleConnections.poll();
+			if(connection==null){
+				if(allConnections.size()>=maxConnections){
+					return;
+				}
+				try {
+					connection = new HttpConnection();
+				} catch (Exception e) { //Also the unresolved addresses
+					waitingRequests.poll().handler.onFailure(e);
+					continue;
+				}
+			}
+			connection.start(waitingRequests.poll());
+		}
+	}
+
+	protected void shutdown(){
+		isClosed=true;
+		ConnectionLostException closedException = new ConnectionLostException("The http client is closed");
+		if(selectorFailure!=null){
+			closedException.initCause(selectorFailure);
+		}
+		for(HttpConnection connection : new ArrayList<HttpConnection>(allConnections)){
+			if(connection.currentRequest!=null){
+				connection.currentRequest.handler.onFailure(closedException);
+				connection.currentRequest=null;
+			}
+			connection.closeChannel();
+		}
+		Request request;
+		while((request=waitingRequests.poll())!=null){
+			request.handler.onFailure(closedException);
+		}
+		while((request=submittedRequests.poll())!=null){
+			request.handler.onFailure(closedException);
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			//No request is left to fail
+		}
+	}
+
+	/**
+	 * One persistent connection, carrying one request at a time
+	 */
+	class HttpConnection {
+		final SocketChannel channel;
+		final SelectionKey key;
+		boolean isConnected;
+		boolean isReused; //The current request is not the first one on this connection
+		int nbResponses;
+		Request currentRequest;
+		ByteBuffer[] requestBuffers;
+
+		byte[] received = new byte[READ_BUFFER_SIZE];
+		int receivedLength;
+		int bodyStart=-1;
+		int statusCode;
+		int contentLength;
+		boolean isChunked;
+		boolean isGzipped;
+		boolean isCloseRequested;
+		int chunkPosition;
+		ByteArrayOutputStream chunkedBody;
+
+		HttpConnection() throws IOException {
+			channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			isConnected = channel.connect(address);
+			key = channel.register(selector, isConnected?0:SelectionKey.OP_CONNECT, this);
+			allConnections.add(this);
+			nbConnectionsOpened++;
+		}
+
+		void start(Request request){
+			currentRequest=request;
+			isReused = nbResponses>0;
+			request.nbAttempts++;
+			nbRequests++;
+			request.header.rewind();
+			request.body.mark();
+			requestBuffers = new ByteBuffer[]{request.header, request.body};
+			receivedLength=0;
+			bodyStart=-1;
+			contentLength=-1;
+			isChunked=false;
+			isGzipped=false;
+			isCloseRequested=false;
+			chunkPosition=0;
+			chunkedBody=null;
+			if(isConnected){
+				key.interestOps(SelectionKey.OP_WRITE);
+			}
+		}
+
+		void onReady(SelectionKey readyKey) throws IOException {
+			if(readyKey.isConnectable()){
+				channel.finishConnect();
+				isConnected=true;
+				key.interestOps(currentRequest!=null?SelectionKey.OP_WRITE:0);
+				return;
+			}
+			if(readyKey.isWritable()){
+				channel.write(requestBuffers);
+				if(currentRequest.body.hasRemaining()==false){
+					key.interestOps(SelectionKey.OP_READ);
+				}
+				return;
+			}
+			if(readyKey.isReadable()){
+				if(currentRequest==null){
+					closeChannel(); //Idle, the server closed it or sent something unexpected
+					return;
+				}
+				read();
+			}
+		}
+
+		void read() throws IOException {
+			while(true){
+				readBuffer.clear();
+				int nbRead = channel.read(readBuffer);
+				if(nbRead==-1){
+					onEndOfStream();
+					return;
+				}
+				if(nbRead==0){
+					return;
+				}
+				readBuffer.flip();
+				if(receivedLength+nbRead>received.length){
+					byte[] largerReceived = new byte[Math.max(received.length*2, receivedLength+nbRead)];
+					System.arraycopy(received, 0, largerReceived, 0, receivedLength);
+					received = largerReceived;
+				}
+				readBuffer.get(received, receivedLength, nbRead);
+				receivedLength+=nbRead;
+				if(bodyStart<0 && parseHeaders()==false){
+					continue;
+				}
+				byte[] body = getCompleteBody();
+				if(body!=null){
+					onResponse(body);
+					return;
+				}
+			}
+		}
+
+		boolean parseHeaders(){
+			int headerEnd = indexOf(received, 0, receivedLength, "\r\n\r\n");
+			if(headerEnd<0){
+				return false;
+			}
+			bodyStart=headerEnd+4;
+			String[] headerLines = new String(received, 0, headerEnd, US_ASCII).split("\r\n");
+			String[] statusLine = headerLines[0].split(" ");
+			statusCode = Integer.parseInt(statusLine[1]);
+			isCloseRequested = statusLine[0].equals("HTTP/1.0");
+			for(int i=1; i<headerLines.length; i++){
+				int colon = headerLines[i].indexOf(':');
+				if(colon<0){
+					continue;
+				}
+				String name = headerLines[i].substring(0, colon).trim().toLowerCase();
+				String value = headerLines[i].substring(colon+1).trim().toLowerCase();
+				if(name.equals("content-length")){
+					contentLength = Integer.parseInt(value);
+				}
+				else if(name.equals("transfer-encoding")){
+					isChunked = value.contains("chunked");
+				}
+				else if(name.equals("content-encoding")){
+					isGzipped = value.contains("gzip");
+				}
+				else if(name.equals("connection")){
+					isCloseRequested = value.contains("close");
+				}
+			}
+			chunkPosition=bodyStart;
+			return true;
+		}
+
+		/**
+		 * @return null until the whole body was received
+		 */
+		byte[] getCompleteBody(){
+			if(isChunked){
+				return getCompleteChunkedBody();
+			}
+			if(contentLength>=0 && receivedLength-bodyStart>=contentLength){
+				byte[] body = new byte[contentLength];
+				System.arraycopy(received, bodyStart, body, 0, contentLength);
+				return body;
+			}
+			return null;
+		}
+
+		byte[] getCompleteChunkedBody(){
+			if(chunkedBody==null){
+				chunkedBody = new ByteArrayOutputStream();
+			}
+			while(true){
+				int sizeLineEnd = indexOf(received, chunkPosition, receivedLength, "\r\n");
+				if(sizeLineEnd<0){
+					return null;
+				}
+				String sizeLine = new String(received, chunkPosition, sizeLineEnd-chunkPosition, US_ASCII);
+				int extension = sizeLine.indexOf(';');
+				if(extension>=0){
+					sizeLine = sizeLine.substring(0, extension);
+				}
+				int chunkSize = Integer.parseInt(sizeLine.trim(), 16);
+				if(chunkSize==0){
+					if(indexOf(received, sizeLineEnd, receivedLength, "\r\n\r\n")<0){
+						return null; //Waiting for the end of the trailers
+					}
+					return chunkedBody.toByteArray();
+				}
+				int chunkStart = sizeLineEnd+2;
+				if(receivedLength<chunkStart+chunkSize+2){
+					return null;
+				}
+				chunkedBody.write(received, chunkStart, chunkSize);
+				chunkPosition = chunkStart+chunkSize+2;
+			}
+		}
+
+		void onResponse(byte[] body) {
+			Request request = currentRequest;
+			currentRequest=null;
+			nbResponses++;
+			if(isCloseRequested){
+				closeChannel();
+			}
+			else{
+				key.interestOps(SelectionKey.OP_READ); //Notices when the server closes it
+				idleConnections.add(this);
+			}
+			try {
+				if(isGzipped){
+					body = gunzip(body);
+				}
+			} catch (IOException e) {
+				request.handler.onFailure(e);
+				return;
+			}
+			try {
+				request.handler.onResponse(statusCode, body);
+			} catch (Throwable e) {
+				request.handler.onFailure(e);
+			}
+		}
+
+		void onEndOfStream() throws IOException {
+			if(currentRequest!=null && bodyStart>=0 && isChunked==false && contentLength<0){
+				//Delimited by the end of the connection
+				byte[] body = new byte[receivedLength-bodyStart];
+				System.arraycopy(received, bodyStart, body, 0, body.length);
+				isCloseRequested=true;
+				onResponse(body);
+				return;
+			}
+			onError(new ConnectionLostException("Connection closed by "+address));
+		}
+
+		/**
+		 * A keep-alive connection can be closed by the server just before we reuse it,
+		 * a request which could not be written on it is then tried once more on a new connection.
+		 * Once written, the server may have executed it, a submit must not be sent twice.
+		 */
+		void onError(IOException cause){
+			closeChannel();
+			Request request = currentRequest;
+			currentRequest=null;
+			if(request==null){
+				return;
+			}
+			boolean isWritten = request.header.hasRemaining()==false && request.body.hasRemaining()==false;
+			if(isReused && isWritten==false && request.nbAttempts<2){
+				request.body.reset();
+				waitingRequests.addFirst(request);
+				return;
+			}
+			request.handler.onFailure(cause);
+		}
+
+		void closeChannel(){
+			allConnections.remove(this);
+			idleConnections.remove(this);
+			key.cancel();
+			try {
+				channel.close();
+			} catch (IOException e) {
+				//Its request, if any, is failed by the caller
+			}
+		}
+	}
+
+	static int indexOf(byte[] buffer, int from, int to, String pattern){
+		byte[] patternBytes = pattern.getBytes(US_ASCII);
+		for(int i=from; i<=to-patternBytes.length; i++){
+			int j=0;
+			while(j<patternBytes.length && buffer[i+j]==patternBytes[j]){
+				j++;
+			}
+			if(j==patternBytes.length){
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	static byte[] gunzip(byte[] gzippedBody) throws IOException {
+		InputStream gzipStream = new GZIPInputStream(new ByteArrayInputStream(gzippedBody));
+		ByteArrayOutputStream body = new ByteArrayOutputStream(gzippedBody.length*4);
+		byte[] buffer = new byte[8192];
+		int nbRead;
+		while((nbRead=gzipStream.read(buffer))!=-1){
+			body.write(buffer, 0, nbRead);
+		}
+		gzipStream.close();
+		return body.toByteArray();
+	}
+}
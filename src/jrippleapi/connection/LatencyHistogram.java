@@ -0,0 +1,123 @@
+package jrippleapi.connection;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts latencies in log-linear buckets: each power of two is split in SUB_BUCKETS buckets,
+ * so a percentile is known within 1/SUB_BUCKETS of its value, from nanoseconds to hours in a few KB.
+ * Recording is one increment of an AtomicLongArray, it never locks, many threads can record at once.
+ *
+ * The percentiles are read from the counts while they change, they may miss the latencies recorded during the read.
+ *
+ * @author pmarches
+ */
+public class LatencyHistogram {
+	static final int SUB_BUCKET_BITS = 4;
+	static final int SUB_BUCKETS = 1<<SUB_BUCKET_BITS;
+	static final int MAX_EXPONENT = 46; //2^47ns is more than a day
+	static final long MAX_TRACKABLE_VALUE = (1L<<(MAX_EXPONENT+1))-1;
+	static final int NB_BUCKETS = (MAX_EXPONENT-SUB_BUCKET_BITS+2)*SUB_BUCKETS;
+
+	final AtomicLongArray counts = new AtomicLongArray(NB_BUCKETS);
+	final AtomicLong totalCount = new AtomicLong();
+	final AtomicLong totalNanos = new AtomicLong();
+	final AtomicLong maxNanos = new AtomicLong();
+
+	static int getBucketIndex(long value){
+		if(value<SUB_BUCKETS){
+			return (int) value;
+		}
+		int exponent = 63-Long.numberOfLeadingZeros(value);
+		int shift = exponent-SUB_BUCKET_BITS;
+		return (shift+1)*SUB_BUCKETS+(int) ((value>>>shift)-SUB_BUCKETS);
+	}
+
+	/**
+	 * @return the highest value counted in the bucket
+	 */
+	static long getBucketUpperBound(int index){
+		if(index<SUB_BUCKETS){
+			return index;
+		}
+		int shift = index/SUB_BUCKETS-1;
+		long mantissa = index%SUB_BUCKETS+SUB_BUCKETS;
+		return ((mantissa+1)<<shift)-1;
+	}
+
+	/**
+	 * @param nanos : negative values are counted as 0, the ones above a day as a day
+	 */
+	public void record(long nanos){
+		if(nanos<0){
+			nanos = 0;
+		}
+		else if(nanos>MAX_TRACKABLE_VALUE){
+			nanos = MAX_TRACKABLE_VALUE;
+		}
+		counts.incrementAndGet(getBucketIndex(nanos));
+		totalCount.incrementAndGet();
+		totalNanos.addAndGet(nanos);
+		long max;
+		while(nanos>(max=maxNanos.get())){
+			if(maxNanos.compareAndSet(max, nanos)){
+				break;
+			}
+		}
+	}
+
+	/**
+	 * @param percentile : between 0 and 100
+	 * @return the nanoseconds under which percentile % of the latencies fall, 0 if none was recorded
+	 */
+	public long getValueAtPercentile(double percentile){
+		long count = totalCount.get();
+		if(count==0){
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(count*percentile/100));
+		long seen = 0;
+		for(int i=0; i<NB_BUCKETS; i++){
+			seen += counts.get(i);
+			if(seen>=rank){
+				return Math.min(getBucketUpperBound(i), maxNanos.get());
+			}
+		}
+		return maxNanos.get();
+	}
+
+	public double getMillisAtPercentile(double percentile){
+		return getValueAtPercentile(percentile)/(double) TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+	public long getCount() {
+		return totalCount.get();
+	}
+
+	public long getMaxNanos() {
+		return maxNanos.get();
+	}
+
+	public double getMeanNanos(){
+		long count = totalCount.get();
+		return count==0 ? 0 : totalNanos.get()/(double) count;
+	}
+
+	/**
+	 * Zeroes the counts, the latencies recorded meanwhile may be partially kept
+	 */
+	public void reset(){
+		for(int i=0; i<NB_BUCKETS; i++){
+			counts.set(i, 0);
+		}
+		totalCount.set(0);
+		totalNanos.set(0);
+		maxNanos.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("n=%d p50=%.3fms p99=%.3fms max=%.3fms", getCount(), getMillisAtPercentile(50), getMillisAtPercentile(99), getMaxNanos()/1e6);
+	}
+}
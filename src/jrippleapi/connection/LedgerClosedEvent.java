@@ -0,0 +1,32 @@
+package jrippleapi.connection;
+
+import org.json.simple.JSONObject;
+
+/**
+ * Sent on the "ledger" stream each time a ledger closes.
+ */
+public class LedgerClosedEvent extends StreamEvent {
+	public long ledgerIndex;
+	public String ledgerHash;
+	public long ledgerTime;
+	public long feeBase;
+	public long feeRef;
+	public long reserveBase;
+	public long reserveIncrement;
+	public long txnCount;
+	public String validatedLedgers;
+
+	@Override
+	public void copyFrom(JSONObject jsonMessage) {
+		super.copyFrom(jsonMessage);
+		ledgerIndex = getLong(jsonMessage, "ledger_index");
+		ledgerHash = (String) jsonMessage.get("ledger_hash");
+		ledgerTime = getLong(jsonMessage, "ledger_time");
+		feeBase = getLong(jsonMessage, "fee_base");
+		feeRef = getLong(jsonMessage, "fee_ref");
+		reserveBase = getLong(jsonMessage, "reserve_base");
+		reserveIncrement = getLong(jsonMessage, "reserve_inc");
+		txnCount = getLong(jsonMessage, "txn_count");
+		validatedLedgers = (String) jsonMessage.get("validated_ledgers");
+	}
+}
@@ -0,0 +1,331 @@
+package jrippleapi.connection;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * An order book kept up to date from the book stream, instead of polling book_offers.
+ * The book is subscribed first, a book_offers snapshot of the last validated ledger is then taken,
+ * page by page with the marker and all the pages from the same ledger. The pages are waited for on a thread of the book,
+ * never on the thread delivering the responses or the events. The offers created, modified and deleted by the transactions of the following ledgers are applied
+ * to it. Transactions received before the snapshot are buffered, those already included in it are discarded.
+ *
+ * rippled publishes the ledgerClosed message of a ledger before its transactions, so the book is complete
+ * for a ledger once a message from a later ledger arrives. {@link #getOrderBook()} only returns such complete
+ * views, a reader never sees half the transactions of a ledger.
+ *
+ * After a reconnection, or when the dispatcher had to drop stream events, the book is synchronized again from a new snapshot.
+ *
+ * @author pmarches
+ */
+public class LiveOrderBook implements StreamEventHandler {
+	public static final int DEFAULT_SNAPSHOT_PAGE_SIZE=300;
+
+	final RippleDaemonWebsocketConnection connection;
+	final String takerGetsCurrency;
+	final String takerGetsIssuer;
+	final String takerPaysCurrency;
+	final String takerPaysIssuer;
+	int snapshotPageSize=DEFAULT_SNAPSHOT_PAGE_SIZE;
+	ExecutorService snapshotExecutor;
+
+	final LinkedHashMap<String, OrderBookEntry> offers = new LinkedHashMap<String, OrderBookEntry>();
+	final ArrayList<TransactionEvent> bufferedEvents = new ArrayList<TransactionEvent>();
+	boolean isSynchronized;
+	boolean hasChanges;
+	int synchronizedEpoch;
+	int nbSynchronizations; //Only the snapshot of the last one is applied
+	long currentLedgerIndex;
+	volatile OrderBook orderBookView;
+	volatile long nbSnapshots;
+	volatile long nbAppliedChanges;
+	volatile long nbFailedSnapshots;
+	volatile Throwable lastSnapshotFailure;
+
+	/**
+	 * @param takerGetsIssuer : null for XRP
+	 * @param takerPaysIssuer : null for XRP
+	 */
+	public LiveOrderBook(RippleDaemonWebsocketConnection connection, String takerGetsCurrency, String takerGetsIssuer, String takerPaysCurrency, String takerPaysIssuer) {
+		this.connection = connection;
+		this.takerGetsCurrency = takerGetsCurrency;
+		this.takerGetsIssuer = takerGetsIssuer;
+		this.takerPaysCurrency = takerPaysCurrency;
+		this.takerPaysIssuer = takerPaysIssuer;
+	}
+
+	/**
+	 * @param snapshotPageSize : the number of offers asked for by each book_offers of the snapshot
+	 */
+	public void setSnapshotPageSize(int snapshotPageSize) {
+		this.snapshotPageSize = snapshotPageSize;
+	}
+
+	public void start(){
+		connection.addStreamEventHandler(this);
+		connection.subscribeToStreamsFuture("ledger");
+		synchronize();
+	}
+
+	public void stop(){
+		connection.removeStreamEventHandler(this);
+		connection.unsubscribeFromStreamsFuture("ledger");
+		connection.unsubscribeFromBookFuture(takerGetsCurrency, takerGetsIssuer, takerPaysCurrency, takerPaysIssuer);
+		synchronized(this){
+			if(snapshotExecutor!=null){
+				snapshotExecutor.shutdownNow();
+				snapshotExecutor=null;
+			}
+		}
+	}
+
+	/**
+	 * @return the offers of the book as of {@link OrderBook#ledgerIndex}, best first, or null until the first snapshot arrives.
+	 * The returned book must not be modified.
+	 */
+	public OrderBook getOrderBook() {
+		return orderBookView;
+	}
+
+	public OrderBookEntry getBestOffer(){
+		OrderBook view = orderBookView;
+		if(view==null){
+			return null;
+		}
+		return view.getBestOffer();
+	}
+
+	public long getNbSnapshots() {
+		return nbSnapshots;
+	}
+
+	public long getNbAppliedChanges() {
+		return nbAppliedChanges;
+	}
+
+	/**
+	 * @return the number of snapshots which could not be read, the book synchronizes again on the next event
+	 */
+	public long getNbFailedSnapshots() {
+		return nbFailedSnapshots;
+	}
+
+	public Throwable getLastSnapshotFailure() {
+		return lastSnapshotFailure;
+	}
+
+	protected int getConnectionEpoch(){
+		return connection.connectionEpoch;
+	}
+
+	protected synchronized ExecutorService getSnapshotExecutor(){
+		if(snapshotExecutor==null){
+			snapshotExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread snapshotThread = new Thread(r, "LiveOrderBook snapshot "+takerGetsCurrency+"/"+takerPaysCurrency);
+					snapshotThread.setDaemon(true);
+					return snapshotThread;
+				}
+			});
+		}
+		return snapshotExecutor;
+	}
+
+	protected synchronized void synchronize(){
+		isSynchronized=false;
+		bufferedEvents.clear();
+		synchronizedEpoch=getConnectionEpoch();
+		final int synchronization=++nbSynchronizations;
+		final FutureJSONResponse<OrderBook> subscription = connection.subscribeToBookFuture(takerGetsCurrency, takerGetsIssuer, takerPaysCurrency, takerPaysIssuer, false);
+		getSnapshotExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					subscription.get(); //The changes are streamed before the snapshot is read, none is missed
+					applySnapshot(synchronization, readSnapshot(connection));
+				} catch (InterruptedException e) {
+					return; //Stopped
+				} catch (Exception e) {
+					onSynchronizationFailed(synchronization, e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Reads all the pages of the book, the first one from the last validated ledger and the following ones from the same ledger
+	 */
+	protected OrderBook readSnapshot(final RippleDaemonConnection pagingConnection){
+		final OrderBook snapshot = new OrderBook();
+		MarkerPagedIterator<OrderBookEntry, OrderBook> pages = new MarkerPagedIterator<OrderBookEntry, OrderBook>() {
+			@Override
+			protected FutureJSONResponse<OrderBook> requestPage(Object marker) {
+				Object ledgerIndex = snapshot.ledgerIndex==0 ? AccountQueryBatcher.VALIDATED_LEDGER : snapshot.ledgerIndex;
+				return pagingConnection.getOrderBookFuture(takerGetsCurrency, takerGetsIssuer, takerPaysCurrency, takerPaysIssuer, ledgerIndex, snapshotPageSize, marker);
+			}
+
+			@Override
+			protected void onPage(OrderBook page) {
+				if(snapshot.ledgerIndex==0){
+					snapshot.ledgerIndex=page.ledgerIndex;
+				}
+			}
+
+			@Override
+			protected Object getMarker(OrderBook page) {
+				return page.marker;
+			}
+		};
+		for(OrderBookEntry entry : pages){
+			snapshot.add(entry);
+		}
+		snapshot.buildLevels();
+		return snapshot;
+	}
+
+	/**
+	 * The next event synchronizes again
+	 */
+	protected synchronized void onSynchronizationFailed(int synchronization, Throwable cause){
+		nbFailedSnapshots++;
+		lastSnapshotFailure=cause;
+		if(synchronization==nbSynchronizations){
+			synchronizedEpoch=-1;
+		}
+	}
+
+	protected synchronized void applySnapshot(int synchronization, OrderBook snapshot){
+		if(synchronization!=nbSynchronizations){
+			return; //Synchronizing again since, after a reconnection
+		}
+		offers.clear();
+		for(OrderBookEntry entry : snapshot){
+			offers.put(entry.offerIndex, entry);
+		}
+		nbSnapshots++;
+		currentLedgerIndex=snapshot.ledgerIndex;
+		hasChanges=true;
+		publishView();
+		for(TransactionEvent bufferedEvent : bufferedEvents){
+			if(bufferedEvent.ledgerIndex>snapshot.ledgerIndex){
+				applyTransaction(bufferedEvent);
+			}
+		}
+		bufferedEvents.clear();
+		isSynchronized=true;
+	}
+
+	@Override
+	public synchronized void onEvent(StreamEvent event, long sequence, boolean endOfBatch) {
+		if(getConnectionEpoch()!=synchronizedEpoch || event instanceof StreamOverflowEvent){
+			synchronize(); //Changes were missed
+		}
+		if(event instanceof LedgerClosedEvent){
+			long closedLedgerIndex = ((LedgerClosedEvent) event).ledgerIndex;
+			if(isSynchronized && closedLedgerIndex>currentLedgerIndex){
+				publishView(); //The ledgers before the one closed are complete
+				currentLedgerIndex=closedLedgerIndex;
+			}
+		}
+		else if(event instanceof TransactionEvent){
+			TransactionEvent txEvent = (TransactionEvent) event;
+			if(txEvent.meta==null || txEvent.validated==false){
+				return;
+			}
+			if(isSynchronized){
+				applyTransaction(txEvent);
+			}
+			else{
+				bufferedEvents.add(txEvent);
+			}
+		}
+	}
+
+	protected void applyTransaction(TransactionEvent txEvent){
+		if(txEvent.ledgerIndex>currentLedgerIndex){
+			publishView();
+			currentLedgerIndex=txEvent.ledgerIndex;
+		}
+		JSONArray affectedNodes = (JSONArray) txEvent.meta.get("AffectedNodes");
+		if(affectedNodes==null){
+			return;
+		}
+		for(Object affectedNode : affectedNodes){
+			JSONObject jsonAffectedNode = (JSONObject) affectedNode;
+			JSONObject createdNode = (JSONObject) jsonAffectedNode.get("CreatedNode");
+			if(createdNode!=null){
+				applyOfferChange(createdNode, (JSONObject) createdNode.get("NewFields"), false);
+				continue;
+			}
+			JSONObject modifiedNode = (JSONObject) jsonAffectedNode.get("ModifiedNode");
+			if(modifiedNode!=null){
+				applyOfferChange(modifiedNode, (JSONObject) modifiedNode.get("FinalFields"), false);
+				continue;
+			}
+			JSONObject deletedNode = (JSONObject) jsonAffectedNode.get("DeletedNode");
+			if(deletedNode!=null){
+				applyOfferChange(deletedNode, (JSONObject) deletedNode.get("FinalFields"), true);
+			}
+		}
+	}
+
+	/**
+	 * The offers are replaced rather than modified, so the views already published stay untouched.
+	 */
+	protected void applyOfferChange(JSONObject jsonNode, JSONObject jsonOfferFields, boolean isDeleted){
+		if("Offer".equals(jsonNode.get("LedgerEntryType"))==false || jsonOfferFields==null || isInBook(jsonOfferFields)==false){
+			return;
+		}
+		String offerIndex = (String) jsonNode.get("LedgerIndex");
+		if(isDeleted){
+			offers.remove(offerIndex);
+		}
+		else{
+			OrderBookEntry entry = new OrderBookEntry();
+			entry.copyFrom(jsonOfferFields);
+			entry.offerIndex=offerIndex;
+			offers.put(offerIndex, entry);
+		}
+		hasChanges=true;
+		nbAppliedChanges++;
+	}
+
+	protected boolean isInBook(JSONObject jsonOfferFields){
+		return isSameIssue(jsonOfferFields.get("TakerGets"), takerGetsCurrency, takerGetsIssuer)
+				&& isSameIssue(jsonOfferFields.get("TakerPays"), takerPaysCurrency, takerPaysIssuer);
+	}
+
+	static boolean isSameIssue(Object jsonAmount, String currency, String issuer){
+		if(jsonAmount instanceof String){
+			return issuer==null;
+		}
+		JSONObject jsonIssuedAmount = (JSONObject) jsonAmount;
+		return currency.equals(jsonIssuedAmount.get("currency")) && issuer!=null && issuer.equals(jsonIssuedAmount.get("issuer"));
+	}
+
+	/**
+	 * A published view is never modified, a new one is published even when only the ledger changed
+	 */
+	protected void publishView(){
+		OrderBook previousView = orderBookView;
+		if(hasChanges==false && previousView!=null){
+			if(previousView.ledgerIndex!=currentLedgerIndex){
+				orderBookView=previousView.copyAtLedger(currentLedgerIndex);
+			}
+			return;
+		}
+		OrderBook view = new OrderBook();
+		view.addAll(offers.values());
+		view.buildLevels();
+		view.ledgerIndex=currentLedgerIndex;
+		orderBookView=view;
+		hasChanges=false;
+	}
+}
@@ -0,0 +1,114 @@
+package jrippleapi.connection;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Iterates over all the pages of a command paginated with a marker (account_lines, account_offers, account_tx, ledger_data).
+ * The next page is requested as soon as the current one arrives, so it is usually there when the current one
+ * has been read. At most two pages are held, whatever the size of the whole result.
+ *
+ * A failed page throws a RuntimeException from {@link #hasNext()}.
+ *
+ * @author pmarches
+ */
+public abstract class MarkerPagedIterator<E, P extends JSONSerializable & List<E>> implements Iterator<E>, Iterable<E> {
+	Iterator<E> currentPage = Collections.<E>emptyList().iterator();
+	FutureJSONResponse<P> nextPage;
+	boolean isStarted;
+	long nbPages;
+
+	/**
+	 * @param marker : null for the first page
+	 */
+	protected abstract FutureJSONResponse<P> requestPage(Object marker);
+
+	/**
+	 * @return null on the last page
+	 */
+	protected abstract Object getMarker(P page);
+
+	/**
+	 * Called with each page before its elements are iterated, for example to read the ledger the first page came from
+	 */
+	protected void onPage(P page){
+	}
+
+	@Override
+	public boolean hasNext() {
+		if(isStarted==false){
+			isStarted=true;
+			nextPage=requestPage(null);
+		}
+		while(currentPage.hasNext()==false){
+			if(nextPage==null){
+				return false;
+			}
+			P page = waitForPage(nextPage);
+			nbPages++;
+			nextPage=null;
+			onPage(page);
+			Object marker = getMarker(page);
+			if(marker!=null){
+				nextPage=requestPage(marker);
+			}
+			currentPage=page.iterator();
+		}
+		return true;
+	}
+
+	protected P waitForPage(FutureJSONResponse<P> page){
+		try {
+			P result = page.get();
+			if(result==null){
+				throw new RuntimeException("No result for page "+(nbPages+1)+" of "+page.command);
+			}
+			return result;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Failed to get page "+(nbPages+1), e.getCause());
+		}
+	}
+
+	@Override
+	public E next() {
+		if(hasNext()==false){
+			throw new NoSuchElementException();
+		}
+		return currentPage.next();
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * So it can be used in a for loop, only once
+	 */
+	@Override
+	public Iterator<E> iterator() {
+		return this;
+	}
+
+	/**
+	 * Stops prefetching, when the iteration ends early
+	 */
+	public void close(){
+		if(nextPage!=null){
+			nextPage.cancel(false);
+			nextPage=null;
+		}
+		currentPage = Collections.<E>emptyList().iterator();
+		isStarted=true;
+	}
+
+	public long getNbPages() {
+		return nbPages;
+	}
+}
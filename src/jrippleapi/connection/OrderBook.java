@@ -1,21 +1,219 @@
 package jrippleapi.connection;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 
-public class OrderBook extends ArrayList<OrderBookEntry> implements JSONSerializable {
+/**
+ * The offers of a book, best first. The offers are also aggregated by quality into price levels held in primitive arrays,
+ * along with the cumulative size and cost of the levels, for constant time top of book and logarithmic time fill queries.
+ * The levels are built by copyFrom, call {@link #buildLevels()} after modifying the offers.
+ *
+ * Sizes are TakerGets amounts, costs are TakerPays amounts and prices are TakerPays/TakerGets, in drops for XRP.
+ */
+public class OrderBook extends ArrayList<OrderBookEntry> implements SelectiveJSONSerializable {
 	private static final long serialVersionUID = 7170053946114996963L;
+	static final JSONFieldFilter FIELD_FILTER = new JSONFieldFilter().select("offers", OrderBookEntry.FIELD_FILTER).select("ledger_index", "marker");
+
+	/**
+	 * The ledger the offers were read from, 0 when it was not a closed ledger
+	 */
+	public long ledgerIndex;
+	/**
+	 * To read the next page of the book, null on the last one
+	 */
+	public Object marker;
+
+	int nbLevels;
+	long[] levelQualities = new long[0];
+	double[] levelPrices = new double[0];
+	double[] levelSizes = new double[0];
+	double[] cumulativeSizes = new double[0];
+	double[] cumulativeCosts = new double[0];
+
+	@Override
+	public JSONFieldFilter getFieldFilter() {
+		return FIELD_FILTER;
+	}
 
 	@Override
 	public void copyFrom(JSONObject jsonCommandResult) {
 		JSONArray jsonOffers = (JSONArray) jsonCommandResult.get("offers");
-		for(int i=0; i<jsonOffers.size(); i++){
+		for(int i=0; jsonOffers!=null && i<jsonOffers.size(); i++){
 			OrderBookEntry bookEntry = new OrderBookEntry();
 			bookEntry.copyFrom((JSONObject) jsonOffers.get(i));
 			add(bookEntry);
 		}
+		Object jsonLedgerIndex = jsonCommandResult.get("ledger_index");
+		if(jsonLedgerIndex instanceof Number){
+			ledgerIndex=((Number) jsonLedgerIndex).longValue();
+		}
+		marker=jsonCommandResult.get("marker");
+		buildLevels();
+	}
+
+	/**
+	 * @return the same offers as of another ledger, the levels are shared since they are not modified once built
+	 */
+	public OrderBook copyAtLedger(long ledgerIndex){
+		OrderBook copy = new OrderBook();
+		copy.addAll(this);
+		copy.nbLevels=nbLevels;
+		copy.levelQualities=levelQualities;
+		copy.levelPrices=levelPrices;
+		copy.levelSizes=levelSizes;
+		copy.cumulativeSizes=cumulativeSizes;
+		copy.cumulativeCosts=cumulativeCosts;
+		copy.ledgerIndex=ledgerIndex;
+		return copy;
+	}
+
+	/**
+	 * Sorts the offers by quality, and aggregates them into price levels
+	 */
+	public void buildLevels(){
+		Collections.sort(this, OrderBookEntry.BY_QUALITY);
+		int nbOffers = size();
+		levelQualities = new long[nbOffers];
+		levelPrices = new double[nbOffers];
+		levelSizes = new double[nbOffers];
+		cumulativeSizes = new double[nbOffers];
+		cumulativeCosts = new double[nbOffers];
+		int level=-1;
+		double cumulativeSize=0;
+		double cumulativeCost=0;
+		for(int i=0; i<nbOffers; i++){
+			OrderBookEntry entry = get(i);
+			if(level<0 || entry.quality!=levelQualities[level]){
+				level++;
+				levelQualities[level]=entry.quality;
+				levelPrices[level]=entry.getPrice();
+			}
+			double size = entry.takerGetsAmount.amount.doubleValue();
+			cumulativeSize+=size;
+			cumulativeCost+=entry.takerPaysAmount.amount.doubleValue();
+			levelSizes[level]+=size;
+			cumulativeSizes[level]=cumulativeSize;
+			cumulativeCosts[level]=cumulativeCost;
+		}
+		nbLevels=level+1;
+	}
+
+	public OrderBookEntry getBestOffer(){
+		if(isEmpty()){
+			return null;
+		}
+		return get(0);
+	}
+
+	public int getNbLevels() {
+		return nbLevels;
+	}
+
+	/**
+	 * @return the quality of the best level, 0 if the book is empty
+	 */
+	public long getBestQuality(){
+		if(nbLevels==0){
+			return 0;
+		}
+		return levelQualities[0];
+	}
+
+	/**
+	 * @return the price of the best level, NaN if the book is empty
+	 */
+	public double getBestPrice(){
+		if(nbLevels==0){
+			return Double.NaN;
+		}
+		return levelPrices[0];
+	}
+
+	/**
+	 * @return the size offered at the best price
+	 */
+	public double getBestSize(){
+		if(nbLevels==0){
+			return 0;
+		}
+		return levelSizes[0];
+	}
+
+	public double getLevelPrice(int level){
+		return levelPrices[level];
+	}
+
+	public double getLevelSize(int level){
+		return levelSizes[level];
+	}
+
+	/**
+	 * @return the size offered by the first nbLevelsToAggregate levels
+	 */
+	public double getDepth(int nbLevelsToAggregate){
+		int lastLevel = Math.min(nbLevelsToAggregate, nbLevels)-1;
+		if(lastLevel<0){
+			return 0;
+		}
+		return cumulativeSizes[lastLevel];
+	}
+
+	/**
+	 * @return how much can be taken at a price up to maxPrice
+	 */
+	public double getFillableSize(double maxPrice){
+		int lastLevel = getLastLevelAtOrBelow(maxPrice);
+		if(lastLevel<0){
+			return 0;
+		}
+		return cumulativeSizes[lastLevel];
+	}
+
+	/**
+	 * @return what taking everything up to maxPrice costs
+	 */
+	public double getFillCost(double maxPrice){
+		int lastLevel = getLastLevelAtOrBelow(maxPrice);
+		if(lastLevel<0){
+			return 0;
+		}
+		return cumulativeCosts[lastLevel];
+	}
+
+	/**
+	 * @return what taking the given size costs, NaN if the book is not deep enough
+	 */
+	public double getCostOfSize(double size){
+		if(size<=0){
+			return 0;
+		}
+		int level = Arrays.binarySearch(cumulativeSizes, 0, nbLevels, size);
+		if(level>=0){
+			return cumulativeCosts[level];
+		}
+		level = -level-1;
+		if(level>=nbLevels){
+			return Double.NaN;
+		}
+		double previousSize=0;
+		double previousCost=0;
+		if(level>0){
+			previousSize=cumulativeSizes[level-1];
+			previousCost=cumulativeCosts[level-1];
+		}
+		return previousCost+(size-previousSize)*levelPrices[level];
+	}
+
+	protected int getLastLevelAtOrBelow(double price){
+		int level = Arrays.binarySearch(levelPrices, 0, nbLevels, price);
+		if(level>=0){
+			return level;
+		}
+		return -level-2;
 	}
 
 }
@@ -1,5 +1,11 @@
 package jrippleapi.connection;
 
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.util.Comparator;
+
 import jrippleapi.core.DenominatedIssuedCurrency;
 
 import org.json.simple.JSONObject;
@@ -8,11 +14,67 @@ public class OrderBookEntry implements JSONSerializable {
 	String accountStr;
 	DenominatedIssuedCurrency takerGetsAmount;
 	DenominatedIssuedCurrency takerPaysAmount;
+	String offerIndex;
+	String bookDirectory;
+	long sequence;
+	/**
+	 * TakerPays/TakerGets in the rippled encoding: 8 bits of exponent+100 followed by a 56 bits mantissa.
+	 * Compared as unsigned, a lower quality is a better offer for the taker.
+	 */
+	long quality;
+	static final JSONFieldFilter FIELD_FILTER = new JSONFieldFilter().select("Account", "TakerGets", "TakerPays", "BookDirectory", "Sequence", "index");
+
+	static final int QUALITY_EXPONENT_BIAS=100;
+	static final long QUALITY_MANTISSA_MASK=0x00FFFFFFFFFFFFFFL;
+	static final long MIN_QUALITY_MANTISSA=1000000000000000L;
+	static final long MAX_QUALITY_MANTISSA=9999999999999999L;
+
+	/**
+	 * Best offers first
+	 */
+	static final Comparator<OrderBookEntry> BY_QUALITY = new Comparator<OrderBookEntry>() {
+		@Override
+		public int compare(OrderBookEntry entry1, OrderBookEntry entry2) {
+			return compareQualities(entry1.quality, entry2.quality);
+		}
+	};
+
+	static int compareQualities(long quality1, long quality2){
+		return Long.valueOf(quality1+Long.MIN_VALUE).compareTo(quality2+Long.MIN_VALUE);
+	}
+
+	/**
+	 * @return the quality encoded in the last 64 bits of a book directory index
+	 */
+	static long getQualityFromBookDirectory(String bookDirectory){
+		return new BigInteger(bookDirectory.substring(bookDirectory.length()-16), 16).longValue();
+	}
+
+	static long encodeQuality(BigDecimal rate){
+		if(rate.signum()==0){
+			return 0;
+		}
+		BigDecimal roundedRate = rate.round(new MathContext(16, RoundingMode.DOWN));
+		long mantissa = roundedRate.unscaledValue().longValue();
+		int exponent = -roundedRate.scale();
+		while(mantissa<MIN_QUALITY_MANTISSA){
+			mantissa*=10;
+			exponent--;
+		}
+		while(mantissa>MAX_QUALITY_MANTISSA){
+			mantissa/=10;
+			exponent++;
+		}
+		return ((long) (exponent+QUALITY_EXPONENT_BIAS)<<56) | mantissa;
+	}
+
+	static BigDecimal decodeQuality(long quality){
+		int exponent = (int) (quality>>>56)-QUALITY_EXPONENT_BIAS;
+		return BigDecimal.valueOf(quality&QUALITY_MANTISSA_MASK).scaleByPowerOfTen(exponent);
+	}
 
 	@Override
 	public void copyFrom(JSONObject jsonOrderBookEntry) {
-		jsonOrderBookEntry.get("index");
-
 		takerPaysAmount = new DenominatedIssuedCurrency();
 		takerPaysAmount.copyFrom(jsonOrderBookEntry.get("TakerPays"));
 		
@@ -20,18 +82,48 @@ public class OrderBookEntry implements JSONSerializable {
 		takerGetsAmount.copyFrom(jsonOrderBookEntry.get("TakerGets"));
 		
 		accountStr=(String) jsonOrderBookEntry.get("Account");
-		jsonOrderBookEntry.get("BookDirectory");
-		jsonOrderBookEntry.get("LedgerEntryType");
-		jsonOrderBookEntry.get("Sequence");
-		jsonOrderBookEntry.get("BookNode");
-		jsonOrderBookEntry.get("Flags");
-		jsonOrderBookEntry.get("OwnerNode");
-		jsonOrderBookEntry.get("PreviousTxnID");
-		jsonOrderBookEntry.get("PreviousTxnLgrSeq");
-		jsonOrderBookEntry.get("quality");
-		jsonOrderBookEntry.get("");
-		jsonOrderBookEntry.get("");
-		jsonOrderBookEntry.get("");
+		offerIndex=(String) jsonOrderBookEntry.get("index");
+		bookDirectory=(String) jsonOrderBookEntry.get("BookDirectory");
+		Object jsonSequence = jsonOrderBookEntry.get("Sequence");
+		if(jsonSequence!=null){
+			sequence=((Number) jsonSequence).longValue();
+		}
+		if(bookDirectory!=null){
+			quality=getQualityFromBookDirectory(bookDirectory);
+		}
+		else if(takerGetsAmount.amount.signum()!=0){
+			quality=encodeQuality(takerPaysAmount.amount.divide(takerGetsAmount.amount, MathContext.DECIMAL64));
+		}
 	}
 
+	/**
+	 * @return TakerPays/TakerGets, in drops for XRP
+	 */
+	public double getPrice() {
+		return decodeQuality(quality).doubleValue();
+	}
+
+	public long getQuality() {
+		return quality;
+	}
+
+	public String getAccount() {
+		return accountStr;
+	}
+
+	public DenominatedIssuedCurrency getTakerGets() {
+		return takerGetsAmount;
+	}
+
+	public DenominatedIssuedCurrency getTakerPays() {
+		return takerPaysAmount;
+	}
+
+	public String getOfferIndex() {
+		return offerIndex;
+	}
+
+	public long getSequence() {
+		return sequence;
+	}
 }
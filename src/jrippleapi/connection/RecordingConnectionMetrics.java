@@ -0,0 +1,272 @@
+package jrippleapi.connection;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.ObjectName;
+
+/**
+ * Keeps a {@link LatencyHistogram} per command for the time to the first byte of the response, the parse time
+ * and the end to end time, with the commands in flight, the bytes in and out and the errors by code.
+ * Nothing locks once a command was seen, so it can stay enabled under load.
+ *
+ * Registered with {@link #registerMBean(String)}, it can be read from JMX.
+ *
+ * @author pmarches
+ */
+public class RecordingConnectionMetrics implements ConnectionMetrics, ConnectionMetricsMXBean {
+	public static final String MBEAN_DOMAIN = "jrippleapi";
+	static final String UNKNOWN_COMMAND = "unknown";
+
+	public static class CommandMetrics {
+		public final LatencyHistogram sendToFirstByte = new LatencyHistogram();
+		public final LatencyHistogram parse = new LatencyHistogram();
+		public final LatencyHistogram endToEnd = new LatencyHistogram();
+		final AtomicLong nbRequests = new AtomicLong();
+		final AtomicLong nbErrors = new AtomicLong();
+
+		public long getNbRequests() {
+			return nbRequests.get();
+		}
+
+		public long getNbErrors() {
+			return nbErrors.get();
+		}
+
+		void reset(){
+			sendToFirstByte.reset();
+			parse.reset();
+			endToEnd.reset();
+			nbRequests.set(0);
+			nbErrors.set(0);
+		}
+
+		@Override
+		public String toString() {
+			return nbRequests+" requests, "+nbErrors+" errors, first byte "+sendToFirstByte+", parse "+parse+", end to end "+endToEnd;
+		}
+	}
+
+	final ConcurrentHashMap<String, CommandMetrics> metricsByCommand = new ConcurrentHashMap<String, CommandMetrics>();
+	final ConcurrentHashMap<String, AtomicLong> errorsByCode = new ConcurrentHashMap<String, AtomicLong>();
+	final LatencyHistogram endToEnd = new LatencyHistogram(); //Of all the commands
+	final AtomicInteger nbInFlight = new AtomicInteger();
+	final AtomicLong nbRequests = new AtomicLong();
+	final AtomicLong nbErrors = new AtomicLong();
+	final AtomicLong bytesSent = new AtomicLong();
+	final AtomicLong bytesReceived = new AtomicLong();
+	ObjectName registeredName;
+
+	public CommandMetrics getCommandMetrics(String command){
+		if(command==null){
+			command = UNKNOWN_COMMAND;
+		}
+		CommandMetrics commandMetrics = metricsByCommand.get(command);
+		if(commandMetrics==null){
+			CommandMetrics newMetrics = new CommandMetrics();
+			commandMetrics = metricsByCommand.putIfAbsent(command, newMetrics);
+			if(commandMetrics==null){
+				commandMetrics = newMetrics;
+			}
+		}
+		return commandMetrics;
+	}
+
+	@Override
+	public void onRequest(String command) {
+		nbInFlight.incrementAndGet();
+		nbRequests.incrementAndGet();
+		getCommandMetrics(command).nbRequests.incrementAndGet();
+	}
+
+	@Override
+	public void onBytesSent(int nbBytes) {
+		bytesSent.addAndGet(nbBytes);
+	}
+
+	@Override
+	public void onBytesReceived(int nbBytes) {
+		bytesReceived.addAndGet(nbBytes);
+	}
+
+	@Override
+	public void onResponse(String command, long sendToFirstByteNanos, long parseNanos) {
+		CommandMetrics commandMetrics = getCommandMetrics(command);
+		commandMetrics.sendToFirstByte.record(sendToFirstByteNanos);
+		commandMetrics.parse.record(parseNanos);
+	}
+
+	@Override
+	public void onCompleted(String command, long endToEndNanos, String error) {
+		nbInFlight.decrementAndGet();
+		CommandMetrics commandMetrics = getCommandMetrics(command);
+		commandMetrics.endToEnd.record(endToEndNanos);
+		endToEnd.record(endToEndNanos);
+		if(error!=null){
+			nbErrors.incrementAndGet();
+			commandMetrics.nbErrors.incrementAndGet();
+			AtomicLong errorCount = errorsByCode.get(error);
+			if(errorCount==null){
+				AtomicLong newCount = new AtomicLong();
+				errorCount = errorsByCode.putIfAbsent(error, newCount);
+				if(errorCount==null){
+					errorCount = newCount;
+				}
+			}
+			errorCount.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @param name : tells the connections apart, it becomes the name key of the ObjectName
+	 */
+	public synchronized ObjectName registerMBean(String name) {
+		try {
+			unregisterMBean();
+			ObjectName objectName = new ObjectName(MBEAN_DOMAIN+":type=ConnectionMetrics,name="+ObjectName.quote(name));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+			registeredName = objectName;
+			return objectName;
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public synchronized void unregisterMBean() {
+		if(registeredName==null){
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+		} catch (InstanceNotFoundException e) {
+			//Already unregistered by someone else
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		} finally {
+			registeredName = null;
+		}
+	}
+
+	@Override
+	public int getNbInFlight() {
+		return nbInFlight.get();
+	}
+
+	@Override
+	public long getNbRequests() {
+		return nbRequests.get();
+	}
+
+	@Override
+	public long getNbErrors() {
+		return nbErrors.get();
+	}
+
+	@Override
+	public long getBytesSent() {
+		return bytesSent.get();
+	}
+
+	@Override
+	public long getBytesReceived() {
+		return bytesReceived.get();
+	}
+
+	public LatencyHistogram getEndToEnd() {
+		return endToEnd;
+	}
+
+	@Override
+	public double getEndToEndP50Millis() {
+		return endToEnd.getMillisAtPercentile(50);
+	}
+
+	@Override
+	public double getEndToEndP99Millis() {
+		return endToEnd.getMillisAtPercentile(99);
+	}
+
+	@Override
+	public double getEndToEndMaxMillis() {
+		return endToEnd.getMaxNanos()/1e6;
+	}
+
+	@Override
+	public Map<String, Long> getRequestCountsByCommand() {
+		TreeMap<String, Long> requestCounts = new TreeMap<String, Long>();
+		for(Map.Entry<String, CommandMetrics> entry : metricsByCommand.entrySet()){
+			requestCounts.put(entry.getKey(), entry.getValue().getNbRequests());
+		}
+		return requestCounts;
+	}
+
+	@Override
+	public Map<String, Long> getErrorCountsByCode() {
+		TreeMap<String, Long> errorCounts = new TreeMap<String, Long>();
+		for(Map.Entry<String, AtomicLong> entry : errorsByCode.entrySet()){
+			errorCounts.put(entry.getKey(), entry.getValue().get());
+		}
+		return errorCounts;
+	}
+
+	@Override
+	public Map<String, Double> getEndToEndP99MillisByCommand() {
+		TreeMap<String, Double> percentiles = new TreeMap<String, Double>();
+		for(Map.Entry<String, CommandMetrics> entry : metricsByCommand.entrySet()){
+			percentiles.put(entry.getKey(), entry.getValue().endToEnd.getMillisAtPercentile(99));
+		}
+		return percentiles;
+	}
+
+	@Override
+	public Map<String, Double> getSendToFirstByteP99MillisByCommand() {
+		TreeMap<String, Double> percentiles = new TreeMap<String, Double>();
+		for(Map.Entry<String, CommandMetrics> entry : metricsByCommand.entrySet()){
+			percentiles.put(entry.getKey(), entry.getValue().sendToFirstByte.getMillisAtPercentile(99));
+		}
+		return percentiles;
+	}
+
+	@Override
+	public Map<String, Double> getParseP99MillisByCommand() {
+		TreeMap<String, Double> percentiles = new TreeMap<String, Double>();
+		for(Map.Entry<String, CommandMetrics> entry : metricsByCommand.entrySet()){
+			percentiles.put(entry.getKey(), entry.getValue().parse.getMillisAtPercentile(99));
+		}
+		return percentiles;
+	}
+
+	/**
+	 * Zeroes the histograms and the counters, but not the commands in flight
+	 */
+	@Override
+	public void reset() {
+		for(CommandMetrics commandMetrics : metricsByCommand.values()){
+			commandMetrics.reset();
+		}
+		for(AtomicLong errorCount : errorsByCode.values()){
+			errorCount.set(0);
+		}
+		endToEnd.reset();
+		nbRequests.set(0);
+		nbErrors.set(0);
+		bytesSent.set(0);
+		bytesReceived.set(0);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder report = new StringBuilder();
+		report.append(nbRequests).append(" requests, ").append(nbInFlight).append(" in flight, ").append(nbErrors).append(" errors ").append(getErrorCountsByCode());
+		report.append(", ").append(bytesSent).append(" bytes sent, ").append(bytesReceived).append(" bytes received, end to end ").append(endToEnd);
+		for(Map.Entry<String, CommandMetrics> entry : new TreeMap<String, CommandMetrics>(metricsByCommand).entrySet()){
+			report.append("\n  ").append(entry.getKey()).append(": ").append(entry.getValue());
+		}
+		return report.toString();
+	}
+}
@@ -4,12 +4,19 @@ import java.math.BigDecimal;
 
 import org.json.simple.JSONObject;
 
-public class RippleAddressPublicInformation implements JSONSerializable {
+public class RippleAddressPublicInformation implements SelectiveJSONSerializable {
+	static final JSONFieldFilter FIELD_FILTER = new JSONFieldFilter().select("account_data", new JSONFieldFilter().select("Balance", "Account", "urlgravatar", "Sequence"));
+
 	public String account;
 	public BigDecimal xrpBalance;
 	public String urlgravatar;
 	public long nextTransactionSequence;
-	
+
+	@Override
+	public JSONFieldFilter getFieldFilter() {
+		return FIELD_FILTER;
+	}
+
 	@Override
 	public void copyFrom(JSONObject jsonCommandResult) {
 		JSONObject jsonAccountData = (JSONObject) jsonCommandResult.get("account_data");
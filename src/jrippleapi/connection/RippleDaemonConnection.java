@@ -1,8 +1,559 @@
 package jrippleapi.connection;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 import javax.xml.bind.DatatypeConverter;
 
+import jrippleapi.core.DenominatedIssuedCurrency;
+import jrippleapi.core.RippleAddress;
+import jrippleapi.core.RipplePaymentTransaction;
+import jrippleapi.core.RippleSeedAddress;
+import jrippleapi.core.RippleTrustSetTransaction;
+import jrippleapi.keys.RippleSigner;
+import jrippleapi.serialization.RippleBinaryObject;
+
 import org.json.simple.JSONObject;
 
-public class RippleDaemonConnection {
+/**
+ * The commands understood by rippled, independently of the transport used to send them.
+ * Every command returns a {@link FutureJSONResponse} which can be waited on, or listened to.
+ */
+public abstract class RippleDaemonConnection {
+	public static final Executor DIRECT_EXECUTOR = new Executor() {
+		@Override
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+
+	/**
+	 * Commands which do not change the state of the ledger, they can safely be sent more than once.
+	 * sign is not one of them, it carries the secret of the account, which must not be sent again or to another server.
+	 */
+	public static final Set<String> READ_ONLY_COMMANDS = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+			"account_currencies", "account_info", "account_lines", "account_offers", "account_tx",
+			"book_offers", "ledger", "ledger_closed", "ledger_current", "ledger_data", "ledger_entry",
+			"ping", "random", "ripple_path_find", "server_info", "server_state", "tx", "transaction_entry")));
+
+	public static final long DEFAULT_REQUEST_TIMEOUT_MILLIS=30000;
+
+	protected final AtomicInteger requestCounter=new AtomicInteger(1);
+	protected Executor callbackExecutor = DIRECT_EXECUTOR;
+	protected HashedTimerWheel timer = HashedTimerWheel.getSharedTimer();
+	protected volatile long requestTimeoutMillis=DEFAULT_REQUEST_TIMEOUT_MILLIS;
+	protected final AtomicLong nbTimeouts = new AtomicLong();
+	protected volatile ConnectionMetrics metrics = ConnectionMetrics.NO_METRICS;
+	final Runnable timeoutCounter = new Runnable() {
+		@Override
+		public void run() {
+			nbTimeouts.incrementAndGet();
+		}
+	};
+
+	/**
+	 * @param callbackExecutor : Executes the listeners of the futures returned by this connection. By default they run on the thread that received the response.
+	 */
+	public void setCallbackExecutor(Executor callbackExecutor) {
+		this.callbackExecutor = callbackExecutor;
+	}
+
+	/**
+	 * @param requestTimeout : A request without a response after that delay fails with a TimeoutException, 0 waits forever
+	 */
+	public void setRequestTimeout(long requestTimeout, TimeUnit unit) {
+		this.requestTimeoutMillis = unit.toMillis(requestTimeout);
+	}
+
+	/**
+	 * @return the number of requests which failed because their deadline expired
+	 */
+	public long getNbTimeouts() {
+		return nbTimeouts.get();
+	}
+
+	protected void armDeadline(FutureJSONResponse<?> pendingResponse){
+		long timeoutMillis = requestTimeoutMillis;
+		if(timeoutMillis>0){
+			pendingResponse.setDeadline(timer, timeoutMillis, timeoutCounter);
+		}
+	}
+
+	/**
+	 * @param metrics : receives the timings and counts of the commands, {@link ConnectionMetrics#NO_METRICS} to measure nothing
+	 */
+	public void setMetrics(ConnectionMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public ConnectionMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Counts the command in flight until its response completes, then records its end to end time and its error
+	 */
+	protected void instrument(final FutureJSONResponse<?> pendingResponse, final String commandName){
+		final ConnectionMetrics currentMetrics = metrics;
+		if(currentMetrics==ConnectionMetrics.NO_METRICS){
+			return;
+		}
+		final long startNanos = System.nanoTime();
+		currentMetrics.onRequest(commandName);
+		pendingResponse.addCompletionCallback(new Runnable() {
+			@Override
+			public void run() {
+				currentMetrics.onCompleted(commandName, System.nanoTime()-startNanos, getErrorCode(pendingResponse.outcome));
+			}
+		});
+	}
+
+	/**
+	 * @return the error of rippled, or timeout, connectionLost, cancelled or the exception class for the other failures, null on success
+	 */
+	static String getErrorCode(Object outcome){
+		if(outcome instanceof FutureJSONResponse.Failure==false){
+			return null;
+		}
+		Throwable cause = ((FutureJSONResponse.Failure) outcome).cause;
+		if(cause instanceof RippleDaemonException && ((RippleDaemonException) cause).error!=null){
+			return ((RippleDaemonException) cause).error;
+		}
+		if(cause instanceof TimeoutException){
+			return "timeout";
+		}
+		if(cause instanceof ConnectionLostException){
+			return "connectionLost";
+		}
+		if(cause instanceof CancellationException){
+			return "cancelled";
+		}
+		return cause.getClass().getSimpleName();
+	}
+
+	public static boolean isReadOnly(JSONObject command){
+		return READ_ONLY_COMMANDS.contains(command.get("command"));
+	}
+
+	public abstract <T extends JSONSerializable> FutureJSONResponse<T> sendCommand(JSONObject command, T unserializedResponse);
+
+	/**
+	 * @return the websocket session the streams are subscribed on
+	 * @throws RuntimeException if this connection has no streams
+	 */
+	public RippleDaemonWebsocketConnection getStreamConnection(){
+		throw new RuntimeException("The streams need a websocket connection, not a "+getClass().getSimpleName());
+	}
+
+	protected <T extends JSONSerializable> FutureJSONResponse<T> failedResponse(int requestId, T unserializedResponse, Throwable cause){
+		FutureJSONResponse<T> failedResponse = new FutureJSONResponse<T>(requestId, null, unserializedResponse);
+		failedResponse.setCallbackExecutor(callbackExecutor);
+		failedResponse.setException(cause);
+		return failedResponse;
+	}
+
+	@SuppressWarnings("unchecked")
+	public FutureJSONResponse<GenericJSONSerializable> pingFuture(){
+		JSONObject pingComand = new JSONObject();
+		pingComand.put("command", "ping");
+		return sendCommand(pingComand, new GenericJSONSerializable());
+	}
+
+	@SuppressWarnings("unchecked")
+	public FutureJSONResponse<RippleAddressPublicInformation> getAccountInfoFuture(String account){
+		JSONObject accountInfoComand = new JSONObject();
+		accountInfoComand.put("command", "account_info");
+		accountInfoComand.put("account", account);
+		return sendCommand(accountInfoComand, new RippleAddressPublicInformation());
+	}
+
+	@SuppressWarnings("unchecked")
+	public FutureJSONResponse<ExchangeOffers> getAccountOffersFuture(String account){
+		JSONObject accountOffersComand = new JSONObject();
+		accountOffersComand.put("command", "account_offers");
+		accountOffersComand.put("account", account);
+		return sendCommand(accountOffersComand, new ExchangeOffers());
+	}
+
+	@SuppressWarnings("unchecked")
+	public FutureJSONResponse<OrderBook> getOrderBookFuture(String takerGetsIssuerStr, String takerGetsCurrency, String takerPaysCurrency, int nbEntries){
+		JSONObject jsonTakerGets = new JSONObject();
+		if(takerGetsIssuerStr!=null){
+			jsonTakerGets.put("issuer", takerGetsIssuerStr);
+		}
+		jsonTakerGets.put("currency", takerGetsCurrency);
+
+		JSONObject jsonTakerPays = new JSONObject();
+//		if(takerPays.issuerStr!=null){
+//			jsonTakerPays.put("issuer", takerPays.issuerStr);
+//		}
+		jsonTakerPays.put("currency", takerPaysCurrency);
+
+		JSONObject orderBookComand = new JSONObject();
+		orderBookComand.put("command", "book_offers");
+		orderBookComand.put("limit", nbEntries);
+		orderBookComand.put("taker_gets", jsonTakerGets);
+		orderBookComand.put("taker_pays", jsonTakerPays);
+		orderBookComand.put("snapshot", true);
+
+		return sendCommand(orderBookComand, new OrderBook());
+	}
+
+	/**
+	 * @param ledgerIndex : A ledger sequence number, or one of "current", "closed", "validated". The response tells the ledger the offers were read from.
+	 */
+	public FutureJSONResponse<OrderBook> getOrderBookFuture(String takerGetsCurrency, String takerGetsIssuer, String takerPaysCurrency, String takerPaysIssuer, Object ledgerIndex, int nbEntries){
+		return getOrderBookFuture(takerGetsCurrency, takerGetsIssuer, takerPaysCurrency, takerPaysIssuer, ledgerIndex, nbEntries, null);
+	}
+
+	/**
+	 * @param marker : The marker of the previous page, null for the first page
+	 */
+	@SuppressWarnings("unchecked")
+	public FutureJSONResponse<OrderBook> getOrderBookFuture(String takerGetsCurrency, String takerGetsIssuer, String takerPaysCurrency, String takerPaysIssuer, Object ledgerIndex, int nbEntries, Object marker){
+		JSONObject orderBookComand = createBookJSON(takerGetsCurrency, takerGetsIssuer, takerPaysCurrency, takerPaysIssuer);
+		orderBookComand.put("command", "book_offers");
+		orderBookComand.put("limit", nbEntries);
+		if(ledgerIndex!=null){
+			orderBookComand.put("ledger_index", ledgerIndex);
+		}
+		if(marker!=null){
+			orderBookComand.put("marker", marker);
+		}
+		return sendCommand(orderBookComand, new OrderBook());
+	}
+
+	@SuppressWarnings("unchecked")
+	protected JSONObject createBookJSON(String takerGetsCurrency, String takerGetsIssuer, String takerPaysCurrency, String takerPaysIssuer){
+		JSONObject jsonTakerGets = new JSONObject();
+		jsonTakerGets.put("currency", takerGetsCurrency);
+		if(takerGetsIssuer!=null){
+			jsonTakerGets.put("issuer", takerGetsIssuer);
+		}
+		JSONObject jsonTakerPays = new JSONObject();
+		jsonTakerPays.put("currency", takerPaysCurrency);
+		if(takerPaysIssuer!=null){
+			jsonTakerPays.put("issuer", takerPaysIssuer);
+		}
+		JSONObject jsonBook = new JSONObject();
+		jsonBook.put("taker_gets", jsonTakerGets);
+		jsonBook.put("taker_pays", jsonTakerPays);
+		return jsonBook;
+	}
+
+	/**
+	 * The transactions and their metadata are returned in binary, which is several times smaller than the expanded JSON.
+	 * @param ledgerIndexMin : -1 for the oldest ledger available
+	 * @param ledgerIndexMax : -1 for the newest ledger available
+	 * @param marker : The marker of the previous page, null for the first page
+	 */
+	public FutureJSONResponse<BinaryTransactions> getAccountTransactionsBinaryFuture(String account, long ledgerIndexMin, long ledgerIndexMax, int limit, Object marker){
+		return getAccountTransactionsBinaryFuture(account, ledgerIndexMin, ledgerIndexMax, limit, marker, false);
+	}
+
+	/**
+	 * @param forward : true for the oldest transactions first, by default the newest come first
+	 */
+	@SuppressWarnings("unchecked")
+	public FutureJSONResponse<BinaryTransactions> getAccountTransactionsBinaryFuture(String account, long ledgerIndexMin, long ledgerIndexMax, int limit, Object marker, boolean forward){
+		JSONObject command = new JSONObject();
+		command.put("command", "account_tx");
+		command.put("account", account);
+		command.put("ledger_index_min", ledgerIndexMin);
+		command.put("ledger_index_max", ledgerIndexMax);
+		command.put("limit", limit);
+		command.put("binary", true);
+		if(forward){
+			command.put("forward", true);
+		}
+		if(marker!=null){
+			command.put("marker", marker);
+		}
+		return sendCommand(command, new BinaryTransactions());
+	}
+
+	@SuppressWarnings("unchecked")
+	public FutureJSONResponse<BinaryTransaction> getTransactionBinaryFuture(String transactionHash){
+		JSONObject command = new JSONObject();
+		command.put("command", "tx");
+		command.put("transaction", transactionHash);
+		command.put("binary", true);
+		return sendCommand(command, new BinaryTransaction());
+	}
+
+	/**
+	 * @param ledgerIndex : A ledger sequence number, or one of "current", "closed", "validated"
+	 */
+	@SuppressWarnings("unchecked")
+	public FutureJSONResponse<BinaryLedger> getLedgerBinaryFuture(Object ledgerIndex, boolean withTransactions){
+		JSONObject command = new JSONObject();
+		command.put("command", "ledger");
+		command.put("ledger_index", ledgerIndex);
+		command.put("binary", true);
+		if(withTransactions){
+			command.put("transactions", true);
+			command.put("expand", true);
+		}
+		return sendCommand(command, new BinaryLedger());
+	}
+
+	/**
+	 * @param marker : The marker of the previous page, null for the first page
+	 */
+	@SuppressWarnings("unchecked")
+	public FutureJSONResponse<BinaryLedgerData> getLedgerDataBinaryFuture(Object ledgerIndex, int limit, Object marker){
+		JSONObject command = new JSONObject();
+		command.put("command", "ledger_data");
+		command.put("ledger_index", ledgerIndex);
+		command.put("limit", limit);
+		command.put("binary", true);
+		if(marker!=null){
+			command.put("marker", marker);
+		}
+		return sendCommand(command, new BinaryLedgerData());
+	}
+
+	@SuppressWarnings("unchecked")
+	public FutureJSONResponse<RandomString> getRandomFuture() {
+		JSONObject randomComand = new JSONObject();
+		randomComand.put("command", "random");
+		return sendCommand(randomComand, new RandomString());
+	}
+
+	@SuppressWarnings("unchecked")
+	public FutureJSONResponse<GenericJSONSerializable> sendPaymentFuture(RippleSeedAddress payer, RippleAddress payee, DenominatedIssuedCurrency amount){
+		JSONObject jsonTx = new RipplePaymentTransaction(payer.getPublicRippleAddress(), payee, amount, 1).getTxJSON();
+		JSONObject command = new JSONObject();
+    	command.put("command", "submit");
+    	command.put("tx_json", jsonTx);
+    	command.put("secret", payer.toString());
+		return sendCommand(command, new GenericJSONSerializable());
+	}
+
+	/**
+	 * Signs the payment locally and submits its blob, the secret never leaves this process.
+	 * Unlike the server, we do not know the sequence of the account, see {@link #getAccountInfoFuture(String)}.
+	 */
+	public FutureJSONResponse<SubmitResult> sendPaymentFuture(RippleSigner payer, RippleAddress payee, DenominatedIssuedCurrency amount, long sequenceNumber){
+		RipplePaymentTransaction payment = new RipplePaymentTransaction(payer.getAddress(), payee, amount, 0);
+		payment.sequenceNumber = sequenceNumber;
+		return submitSignedFuture(payer, payment.getBinaryObject());
+	}
+
+	@SuppressWarnings("unchecked")
+	public FutureJSONResponse<GenericJSONSerializable> setCreditLineFuture(RippleSeedAddress creditorAccount, RippleAddress debtorAccount, DenominatedIssuedCurrency creditAmount){
+		JSONObject command = new JSONObject();
+    	command.put("command", "submit");
+    	JSONObject jsonTx = new JSONObject();
+    	jsonTx.put("TransactionType", "TrustSet");
+    	jsonTx.put("Account", creditorAccount.getPublicRippleAddress().toString());
+    	jsonTx.put("LimitAmount", creditAmount.toJSON());
+
+		command.put("tx_json", jsonTx);
+    	command.put("secret", creditorAccount.toString());
+		return sendCommand(command, new GenericJSONSerializable());
+	}
+
+	/**
+	 * Signs the trust line locally and submits its blob, the limit is in the currency issued by the debtor
+	 */
+	public FutureJSONResponse<SubmitResult> setCreditLineFuture(RippleSigner creditor, RippleAddress debtorAccount, DenominatedIssuedCurrency creditAmount, long sequenceNumber){
+		return submitSignedFuture(creditor, new RippleTrustSetTransaction(creditor.getAddress(), debtorAccount, creditAmount, sequenceNumber).getBinaryObject());
+	}
+
+	/**
+	 * Signs any transaction locally, then submits it in one round trip
+	 */
+	public FutureJSONResponse<SubmitResult> submitSignedFuture(RippleSigner signer, RippleBinaryObject unsignedTransaction){
+		byte[] signedTransactionBytes;
+		try {
+			signedTransactionBytes = signer.signToBlob(unsignedTransaction);
+		} catch (Exception e) {
+			return failedResponse(requestCounter.getAndIncrement(), new SubmitResult(), e);
+		}
+		return submitSignedTransactionFuture(signedTransactionBytes);
+	}
+
+	@SuppressWarnings("unchecked")
+	public FutureJSONResponse<TrustLines> getCreditLinesFuture(String ourAccount) {
+		JSONObject command = new JSONObject();
+    	command.put("command", "account_lines");
+    	command.put("account", ourAccount);
+		return sendCommand(command, new TrustLines());
+	}
+
+	/**
+	 * @param marker : The marker of the previous page, null for the first page
+	 */
+	@SuppressWarnings("unchecked")
+	public FutureJSONResponse<TrustLines> getCreditLinesFuture(String account, Object ledgerIndex, int limit, Object marker) {
+		JSONObject command = createPageCommand("account_lines", ledgerIndex, limit, marker);
+		command.put("account", account);
+		return sendCommand(command, new TrustLines());
+	}
+
+	/**
+	 * @param marker : The marker of the previous page, null for the first page
+	 */
+	@SuppressWarnings("unchecked")
+	public FutureJSONResponse<ExchangeOffers> getAccountOffersFuture(String account, Object ledgerIndex, int limit, Object marker){
+		JSONObject command = createPageCommand("account_offers", ledgerIndex, limit, marker);
+		command.put("account", account);
+		return sendCommand(command, new ExchangeOffers());
+	}
+
+	@SuppressWarnings("unchecked")
+	protected JSONObject createPageCommand(String commandName, Object ledgerIndex, int limit, Object marker){
+		JSONObject command = new JSONObject();
+		command.put("command", commandName);
+		command.put("ledger_index", ledgerIndex);
+		command.put("limit", limit);
+		if(marker!=null){
+			command.put("marker", marker);
+		}
+		return command;
+	}
+
+	/**
+	 * All the trust lines of the account in the last validated ledger, the following pages are read from the same ledger as the first one
+	 */
+	public MarkerPagedIterator<TrustLine, TrustLines> iterateCreditLines(final String account, final int pageSize){
+		return new MarkerPagedIterator<TrustLine, TrustLines>() {
+			Object ledgerIndex=AccountQueryBatcher.VALIDATED_LEDGER;
+
+			@Override
+			protected FutureJSONResponse<TrustLines> requestPage(Object marker) {
+				return getCreditLinesFuture(account, ledgerIndex, pageSize, marker);
+			}
+
+			@Override
+			protected void onPage(TrustLines page) {
+				if(page.ledgerIndex!=0){
+					ledgerIndex=page.ledgerIndex;
+				}
+			}
+
+			@Override
+			protected Object getMarker(TrustLines page) {
+				return page.marker;
+			}
+		};
+	}
+
+	/**
+	 * All the offers of the account in the last validated ledger, the following pages are read from the same ledger as the first one
+	 */
+	public MarkerPagedIterator<ExchangeOffer, ExchangeOffers> iterateAccountOffers(final String account, final int pageSize){
+		return new MarkerPagedIterator<ExchangeOffer, ExchangeOffers>() {
+			Object ledgerIndex=AccountQueryBatcher.VALIDATED_LEDGER;
+
+			@Override
+			protected FutureJSONResponse<ExchangeOffers> requestPage(Object marker) {
+				return getAccountOffersFuture(account, ledgerIndex, pageSize, marker);
+			}
+
+			@Override
+			protected void onPage(ExchangeOffers page) {
+				if(page.ledgerIndex!=0){
+					ledgerIndex=page.ledgerIndex;
+				}
+			}
+
+			@Override
+			protected Object getMarker(ExchangeOffers page) {
+				return page.marker;
+			}
+		};
+	}
+
+	/**
+	 * @param ledgerIndexMin : -1 for the oldest ledger available
+	 * @param ledgerIndexMax : -1 for the newest ledger available
+	 */
+	public MarkerPagedIterator<BinaryTransaction, BinaryTransactions> iterateAccountTransactions(String account, long ledgerIndexMin, long ledgerIndexMax, int pageSize){
+		return iterateAccountTransactions(account, ledgerIndexMin, ledgerIndexMax, pageSize, false);
+	}
+
+	/**
+	 * @param forward : true for the oldest transactions first, by default the newest come first
+	 */
+	public MarkerPagedIterator<BinaryTransaction, BinaryTransactions> iterateAccountTransactions(final String account, final long ledgerIndexMin, final long ledgerIndexMax, final int pageSize, final boolean forward){
+		return new MarkerPagedIterator<BinaryTransaction, BinaryTransactions>() {
+			@Override
+			protected FutureJSONResponse<BinaryTransactions> requestPage(Object marker) {
+				return getAccountTransactionsBinaryFuture(account, ledgerIndexMin, ledgerIndexMax, pageSize, marker, forward);
+			}
+
+			@Override
+			protected Object getMarker(BinaryTransactions page) {
+				return page.marker;
+			}
+		};
+	}
+
+	/**
+	 * All the entries of a ledger, the following pages are read from the ledger the first one came from
+	 * @param ledgerIndex : A ledger sequence number, or one of "closed", "validated"
+	 */
+	public MarkerPagedIterator<BinaryLedgerEntry, BinaryLedgerData> iterateLedgerData(final Object ledgerIndex, final int pageSize){
+		return new MarkerPagedIterator<BinaryLedgerEntry, BinaryLedgerData>() {
+			Object pinnedLedgerIndex=ledgerIndex;
+
+			@Override
+			protected FutureJSONResponse<BinaryLedgerData> requestPage(Object marker) {
+				return getLedgerDataBinaryFuture(pinnedLedgerIndex, pageSize, marker);
+			}
+
+			@Override
+			protected void onPage(BinaryLedgerData page) {
+				if(page.ledgerIndex!=0){
+					pinnedLedgerIndex=page.ledgerIndex;
+				}
+			}
+
+			@Override
+			protected Object getMarker(BinaryLedgerData page) {
+				return page.marker;
+			}
+		};
+	}
+
+	/**
+	 * The server signs with the secret, {@link RippleSigner#signToBlob(RippleBinaryObject)} signs without sending it
+	 */
+	@SuppressWarnings("unchecked")
+	public FutureJSONResponse<RipplePaymentTransaction> signTransactionFuture(RippleSeedAddress secret, RipplePaymentTransaction txToSign){
+		JSONObject command = new JSONObject();
+    	command.put("command", "sign");
+    	command.put("secret", secret.toString());
+		command.put("tx_json", txToSign.getTxJSON());
+		return sendCommand(command, txToSign);
+	}
+
+	@SuppressWarnings("unchecked")
+	public FutureJSONResponse<GenericJSONSerializable> submitTransactionFuture(byte[] signedTransactionBytes){
+		JSONObject command = new JSONObject();
+		command.put("command", "submit");
+		command.put("tx_blob", DatatypeConverter.printHexBinary(signedTransactionBytes));
+		return sendCommand(command, new GenericJSONSerializable());
+	}
+
+	/**
+	 * Same as submitTransactionFuture, with the engine result decoded
+	 */
+	@SuppressWarnings("unchecked")
+	public FutureJSONResponse<SubmitResult> submitSignedTransactionFuture(byte[] signedTransactionBytes){
+		JSONObject command = new JSONObject();
+		command.put("command", "submit");
+		command.put("tx_blob", DatatypeConverter.printHexBinary(signedTransactionBytes));
+		return sendCommand(command, new SubmitResult());
+	}
 }
@@ -0,0 +1,19 @@
+package jrippleapi.connection;
+
+import org.json.simple.JSONObject;
+
+/**
+ * The daemon answered the command with an error, such as actNotFound or tooBusy
+ */
+public class RippleDaemonException extends RuntimeException {
+	private static final long serialVersionUID = 2944727326406497421L;
+
+	public final String error;
+	public final JSONObject response;
+
+	public RippleDaemonException(JSONObject response) {
+		super("failed because "+response);
+		this.response = response;
+		this.error = (String) response.get("error");
+	}
+}
@@ -6,7 +6,19 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
 
 import javax.xml.bind.DatatypeConverter;
 
@@ -20,14 +32,48 @@ import org.json.simple.parser.JSONParser;
  * This class should use only http POST/GET, not the websocket. For small operations,
  * (submit a TX), this could be faster than setting up a websocket connection. 
  *
+ * Over http, the commands are sent on a few keep-alive connections by a {@link KeepAliveHttpClient}.
+ * The commands queued while all the connections are busy are sent together in one rippled "batch" request.
+ * Over https, each command is a blocking {@link HttpURLConnection} request executed by the requestExecutor.
+ * The commands are measured by a {@link RecordingConnectionMetrics}, see {@link #getMetrics()}.
+ *
  * @author pmarches
  */
 public class RippleDaemonRPCConnection extends RippleDaemonConnection {
+	static final Charset UTF8 = Charset.forName("UTF-8");
+	public static final int DEFAULT_MAX_BATCH_SIZE=20;
+
 	protected URI rippleDaemonURI;
 	public static URI RIPPLE_RPC_URI=URI.create("http://s_west.ripple.com:51234");
+	static ExecutorService sharedRequestExecutor;
+	protected ExecutorService requestExecutor;
+
+	protected KeepAliveHttpClient httpClient;
+	int maxBatchSize=DEFAULT_MAX_BATCH_SIZE;
+	final ConcurrentLinkedQueue<QueuedCommand<?>> queuedCommands = new ConcurrentLinkedQueue<QueuedCommand<?>>();
+	final AtomicInteger nbPostsInFlight = new AtomicInteger();
+	final AtomicBoolean isDispatching = new AtomicBoolean();
+	final AtomicLong nbPosts = new AtomicLong();
+	final AtomicLong nbBatchedCommands = new AtomicLong();
+
+	static class QueuedCommand<T extends JSONSerializable> {
+		final JSONObject rpcCommand;
+		final FutureJSONResponse<T> pendingResponse;
+
+		QueuedCommand(JSONObject rpcCommand, FutureJSONResponse<T> pendingResponse) {
+			this.rpcCommand = rpcCommand;
+			this.pendingResponse = pendingResponse;
+		}
+	}
 
 	public RippleDaemonRPCConnection(URI rippleDaemonURI) throws Exception {
 		this.rippleDaemonURI = rippleDaemonURI;
+		this.requestExecutor = getSharedRequestExecutor();
+		this.metrics = new RecordingConnectionMetrics();
+		if("http".equals(rippleDaemonURI.getScheme())){
+			this.httpClient = new KeepAliveHttpClient(rippleDaemonURI, KeepAliveHttpClient.DEFAULT_MAX_CONNECTIONS);
+			this.httpClient.setRequestTimeout(requestTimeoutMillis, TimeUnit.MILLISECONDS);
+		}
 	}
 
 	public RippleDaemonRPCConnection() throws Exception {
@@ -47,6 +93,250 @@ public class RippleDaemonRPCConnection extends RippleDaemonConnection {
 		}
 	}
 	
+	static synchronized ExecutorService getSharedRequestExecutor(){
+		if(sharedRequestExecutor==null){
+			sharedRequestExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread rpcThread = new Thread(r, "RippleDaemonRPCConnection");
+					rpcThread.setDaemon(true);
+					return rpcThread;
+				}
+			});
+		}
+		return sharedRequestExecutor;
+	}
+
+	/**
+	 * @param requestExecutor : The threads performing the blocking http requests of {@link #sendCommand(JSONObject, JSONSerializable)}
+	 */
+	public void setRequestExecutor(ExecutorService requestExecutor) {
+		this.requestExecutor = requestExecutor;
+	}
+
+	/**
+	 * The http requests time out with the commands, so the connection of a request without a response is released
+	 */
+	@Override
+	public void setRequestTimeout(long requestTimeout, TimeUnit unit) {
+		super.setRequestTimeout(requestTimeout, unit);
+		if(httpClient!=null){
+			httpClient.setRequestTimeout(requestTimeout, unit);
+		}
+	}
+
+	/**
+	 * @param maxBatchSize : The maximum number of commands sent in one http request, 1 disables the batching
+	 */
+	public void setMaxBatchSize(int maxBatchSize) {
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	public void close() {
+		if(httpClient!=null){
+			httpClient.close();
+		}
+	}
+
+	/**
+	 * Executes the websocket style command asynchronously, the response is wrapped into a websocket style envelope
+	 * so both connections share the same response handling.
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public <T extends JSONSerializable> FutureJSONResponse<T> sendCommand(final JSONObject command, T unserializedResponse) {
+		final int requestId = requestCounter.getAndIncrement();
+		final FutureJSONResponse<T> pendingResponse = new FutureJSONResponse<T>(requestId, null, unserializedResponse);
+		pendingResponse.setCallbackExecutor(callbackExecutor);
+		instrument(pendingResponse, (String) command.get("command"));
+		armDeadline(pendingResponse);
+		JSONObject params = new JSONObject();
+		params.putAll(command);
+		params.remove("command");
+		params.remove("id");
+		final JSONObject rpcCommand = createJSONCommand((String) command.get("command"), params);
+		if(httpClient!=null){
+			queuedCommands.add(new QueuedCommand<T>(rpcCommand, pendingResponse));
+			dispatchQueuedCommands();
+			return pendingResponse;
+		}
+		requestExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				if(pendingResponse.isDone()){
+					return; //Cancelled before we got to it
+				}
+				try {
+					JSONObject response = executeJSONCommand(rpcCommand);
+					pendingResponse.set(toWebsocketResponse(pendingResponse.responseCounter, response));
+				} catch (Throwable e) {
+					pendingResponse.setException(e);
+				}
+			}
+		});
+		return pendingResponse;
+	}
+
+	/**
+	 * Each free connection takes up to maxBatchSize queued commands. Only one thread dispatches at a time.
+	 */
+	protected void dispatchQueuedCommands(){
+		do {
+			if(isDispatching.compareAndSet(false, true)==false){
+				return;
+			}
+			try {
+				while(nbPostsInFlight.get()<httpClient.maxConnections && queuedCommands.isEmpty()==false){
+					ArrayList<QueuedCommand<?>> batch = new ArrayList<QueuedCommand<?>>();
+					QueuedCommand<?> queuedCommand;
+					while(batch.size()<maxBatchSize && (queuedCommand=queuedCommands.poll())!=null){
+						if(queuedCommand.pendingResponse.isDone()==false){ //Skip the cancelled ones
+							batch.add(queuedCommand);
+						}
+					}
+					if(batch.isEmpty()==false){
+						nbPostsInFlight.incrementAndGet();
+						post(batch);
+					}
+				}
+			} finally {
+				isDispatching.set(false);
+			}
+		} while(queuedCommands.isEmpty()==false && nbPostsInFlight.get()<httpClient.maxConnections);
+	}
+
+	@SuppressWarnings("unchecked")
+	protected void post(final ArrayList<QueuedCommand<?>> batch){
+		nbPosts.incrementAndGet();
+		nbBatchedCommands.addAndGet(batch.size());
+		JSONObject httpBody;
+		if(batch.size()==1){
+			httpBody = batch.get(0).rpcCommand;
+		}
+		else{
+			JSONArray batchedCommands = new JSONArray();
+			for(QueuedCommand<?> queuedCommand : batch){
+				batchedCommands.add(queuedCommand.rpcCommand);
+			}
+			httpBody = new JSONObject();
+			httpBody.put("method", "batch");
+			httpBody.put("params", batchedCommands);
+		}
+		ByteBuffer body = ByteBuffer.wrap(httpBody.toJSONString().getBytes(UTF8));
+		metrics.onBytesSent(body.remaining());
+		long sentNanos = System.nanoTime();
+		for(QueuedCommand<?> queuedCommand : batch){
+			queuedCommand.pendingResponse.sentNanos = sentNanos;
+		}
+		httpClient.post("application/json", body, new KeepAliveHttpClient.ResponseHandler() {
+			@Override
+			public void onResponse(int statusCode, byte[] body) {
+				try {
+					long receivedNanos = System.nanoTime();
+					metrics.onBytesReceived(body.length);
+					if(statusCode!=200){
+						throw new RuntimeException("HTTP status "+statusCode+" "+new String(body, UTF8));
+					}
+					Object jsonResponse = new JSONParser().parse(new String(body, UTF8));
+					recordResponses(batch, receivedNanos, System.nanoTime()-receivedNanos);
+					if(batch.size()==1){
+						completeResponse(batch.get(0), (JSONObject) jsonResponse);
+					}
+					else{
+						completeBatch(batch, jsonResponse);
+					}
+				} catch (Throwable e) {
+					failBatch(batch, e);
+				}
+				onPostDone();
+			}
+
+			@Override
+			public void onFailure(Throwable cause) {
+				failBatch(batch, cause);
+				onPostDone();
+			}
+		});
+	}
+
+	/**
+	 * The client hands over a response once its body is complete, the first byte is taken as the time it was received.
+	 * The commands of a batch share the parse time.
+	 */
+	protected void recordResponses(ArrayList<QueuedCommand<?>> batch, long receivedNanos, long parseNanos){
+		for(QueuedCommand<?> queuedCommand : batch){
+			metrics.onResponse((String) queuedCommand.rpcCommand.get("method"), receivedNanos-queuedCommand.pendingResponse.sentNanos, parseNanos/batch.size());
+		}
+	}
+
+	protected void failBatch(ArrayList<QueuedCommand<?>> batch, Throwable cause){
+		for(QueuedCommand<?> queuedCommand : batch){
+			queuedCommand.pendingResponse.setException(cause);
+		}
+	}
+
+	protected void onPostDone(){
+		nbPostsInFlight.decrementAndGet();
+		dispatchQueuedCommands();
+	}
+
+	/**
+	 * rippled answers a batch with the array of the individual responses, either directly or as the result
+	 */
+	@SuppressWarnings("unchecked")
+	protected void completeBatch(ArrayList<QueuedCommand<?>> batch, Object jsonResponse){
+		JSONArray responses;
+		if(jsonResponse instanceof JSONArray){
+			responses = (JSONArray) jsonResponse;
+		}
+		else{
+			responses = (JSONArray) ((JSONObject) jsonResponse).get("result");
+		}
+		if(responses==null || responses.size()!=batch.size()){
+			throw new RuntimeException("Unexpected batch response "+jsonResponse);
+		}
+		for(int i=0; i<batch.size(); i++){
+			JSONObject response = (JSONObject) responses.get(i);
+			if(response.containsKey("result")==false){
+				JSONObject wrappedResult = new JSONObject();
+				wrappedResult.put("result", response);
+				response = wrappedResult;
+			}
+			completeResponse(batch.get(i), response);
+		}
+	}
+
+	protected void completeResponse(QueuedCommand<?> queuedCommand, JSONObject rpcResponse){
+		queuedCommand.pendingResponse.set(toWebsocketResponse(queuedCommand.pendingResponse.responseCounter, rpcResponse));
+	}
+
+	public long getNbPosts() {
+		return nbPosts.get();
+	}
+
+	/**
+	 * @return the number of commands sent through the http client, getNbBatchedCommands()/getNbPosts() is the average batch size
+	 */
+	public long getNbBatchedCommands() {
+		return nbBatchedCommands.get();
+	}
+
+	@SuppressWarnings("unchecked")
+	protected JSONObject toWebsocketResponse(int requestId, JSONObject rpcResponse){
+		JSONObject result = (JSONObject) rpcResponse.get("result");
+		JSONObject response = new JSONObject();
+		response.put("id", (long) requestId);
+		response.put("type", "response");
+		response.put("result", result);
+		if(result!=null){
+			response.put("status", result.get("status"));
+			if(result.get("error")!=null){
+				response.put("error", result.get("error"));
+			}
+		}
+		return response;
+	}
+
 	protected JSONObject createJSONCommand(String commandName, JSONObject ... parameterObjects){
 		JSONObject command = new JSONObject();
 		command.put("method", commandName);
@@ -57,24 +347,37 @@ public class RippleDaemonRPCConnection extends RippleDaemonConnection {
 	}
 
 	protected JSONObject executeJSONCommand(JSONObject command) throws Exception {
-		String jsonString = command.toJSONString();
+		byte[] jsonBytes = command.toJSONString().getBytes(UTF8);
+		long sentNanos = System.nanoTime();
 
 		HttpURLConnection connection = (HttpURLConnection) rippleDaemonURI.toURL().openConnection();
 		connection.setUseCaches(false);
-		connection.setRequestProperty("Content-Length", ""+jsonString.length());
+		connection.setFixedLengthStreamingMode(jsonBytes.length);
+		connection.setRequestProperty("Content-Type", "application/json");
+		connection.setRequestProperty("Accept-Encoding", "gzip");
 		connection.setRequestMethod("POST");
 		connection.setDoOutput(true);
 
 		OutputStream os = connection.getOutputStream();
-		os.write(jsonString.getBytes());
+		os.write(jsonBytes);
 		os.close();
+		metrics.onBytesSent(jsonBytes.length);
 
 		try {
 			//TODO The response handling is probably common between the websocket and the RPC
 			InputStream is = connection.getInputStream();
-			BufferedReader rd = new BufferedReader(new InputStreamReader(is));
+			long receivedNanos = System.nanoTime();
+			if(connection.getContentLength()>0){
+				metrics.onBytesReceived(connection.getContentLength());
+			}
+			if("gzip".equalsIgnoreCase(connection.getContentEncoding())){
+				is = new GZIPInputStream(is);
+			}
+			BufferedReader rd = new BufferedReader(new InputStreamReader(is, UTF8));
 			JSONObject response = (JSONObject) new JSONParser().parse(rd);
 			rd.close();
+			//The parse time includes reading the body, the response is parsed as it arrives
+			metrics.onResponse((String) command.get("method"), receivedNanos-sentNanos, System.nanoTime()-receivedNanos);
 			return response;
 		} catch (Exception e) {
 			throw new RuntimeException(e);
@@ -2,94 +2,402 @@ package jrippleapi.connection;
 
 import java.io.IOException;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.TreeMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
-
-import javax.xml.bind.DatatypeConverter;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import jrippleapi.core.DenominatedIssuedCurrency;
 import jrippleapi.core.RippleAddress;
 import jrippleapi.core.RipplePaymentTransaction;
 import jrippleapi.core.RippleSeedAddress;
+import jrippleapi.keys.RippleSigner;
 
 import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketClose;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketConnect;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketMessage;
 import org.eclipse.jetty.websocket.api.annotations.WebSocket;
+import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
+import org.json.simple.JSONValue;
 import org.json.simple.parser.ParseException;
 
 @WebSocket
 public class RippleDaemonWebsocketConnection extends RippleDaemonConnection {
 	WebSocketConnection connection;
-	public Session session;
-		
-	private int requestCounter=1;
+	public volatile Session session;
+	volatile int connectionEpoch=0; //Incremented each time a session connects
+
 	//s_west.ripple.com is not a valid URI for certain JVMs because of the underscore character. Use the IP :-(  
 	public final static URI RIPPLE_SERVER_URL=URI.create("ws://54.213.166.225:443");
 	public final static URI LOCALHOST_SERVER_URL=URI.create("ws://localhost:5006");
 	JSONResponseHolder responseHolder = new JSONResponseHolder();
+	StreamingJSONDecoder jsonDecoder = new StreamingJSONDecoder(responseHolder);
+	final AtomicInteger nbInFlight = new AtomicInteger();
+	final Runnable inFlightDecrementer = new Runnable() {
+		@Override
+		public void run() {
+			nbInFlight.decrementAndGet();
+		}
+	};
+	final HashMap<String, Subscription> activeSubscriptions = new HashMap<String, Subscription>(); //Guarded by itself
+	volatile StreamEventDispatcher streamDispatcher;
     
     public RippleDaemonWebsocketConnection(URI rippledURI) throws Exception {
 		this.connection = new WebSocketConnection(rippledURI, this);
+		this.metrics = new RecordingConnectionMetrics();
+	}
+
+	/**
+	 * Without a transport, the subclass writes the commands in {@link #sendString(String)} and gives the messages it reads to {@link #onMessage(String)}
+	 */
+	protected RippleDaemonWebsocketConnection() {
+		this.metrics = new RecordingConnectionMetrics();
+	}
+
+	static final String[] SUBSCRIPTION_TYPES = {"streams", "accounts", "accounts_proposed", "books"};
+
+	/**
+	 * A stream, account or book subscribed to, counted once per subscribe not unsubscribed yet
+	 */
+	static class Subscription {
+		final JSONObject subscribeCommand; //Subscribes to this one only, to restore it after a reconnection
+		int nbSubscribers;
+
+		Subscription(JSONObject subscribeCommand) {
+			this.subscribeCommand = subscribeCommand;
+		}
+	}
+
+	/**
+	 * A session connecting after its attempt timed out is closed, the next attempt brings its own
+	 */
+	@OnWebSocketConnect
+	@SuppressWarnings("unchecked")
+	public void onConnect(Session newSession) {
+		if(connection!=null && connection.claimSession()==false){
+			try {
+				newSession.close();
+			} catch (IOException e) {
+				//Nothing was sent on it
+			}
+			return;
+		}
+		session=newSession;
+		if(++connectionEpoch==1){ //Only the reader thread of the new session increments it
+			return;
+		}
+		ArrayList<JSONObject> subscribeCommands = new ArrayList<JSONObject>();
+		synchronized (activeSubscriptions) {
+			for(Subscription subscription : activeSubscriptions.values()){
+				subscribeCommands.add(subscription.subscribeCommand);
+			}
+		}
+		for(JSONObject subscribeCommand : subscribeCommands){
+			JSONObject resubscribeCommand = new JSONObject();
+			resubscribeCommand.putAll(subscribeCommand);
+			sendCommand(resubscribeCommand, new GenericJSONSerializable(), false);
+		}
+		for(FutureJSONResponse<?> pendingResponse : responseHolder.waitingResponses.values()){
+			send(pendingResponse);
+		}
+	}
+
+	/**
+	 * The read-only commands waiting for a response stay pending, they will be sent again once reconnected.
+	 * The other ones fail with a {@link ConnectionLostException}.
+	 */
+	@OnWebSocketClose
+	public void onClose(int statusCode, String reason) {
+		session=null;
+		boolean isReconnecting = connection!=null && connection.isClosed==false;
+		for(FutureJSONResponse<?> pendingResponse : responseHolder.waitingResponses.values()){
+			if(isReconnecting==false || isReadOnly(pendingResponse.command)==false){
+				responseHolder.remove(pendingResponse);
+				pendingResponse.setException(new ConnectionLostException("Connection lost ("+statusCode+" "+reason+") while waiting for the response to "+pendingResponse.command));
+			}
+		}
+		if(connection!=null){
+			connection.onDisconnected();
+		}
 	}
     
 	@OnWebSocketMessage
     public void onMessage(String msg) {
     	try {
-			JSONObject jsonMessage = (JSONObject) new JSONParser().parse(msg);
+			long receivedNanos = System.nanoTime();
+			metrics.onBytesReceived(msg.length()); //The JSON of rippled is ASCII, one char per byte
+			JSONObject jsonMessage;
+			synchronized (jsonDecoder) { //Jetty delivers the messages of a session one at a time, so this lock is never contended
+				jsonMessage = jsonDecoder.decode(msg);
+			}
+			long parseNanos = System.nanoTime()-receivedNanos;
 //			System.out.println("response:"+jsonMessage.toJSONString());
 			if("response".equals(jsonMessage.get("type"))){
+				recordResponse(jsonMessage, receivedNanos, parseNanos);
 				responseHolder.setResponseContent(jsonMessage);
 			}
-			else{//FIXME Can we remove this? Errors are responses also?
+			else if(jsonMessage.get("id")!=null){
+				recordResponse(jsonMessage, receivedNanos, parseNanos);
 				responseHolder.setResponseError(jsonMessage);
 			}
+			else if(streamDispatcher!=null){
+				streamDispatcher.publish(StreamEvent.fromJSON(jsonMessage));
+			}
 		} catch (ParseException e) {
 			e.printStackTrace();
 		}
     }
 
+	/**
+	 * Jetty hands over a message once it is complete, the first byte is taken as the time it was received
+	 */
+	protected void recordResponse(JSONObject jsonMessage, long receivedNanos, long parseNanos){
+		Object messageId = jsonMessage.get("id");
+		if(messageId instanceof Long==false){
+			return;
+		}
+		FutureJSONResponse<?> pendingResponse = responseHolder.waitingResponses.get(((Long) messageId).intValue());
+		if(pendingResponse!=null && pendingResponse.sentNanos!=0){
+			metrics.onResponse((String) pendingResponse.command.get("command"), receivedNanos-pendingResponse.sentNanos, parseNanos);
+		}
+	}
+
 	public void close() throws Exception {
-		connection.close();
+		if(connection!=null){
+			connection.close();
+		}
+		if(streamDispatcher!=null){
+			streamDispatcher.stop();
+		}
+	}
+
+	/**
+	 * @return the dispatcher delivering the stream events to the handlers, started with the default settings if none was set.
+	 */
+	public synchronized StreamEventDispatcher getStreamDispatcher() {
+		if(streamDispatcher==null){
+			streamDispatcher = new StreamEventDispatcher();
+			streamDispatcher.start();
+		}
+		return streamDispatcher;
+	}
+
+	public synchronized void setStreamDispatcher(StreamEventDispatcher streamDispatcher) {
+		if(this.streamDispatcher!=null){
+			this.streamDispatcher.stop();
+		}
+		this.streamDispatcher = streamDispatcher;
+		streamDispatcher.start();
+	}
+
+	public void addStreamEventHandler(StreamEventHandler handler){
+		getStreamDispatcher().addHandler(handler);
+	}
+
+	public void removeStreamEventHandler(StreamEventHandler handler){
+		getStreamDispatcher().removeHandler(handler);
 	}
 
 	public void sendString(String jsonString) throws IOException {
-		session.getRemote().sendString(jsonString);
+		Session currentSession = session;
+		if(currentSession==null){
+			throw new ConnectionLostException("Not connected");
+		}
+		currentSession.getRemote().sendString(jsonString);
+		metrics.onBytesSent(jsonString.length());
 	}
 
+	@Override
 	public <T extends JSONSerializable> FutureJSONResponse<T> sendCommand(JSONObject command, T unserializedResponse){
+		return sendCommand(command, unserializedResponse, true);
+	}
+
+	/**
+	 * @param trackSubscription : counts the subscriptions of the command, an unsubscribe only reaches rippled for the streams, accounts
+	 * and books which have no other subscriber left
+	 */
+	@SuppressWarnings("unchecked")
+	protected <T extends JSONSerializable> FutureJSONResponse<T> sendCommand(JSONObject command, T unserializedResponse, boolean trackSubscription){
+		if(trackSubscription && "unsubscribe".equals(command.get("command"))){
+			command = releaseSubscriptions(command);
+			if(command==null){
+				return succeededResponse(unserializedResponse); //Still subscribed for someone else
+			}
+		}
+		int requestId = requestCounter.getAndIncrement();
+		command.put("id", requestId);
+		FutureJSONResponse<T> pendingResponse=new FutureJSONResponse<T>(requestId, responseHolder, unserializedResponse);
+		pendingResponse.command=command;
+		pendingResponse.setCallbackExecutor(callbackExecutor);
+		nbInFlight.incrementAndGet();
+		pendingResponse.addCompletionCallback(inFlightDecrementer);
+		instrument(pendingResponse, (String) command.get("command"));
+		responseHolder.addPendingResponse(pendingResponse);
+		armDeadline(pendingResponse);
+		if(session==null && isReadOnly(command)){
+			return pendingResponse; //Will be sent once reconnected
+		}
+		if(send(pendingResponse) && trackSubscription && "subscribe".equals(command.get("command"))){
+			addSubscriptions(command);
+		}
+		return pendingResponse;
+	}
+
+	@SuppressWarnings("unchecked")
+	protected <T extends JSONSerializable> FutureJSONResponse<T> succeededResponse(T unserializedResponse){
+		FutureJSONResponse<T> response = new FutureJSONResponse<T>(requestCounter.getAndIncrement(), null, unserializedResponse);
+		response.setCallbackExecutor(callbackExecutor);
+		JSONObject jsonResponse = new JSONObject();
+		jsonResponse.put("status", "success");
+		jsonResponse.put("result", new JSONObject());
+		response.set(jsonResponse);
+		return response;
+	}
+
+	/**
+	 * Sends the command of the pending response, unless it was already sent on the current session.
+	 * @return false if the command could not be written
+	 */
+	protected boolean send(FutureJSONResponse<?> pendingResponse){
+		int epoch = connectionEpoch;
+		if(FutureJSONResponse.SENT_ON_EPOCH_UPDATER.getAndSet(pendingResponse, epoch)==epoch){
+			return true;
+		}
         try {
-        	command.put("id", requestCounter);
-			FutureJSONResponse<T> pendingResponse=new FutureJSONResponse<T>(requestCounter, responseHolder, unserializedResponse);
-			responseHolder.addPendingResponse(pendingResponse);
-			sendString(command.toJSONString());
-        	requestCounter++;
-			return pendingResponse;
+			pendingResponse.sentNanos = System.nanoTime();
+			sendString(pendingResponse.command.toJSONString());
+			return true;
 		} catch (IOException e) {
-			e.printStackTrace();
-			return null;
+			//Not sent on this epoch, so the replay of the next session sends it
+			FutureJSONResponse.SENT_ON_EPOCH_UPDATER.compareAndSet(pendingResponse, epoch, -1);
+			if(isReadOnly(pendingResponse.command) && connection!=null && connection.isClosed==false){
+				return false; //Will be sent again once reconnected
+			}
+			responseHolder.remove(pendingResponse);
+			pendingResponse.setException(e);
+			return false;
+		}
+	}
+
+	/**
+	 * Remembers each stream, account and book subscribed to, so they are restored after a reconnection.
+	 */
+	protected void addSubscriptions(JSONObject command){
+		synchronized (activeSubscriptions) {
+			for(String subscriptionType : SUBSCRIPTION_TYPES){
+				Object items = command.get(subscriptionType);
+				if(items instanceof JSONArray==false){
+					continue;
+				}
+				for(Object item : (JSONArray) items){
+					String key = getSubscriptionKey(subscriptionType, item);
+					Subscription subscription = activeSubscriptions.get(key);
+					if(subscription==null){
+						subscription = new Subscription(createSubscriptionCommand("subscribe", subscriptionType, item));
+						activeSubscriptions.put(key, subscription);
+					}
+					subscription.nbSubscribers++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the unsubscribe command for the streams, accounts and books of the command nobody else subscribes to, null if there are none
+	 */
+	@SuppressWarnings("unchecked")
+	protected JSONObject releaseSubscriptions(JSONObject command){
+		JSONObject unsubscribeCommand = new JSONObject();
+		unsubscribeCommand.put("command", "unsubscribe");
+		synchronized (activeSubscriptions) {
+			for(String subscriptionType : SUBSCRIPTION_TYPES){
+				Object items = command.get(subscriptionType);
+				if(items instanceof JSONArray==false){
+					continue;
+				}
+				JSONArray releasedItems = new JSONArray();
+				for(Object item : (JSONArray) items){
+					String key = getSubscriptionKey(subscriptionType, item);
+					Subscription subscription = activeSubscriptions.get(key);
+					if(subscription!=null && --subscription.nbSubscribers>0){
+						continue;
+					}
+					activeSubscriptions.remove(key);
+					releasedItems.add(item);
+				}
+				if(releasedItems.isEmpty()==false){
+					unsubscribeCommand.put(subscriptionType, releasedItems);
+				}
+			}
 		}
+		return unsubscribeCommand.size()>1 ? unsubscribeCommand : null;
+	}
+
+	/**
+	 * A book is told apart by its currencies and issuers, whether a snapshot was asked or not
+	 */
+	@SuppressWarnings("unchecked")
+	protected String getSubscriptionKey(String subscriptionType, Object item){
+		if(item instanceof JSONObject){
+			TreeMap<Object, Object> bookParameters = new TreeMap<Object, Object>((JSONObject) item);
+			bookParameters.remove("snapshot");
+			return subscriptionType+" "+JSONValue.toJSONString(bookParameters);
+		}
+		return subscriptionType+" "+item;
+	}
+
+	/**
+	 * @return the number of streams, accounts and books restored after a reconnection
+	 */
+	public int getNbSubscriptions(){
+		synchronized (activeSubscriptions) {
+			return activeSubscriptions.size();
+		}
+	}
+
+	@Override
+	public RippleDaemonWebsocketConnection getStreamConnection() {
+		return this;
+	}
+
+	public long getNbReconnects(){
+		return connection==null ? 0 : connection.getNbReconnects();
+	}
+
+	public long getLastReconnectDurationMs(){
+		return connection==null ? 0 : connection.getLastReconnectDurationMs();
+	}
+
+	public long getTotalDowntimeMs(){
+		return connection==null ? 0 : connection.getTotalDowntimeMs();
+	}
+
+	/**
+	 * @return the number of commands sent on this session still waiting for their response
+	 */
+	public int getNbInFlight(){
+		return nbInFlight.get();
+	}
+
+	/**
+	 * @return the number of responses discarded because their request had already timed out
+	 */
+	public long getNbLateResponses(){
+		return responseHolder.getNbLateResponses();
 	}
 
 	public boolean ping(){
-		JSONObject accountInfoComand = new JSONObject();
-		accountInfoComand.put("command", "ping");
-		Future<GenericJSONSerializable> accountInfoResponse = sendCommand(accountInfoComand, new GenericJSONSerializable());
 		try {
-			return accountInfoResponse.get()!=null;
+			return pingFuture().get()!=null;
 		} catch (InterruptedException | ExecutionException e) {
 			return false;
 		}
 	}
 	
-	public Future<RippleAddressPublicInformation> getAccountInfoFuture(String account){
-		JSONObject accountInfoComand = new JSONObject();
-		accountInfoComand.put("command", "account_info");
-		accountInfoComand.put("account", account);
-		return sendCommand(accountInfoComand, new RippleAddressPublicInformation());
-	}
-	
 	public RippleAddressPublicInformation getAccountInfo(String account){
 		try {
 			return getAccountInfoFuture(account).get();
@@ -99,13 +407,6 @@ public class RippleDaemonWebsocketConnection extends RippleDaemonConnection {
 		}
 	}
 		
-	public Future<ExchangeOffers> getAccountOffersFuture(String account){
-		JSONObject accountOffersComand = new JSONObject();
-		accountOffersComand.put("command", "account_offers");
-		accountOffersComand.put("account", account);
-		return sendCommand(accountOffersComand, new ExchangeOffers());
-	}
-
 	public ExchangeOffers getAccountOffers(String account){
 		Future<ExchangeOffers> futureOffersResponse = getAccountOffersFuture(account);
 		try {
@@ -116,29 +417,6 @@ public class RippleDaemonWebsocketConnection extends RippleDaemonConnection {
 		}
 	}
 	
-	public Future<OrderBook> getOrderBookFuture(String takerGetsIssuerStr, String takerGetsCurrency, String takerPaysCurrency, int nbEntries){
-		JSONObject jsonTakerGets = new JSONObject();
-		if(takerGetsIssuerStr!=null){
-			jsonTakerGets.put("issuer", takerGetsIssuerStr);
-		}
-		jsonTakerGets.put("currency", takerGetsCurrency);
-
-		JSONObject jsonTakerPays = new JSONObject();
-//		if(takerPays.issuerStr!=null){
-//			jsonTakerPays.put("issuer", takerPays.issuerStr);
-//		}
-		jsonTakerPays.put("currency", takerPaysCurrency);
-
-		JSONObject orderBookComand = new JSONObject();
-		orderBookComand.put("command", "book_offers");
-		orderBookComand.put("limit", nbEntries);
-		orderBookComand.put("taker_gets", jsonTakerGets);
-		orderBookComand.put("taker_pays", jsonTakerPays);
-		orderBookComand.put("snapshot", true);
-
-		return sendCommand(orderBookComand, new OrderBook());
-	}
-
 	public OrderBook getOrderBook(String issuerStr, String takerGets, String takerPays, int nbEntries) {
 		try {
 			return getOrderBookFuture(issuerStr, takerGets, takerPays, nbEntries).get();
@@ -148,13 +426,6 @@ public class RippleDaemonWebsocketConnection extends RippleDaemonConnection {
 		}
 	}
 
-	public Future<RandomString> getRandomFuture() {
-		JSONObject randomComand = new JSONObject();
-		randomComand.put("command", "random");
-		FutureJSONResponse randomResponse = sendCommand(randomComand, new RandomString());
-		return randomResponse;
-	}
-
 	public String getRandom(){
 		try {
 			RandomString randomString = getRandomFuture().get();
@@ -165,22 +436,50 @@ public class RippleDaemonWebsocketConnection extends RippleDaemonConnection {
 		}
 	}
 	
-//	public void subscribeToLedgers(){
-//		JSONObject command = new JSONObject();
-//    	command.put("command", "subscribe");
-//    	JSONArray streams = new JSONArray();
-//    	streams.add("ledger");
-//    	command.put("streams", streams);
-//		sendCommand(command, new );
-//	}
-	
-	public FutureJSONResponse<GenericJSONSerializable> sendPaymentFuture(RippleSeedAddress payer, RippleAddress payee, DenominatedIssuedCurrency amount){	
-		JSONObject jsonTx = new RipplePaymentTransaction(payer.getPublicRippleAddress(), payee, amount, 1).getTxJSON();
+	/**
+	 * @param streamNames : "ledger", "transactions", "server" ...
+	 */
+	public FutureJSONResponse<GenericJSONSerializable> subscribeToStreamsFuture(String... streamNames){
+		return sendCommand(createSubscriptionCommand("subscribe", "streams", (Object[]) streamNames), new GenericJSONSerializable());
+	}
+
+	public FutureJSONResponse<GenericJSONSerializable> unsubscribeFromStreamsFuture(String... streamNames){
+		return sendCommand(createSubscriptionCommand("unsubscribe", "streams", (Object[]) streamNames), new GenericJSONSerializable());
+	}
+
+	public FutureJSONResponse<GenericJSONSerializable> subscribeToAccountsFuture(String... accounts){
+		return sendCommand(createSubscriptionCommand("subscribe", "accounts", (Object[]) accounts), new GenericJSONSerializable());
+	}
+
+	public FutureJSONResponse<GenericJSONSerializable> unsubscribeFromAccountsFuture(String... accounts){
+		return sendCommand(createSubscriptionCommand("unsubscribe", "accounts", (Object[]) accounts), new GenericJSONSerializable());
+	}
+
+	/**
+	 * @param snapshot : When true, the response contains the current offers of the book
+	 */
+	@SuppressWarnings("unchecked")
+	public FutureJSONResponse<OrderBook> subscribeToBookFuture(String takerGetsCurrency, String takerGetsIssuer, String takerPaysCurrency, String takerPaysIssuer, boolean snapshot){
+		JSONObject jsonBook = createBookJSON(takerGetsCurrency, takerGetsIssuer, takerPaysCurrency, takerPaysIssuer);
+		jsonBook.put("snapshot", snapshot);
+		return sendCommand(createSubscriptionCommand("subscribe", "books", jsonBook), new OrderBook());
+	}
+
+	public FutureJSONResponse<GenericJSONSerializable> unsubscribeFromBookFuture(String takerGetsCurrency, String takerGetsIssuer, String takerPaysCurrency, String takerPaysIssuer){
+		JSONObject jsonBook = createBookJSON(takerGetsCurrency, takerGetsIssuer, takerPaysCurrency, takerPaysIssuer);
+		return sendCommand(createSubscriptionCommand("unsubscribe", "books", jsonBook), new GenericJSONSerializable());
+	}
+
+	@SuppressWarnings("unchecked")
+	protected JSONObject createSubscriptionCommand(String commandName, String subscriptionType, Object... subscriptions){
 		JSONObject command = new JSONObject();
-    	command.put("command", "submit");
-    	command.put("tx_json", jsonTx);
-    	command.put("secret", payer.toString());
-		return sendCommand(command, new GenericJSONSerializable());
+    	command.put("command", commandName);
+    	JSONArray jsonSubscriptions = new JSONArray();
+    	for(Object subscription : subscriptions){
+    		jsonSubscriptions.add(subscription);
+    	}
+    	command.put(subscriptionType, jsonSubscriptions);
+		return command;
 	}
 	
 	public GenericJSONSerializable sendPayment(RippleSeedAddress payer, RippleAddress payee, DenominatedIssuedCurrency amount){
@@ -192,19 +491,6 @@ public class RippleDaemonWebsocketConnection extends RippleDaemonConnection {
 		}
 	}
 	
-	public Future<GenericJSONSerializable> setCreditLineFuture(RippleSeedAddress creditorAccount, RippleAddress debtorAccount, DenominatedIssuedCurrency creditAmount){
-		JSONObject command = new JSONObject();
-    	command.put("command", "submit");
-    	JSONObject jsonTx = new JSONObject();
-    	jsonTx.put("TransactionType", "TrustSet");
-    	jsonTx.put("Account", creditorAccount.getPublicRippleAddress().toString());
-    	jsonTx.put("LimitAmount", creditAmount.toJSON());
-    	
-		command.put("tx_json", jsonTx);
-    	command.put("secret", creditorAccount.toString());
-		return sendCommand(command, new GenericJSONSerializable());
-	}
-
 	public GenericJSONSerializable setTrustLine(RippleSeedAddress creditorAccount, RippleAddress debtorAccount, DenominatedIssuedCurrency creditAmount){
 		try {
 			return setCreditLineFuture(creditorAccount, debtorAccount, creditAmount).get();
@@ -214,11 +500,22 @@ public class RippleDaemonWebsocketConnection extends RippleDaemonConnection {
 		}
 	}
 
-	public Future<TrustLines> getCreditLinesFuture(String ourAccount) {
-		JSONObject command = new JSONObject();
-    	command.put("command", "account_lines");
-    	command.put("account", ourAccount);
-		return sendCommand(command, new TrustLines());
+	public SubmitResult sendPayment(RippleSigner payer, RippleAddress payee, DenominatedIssuedCurrency amount, long sequenceNumber){
+		try {
+			return sendPaymentFuture(payer, payee, amount, sequenceNumber).get();
+		} catch (InterruptedException | ExecutionException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	public SubmitResult setTrustLine(RippleSigner creditor, RippleAddress debtorAccount, DenominatedIssuedCurrency creditAmount, long sequenceNumber){
+		try {
+			return setCreditLineFuture(creditor, debtorAccount, creditAmount, sequenceNumber).get();
+		} catch (InterruptedException | ExecutionException e) {
+			e.printStackTrace();
+			return null;
+		}
 	}
 
 	public TrustLines getCreditLines(String ourAccount) {
@@ -230,14 +527,6 @@ public class RippleDaemonWebsocketConnection extends RippleDaemonConnection {
 		}
 	}
 	
-	public Future<RipplePaymentTransaction> signTransactionFuture(RippleSeedAddress secret, RipplePaymentTransaction txToSign){
-		JSONObject command = new JSONObject();
-    	command.put("command", "sign");
-    	command.put("secret", secret.toString());
-		command.put("tx_json", txToSign.getTxJSON());
-		return sendCommand(command, txToSign);
-	}
-	
 	public RipplePaymentTransaction signTransaction(RippleSeedAddress secret, RipplePaymentTransaction txToSign) {
 		try {
 			return signTransactionFuture(secret, txToSign).get();
@@ -247,13 +536,6 @@ public class RippleDaemonWebsocketConnection extends RippleDaemonConnection {
 		}
 	}
 
-	public Future<GenericJSONSerializable> submitTransactionFuture(byte[] signedTransactionBytes){
-		JSONObject command = new JSONObject();
-		command.put("command", "submit");
-		command.put("tx_blob", DatatypeConverter.printHexBinary(signedTransactionBytes));
-		return sendCommand(command, new GenericJSONSerializable());
-	}
-	
 	public GenericJSONSerializable submitTransaction(byte[] signedTransactionBytes) {
 		try {
 			return submitTransactionFuture(signedTransactionBytes).get();
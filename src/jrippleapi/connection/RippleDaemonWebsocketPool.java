@@ -0,0 +1,159 @@
+package jrippleapi.connection;
+
+import java.net.URI;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONObject;
+
+/**
+ * Maintains several websocket sessions to the same rippled, so a slow command (book_offers, account_tx)
+ * does not delay the fast ones queued behind it on the same socket.
+ * Each command goes to the session with the fewest responses outstanding, subscriptions always go to the first session.
+ * The sessions share the metrics of the pool.
+ *
+ * @author pmarches
+ */
+public class RippleDaemonWebsocketPool extends RippleDaemonConnection {
+	final RippleDaemonWebsocketConnection[] sessions;
+
+	public RippleDaemonWebsocketPool(URI rippledURI, int nbSessions) throws Exception {
+		if(nbSessions<1){
+			throw new RuntimeException("The pool needs at least one session, was "+nbSessions);
+		}
+		sessions = new RippleDaemonWebsocketConnection[nbSessions];
+		try {
+			for(int i=0; i<nbSessions; i++){
+				sessions[i] = new RippleDaemonWebsocketConnection(rippledURI);
+			}
+		} catch (Exception e) {
+			close();
+			throw e;
+		}
+		setMetrics(new RecordingConnectionMetrics());
+	}
+
+	/**
+	 * @param sessions : already opened, the first one takes the subscriptions
+	 */
+	public RippleDaemonWebsocketPool(RippleDaemonWebsocketConnection... sessions) {
+		if(sessions.length<1){
+			throw new RuntimeException("The pool needs at least one session");
+		}
+		this.sessions = sessions.clone();
+		setMetrics(new RecordingConnectionMetrics());
+	}
+
+	@Override
+	public void setCallbackExecutor(Executor callbackExecutor) {
+		super.setCallbackExecutor(callbackExecutor);
+		for(RippleDaemonWebsocketConnection session : sessions){
+			session.setCallbackExecutor(callbackExecutor);
+		}
+	}
+
+	/**
+	 * The sessions all report to the same metrics, so they count for the whole pool
+	 */
+	@Override
+	public void setMetrics(ConnectionMetrics metrics) {
+		super.setMetrics(metrics);
+		for(RippleDaemonWebsocketConnection session : sessions){
+			session.setMetrics(metrics);
+		}
+	}
+
+	@Override
+	public void setRequestTimeout(long requestTimeout, TimeUnit unit) {
+		super.setRequestTimeout(requestTimeout, unit);
+		for(RippleDaemonWebsocketConnection session : sessions){
+			session.setRequestTimeout(requestTimeout, unit);
+		}
+	}
+
+	@Override
+	public long getNbTimeouts() {
+		long total=0;
+		for(RippleDaemonWebsocketConnection session : sessions){
+			total+=session.getNbTimeouts();
+		}
+		return total;
+	}
+
+	public long getNbLateResponses() {
+		long total=0;
+		for(RippleDaemonWebsocketConnection session : sessions){
+			total+=session.getNbLateResponses();
+		}
+		return total;
+	}
+
+	@Override
+	public <T extends JSONSerializable> FutureJSONResponse<T> sendCommand(JSONObject command, T unserializedResponse) {
+		return selectSession(command).sendCommand(command, unserializedResponse);
+	}
+
+	protected RippleDaemonWebsocketConnection selectSession(JSONObject command) {
+		Object commandName = command.get("command");
+		if("subscribe".equals(commandName) || "unsubscribe".equals(commandName)){
+			return getSubscriptionSession();
+		}
+		return getLeastLoadedSession();
+	}
+
+	/**
+	 * Streams are all pinned to this session, so their messages arrive in order and unsubscribe reaches the session that subscribed.
+	 */
+	public RippleDaemonWebsocketConnection getSubscriptionSession() {
+		return sessions[0];
+	}
+
+	@Override
+	public RippleDaemonWebsocketConnection getStreamConnection() {
+		return getSubscriptionSession();
+	}
+
+	public RippleDaemonWebsocketConnection getLeastLoadedSession() {
+		RippleDaemonWebsocketConnection leastLoadedSession = sessions[0];
+		int leastInFlight = leastLoadedSession.getNbInFlight();
+		for(int i=1; i<sessions.length && leastInFlight>0; i++){
+			int inFlight = sessions[i].getNbInFlight();
+			if(inFlight<leastInFlight){
+				leastInFlight = inFlight;
+				leastLoadedSession = sessions[i];
+			}
+		}
+		return leastLoadedSession;
+	}
+
+	public int getNbSessions() {
+		return sessions.length;
+	}
+
+	/**
+	 * @return the number of commands waiting for a response, for each session of the pool
+	 */
+	public int[] getInFlightCounts() {
+		int[] inFlightCounts = new int[sessions.length];
+		for(int i=0; i<sessions.length; i++){
+			inFlightCounts[i] = sessions[i].getNbInFlight();
+		}
+		return inFlightCounts;
+	}
+
+	public int getNbInFlight() {
+		int total=0;
+		for(RippleDaemonWebsocketConnection session : sessions){
+			total+=session.getNbInFlight();
+		}
+		return total;
+	}
+
+	public void close() throws Exception {
+		for(RippleDaemonWebsocketConnection session : sessions){
+			if(session!=null){
+				session.close();
+			}
+		}
+	}
+}
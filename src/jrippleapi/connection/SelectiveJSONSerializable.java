@@ -0,0 +1,8 @@
+package jrippleapi.connection;
+
+/**
+ * A {@link JSONSerializable} which reads only some fields of the command result.
+ */
+public interface SelectiveJSONSerializable extends JSONSerializable {
+	public JSONFieldFilter getFieldFilter();
+}
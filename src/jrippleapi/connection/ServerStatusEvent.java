@@ -0,0 +1,22 @@
+package jrippleapi.connection;
+
+import org.json.simple.JSONObject;
+
+/**
+ * Sent on the "server" stream when the load of the server changes.
+ */
+public class ServerStatusEvent extends StreamEvent {
+	public long loadBase;
+	public long loadFactor;
+	public long baseFee; //In drops, only sent by the newer servers
+	public String serverStatus;
+
+	@Override
+	public void copyFrom(JSONObject jsonMessage) {
+		super.copyFrom(jsonMessage);
+		loadBase = getLong(jsonMessage, "load_base");
+		loadFactor = getLong(jsonMessage, "load_factor");
+		baseFee = getLong(jsonMessage, "base_fee");
+		serverStatus = (String) jsonMessage.get("server_status");
+	}
+}
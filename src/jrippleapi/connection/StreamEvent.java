@@ -0,0 +1,52 @@
+package jrippleapi.connection;
+
+import org.json.simple.JSONObject;
+
+/**
+ * A message pushed by rippled on a subscribed stream. 
+ */
+public class StreamEvent implements JSONSerializable {
+	public String type;
+	public JSONObject jsonMessage;
+
+	public static StreamEvent fromJSON(JSONObject jsonMessage){
+		Object type = jsonMessage.get("type");
+		StreamEvent event;
+		if("ledgerClosed".equals(type)){
+			event = new LedgerClosedEvent();
+		}
+		else if("transaction".equals(type)){
+			event = new TransactionEvent();
+		}
+		else if("serverStatus".equals(type)){
+			event = new ServerStatusEvent();
+		}
+		else{
+			event = new StreamEvent();
+		}
+		event.copyFrom(jsonMessage);
+		return event;
+	}
+
+	@Override
+	public void copyFrom(JSONObject jsonMessage) {
+		this.jsonMessage = jsonMessage;
+		this.type = (String) jsonMessage.get("type");
+	}
+
+	protected static long getLong(JSONObject json, String key){
+		Object value = json.get(key);
+		if(value instanceof Number){
+			return ((Number) value).longValue();
+		}
+		if(value instanceof String){
+			return Long.parseLong((String) value);
+		}
+		return 0;
+	}
+
+	@Override
+	public String toString() {
+		return jsonMessage.toJSONString();
+	}
+}
@@ -0,0 +1,230 @@
+package jrippleapi.connection;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hands the stream events from the websocket reader to the registered handlers through a pre-allocated ring buffer,
+ * consumed by a single dispatching thread. The reader never waits: when the handlers fall behind by more than
+ * the size of the ring, new events are dropped and counted. Once there is room again a {@link StreamOverflowEvent}
+ * is dispatched before the next event, so the handlers know they missed some.
+ *
+ * There must be a single publishing thread, the websocket reader of the subscription session.
+ *
+ * @author pmarches
+ */
+public class StreamEventDispatcher {
+	public enum WaitStrategy {
+		/** Lowest latency, burns a core */
+		BUSY_SPIN,
+		/** Spins with Thread.yield() */
+		YIELDING,
+		/** Parks for a short time between checks */
+		SLEEPING,
+		/** Waits on a condition signaled by the publisher, lowest CPU usage */
+		BLOCKING
+	}
+
+	public static final int DEFAULT_RING_SIZE=4096;
+	static final long SLEEPING_PARK_NANOS=100000;
+
+	final StreamEvent[] ringBuffer;
+	final int indexMask;
+	final WaitStrategy waitStrategy;
+	final CopyOnWriteArrayList<StreamEventHandler> handlers = new CopyOnWriteArrayList<StreamEventHandler>();
+
+	final AtomicLong publishedSequence = new AtomicLong(-1);
+	final AtomicLong consumedSequence = new AtomicLong(-1);
+	final AtomicLong nbDropped = new AtomicLong();
+	long nbUnsignaledDrops; //Only touched by the publishing thread
+	volatile long maxLag;
+	final AtomicLong nbHandlerFailures = new AtomicLong();
+	volatile Throwable lastHandlerFailure;
+
+	final ReentrantLock waitLock = new ReentrantLock();
+	final Condition eventsAvailable = waitLock.newCondition();
+	volatile boolean isConsumerWaiting;
+
+	Thread dispatcherThread;
+	volatile boolean isRunning;
+
+	public StreamEventDispatcher() {
+		this(DEFAULT_RING_SIZE, WaitStrategy.BLOCKING);
+	}
+
+	/**
+	 * @param ringSize : rounded up to a power of two
+	 */
+	public StreamEventDispatcher(int ringSize, WaitStrategy waitStrategy) {
+		int powerOfTwoSize = Integer.highestOneBit(Math.max(2, ringSize)-1)<<1;
+		this.ringBuffer = new StreamEvent[powerOfTwoSize];
+		this.indexMask = powerOfTwoSize-1;
+		this.waitStrategy = waitStrategy;
+	}
+
+	public void addHandler(StreamEventHandler handler){
+		handlers.add(handler);
+	}
+
+	public void removeHandler(StreamEventHandler handler){
+		handlers.remove(handler);
+	}
+
+	public synchronized void start(){
+		if(isRunning){
+			return;
+		}
+		isRunning=true;
+		dispatcherThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				dispatchLoop();
+			}
+		}, "StreamEventDispatcher");
+		dispatcherThread.setDaemon(true);
+		dispatcherThread.start();
+	}
+
+	public synchronized void stop(){
+		isRunning=false;
+		if(dispatcherThread!=null){
+			dispatcherThread.interrupt();
+			dispatcherThread=null;
+		}
+	}
+
+	/**
+	 * @return false if the ring is full and the event was dropped
+	 */
+	public boolean publish(StreamEvent event){
+		if(nbUnsignaledDrops>0){
+			if(hasRoomFor(2)==false){
+				return drop();
+			}
+			append(new StreamOverflowEvent(nbUnsignaledDrops));
+			nbUnsignaledDrops=0;
+		}
+		else if(hasRoomFor(1)==false){
+			return drop();
+		}
+		append(event);
+		return true;
+	}
+
+	protected boolean hasRoomFor(int nbEvents){
+		return publishedSequence.get()+nbEvents-consumedSequence.get()<=ringBuffer.length;
+	}
+
+	protected boolean drop(){
+		nbDropped.incrementAndGet();
+		nbUnsignaledDrops++;
+		return false;
+	}
+
+	protected void append(StreamEvent event){
+		long nextSequence = publishedSequence.get()+1;
+		long lag = nextSequence-consumedSequence.get();
+		if(lag>maxLag){
+			maxLag=lag;
+		}
+		ringBuffer[(int) nextSequence & indexMask] = event;
+		publishedSequence.set(nextSequence);
+		if(waitStrategy==WaitStrategy.BLOCKING && isConsumerWaiting){
+			waitLock.lock();
+			try {
+				eventsAvailable.signal();
+			} finally {
+				waitLock.unlock();
+			}
+		}
+	}
+
+	protected void dispatchLoop(){
+		long nextSequence = consumedSequence.get()+1;
+		while(isRunning){
+			long availableSequence;
+			try {
+				availableSequence = waitFor(nextSequence);
+			} catch (InterruptedException e) {
+				return;
+			}
+			for(; nextSequence<=availableSequence; nextSequence++){
+				int index = (int) nextSequence & indexMask;
+				StreamEvent event = ringBuffer[index];
+				ringBuffer[index]=null;
+				boolean endOfBatch = nextSequence==availableSequence;
+				for(StreamEventHandler handler : handlers){
+					try {
+						handler.onEvent(event, nextSequence, endOfBatch);
+					} catch (Throwable e) {
+						nbHandlerFailures.incrementAndGet();
+						lastHandlerFailure = e;
+					}
+				}
+			}
+			consumedSequence.lazySet(availableSequence);
+		}
+	}
+
+	protected long waitFor(long sequence) throws InterruptedException {
+		long availableSequence;
+		while((availableSequence=publishedSequence.get())<sequence){
+			if(Thread.interrupted()){
+				throw new InterruptedException();
+			}
+			if(waitStrategy==WaitStrategy.YIELDING){
+				Thread.yield();
+			}
+			else if(waitStrategy==WaitStrategy.SLEEPING){
+				LockSupport.parkNanos(SLEEPING_PARK_NANOS);
+			}
+			else if(waitStrategy==WaitStrategy.BLOCKING){
+				waitLock.lock();
+				try {
+					isConsumerWaiting=true;
+					if(publishedSequence.get()<sequence){
+						eventsAvailable.await(10, TimeUnit.MILLISECONDS);
+					}
+				} finally {
+					isConsumerWaiting=false;
+					waitLock.unlock();
+				}
+			}
+		}
+		return availableSequence;
+	}
+
+	public long getNbPublished() {
+		return publishedSequence.get()+1;
+	}
+
+	public long getNbDropped() {
+		return nbDropped.get();
+	}
+
+	/**
+	 * @return the number of events published but not yet handled
+	 */
+	public long getLag() {
+		return publishedSequence.get()-consumedSequence.get();
+	}
+
+	public long getMaxLag() {
+		return maxLag;
+	}
+
+	/**
+	 * @return the number of events a handler threw on, the other handlers still got them
+	 */
+	public long getNbHandlerFailures() {
+		return nbHandlerFailures.get();
+	}
+
+	public Throwable getLastHandlerFailure() {
+		return lastHandlerFailure;
+	}
+}
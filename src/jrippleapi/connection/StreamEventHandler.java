@@ -0,0 +1,8 @@
+package jrippleapi.connection;
+
+public interface StreamEventHandler {
+	/**
+	 * @param endOfBatch : true for the last event currently available, handlers can flush their work there
+	 */
+	public void onEvent(StreamEvent event, long sequence, boolean endOfBatch);
+}
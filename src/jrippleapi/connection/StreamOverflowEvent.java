@@ -0,0 +1,21 @@
+package jrippleapi.connection;
+
+/**
+ * Published by the {@link StreamEventDispatcher} in place of the events it had to drop because its ring was full.
+ * A handler keeping state from the streams must rebuild it, the events dropped are lost.
+ *
+ * @author pmarches
+ */
+public class StreamOverflowEvent extends StreamEvent {
+	public final long nbDropped;
+
+	public StreamOverflowEvent(long nbDropped) {
+		this.type = "overflow";
+		this.nbDropped = nbDropped;
+	}
+
+	@Override
+	public String toString() {
+		return nbDropped+" events dropped";
+	}
+}
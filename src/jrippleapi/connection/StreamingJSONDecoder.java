@@ -0,0 +1,223 @@
+package jrippleapi.connection;
+
+import java.util.ArrayList;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.ContentHandler;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Decodes the websocket messages token by token. The envelope is read first, and once the id is known
+ * the result is decoded with the {@link JSONFieldFilter} of the object waiting for it: subtrees it does
+ * not read are skipped by the lexer instead of being materialized.
+ *
+ * rippled sorts the keys of its responses, so "id" always comes before "result".
+ * If it does not, the result is decoded in full.
+ * The result of a response nobody waits for anymore, because its request timed out, is skipped entirely.
+ *
+ * Not thread safe, there is one decoder per websocket session.
+ *
+ * @author pmarches
+ */
+public class StreamingJSONDecoder implements ContentHandler {
+	static final JSONFieldFilter SKIP_ALL_FILTER = new JSONFieldFilter();
+
+	final JSONParser parser = new JSONParser();
+	final JSONResponseHolder responseHolder;
+
+	final ArrayList<Object> containerStack = new ArrayList<Object>();
+	final ArrayList<JSONFieldFilter> filterStack = new ArrayList<JSONFieldFilter>();
+	final ArrayList<String> keyStack = new ArrayList<String>();
+	Object root;
+	Object messageId;
+	int skipDepth;
+	boolean isSkippingValue;
+	boolean isSkippingEntry;
+
+	public StreamingJSONDecoder(JSONResponseHolder responseHolder) {
+		this.responseHolder = responseHolder;
+	}
+
+	public JSONObject decode(String jsonMessage) throws ParseException {
+		parser.parse(jsonMessage, this);
+		Object decoded = root;
+		root=null;
+		return (JSONObject) decoded;
+	}
+
+	@Override
+	public void startJSON() {
+		containerStack.clear();
+		filterStack.clear();
+		keyStack.clear();
+		root=null;
+		messageId=null;
+		skipDepth=0;
+		isSkippingValue=false;
+		isSkippingEntry=false;
+	}
+
+	@Override
+	public void endJSON() {
+	}
+
+	protected JSONFieldFilter getResultFilter(){
+		if(messageId instanceof Long==false){
+			return null;
+		}
+		FutureJSONResponse<?> pendingResponse = responseHolder.waitingResponses.get(((Long) messageId).intValue());
+		if(pendingResponse==null){
+			return SKIP_ALL_FILTER;
+		}
+		if(pendingResponse.unserializedObj instanceof SelectiveJSONSerializable){
+			return ((SelectiveJSONSerializable) pendingResponse.unserializedObj).getFieldFilter();
+		}
+		return null;
+	}
+
+	protected boolean startSkipping(){
+		if(skipDepth>0){
+			skipDepth++;
+			return true;
+		}
+		if(isSkippingValue){
+			isSkippingValue=false;
+			skipDepth=1;
+			return true;
+		}
+		return false;
+	}
+
+	protected boolean endSkipping(){
+		if(skipDepth>0){
+			skipDepth--;
+			return true;
+		}
+		return false;
+	}
+
+	@SuppressWarnings("unchecked")
+	protected void startContainer(Object container){
+		JSONFieldFilter filter=null;
+		int depth = containerStack.size();
+		if(depth==0){
+			root=container;
+		}
+		else{
+			Object parent = containerStack.get(depth-1);
+			JSONFieldFilter parentFilter = filterStack.get(depth-1);
+			if(parent instanceof JSONObject){
+				String key = keyStack.get(keyStack.size()-1);
+				((JSONObject) parent).put(key, container);
+				if(depth==1 && "result".equals(key)){
+					filter=getResultFilter();
+				}
+				else if(parentFilter!=null){
+					filter=parentFilter.getSubFilter(key);
+				}
+			}
+			else{
+				((JSONArray) parent).add(container);
+				filter=parentFilter;
+			}
+		}
+		containerStack.add(container);
+		filterStack.add(filter);
+	}
+
+	protected void endContainer(){
+		containerStack.remove(containerStack.size()-1);
+		filterStack.remove(filterStack.size()-1);
+	}
+
+	@Override
+	public boolean startObject() {
+		if(startSkipping()==false){
+			startContainer(new JSONObject());
+		}
+		return true;
+	}
+
+	@Override
+	public boolean endObject() {
+		if(endSkipping()==false){
+			endContainer();
+		}
+		return true;
+	}
+
+	@Override
+	public boolean startArray() {
+		if(startSkipping()==false){
+			startContainer(new JSONArray());
+		}
+		return true;
+	}
+
+	@Override
+	public boolean endArray() {
+		if(endSkipping()==false){
+			endContainer();
+		}
+		return true;
+	}
+
+	@Override
+	public boolean startObjectEntry(String key) {
+		if(skipDepth>0){
+			return true;
+		}
+		JSONFieldFilter filter = filterStack.get(filterStack.size()-1);
+		if(filter!=null && filter.isSelected(key)==false){
+			isSkippingValue=true;
+			isSkippingEntry=true;
+			return true;
+		}
+		keyStack.add(key);
+		return true;
+	}
+
+	@Override
+	public boolean endObjectEntry() {
+		if(skipDepth>0){
+			return true;
+		}
+		if(isSkippingEntry){
+			isSkippingEntry=false;
+			return true;
+		}
+		keyStack.remove(keyStack.size()-1);
+		return true;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public boolean primitive(Object value) {
+		if(skipDepth>0){
+			return true;
+		}
+		if(isSkippingValue){
+			isSkippingValue=false;
+			return true;
+		}
+		int depth = containerStack.size();
+		if(depth==0){
+			root=value;
+			return true;
+		}
+		Object parent = containerStack.get(depth-1);
+		if(parent instanceof JSONObject){
+			String key = keyStack.get(keyStack.size()-1);
+			((JSONObject) parent).put(key, value);
+			if(depth==1 && "id".equals(key)){
+				messageId=value;
+			}
+		}
+		else{
+			((JSONArray) parent).add(value);
+		}
+		return true;
+	}
+}
@@ -0,0 +1,60 @@
+package jrippleapi.connection;
+
+import org.json.simple.JSONObject;
+
+/**
+ * The preliminary result of submitting a signed transaction, as applied to the open ledger of the server.
+ * The engine result prefix tells what became of the sequence number:
+ * tes and tec consumed it, ter and tel may succeed later, tef and tem will never apply.
+ * Once the transaction is validated, the engine result code is the one of its metadata and only it is final.
+ *
+ * @author pmarches
+ */
+public class SubmitResult implements JSONSerializable {
+	public String engineResult;
+	public long engineResultCode;
+	public String engineResultMessage;
+	public String txHash;
+	public long sequenceNumber;
+	public boolean validated;
+	public long ledgerIndex; //Of the validated ledger which includes it
+
+	@Override
+	public void copyFrom(JSONObject jsonCommandResult) {
+		engineResult = (String) jsonCommandResult.get("engine_result");
+		engineResultCode = StreamEvent.getLong(jsonCommandResult, "engine_result_code");
+		engineResultMessage = (String) jsonCommandResult.get("engine_result_message");
+		JSONObject tx_json = (JSONObject) jsonCommandResult.get("tx_json");
+		if(tx_json!=null){
+			txHash = (String) tx_json.get("hash");
+			sequenceNumber = StreamEvent.getLong(tx_json, "Sequence");
+		}
+		validated = Boolean.TRUE.equals(jsonCommandResult.get("validated"));
+		ledgerIndex = StreamEvent.getLong(jsonCommandResult, "ledger_index");
+	}
+
+	/**
+	 * Applied to the open ledger, or queued to be. tefALREADY when an earlier submit of the same blob was. Once validated, only a tesSUCCESS.
+	 */
+	public boolean isSuccess() {
+		if(validated){
+			return engineResultCode==0;
+		}
+		return "tesSUCCESS".equals(engineResult) || "terQUEUED".equals(engineResult) || "tefALREADY".equals(engineResult);
+	}
+
+	/**
+	 * Applied, but only to claim the fee. The payment failed and its sequence number is used.
+	 */
+	public boolean isClaimedFee() {
+		if(validated){
+			return engineResultCode>=100; //The tec range
+		}
+		return engineResult!=null && engineResult.startsWith("tec");
+	}
+
+	@Override
+	public String toString() {
+		return (engineResult==null ? String.valueOf(engineResultCode) : engineResult)+" seq="+sequenceNumber+" "+txHash+(validated ? " validated in "+ledgerIndex : "");
+	}
+}
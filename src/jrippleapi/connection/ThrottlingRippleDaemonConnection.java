@@ -0,0 +1,348 @@
+package jrippleapi.connection;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.simple.JSONObject;
+
+/**
+ * Limits the number of commands outstanding on the connection to what the server sustains, the others wait in a bounded queue.
+ * The limit follows AIMD: it grows by one every limit responses, and is cut when the server sheds load
+ * (slowDown, tooBusy, a "load" warning, a request timing out), when the response time rises well above the one
+ * measured unloaded, or when the load_factor published on the server stream rises.
+ *
+ * @author pmarches
+ */
+public class ThrottlingRippleDaemonConnection extends RippleDaemonConnection implements StreamEventHandler {
+	public static final int DEFAULT_INITIAL_LIMIT=8;
+	public static final int DEFAULT_MAX_LIMIT=256;
+	public static final int DEFAULT_MAX_QUEUE_SIZE=10000;
+	public static final long DEFAULT_MAX_QUEUE_WAIT_MILLIS=10000;
+	public static final double DEFAULT_LATENCY_TOLERANCE=2.0;
+	static final double BACKOFF_FACTOR=0.5;
+	static final double LATENCY_BACKOFF_FACTOR=0.9;
+	static final long MIN_DECREASE_INTERVAL_NANOS=TimeUnit.MILLISECONDS.toNanos(10);
+
+	final RippleDaemonConnection connection;
+	int minLimit=1;
+	int maxLimit=DEFAULT_MAX_LIMIT;
+	int maxQueueSize=DEFAULT_MAX_QUEUE_SIZE;
+	long maxQueueWaitMillis=DEFAULT_MAX_QUEUE_WAIT_MILLIS;
+	double latencyTolerance=DEFAULT_LATENCY_TOLERANCE;
+
+	volatile double limit=DEFAULT_INITIAL_LIMIT;
+	double unloadedLatencyNanos; //Follows the lowest response times, drifts up slowly in case the network path changed
+	long lastDecreaseNanos;
+	volatile double loadRatio=1; //load_factor/load_base of the server, 1 when it is not loaded
+
+	final AtomicInteger nbInFlight = new AtomicInteger();
+	final AtomicInteger nbQueued = new AtomicInteger();
+	final ConcurrentLinkedQueue<QueuedCommand<?>> queuedCommands = new ConcurrentLinkedQueue<QueuedCommand<?>>();
+	final AtomicBoolean isDispatching = new AtomicBoolean();
+
+	final AtomicLong nbThrottled = new AtomicLong();
+	final AtomicLong nbRejected = new AtomicLong();
+	final AtomicLong nbLoadErrors = new AtomicLong();
+	final AtomicLong nbDecreases = new AtomicLong();
+
+	class QueuedCommand<T extends JSONSerializable> {
+		final JSONObject command;
+		final FutureJSONResponse<T> throttledResponse;
+		HashedTimerWheel.Timeout queueDeadline;
+
+		QueuedCommand(JSONObject command, FutureJSONResponse<T> throttledResponse) {
+			this.command = command;
+			this.throttledResponse = throttledResponse;
+		}
+
+		void send(){
+			final long startNanos = System.nanoTime();
+			final FutureJSONResponse<T> response = connection.sendCommand(command, throttledResponse.unserializedObj);
+			response.addCompletionCallback(new Runnable() {
+				@Override
+				public void run() {
+					nbInFlight.decrementAndGet();
+					onResponse(response.outcome, System.nanoTime()-startNanos);
+					throttledResponse.complete(response.outcome);
+					dispatchQueuedCommands();
+				}
+			});
+		}
+	}
+
+	public ThrottlingRippleDaemonConnection(RippleDaemonConnection connection) {
+		this.connection = connection;
+	}
+
+	/**
+	 * Subscribes to the server stream, so the limit follows the load_factor of the server
+	 */
+	public void start(){
+		RippleDaemonWebsocketConnection streamConnection = connection.getStreamConnection();
+		streamConnection.addStreamEventHandler(this);
+		streamConnection.subscribeToStreamsFuture("server");
+	}
+
+	public void stop(){
+		RippleDaemonWebsocketConnection streamConnection = connection.getStreamConnection();
+		streamConnection.removeStreamEventHandler(this);
+		streamConnection.unsubscribeFromStreamsFuture("server");
+	}
+
+	public void setLimits(int minLimit, int initialLimit, int maxLimit) {
+		if(minLimit<1 || initialLimit<minLimit || maxLimit<initialLimit){
+			throw new RuntimeException("Expected 1<=minLimit<=initialLimit<=maxLimit, was "+minLimit+", "+initialLimit+", "+maxLimit);
+		}
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+		this.limit = initialLimit;
+	}
+
+	/**
+	 * @param maxQueueSize : the commands beyond are rejected right away
+	 * @param maxQueueWait : the commands still queued after that delay are rejected, and leave the queue
+	 */
+	public void setQueueBounds(int maxQueueSize, long maxQueueWait, TimeUnit unit) {
+		this.maxQueueSize = maxQueueSize;
+		this.maxQueueWaitMillis = unit.toMillis(maxQueueWait);
+	}
+
+	/**
+	 * @param latencyTolerance : the limit decreases when a response takes longer than latencyTolerance times the unloaded response time
+	 */
+	public void setLatencyTolerance(double latencyTolerance) {
+		this.latencyTolerance = latencyTolerance;
+	}
+
+	@Override
+	public void setRequestTimeout(long requestTimeout, TimeUnit unit) {
+		super.setRequestTimeout(requestTimeout, unit);
+		connection.setRequestTimeout(requestTimeout, unit);
+	}
+
+	@Override
+	public long getNbTimeouts() {
+		return connection.getNbTimeouts();
+	}
+
+	@Override
+	public <T extends JSONSerializable> FutureJSONResponse<T> sendCommand(JSONObject command, T unserializedResponse) {
+		FutureJSONResponse<T> throttledResponse = new FutureJSONResponse<T>(requestCounter.getAndIncrement(), null, unserializedResponse);
+		throttledResponse.command=command;
+		throttledResponse.setCallbackExecutor(callbackExecutor);
+		final QueuedCommand<T> queuedCommand = new QueuedCommand<T>(command, throttledResponse);
+		if(queuedCommands.isEmpty() && tryAcquire()){
+			queuedCommand.send();
+			return throttledResponse;
+		}
+		if(nbQueued.incrementAndGet()>maxQueueSize){
+			nbQueued.decrementAndGet();
+			nbRejected.incrementAndGet();
+			throttledResponse.setException(new RejectedExecutionException("More than "+maxQueueSize+" commands waiting for the server"));
+			return throttledResponse;
+		}
+		nbThrottled.incrementAndGet();
+		queuedCommand.queueDeadline = timer.newTimeout(new Runnable() {
+			@Override
+			public void run() {
+				if(queuedCommands.remove(queuedCommand)){ //Unless the dispatcher just took it
+					nbQueued.decrementAndGet();
+				}
+				nbRejected.incrementAndGet();
+				queuedCommand.throttledResponse.setException(new RejectedExecutionException("Still waiting for the server after "+maxQueueWaitMillis+"ms"));
+			}
+		}, maxQueueWaitMillis, TimeUnit.MILLISECONDS);
+		queuedCommands.add(queuedCommand);
+		dispatchQueuedCommands();
+		return throttledResponse;
+	}
+
+	protected boolean tryAcquire(){
+		while(true){
+			int inFlight = nbInFlight.get();
+			if(inFlight>=(int) limit){
+				return false;
+			}
+			if(nbInFlight.compareAndSet(inFlight, inFlight+1)){
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Only one thread dispatches at a time, the expired and cancelled commands are dropped
+	 */
+	protected void dispatchQueuedCommands(){
+		do {
+			if(isDispatching.compareAndSet(false, true)==false){
+				return;
+			}
+			try {
+				while(queuedCommands.isEmpty()==false && tryAcquire()){
+					QueuedCommand<?> queuedCommand = queuedCommands.poll();
+					if(queuedCommand==null){
+						nbInFlight.decrementAndGet();
+						break;
+					}
+					nbQueued.decrementAndGet();
+					if(queuedCommand.queueDeadline.cancel()==false || queuedCommand.throttledResponse.isDone()){
+						nbInFlight.decrementAndGet();
+						continue;
+					}
+					queuedCommand.send();
+				}
+			} finally {
+				isDispatching.set(false);
+			}
+		} while(queuedCommands.isEmpty()==false && nbInFlight.get()<(int) limit);
+	}
+
+	protected synchronized void onResponse(Object outcome, long latencyNanos){
+		if(outcome instanceof JSONObject){
+			if("load".equals(((JSONObject) outcome).get("warning"))){
+				nbLoadErrors.incrementAndGet();
+				decrease(LATENCY_BACKOFF_FACTOR);
+				return;
+			}
+			if(unloadedLatencyNanos==0 || latencyNanos<unloadedLatencyNanos){
+				unloadedLatencyNanos=latencyNanos;
+			}
+			else{
+				unloadedLatencyNanos+=(latencyNanos-unloadedLatencyNanos)*0.001;
+			}
+			if(latencyNanos>unloadedLatencyNanos*latencyTolerance){
+				decrease(LATENCY_BACKOFF_FACTOR);
+			}
+			else{
+				increase();
+			}
+			return;
+		}
+		Throwable cause = ((FutureJSONResponse.Failure) outcome).cause;
+		if(cause instanceof RippleDaemonException){
+			String error = ((RippleDaemonException) cause).error;
+			if("slowDown".equals(error) || "tooBusy".equals(error)){
+				nbLoadErrors.incrementAndGet();
+				decrease(BACKOFF_FACTOR);
+			}
+		}
+		else if(cause instanceof TimeoutException){
+			decrease(BACKOFF_FACTOR);
+		}
+	}
+
+	/**
+	 * Only while the limit is used, and the server is not loaded
+	 */
+	protected void increase(){
+		double currentLimit = limit;
+		if(loadRatio>1 || nbInFlight.get()+1<currentLimit/2){
+			return;
+		}
+		limit = Math.min(maxLimit, currentLimit+1/currentLimit);
+	}
+
+	/**
+	 * At most once per unloaded response time, the responses to the commands sent before the decrease would cut it again for the same cause
+	 */
+	protected synchronized void decrease(double factor){
+		long now = System.nanoTime();
+		if(now-lastDecreaseNanos<Math.max(MIN_DECREASE_INTERVAL_NANOS, (long) unloadedLatencyNanos)){
+			return;
+		}
+		lastDecreaseNanos=now;
+		limit = Math.max(minLimit, limit*factor);
+		nbDecreases.incrementAndGet();
+	}
+
+	@Override
+	public void onEvent(StreamEvent event, long sequence, boolean endOfBatch) {
+		if(event instanceof ServerStatusEvent){
+			ServerStatusEvent statusEvent = (ServerStatusEvent) event;
+			if(statusEvent.loadBase>0){
+				setLoadRatio(statusEvent.loadFactor/(double) statusEvent.loadBase);
+			}
+		}
+	}
+
+	/**
+	 * Reads the load_factor of server_info, for the connections without a server stream.
+	 */
+	@SuppressWarnings("unchecked")
+	public FutureJSONResponse<GenericJSONSerializable> refreshLoadFactor(){
+		JSONObject serverInfoCommand = new JSONObject();
+		serverInfoCommand.put("command", "server_info");
+		FutureJSONResponse<GenericJSONSerializable> serverInfoResponse = connection.sendCommand(serverInfoCommand, new GenericJSONSerializable());
+		serverInfoResponse.addListener(new JSONResponseListener<GenericJSONSerializable>() {
+			@Override
+			public void onSuccess(GenericJSONSerializable serverInfo) {
+				JSONObject jsonInfo = (JSONObject) serverInfo.jsonCommandResult.get("info");
+				if(jsonInfo!=null && jsonInfo.get("load_factor") instanceof Number){
+					setLoadRatio(((Number) jsonInfo.get("load_factor")).doubleValue());
+				}
+			}
+
+			@Override
+			public void onFailure(Throwable cause) {
+			}
+		}, DIRECT_EXECUTOR);
+		return serverInfoResponse;
+	}
+
+	/**
+	 * @param newLoadRatio : the fee multiplier of the server, 1 when it is not loaded
+	 */
+	protected synchronized void setLoadRatio(double newLoadRatio){
+		double previousLoadRatio = loadRatio;
+		loadRatio = newLoadRatio;
+		if(newLoadRatio>1 && newLoadRatio>previousLoadRatio){
+			decrease(Math.max(BACKOFF_FACTOR, previousLoadRatio/newLoadRatio));
+		}
+	}
+
+	public double getLimit() {
+		return limit;
+	}
+
+	public double getLoadRatio() {
+		return loadRatio;
+	}
+
+	public int getNbInFlight() {
+		return nbInFlight.get();
+	}
+
+	public int getNbQueued() {
+		return nbQueued.get();
+	}
+
+	/**
+	 * @return the number of commands which had to wait in the queue
+	 */
+	public long getNbThrottled() {
+		return nbThrottled.get();
+	}
+
+	/**
+	 * @return the number of commands failed with a RejectedExecutionException, because the queue was full or they waited too long
+	 */
+	public long getNbRejected() {
+		return nbRejected.get();
+	}
+
+	/**
+	 * @return the number of slowDown, tooBusy and load warnings received
+	 */
+	public long getNbLoadErrors() {
+		return nbLoadErrors.get();
+	}
+
+	public long getNbDecreases() {
+		return nbDecreases.get();
+	}
+}
@@ -0,0 +1,40 @@
+package jrippleapi.connection;
+
+import org.json.simple.JSONObject;
+
+/**
+ * Sent on the "transactions" stream, and for the subscribed accounts and order books.
+ */
+public class TransactionEvent extends StreamEvent {
+	public String engineResult;
+	public long engineResultCode;
+	public long ledgerIndex;
+	public String ledgerHash;
+	public boolean validated;
+	public JSONObject transaction;
+	public JSONObject meta;
+
+	@Override
+	public void copyFrom(JSONObject jsonMessage) {
+		super.copyFrom(jsonMessage);
+		engineResult = (String) jsonMessage.get("engine_result");
+		engineResultCode = getLong(jsonMessage, "engine_result_code");
+		ledgerIndex = getLong(jsonMessage, "ledger_index");
+		ledgerHash = (String) jsonMessage.get("ledger_hash");
+		validated = Boolean.TRUE.equals(jsonMessage.get("validated"));
+		transaction = (JSONObject) jsonMessage.get("transaction");
+		meta = (JSONObject) jsonMessage.get("meta");
+	}
+
+	public String getTransactionType(){
+		return (String) transaction.get("TransactionType");
+	}
+
+	public String getAccount(){
+		return (String) transaction.get("Account");
+	}
+
+	public String getHash(){
+		return (String) transaction.get("hash");
+	}
+}
@@ -0,0 +1,21 @@
+package jrippleapi.connection;
+
+/**
+ * A validated ledger is past the LastLedgerSequence of the transaction and does not include it, the transaction can never apply
+ *
+ * @author pmarches
+ */
+public class TransactionExpiredException extends RuntimeException {
+	private static final long serialVersionUID = 6482093419552731904L;
+
+	public final String txHash;
+	public final long lastLedgerSequence;
+	public final long validatedLedgerIndex;
+
+	public TransactionExpiredException(String txHash, long lastLedgerSequence, long validatedLedgerIndex) {
+		super("Transaction "+txHash+" expired, its LastLedgerSequence is "+lastLedgerSequence+" and ledger "+validatedLedgerIndex+" is validated");
+		this.txHash = txHash;
+		this.lastLedgerSequence = lastLedgerSequence;
+		this.validatedLedgerIndex = validatedLedgerIndex;
+	}
+}
@@ -0,0 +1,315 @@
+package jrippleapi.connection;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jrippleapi.serialization.RippleBinarySchema.BinaryFormatField;
+
+import org.json.simple.JSONObject;
+
+/**
+ * Follows submitted transactions until they are in a validated ledger.
+ * The result of a submit only tells how the transaction applied to the open ledger of one server, it can still be dropped,
+ * or end with another result once validated.
+ *
+ * Each transaction is signed with a LastLedgerSequence from {@link #getLastLedgerSequence()}. While some are waiting,
+ * the last validated ledger is read then each transaction is looked up with tx, every poll interval.
+ * A transaction completes once it is validated, or fails with a {@link TransactionExpiredException}
+ * once a validated ledger is past its LastLedgerSequence without it: from then on it can never apply.
+ *
+ * @author pmarches
+ */
+public class TransactionValidator {
+	public static final int DEFAULT_LEDGER_OFFSET = 4;
+	public static final long DEFAULT_POLL_INTERVAL_MILLIS = 1000;
+
+	static final Executor DEFAULT_POLL_EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread pollThread = new Thread(r, "TransactionValidator poll");
+			pollThread.setDaemon(true);
+			return pollThread;
+		}
+	});
+
+	final RippleDaemonConnection connection;
+	final ConcurrentHashMap<String, PendingValidation> pendingValidations = new ConcurrentHashMap<String, PendingValidation>();
+	final AtomicBoolean isPollScheduled = new AtomicBoolean();
+	final AtomicInteger validationCounter = new AtomicInteger();
+	volatile Executor pollExecutor = DEFAULT_POLL_EXECUTOR;
+	volatile long pollIntervalMillis = DEFAULT_POLL_INTERVAL_MILLIS;
+	volatile int ledgerOffset = DEFAULT_LEDGER_OFFSET;
+	volatile long validatedLedgerIndex;
+	volatile boolean isClosed;
+
+	final AtomicLong nbValidated = new AtomicLong();
+	final AtomicLong nbExpired = new AtomicLong();
+	final AtomicLong nbPollFailures = new AtomicLong();
+	volatile Throwable lastPollFailure;
+
+	static class PendingValidation {
+		final String txHash;
+		final long lastLedgerSequence;
+		final FutureJSONResponse<BinaryTransaction> validated;
+
+		PendingValidation(String txHash, long lastLedgerSequence, FutureJSONResponse<BinaryTransaction> validated) {
+			this.txHash = txHash;
+			this.lastLedgerSequence = lastLedgerSequence;
+			this.validated = validated;
+		}
+	}
+
+	final Runnable poller = new Runnable() {
+		@Override
+		public void run() {
+			poll();
+		}
+	};
+
+	public TransactionValidator(RippleDaemonConnection connection) {
+		this.connection = connection;
+	}
+
+	/**
+	 * Blocks to read the last validated ledger the first time only
+	 * @return the LastLedgerSequence to sign a transaction with
+	 */
+	public long getLastLedgerSequence() throws Exception {
+		long ledgerIndex = validatedLedgerIndex;
+		if(ledgerIndex==0){
+			ledgerIndex = readLedgerIndex(refreshLedgerIndex().get());
+		}
+		return ledgerIndex+ledgerOffset;
+	}
+
+	/**
+	 * @param txHash : the hash of the signed transaction, in hex
+	 * @param lastLedgerSequence : the LastLedgerSequence it was signed with
+	 * @return completes with the transaction and its metadata once validated
+	 */
+	public FutureJSONResponse<BinaryTransaction> awaitValidation(String txHash, long lastLedgerSequence){
+		PendingValidation pending = new PendingValidation(txHash, lastLedgerSequence, new FutureJSONResponse<BinaryTransaction>(validationCounter.getAndIncrement(), null, new BinaryTransaction()));
+		PendingValidation alreadyPending = pendingValidations.putIfAbsent(txHash, pending);
+		if(alreadyPending!=null){
+			return alreadyPending.validated;
+		}
+		schedulePoll();
+		return pending.validated;
+	}
+
+	/**
+	 * The response of the submit, with the result code of the metadata of the validated transaction.
+	 * The engine result of the submit is kept when validation agrees with it,
+	 * it is removed when the transaction ended with a tec the submit did not report, only its code is known.
+	 */
+	@SuppressWarnings("unchecked")
+	public static JSONObject getValidatedResponse(JSONObject submitResponse, BinaryTransaction transaction){
+		long resultCode = ((Number) transaction.meta.getField(BinaryFormatField.TransactionResult)).longValue();
+		JSONObject validatedResult = new JSONObject((JSONObject) submitResponse.get("result"));
+		String engineResult = (String) validatedResult.get("engine_result");
+		if(resultCode==0 && "tefALREADY".equals(engineResult)==false){
+			validatedResult.put("engine_result", "tesSUCCESS");
+		}
+		else if(resultCode!=0 && (engineResult==null || engineResult.startsWith("tec")==false)){
+			validatedResult.remove("engine_result");
+		}
+		validatedResult.put("engine_result_code", resultCode);
+		validatedResult.put("validated", true);
+		validatedResult.put("ledger_index", transaction.ledgerIndex);
+		JSONObject validatedResponse = new JSONObject(submitResponse);
+		validatedResponse.put("result", validatedResult);
+		return validatedResponse;
+	}
+
+	protected void schedulePoll(){
+		if(isClosed || pendingValidations.isEmpty() || isPollScheduled.compareAndSet(false, true)==false){
+			return;
+		}
+		HashedTimerWheel.getSharedTimer().newTimeout(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					pollExecutor.execute(poller);
+				} catch (RejectedExecutionException e) {
+					isPollScheduled.set(false);
+					onPollFailed(e);
+				}
+			}
+		}, pollIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * The validated ledger is read before the lookups, a transaction not found in it nor before is expired if it is past its LastLedgerSequence
+	 */
+	protected void poll(){
+		isPollScheduled.set(false);
+		if(isClosed || pendingValidations.isEmpty()){
+			return;
+		}
+		refreshLedgerIndex().addListener(new JSONResponseListener<GenericJSONSerializable>() {
+			@Override
+			public void onSuccess(GenericJSONSerializable result) {
+				long validatedBeforeLookup = readLedgerIndex(result);
+				for(PendingValidation pending : pendingValidations.values()){
+					lookup(pending, validatedBeforeLookup);
+				}
+				schedulePoll();
+			}
+
+			@Override
+			public void onFailure(Throwable cause) {
+				onPollFailed(cause);
+				schedulePoll();
+			}
+		}, RippleDaemonConnection.DIRECT_EXECUTOR);
+	}
+
+	protected void lookup(final PendingValidation pending, final long validatedBeforeLookup){
+		if(pending.validated.isDone()){
+			pendingValidations.remove(pending.txHash, pending); //Cancelled by the caller
+			return;
+		}
+		final FutureJSONResponse<BinaryTransaction> lookup = connection.getTransactionBinaryFuture(pending.txHash);
+		lookup.addListener(new JSONResponseListener<BinaryTransaction>() {
+			@Override
+			public void onSuccess(BinaryTransaction transaction) {
+				if(transaction.validated==false || transaction.meta==null){
+					expireIfPast(pending, validatedBeforeLookup);
+				}
+				else if(pendingValidations.remove(pending.txHash, pending)){
+					nbValidated.incrementAndGet();
+					try {
+						pending.validated.setResult(lookup.getResponse(), transaction);
+					} catch (Exception e) {
+						pending.validated.setException(e); //Not reached, the lookup is done
+					}
+				}
+			}
+
+			@Override
+			public void onFailure(Throwable cause) {
+				if(cause instanceof RippleDaemonException && "txnNotFound".equals(((RippleDaemonException) cause).error)){
+					expireIfPast(pending, validatedBeforeLookup);
+				}
+				else{
+					onPollFailed(cause);
+				}
+			}
+		}, RippleDaemonConnection.DIRECT_EXECUTOR);
+	}
+
+	protected void expireIfPast(PendingValidation pending, long validatedBeforeLookup){
+		if(validatedBeforeLookup>pending.lastLedgerSequence && pendingValidations.remove(pending.txHash, pending)){
+			nbExpired.incrementAndGet();
+			pending.validated.setException(new TransactionExpiredException(pending.txHash, pending.lastLedgerSequence, validatedBeforeLookup));
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	protected FutureJSONResponse<GenericJSONSerializable> refreshLedgerIndex(){
+		JSONObject command = new JSONObject();
+		command.put("command", "ledger");
+		command.put("ledger_index", "validated");
+		FutureJSONResponse<GenericJSONSerializable> refresh = connection.sendCommand(command, new GenericJSONSerializable());
+		refresh.addListener(new JSONResponseListener<GenericJSONSerializable>() {
+			@Override
+			public void onSuccess(GenericJSONSerializable result) {
+				onValidatedLedger(readLedgerIndex(result));
+			}
+
+			@Override
+			public void onFailure(Throwable cause) {
+			}
+		}, RippleDaemonConnection.DIRECT_EXECUTOR);
+		return refresh;
+	}
+
+	static long readLedgerIndex(GenericJSONSerializable result){
+		long ledgerIndex = StreamEvent.getLong(result.jsonCommandResult, "ledger_index");
+		JSONObject jsonLedger = (JSONObject) result.jsonCommandResult.get("ledger");
+		if(ledgerIndex==0 && jsonLedger!=null){
+			ledgerIndex = StreamEvent.getLong(jsonLedger, "ledger_index");
+		}
+		return ledgerIndex;
+	}
+
+	protected synchronized void onValidatedLedger(long ledgerIndex){
+		if(ledgerIndex>validatedLedgerIndex){
+			validatedLedgerIndex = ledgerIndex;
+		}
+	}
+
+	protected void onPollFailed(Throwable cause){
+		nbPollFailures.incrementAndGet();
+		lastPollFailure = cause;
+	}
+
+	/**
+	 * @param pollExecutor : sends the lookups once the poll interval expired, a shared pool of daemon threads by default
+	 */
+	public void setPollExecutor(Executor pollExecutor) {
+		this.pollExecutor = pollExecutor;
+	}
+
+	public void setPollInterval(long pollInterval, TimeUnit unit) {
+		this.pollIntervalMillis = unit.toMillis(pollInterval);
+	}
+
+	/**
+	 * @param ledgerOffset : the number of ledgers after the last validated one a transaction signed now may apply in
+	 */
+	public void setLedgerOffset(int ledgerOffset) {
+		this.ledgerOffset = ledgerOffset;
+	}
+
+	/**
+	 * @return the last validated ledger read, 0 before the first one
+	 */
+	public long getValidatedLedgerIndex() {
+		return validatedLedgerIndex;
+	}
+
+	/**
+	 * @return the transactions waiting to be validated
+	 */
+	public int getNbPending() {
+		return pendingValidations.size();
+	}
+
+	public long getNbValidated() {
+		return nbValidated.get();
+	}
+
+	public long getNbExpired() {
+		return nbExpired.get();
+	}
+
+	/**
+	 * @return the ledger reads and lookups which failed, they are tried again on the next poll
+	 */
+	public long getNbPollFailures() {
+		return nbPollFailures.get();
+	}
+
+	public Throwable getLastPollFailure() {
+		return lastPollFailure;
+	}
+
+	/**
+	 * Stops polling, the transactions still waiting are cancelled
+	 */
+	public void close(){
+		isClosed = true;
+		for(PendingValidation pending : pendingValidations.values()){
+			pendingValidations.remove(pending.txHash, pending);
+			pending.validated.cancel(false);
+		}
+	}
+}
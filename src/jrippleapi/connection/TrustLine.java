@@ -10,6 +10,7 @@ public class TrustLine implements JSONSerializable {
 	public String limit_peer;
 	public long quality_in;
 	public long quality_out;
+	static final JSONFieldFilter FIELD_FILTER = new JSONFieldFilter().select("account", "balance", "currency", "limit", "limit_peer", "quality_in", "quality_out");
 	
 	@Override
 	public void copyFrom(JSONObject jsonTrustLine) {
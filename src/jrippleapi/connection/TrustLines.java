@@ -5,12 +5,29 @@ import java.util.ArrayList;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 
-public class TrustLines extends ArrayList<TrustLine> implements JSONSerializable {
+public class TrustLines extends ArrayList<TrustLine> implements SelectiveJSONSerializable {
+	static final JSONFieldFilter FIELD_FILTER = new JSONFieldFilter().select("lines", TrustLine.FIELD_FILTER).select("marker", "ledger_index");
+
+	/**
+	 * null on the last page
+	 */
+	public Object marker;
+	/**
+	 * 0 unless a validated ledger was requested
+	 */
+	public long ledgerIndex;
+
+	@Override
+	public JSONFieldFilter getFieldFilter() {
+		return FIELD_FILTER;
+	}
 
 	@Override
 	public void copyFrom(JSONObject jsonCommandResult) {
+		marker = jsonCommandResult.get("marker");
+		ledgerIndex = StreamEvent.getLong(jsonCommandResult, "ledger_index");
 		JSONArray jsonLinesOfTrust = (JSONArray) jsonCommandResult.get("lines");
-		for(int i=0; i<jsonLinesOfTrust.size(); i++){
+		for(int i=0; jsonLinesOfTrust!=null && i<jsonLinesOfTrust.size(); i++){
 			TrustLine lineOfCredit = new TrustLine();
 			lineOfCredit.copyFrom((JSONObject) jsonLinesOfTrust.get(i));
 			add(lineOfCredit);
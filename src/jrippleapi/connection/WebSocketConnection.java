@@ -1,20 +1,177 @@
 package jrippleapi.connection;
 
 import java.net.URI;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.eclipse.jetty.websocket.api.Session;
 import org.eclipse.jetty.websocket.client.ClientUpgradeRequest;
 import org.eclipse.jetty.websocket.client.WebSocketClient;
 
+/**
+ * The websocket transport. When the session drops, it reconnects with an exponential backoff
+ * until {@link #close()} is called.
+ */
 public class WebSocketConnection {
+	public static final long DEFAULT_INITIAL_RECONNECT_DELAY_MS=100;
+	public static final long DEFAULT_MAX_RECONNECT_DELAY_MS=30000;
+	public static final long DEFAULT_CONNECT_TIMEOUT_MS=10000;
+
 	WebSocketClient wsclient = new WebSocketClient(new SslContextFactory());
-	
+	final URI serverURI;
+	final RippleDaemonWebsocketConnection msgHandler;
+	ScheduledExecutorService reconnectScheduler;
+	volatile boolean isClosed=false;
+	volatile boolean isReconnecting=false;
+	final AtomicBoolean isAwaitingSession = new AtomicBoolean();
+	volatile long initialReconnectDelayMs=DEFAULT_INITIAL_RECONNECT_DELAY_MS;
+	volatile long maxReconnectDelayMs=DEFAULT_MAX_RECONNECT_DELAY_MS;
+	volatile long connectTimeoutMs=DEFAULT_CONNECT_TIMEOUT_MS;
+
+	volatile long disconnectedSince;
+	volatile long nbReconnects;
+	volatile long nbFailedReconnectAttempts;
+	volatile long lastReconnectDurationMs;
+	volatile long totalDowntimeMs;
+
     public WebSocketConnection(URI serverURI, RippleDaemonWebsocketConnection msgHandler) throws Exception {
+		this.serverURI = serverURI;
+		this.msgHandler = msgHandler;
+    	msgHandler.connection=this;
     	wsclient.start();
-    	msgHandler.session=wsclient.connect(msgHandler, serverURI, new ClientUpgradeRequest()).get();
+    	msgHandler.session=connect();
+	}
+
+	/**
+	 * @return the new session, the message handler was given it by its onConnect
+	 */
+	protected Session connect() throws Exception {
+		isAwaitingSession.set(true);
+		Future<Session> futureSession = wsclient.connect(msgHandler, serverURI, new ClientUpgradeRequest());
+		try {
+			return futureSession.get(connectTimeoutMs, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			if(isAwaitingSession.compareAndSet(true, false)==false){
+				return futureSession.get(); //Connected just as the attempt timed out
+			}
+			futureSession.cancel(true); //A session connecting later is closed by the message handler
+			throw e;
+		}
+	}
+
+	/**
+	 * Called by the message handler when a session connects
+	 * @return false if its attempt already timed out, the session must be closed
+	 */
+	boolean claimSession(){
+		return isAwaitingSession.compareAndSet(true, false);
+	}
+
+	/**
+	 * @param initialReconnectDelay : the first attempt to reconnect waits that long, the next ones twice longer than the previous one
+	 * @param maxReconnectDelay : the longest wait between two attempts
+	 */
+	public void setReconnectDelays(long initialReconnectDelay, long maxReconnectDelay, TimeUnit unit) {
+		this.initialReconnectDelayMs = unit.toMillis(initialReconnectDelay);
+		this.maxReconnectDelayMs = unit.toMillis(maxReconnectDelay);
+	}
+
+	/**
+	 * @param connectTimeout : an attempt to connect without a session after that delay fails
+	 */
+	public void setConnectTimeout(long connectTimeout, TimeUnit unit) {
+		this.connectTimeoutMs = unit.toMillis(connectTimeout);
+	}
+
+	/**
+	 * Called by the message handler when the session was closed by the server or the network.
+	 */
+	void onDisconnected(){
+		if(isClosed){
+			return;
+		}
+		synchronized (this) {
+			if(isReconnecting){
+				return;
+			}
+			isReconnecting=true;
+			disconnectedSince=System.currentTimeMillis();
+			if(reconnectScheduler==null){
+				reconnectScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread reconnectThread = new Thread(r, "WebSocketConnection reconnect "+serverURI);
+						reconnectThread.setDaemon(true);
+						return reconnectThread;
+					}
+				});
+			}
+		}
+		scheduleReconnect(initialReconnectDelayMs);
+	}
+
+	protected void scheduleReconnect(final long delayMs){
+		reconnectScheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				if(isClosed){
+					return;
+				}
+				Session newSession;
+				try {
+					newSession = connect();
+				} catch (Exception e) {
+					nbFailedReconnectAttempts++;
+					scheduleReconnect(Math.min(delayMs*2, maxReconnectDelayMs));
+					return;
+				}
+				lastReconnectDurationMs=System.currentTimeMillis()-disconnectedSince;
+				totalDowntimeMs+=lastReconnectDurationMs;
+				nbReconnects++;
+				synchronized (WebSocketConnection.this) {
+					isReconnecting=false;
+				}
+				if(newSession.isOpen()==false){
+					onDisconnected(); //Lost while we were still reconnecting, its close was ignored
+				}
+			}
+		}, delayMs, TimeUnit.MILLISECONDS);
+	}
+
+	public boolean isReconnecting() {
+		return isReconnecting;
+	}
+
+	public long getNbReconnects() {
+		return nbReconnects;
+	}
+
+	public long getNbFailedReconnectAttempts() {
+		return nbFailedReconnectAttempts;
+	}
+
+	/**
+	 * @return the time between the loss of the session and the successful reconnection, for the last reconnection
+	 */
+	public long getLastReconnectDurationMs() {
+		return lastReconnectDurationMs;
+	}
+
+	public long getTotalDowntimeMs() {
+		return totalDowntimeMs;
 	}
 
     public void close() throws Exception{
+		isClosed=true;
+		if(reconnectScheduler!=null){
+			reconnectScheduler.shutdownNow();
+		}
     	wsclient.stop();
     }
 
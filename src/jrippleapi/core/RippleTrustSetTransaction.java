@@ -0,0 +1,36 @@
+package jrippleapi.core;
+
+import jrippleapi.serialization.RippleBinaryObject;
+import jrippleapi.serialization.RippleBinarySchema.BinaryFormatField;
+import jrippleapi.serialization.RippleBinarySchema.TransactionTypes;
+
+/**
+ * Sets how much of a currency issued by the debtor the creditor accepts to hold
+ */
+public class RippleTrustSetTransaction {
+	public RippleAddress creditor;
+	public RippleAddress debtor;
+	public DenominatedIssuedCurrency creditAmount;
+	public long sequenceNumber;
+	public DenominatedIssuedCurrency fee;
+	public long flags;
+
+	public RippleTrustSetTransaction(RippleAddress creditor, RippleAddress debtor, DenominatedIssuedCurrency creditAmount, long sequenceNumber){
+		this.creditor = creditor;
+		this.debtor = debtor;
+		this.creditAmount = creditAmount;
+		this.sequenceNumber = sequenceNumber;
+		this.fee = new DenominatedIssuedCurrency(10);
+	}
+
+	public RippleBinaryObject getBinaryObject() {
+		RippleBinaryObject rbo = new RippleBinaryObject();
+		rbo.putField(BinaryFormatField.TransactionType, (int) TransactionTypes.TRUST_SET.byteValue);
+		rbo.putField(BinaryFormatField.Account, this.creditor);
+		rbo.putField(BinaryFormatField.LimitAmount, new DenominatedIssuedCurrency(creditAmount.amount, debtor, creditAmount.currency));
+		rbo.putField(BinaryFormatField.Sequence, this.sequenceNumber);
+		rbo.putField(BinaryFormatField.Fee, this.fee);
+		rbo.putField(BinaryFormatField.Flags, this.flags);
+		return rbo;
+	}
+}
@@ -0,0 +1,229 @@
+package jrippleapi.history;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A preset dictionary for deflating transaction blobs. Each blob is small, but they all repeat the same field headers,
+ * issuers, currencies and public keys, which a deflater alone only learns after a few blobs. With the dictionary, each block
+ * is compressed on its own, so it can be read without inflating the blocks before it.
+ *
+ * The dictionary is trained from sample blobs: the byte strings found in most of the samples are kept, the most frequent
+ * at the end of the dictionary where the matches are the cheapest to encode.
+ *
+ * Raw deflate streams are used, without zlib header and checksum, the blocks are checked by the segment CRC.
+ *
+ * @author pmarches
+ */
+public class BlobDictionary {
+	public static final int DEFAULT_MAX_SIZE = 16*1024;
+	static final int MAX_DEFLATE_DICTIONARY = 32*1024;
+	static final int GRAM_LENGTH = 6;
+
+	final byte[] dictionary;
+	final int dictionaryId;
+
+	final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+		@Override
+		protected Deflater initialValue() {
+			return new Deflater(Deflater.BEST_COMPRESSION, true);
+		}
+	};
+	final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+		@Override
+		protected Inflater initialValue() {
+			return new Inflater(true);
+		}
+	};
+
+	public BlobDictionary(byte[] dictionary) {
+		if(dictionary.length>MAX_DEFLATE_DICTIONARY){
+			dictionary = Arrays.copyOfRange(dictionary, dictionary.length-MAX_DEFLATE_DICTIONARY, dictionary.length);
+		}
+		this.dictionary = dictionary;
+		CRC32 crc = new CRC32();
+		crc.update(dictionary);
+		this.dictionaryId = (int) crc.getValue();
+	}
+
+	public byte[] getBytes() {
+		return dictionary;
+	}
+
+	/**
+	 * The CRC32 of the dictionary, so a block is never inflated with another dictionary than the one it was deflated with
+	 */
+	public int getDictionaryId() {
+		return dictionaryId;
+	}
+
+	public byte[] deflate(byte[] block){
+		return deflate(block, 0, block.length);
+	}
+
+	public byte[] deflate(byte[] block, int offset, int length){
+		Deflater deflater = deflaters.get();
+		deflater.reset();
+		deflater.setDictionary(dictionary);
+		deflater.setInput(block, offset, length);
+		deflater.finish();
+		byte[] output = new byte[length+length/8+64];
+		int outputLength = 0;
+		while(deflater.finished()==false){
+			if(outputLength==output.length){
+				output = Arrays.copyOf(output, output.length*2);
+			}
+			outputLength += deflater.deflate(output, outputLength, output.length-outputLength);
+		}
+		return Arrays.copyOf(output, outputLength);
+	}
+
+	/**
+	 * @param output : receives exactly the inflated length of the block
+	 */
+	public void inflate(byte[] compressedBlock, int offset, int length, byte[] output, int outputOffset, int inflatedLength){
+		Inflater inflater = inflaters.get();
+		inflater.reset();
+		inflater.setDictionary(dictionary);
+		inflater.setInput(compressedBlock, offset, length);
+		try {
+			int totalInflated = 0;
+			while(totalInflated<inflatedLength){
+				int nbInflated = inflater.inflate(output, outputOffset+totalInflated, inflatedLength-totalInflated);
+				if(nbInflated==0 && (inflater.finished() || inflater.needsInput())){
+					throw new RuntimeException("The block inflated to "+totalInflated+" bytes instead of "+inflatedLength);
+				}
+				totalInflated += nbInflated;
+			}
+		} catch (DataFormatException e) {
+			throw new RuntimeException("Corrupted block", e);
+		}
+	}
+
+	public byte[] inflate(byte[] compressedBlock, int inflatedLength){
+		byte[] output = new byte[inflatedLength];
+		inflate(compressedBlock, 0, compressedBlock.length, output, 0, inflatedLength);
+		return output;
+	}
+
+	/**
+	 * Keeps the runs of bytes found in at least two samples, ordered by how much they would save
+	 * @param maxSize : at most 32KB, the window of deflate
+	 */
+	public static BlobDictionary train(List<byte[]> samples, int maxSize){
+		maxSize = Math.min(maxSize, MAX_DEFLATE_DICTIONARY);
+		HashMap<ByteBuffer, Integer> gramFrequencies = countInSamples(getGrams(samples));
+		int minFrequency = Math.max(2, samples.size()/100);
+
+		//The runs of frequent grams, merged into the longest strings the samples share
+		ArrayList<HashSet<ByteBuffer>> runsBySample = new ArrayList<HashSet<ByteBuffer>>();
+		for(byte[] sample : samples){
+			HashSet<ByteBuffer> runs = new HashSet<ByteBuffer>();
+			int runStart=-1;
+			for(int i=0; i<=sample.length-GRAM_LENGTH+1; i++){
+				boolean isFrequent = i<=sample.length-GRAM_LENGTH && getFrequency(gramFrequencies, sample, i)>=minFrequency;
+				if(isFrequent && runStart==-1){
+					runStart=i;
+				}
+				else if(isFrequent==false && runStart!=-1){
+					runs.add(ByteBuffer.wrap(Arrays.copyOfRange(sample, runStart, i-1+GRAM_LENGTH)));
+					runStart=-1;
+				}
+			}
+			runsBySample.add(runs);
+		}
+		HashMap<ByteBuffer, Integer> runFrequencies = countInSamples(runsBySample);
+
+		//The runs rarely end at the same place in every sample, the grams they are made of fill the gaps
+		final HashMap<ByteBuffer, Long> savings = new HashMap<ByteBuffer, Long>();
+		addSavings(savings, runFrequencies, minFrequency);
+		addSavings(savings, gramFrequencies, minFrequency);
+		ArrayList<ByteBuffer> selectedRuns = new ArrayList<ByteBuffer>(savings.keySet());
+		Collections.sort(selectedRuns, new Comparator<ByteBuffer>() {
+			@Override
+			public int compare(ByteBuffer run1, ByteBuffer run2) {
+				int comparison = Long.compare(savings.get(run2), savings.get(run1));
+				return comparison!=0 ? comparison : run1.compareTo(run2);
+			}
+		});
+
+		//Fill from the end with the most useful runs
+		byte[] dictionary = new byte[maxSize];
+		int start = maxSize;
+		for(ByteBuffer run : selectedRuns){
+			if(run.remaining()>start){
+				continue;
+			}
+			if(contains(dictionary, start, run)){
+				continue;
+			}
+			start -= run.remaining();
+			run.duplicate().get(dictionary, start, run.remaining());
+		}
+		return new BlobDictionary(Arrays.copyOfRange(dictionary, start, maxSize));
+	}
+
+	static void addSavings(HashMap<ByteBuffer, Long> savings, HashMap<ByteBuffer, Integer> frequencies, int minFrequency){
+		for(Map.Entry<ByteBuffer, Integer> string : frequencies.entrySet()){
+			if(string.getValue()>=minFrequency){
+				savings.put(string.getKey(), (long) string.getValue()*string.getKey().remaining());
+			}
+		}
+	}
+
+	static ArrayList<HashSet<ByteBuffer>> getGrams(List<byte[]> samples){
+		ArrayList<HashSet<ByteBuffer>> gramsBySample = new ArrayList<HashSet<ByteBuffer>>();
+		for(byte[] sample : samples){
+			HashSet<ByteBuffer> grams = new HashSet<ByteBuffer>();
+			for(int i=0; i<=sample.length-GRAM_LENGTH; i++){
+				grams.add(ByteBuffer.wrap(sample, i, GRAM_LENGTH).slice());
+			}
+			gramsBySample.add(grams);
+		}
+		return gramsBySample;
+	}
+
+	/**
+	 * @return for each string, the number of samples having it
+	 */
+	static HashMap<ByteBuffer, Integer> countInSamples(List<HashSet<ByteBuffer>> stringsBySample){
+		HashMap<ByteBuffer, Integer> frequencies = new HashMap<ByteBuffer, Integer>();
+		for(HashSet<ByteBuffer> strings : stringsBySample){
+			for(ByteBuffer string : strings){
+				Integer frequency = frequencies.get(string);
+				frequencies.put(string, frequency==null ? 1 : frequency+1);
+			}
+		}
+		return frequencies;
+	}
+
+	static int getFrequency(HashMap<ByteBuffer, Integer> gramFrequencies, byte[] sample, int offset){
+		Integer frequency = gramFrequencies.get(ByteBuffer.wrap(sample, offset, GRAM_LENGTH).slice());
+		return frequency==null ? 0 : frequency;
+	}
+
+	static boolean contains(byte[] dictionary, int start, ByteBuffer run){
+		int runLength = run.remaining();
+		for(int i=start; i<=dictionary.length-runLength; i++){
+			int j=0;
+			while(j<runLength && dictionary[i+j]==run.get(run.position()+j)){
+				j++;
+			}
+			if(j==runLength){
+				return true;
+			}
+		}
+		return false;
+	}
+}
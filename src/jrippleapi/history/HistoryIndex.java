@@ -0,0 +1,606 @@
+package jrippleapi.history;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import jrippleapi.core.DenominatedIssuedCurrency;
+import jrippleapi.core.RippleAddress;
+import jrippleapi.serialization.RippleBinaryObject;
+import jrippleapi.serialization.RippleBinarySchema.BinaryFormatField;
+
+/**
+ * Secondary indexes of a {@link HistoryStore}: for each account, transaction type and currency/issuer, the sorted list
+ * of the records that have it, so a {@link HistoryQuery} intersects a few lists instead of decoding every record.
+ * The postings of a currency carry the amount of the record in that currency, so an amount threshold is checked in the index.
+ * Dates are answered from the close time of the ledgers, which are ordered like the ledgers.
+ *
+ * The lists are kept in index files, memory mapped, cut in blocks of BLOCK_SIZE postings behind a skip table of the first
+ * sort key of each block. A query walks the lists from the newest and only decodes the blocks where they may intersect.
+ *
+ * The records appended since the last checkpoint are indexed in memory. At a checkpoint, when the store is closed or when
+ * the memory postings pass checkpointPostings, they are written to a delta file: index.dat.1, index.dat.2...
+ * Once there are maxDeltas of them, everything is merged into a new index.dat. Each file covers the records from the
+ * checkpoint of the previous one, a delta left over from an interrupted merge does not follow the new index.dat and is deleted.
+ * After a crash, the records after the last checkpoint are indexed again on open.
+ *
+ * <pre>
+ * int magic, int version, long fromPosition, long checkpointPosition, int dictionaryOffset
+ * postings: (long firstSortKey, int blockOffset)* skip table, then per block:
+ *   varlong sortKey deltas from the first, zigzag varlong position deltas, optional double amounts
+ * dictionary: int nbTerms, (utf term, int size, int offset, byte hasValues)*, int nbLedgers, (long ledgerIndex, long closeTime)*
+ * </pre>
+ *
+ * @author pmarches
+ */
+public class HistoryIndex implements Closeable {
+	static final int MAGIC = 0x4A524849; //JRHI
+	static final int VERSION = 2;
+	static final int DICTIONARY_OFFSET_POSITION = 24;
+	static final int HEADER_SIZE = 28;
+	static final int BLOCK_SIZE = 128;
+	static final int SKIP_ENTRY_SIZE = 12;
+	public static final int DEFAULT_CHECKPOINT_POSTINGS = 1000000;
+	public static final int DEFAULT_MAX_DELTAS = 8;
+	static final BinaryFormatField[] AMOUNT_FIELDS = {BinaryFormatField.Amount, BinaryFormatField.LimitAmount,
+		BinaryFormatField.TakerPays, BinaryFormatField.TakerGets, BinaryFormatField.SendMax};
+
+	static class DiskTerm {
+		final ByteBuffer buffer;
+		final int size;
+		final int offset;
+		final boolean hasValues;
+
+		/**
+		 * @param buffer : the mapping of the index file
+		 */
+		DiskTerm(ByteBuffer buffer, int size, int offset, boolean hasValues) {
+			this.buffer = buffer;
+			this.size = size;
+			this.offset = offset;
+			this.hasValues = hasValues;
+		}
+	}
+
+	final HistoryStore store;
+	final File file;
+	final ArrayList<RandomAccessFile> indexFiles = new ArrayList<RandomAccessFile>();
+	final HashMap<String, ArrayList<DiskTerm>> diskTerms = new HashMap<String, ArrayList<DiskTerm>>();
+	final HashMap<String, PostingList> memoryTerms = new HashMap<String, PostingList>();
+	final TreeMap<Long, Long> ledgerCloseTimes = new TreeMap<Long, Long>();
+	final TreeMap<Long, Long> newCloseTimes = new TreeMap<Long, Long>();
+	long[] closeTimeLedgers;
+	long[] closeTimes;
+	long checkpointPosition;
+	boolean isRebuilt;
+	boolean hasBase;
+	int nbDeltas;
+	int nbMemoryPostings;
+	int checkpointPostings = DEFAULT_CHECKPOINT_POSTINGS;
+	int maxDeltas = DEFAULT_MAX_DELTAS;
+
+	HistoryIndex(HistoryStore store, File file) throws IOException {
+		this.store = store;
+		this.file = file;
+		load();
+	}
+
+	File getDeltaFile(int deltaNumber){
+		return new File(file.getPath()+"."+deltaNumber);
+	}
+
+	/**
+	 * Maps index.dat, then the deltas which follow it
+	 */
+	protected void load() throws IOException {
+		if(file.exists()==false){
+			deleteDeltaFiles(1);
+			return;
+		}
+		if(loadFile(file, 0)==false){
+			clear(); //Not a history index, it is rebuilt
+			return;
+		}
+		hasBase = true;
+		for(int deltaNumber=1; getDeltaFile(deltaNumber).exists(); deltaNumber++){
+			if(loadFile(getDeltaFile(deltaNumber), checkpointPosition)==false){
+				deleteDeltaFiles(deltaNumber); //Already merged
+				return;
+			}
+			nbDeltas = deltaNumber;
+		}
+	}
+
+	/**
+	 * @param fromPosition : the checkpoint the file must start from
+	 * @return false when it is not an index file, or does not start from there
+	 */
+	protected boolean loadFile(File indexFile, long fromPosition) throws IOException {
+		RandomAccessFile randomAccessFile = new RandomAccessFile(indexFile, "r");
+		MappedByteBuffer diskBuffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
+		ByteBuffer buffer = diskBuffer.duplicate();
+		if(buffer.remaining()<HEADER_SIZE || buffer.getInt()!=MAGIC || buffer.getInt()!=VERSION || buffer.getLong()!=fromPosition){
+			randomAccessFile.close();
+			return false;
+		}
+		long toPosition = buffer.getLong();
+		buffer.position(buffer.getInt());
+		byte[] dictionaryBytes = new byte[buffer.remaining()];
+		buffer.get(dictionaryBytes);
+		DataInputStream dictionary = new DataInputStream(new ByteArrayInputStream(dictionaryBytes));
+		int nbTerms = dictionary.readInt();
+		for(int i=0; i<nbTerms; i++){
+			String term = dictionary.readUTF();
+			ArrayList<DiskTerm> termFiles = diskTerms.get(term);
+			if(termFiles==null){
+				termFiles = new ArrayList<DiskTerm>(1);
+				diskTerms.put(term, termFiles);
+			}
+			termFiles.add(new DiskTerm(diskBuffer, dictionary.readInt(), dictionary.readInt(), dictionary.readByte()!=0));
+		}
+		int nbLedgers = dictionary.readInt();
+		for(int i=0; i<nbLedgers; i++){
+			ledgerCloseTimes.put(dictionary.readLong(), dictionary.readLong());
+		}
+		closeTimes = null;
+		indexFiles.add(randomAccessFile);
+		checkpointPosition = toPosition;
+		return true;
+	}
+
+	protected void deleteDeltaFiles(int firstDeltaNumber){
+		for(int deltaNumber=firstDeltaNumber; getDeltaFile(deltaNumber).delete(); deltaNumber++){
+		}
+	}
+
+	/**
+	 * Forgets everything, before the whole store is indexed again
+	 */
+	void clear() throws IOException {
+		isRebuilt = true;
+		close();
+		diskTerms.clear();
+		memoryTerms.clear();
+		ledgerCloseTimes.clear();
+		newCloseTimes.clear();
+		closeTimes = null;
+		checkpointPosition = 0;
+		hasBase = false;
+		nbDeltas = 0;
+		nbMemoryPostings = 0;
+	}
+
+	public void setCheckpointPostings(int checkpointPostings) {
+		this.checkpointPostings = checkpointPostings;
+	}
+
+	/**
+	 * @param maxDeltas : the number of delta files appended before they are merged into index.dat
+	 */
+	public void setMaxDeltas(int maxDeltas) {
+		this.maxDeltas = maxDeltas;
+	}
+
+	boolean needsCheckpoint(){
+		return nbMemoryPostings>=checkpointPostings;
+	}
+
+	/**
+	 * Called by the store for each record appended after the last checkpoint
+	 */
+	void add(HistoryRecord record, long position){
+		long sortKey = record.getSortKey();
+		for(Map.Entry<String, Double> term : getTerms(record).entrySet()){
+			PostingList postings = memoryTerms.get(term.getKey());
+			if(postings==null){
+				postings = new PostingList(8, term.getValue()!=null);
+				memoryTerms.put(term.getKey(), postings);
+			}
+			postings.add(sortKey, position, term.getValue()==null ? 0 : term.getValue());
+			nbMemoryPostings++;
+		}
+	}
+
+	/**
+	 * @return the terms of the record, with the amount for the currencies
+	 */
+	static LinkedHashMap<String, Double> getTerms(HistoryRecord record){
+		LinkedHashMap<String, Double> terms = new LinkedHashMap<String, Double>();
+		RippleBinaryObject transaction = record.getTransaction();
+		terms.put(HistoryQuery.getTransactionTypeTerm(transaction.getTransactionType()), null);
+		for(RippleAddress account : record.accounts){
+			terms.put(HistoryQuery.getAccountTerm(account), null);
+		}
+		for(BinaryFormatField amountField : AMOUNT_FIELDS){
+			addAmount(terms, transaction.getField(amountField));
+		}
+		addAmount(terms, record.getMeta().getField(BinaryFormatField.DeliveredAmount));
+		return terms;
+	}
+
+	static void addAmount(LinkedHashMap<String, Double> terms, Object amount){
+		if(amount instanceof DenominatedIssuedCurrency==false){
+			return;
+		}
+		DenominatedIssuedCurrency currencyAmount = (DenominatedIssuedCurrency) amount;
+		double value;
+		if(currencyAmount.isNative()){
+			value = currencyAmount.amount.movePointLeft(6).doubleValue();
+		}
+		else{
+			value = currencyAmount.amount.doubleValue();
+		}
+		String term = HistoryQuery.getCurrencyTerm(currencyAmount.currency, currencyAmount.issuer);
+		Double previousValue = terms.get(term);
+		if(previousValue==null || previousValue<value){
+			terms.put(term, value);
+		}
+	}
+
+	public void setLedgerCloseTime(long ledgerIndex, long closeTime){
+		synchronized(store){
+			ledgerCloseTimes.put(ledgerIndex, closeTime);
+			newCloseTimes.put(ledgerIndex, closeTime);
+			closeTimes = null;
+		}
+	}
+
+	public boolean hasLedgerCloseTime(long ledgerIndex){
+		synchronized(store){
+			return ledgerCloseTimes.containsKey(ledgerIndex);
+		}
+	}
+
+	protected void loadCloseTimes(){
+		if(closeTimes!=null){
+			return;
+		}
+		closeTimeLedgers = new long[ledgerCloseTimes.size()];
+		closeTimes = new long[ledgerCloseTimes.size()];
+		int i=0;
+		for(Map.Entry<Long, Long> ledgerCloseTime : ledgerCloseTimes.entrySet()){
+			closeTimeLedgers[i] = ledgerCloseTime.getKey();
+			closeTimes[i++] = ledgerCloseTime.getValue();
+		}
+	}
+
+	/**
+	 * @return the index of the first close time greater than the given one, or equal when inclusive
+	 */
+	protected int searchCloseTime(long closeTime, boolean inclusive){
+		int low=0, high=closeTimes.length;
+		while(low<high){
+			int middle = (low+high)>>>1;
+			if(closeTimes[middle]<closeTime || (inclusive==false && closeTimes[middle]==closeTime)){
+				low = middle+1;
+			}
+			else{
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * The ledgers without a known close time are kept, the range is rounded outward to the known ones
+	 */
+	protected long getMinLedgerIndex(long minCloseTime){
+		if(minCloseTime<0){
+			return 0;
+		}
+		loadCloseTimes();
+		int i = searchCloseTime(minCloseTime, true);
+		return i==0 ? 0 : closeTimeLedgers[i-1]+1;
+	}
+
+	protected long getMaxLedgerIndex(long maxCloseTime){
+		if(maxCloseTime<0){
+			return -1;
+		}
+		loadCloseTimes();
+		int i = searchCloseTime(maxCloseTime, false);
+		return i==closeTimes.length ? -1 : closeTimeLedgers[i]-1;
+	}
+
+	/**
+	 * @return the records of the term, from the index files and the memory. null when none has it
+	 */
+	protected PostingCursor getPostings(String term){
+		ArrayList<PostingCursor> cursors = new ArrayList<PostingCursor>();
+		ArrayList<DiskTerm> termFiles = diskTerms.get(term);
+		if(termFiles!=null){
+			for(DiskTerm diskTerm : termFiles){
+				cursors.add(new PostingCursor.BlockCursor(diskTerm));
+			}
+		}
+		PostingList memoryPostings = memoryTerms.get(term);
+		if(memoryPostings!=null){
+			memoryPostings.sort();
+			cursors.add(new PostingCursor.MemoryCursor(memoryPostings));
+		}
+		if(cursors.isEmpty()){
+			return null;
+		}
+		return cursors.size()==1 ? cursors.get(0) : new PostingCursor.UnionCursor(cursors);
+	}
+
+	/**
+	 * @return all the records of the term, decoded and sorted, to merge them
+	 */
+	protected PostingList readPostings(String term){
+		PostingList postings = null;
+		ArrayList<DiskTerm> termFiles = diskTerms.get(term);
+		PostingList memoryPostings = memoryTerms.get(term);
+		if(termFiles!=null){
+			int size = memoryPostings==null ? 0 : memoryPostings.size;
+			for(DiskTerm diskTerm : termFiles){
+				size += diskTerm.size;
+			}
+			postings = new PostingList(size, termFiles.get(0).hasValues);
+			for(DiskTerm diskTerm : termFiles){
+				new PostingCursor.BlockCursor(diskTerm).readAll(postings);
+			}
+		}
+		if(memoryPostings!=null){
+			if(postings==null){
+				postings = new PostingList(memoryPostings.size, memoryPostings.hasValues());
+			}
+			postings.addAll(memoryPostings);
+		}
+		postings.sort();
+		return postings;
+	}
+
+	static long readVarLong(ByteBuffer buffer){
+		long value=0;
+		for(int shift=0; ; shift+=7){
+			byte b = buffer.get();
+			value |= (long) (b & 0x7F)<<shift;
+			if(b>=0){
+				return value;
+			}
+		}
+	}
+
+	static void writeVarLong(DataOutputStream output, long value) throws IOException {
+		while((value & ~0x7FL)!=0){
+			output.writeByte((int) (value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		output.writeByte((int) value);
+	}
+
+	/**
+	 * Appends the postings in memory to a new delta file, or merges everything into a new index.dat once there are maxDeltas
+	 * @param endPosition : the position after the last record indexed, the records of the store up to there must be on disk
+	 */
+	void checkpoint(long endPosition) throws IOException {
+		if(hasBase && nbMemoryPostings==0 && newCloseTimes.isEmpty() && endPosition==checkpointPosition){
+			return;
+		}
+		if(hasBase==false || nbDeltas>=maxDeltas){
+			merge(endPosition);
+		}
+		else{
+			appendDelta(endPosition);
+		}
+	}
+
+	protected void appendDelta(long endPosition) throws IOException {
+		File deltaFile = getDeltaFile(nbDeltas+1);
+		for(PostingList postings : memoryTerms.values()){
+			postings.sort();
+		}
+		writeFile(deltaFile, checkpointPosition, endPosition, new TreeSet<String>(memoryTerms.keySet()), false, newCloseTimes);
+		if(loadFile(deltaFile, checkpointPosition)==false){
+			throw new IOException("Could not read back "+deltaFile);
+		}
+		nbDeltas++;
+		memoryTerms.clear();
+		newCloseTimes.clear();
+		nbMemoryPostings = 0;
+	}
+
+	protected void merge(long endPosition) throws IOException {
+		TreeSet<String> allTerms = new TreeSet<String>(diskTerms.keySet());
+		allTerms.addAll(memoryTerms.keySet());
+		writeFile(file, 0, endPosition, allTerms, true, ledgerCloseTimes);
+		close();
+		diskTerms.clear();
+		memoryTerms.clear();
+		ledgerCloseTimes.clear();
+		newCloseTimes.clear();
+		nbMemoryPostings = 0;
+		hasBase = false;
+		nbDeltas = 0;
+		deleteDeltaFiles(1);
+		load();
+	}
+
+	/**
+	 * Writes the postings of the terms and the close times to a temporary file, which then replaces indexFile
+	 * @param isMerge : true to write the postings of the index files and the memory, false for the memory only
+	 */
+	protected void writeFile(File indexFile, long fromPosition, long endPosition, TreeSet<String> terms, boolean isMerge, Map<Long, Long> closeTimes) throws IOException {
+		File temporaryFile = new File(indexFile.getPath()+".tmp");
+		FileOutputStream fileOutput = new FileOutputStream(temporaryFile);
+		HashMap<String, DiskTerm> newDiskTerms = new HashMap<String, DiskTerm>();
+		int dictionaryOffset;
+		try {
+			DataOutputStream output = new DataOutputStream(new BufferedOutputStream(fileOutput, 64*1024));
+			output.writeInt(MAGIC);
+			output.writeInt(VERSION);
+			output.writeLong(fromPosition);
+			output.writeLong(endPosition);
+			output.writeInt(0);
+			for(String term : terms){
+				PostingList postings = isMerge ? readPostings(term) : memoryTerms.get(term);
+				newDiskTerms.put(term, new DiskTerm(null, postings.size, output.size(), postings.hasValues()));
+				writePostings(output, postings);
+			}
+			dictionaryOffset = output.size();
+			output.writeInt(terms.size());
+			for(String term : terms){
+				DiskTerm diskTerm = newDiskTerms.get(term);
+				output.writeUTF(term);
+				output.writeInt(diskTerm.size);
+				output.writeInt(diskTerm.offset);
+				output.writeByte(diskTerm.hasValues ? 1 : 0);
+			}
+			output.writeInt(closeTimes.size());
+			for(Map.Entry<Long, Long> ledgerCloseTime : closeTimes.entrySet()){
+				output.writeLong(ledgerCloseTime.getKey());
+				output.writeLong(ledgerCloseTime.getValue());
+			}
+			if(output.size()==Integer.MAX_VALUE){
+				throw new IOException("The history index is larger than what can be memory mapped");
+			}
+			output.flush();
+		} finally {
+			fileOutput.close();
+		}
+		RandomAccessFile patchedFile = new RandomAccessFile(temporaryFile, "rw");
+		try {
+			patchedFile.seek(DICTIONARY_OFFSET_POSITION);
+			patchedFile.writeInt(dictionaryOffset);
+			patchedFile.getFD().sync();
+		} finally {
+			patchedFile.close();
+		}
+		HistoryStore.replaceFile(temporaryFile, indexFile);
+	}
+
+	/**
+	 * @param postings : sorted
+	 */
+	static void writePostings(DataOutputStream output, PostingList postings) throws IOException {
+		int nbBlocks = (postings.size+BLOCK_SIZE-1)/BLOCK_SIZE;
+		ByteArrayOutputStream blockBytes = new ByteArrayOutputStream();
+		DataOutputStream blocks = new DataOutputStream(blockBytes);
+		for(int blockIndex=0; blockIndex<nbBlocks; blockIndex++){
+			int start = blockIndex*BLOCK_SIZE;
+			int end = Math.min(start+BLOCK_SIZE, postings.size);
+			output.writeLong(postings.sortKeys[start]);
+			output.writeInt(nbBlocks*SKIP_ENTRY_SIZE+blocks.size());
+			for(int i=start+1; i<end; i++){
+				writeVarLong(blocks, postings.sortKeys[i]-postings.sortKeys[i-1]);
+			}
+			long previousPosition=0;
+			for(int i=start; i<end; i++){
+				long delta = postings.positions[i]-previousPosition;
+				writeVarLong(blocks, (delta<<1) ^ (delta>>63));
+				previousPosition = postings.positions[i];
+			}
+			if(postings.hasValues()){
+				for(int i=start; i<end; i++){
+					blocks.writeDouble(postings.values[i]);
+				}
+			}
+		}
+		blocks.flush();
+		blockBytes.writeTo(output);
+	}
+
+	/**
+	 * @return the matching records, newest first
+	 */
+	public List<HistoryRecord> query(HistoryQuery query) throws IOException {
+		synchronized(store){
+			if(query.getTerms().isEmpty()){
+				throw new RuntimeException("A history query needs an account, a counterparty, a currency or a transaction type");
+			}
+			if(query.minAmount!=Double.NEGATIVE_INFINITY && query.amountTerm==null){
+				throw new RuntimeException("An amount threshold needs a currency");
+			}
+			ArrayList<HistoryRecord> results = new ArrayList<HistoryRecord>();
+			long minLedgerIndex = Math.max(query.minLedgerIndex, getMinLedgerIndex(query.minCloseTime));
+			long maxLedgerIndex = query.maxLedgerIndex;
+			long maxLedgerFromDate = getMaxLedgerIndex(query.maxCloseTime);
+			if(maxLedgerIndex<0 || (maxLedgerFromDate>=0 && maxLedgerFromDate<maxLedgerIndex)){
+				maxLedgerIndex = maxLedgerFromDate;
+			}
+			long minSortKey = HistoryRecord.getSortKey(minLedgerIndex, 0);
+			long maxSortKey = maxLedgerIndex<0 ? Long.MAX_VALUE : HistoryRecord.getSortKey(maxLedgerIndex, 0xFFFFFF);
+
+			PostingCursor[] cursors = new PostingCursor[query.getTerms().size()];
+			PostingCursor amountCursor = null;
+			for(int i=0; i<cursors.length; i++){
+				cursors[i] = getPostings(query.getTerms().get(i));
+				if(cursors[i]==null){
+					return results;
+				}
+				if(query.getTerms().get(i).equals(query.amountTerm)){
+					amountCursor = cursors[i];
+				}
+			}
+			Arrays.sort(cursors, new Comparator<PostingCursor>() {
+				@Override
+				public int compare(PostingCursor cursor1, PostingCursor cursor2) {
+					return Integer.compare(cursor1.size(), cursor2.size());
+				}
+			});
+
+			//The shortest list proposes a record, from the newest. The others skip down to it, when one lands below it
+			//the shortest list skips down there in turn
+			PostingCursor driver = cursors[0];
+			boolean hasNext = driver.seek(maxSortKey);
+			while(hasNext && driver.getSortKey()>=minSortKey && results.size()<query.limit){
+				long sortKey = driver.getSortKey();
+				long foundSortKey = sortKey;
+				for(int j=1; j<cursors.length && foundSortKey==sortKey; j++){
+					if(cursors[j].seek(sortKey)==false){
+						return results;
+					}
+					foundSortKey = cursors[j].getSortKey();
+				}
+				if(foundSortKey<sortKey){
+					hasNext = driver.seek(foundSortKey);
+					continue;
+				}
+				if(amountCursor==null || amountCursor.getValue()>=query.minAmount){
+					results.add(store.read(driver.getPosition()));
+				}
+				hasNext = driver.next();
+			}
+			return results;
+		}
+	}
+
+	public int getNbTerms(){
+		synchronized(store){
+			TreeSet<String> allTerms = new TreeSet<String>(diskTerms.keySet());
+			allTerms.addAll(memoryTerms.keySet());
+			return allTerms.size();
+		}
+	}
+
+	/**
+	 * Closes the index files, the postings in memory are kept
+	 */
+	@Override
+	public void close() throws IOException {
+		for(RandomAccessFile indexFile : indexFiles){
+			indexFile.close();
+		}
+		indexFiles.clear();
+	}
+}
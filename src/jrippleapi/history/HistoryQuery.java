@@ -0,0 +1,118 @@
+package jrippleapi.history;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import jrippleapi.core.RippleAddress;
+import jrippleapi.serialization.RippleBinarySchema.TransactionTypes;
+
+/**
+ * The criteria of a {@link HistoryIndex#query(HistoryQuery)}, all of them must match.
+ * At least an account, a counterparty, a currency or a transaction type is needed, the other criteria only narrow those.
+ *
+ * new HistoryQuery().account(ourAccount).currency("USD", issuer).minAmount(10000).dateRange(from, to)
+ *
+ * @author pmarches
+ */
+public class HistoryQuery {
+	/**
+	 * Seconds between the unix epoch and the ripple epoch, 2000-01-01
+	 */
+	public static final long RIPPLE_EPOCH_OFFSET = 946684800;
+
+	final ArrayList<String> terms = new ArrayList<String>();
+	String amountTerm;
+	double minAmount = Double.NEGATIVE_INFINITY;
+	long minLedgerIndex = 0;
+	long maxLedgerIndex = -1;
+	long minCloseTime = -1;
+	long maxCloseTime = -1;
+	int limit = Integer.MAX_VALUE;
+
+	static String getAccountTerm(RippleAddress account){
+		return "account:"+account;
+	}
+
+	static String getTransactionTypeTerm(TransactionTypes transactionType){
+		return "type:"+transactionType.name();
+	}
+
+	/**
+	 * @param issuer : null for XRP
+	 */
+	static String getCurrencyTerm(String currency, RippleAddress issuer){
+		if(issuer==null){
+			return "currency:XRP";
+		}
+		return "currency:"+currency+"/"+issuer;
+	}
+
+	/**
+	 * The transactions sent by, sent to, or modifying a trust line of the account
+	 */
+	public HistoryQuery account(RippleAddress account){
+		terms.add(getAccountTerm(account));
+		return this;
+	}
+
+	/**
+	 * Same as account, with the account of the query it selects the transactions between the two
+	 */
+	public HistoryQuery counterparty(RippleAddress counterparty){
+		return account(counterparty);
+	}
+
+	public HistoryQuery transactionType(TransactionTypes transactionType){
+		terms.add(getTransactionTypeTerm(transactionType));
+		return this;
+	}
+
+	/**
+	 * The transactions with an amount, a limit, or an offer side in this currency, only one per query
+	 * @param issuer : null for XRP
+	 */
+	public HistoryQuery currency(String currency, RippleAddress issuer){
+		if(amountTerm!=null){
+			throw new RuntimeException("The query already has the currency "+amountTerm+", minAmount would be ambiguous");
+		}
+		amountTerm = getCurrencyTerm(currency, issuer);
+		terms.add(amountTerm);
+		return this;
+	}
+
+	/**
+	 * Applies to the amounts of the currency of the query, in XRP rather than drops for XRP
+	 */
+	public HistoryQuery minAmount(double minAmount){
+		this.minAmount = minAmount;
+		return this;
+	}
+
+	/**
+	 * @param maxLedgerIndex : inclusive, -1 for no upper bound
+	 */
+	public HistoryQuery ledgerRange(long minLedgerIndex, long maxLedgerIndex){
+		this.minLedgerIndex = minLedgerIndex;
+		this.maxLedgerIndex = maxLedgerIndex;
+		return this;
+	}
+
+	/**
+	 * @param to : inclusive, null for no upper bound
+	 */
+	public HistoryQuery dateRange(Date from, Date to){
+		this.minCloseTime = from==null ? -1 : from.getTime()/1000-RIPPLE_EPOCH_OFFSET;
+		this.maxCloseTime = to==null ? -1 : to.getTime()/1000-RIPPLE_EPOCH_OFFSET;
+		return this;
+	}
+
+	public HistoryQuery limit(int limit){
+		this.limit = limit;
+		return this;
+	}
+
+	List<String> getTerms(){
+		return terms;
+	}
+}
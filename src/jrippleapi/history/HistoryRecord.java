@@ -0,0 +1,158 @@
+package jrippleapi.history;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import javax.xml.bind.DatatypeConverter;
+
+import jrippleapi.connection.BinaryTransaction;
+import jrippleapi.core.DenominatedIssuedCurrency;
+import jrippleapi.core.RippleAddress;
+import jrippleapi.keys.RippleDeterministicKeyGenerator;
+import jrippleapi.serialization.RippleBinaryObject;
+import jrippleapi.serialization.RippleBinarySchema.BinaryFormatField;
+import jrippleapi.serialization.RippleBinarySerializer;
+
+/**
+ * A validated transaction as stored in the history: the signed blob and the metadata as received from rippled,
+ * and the accounts it affected. The blobs are only decoded when asked for.
+ *
+ * @author pmarches
+ */
+public class HistoryRecord {
+	static final RippleBinarySerializer BINARY_SERIALIZER = new RippleBinarySerializer();
+	static final byte[] TRANSACTION_ID_PREFIX = {'T', 'X', 'N', 0};
+	static final int LEDGER_ENTRY_ACCOUNT_ROOT = 'a';
+	static final int LEDGER_ENTRY_RIPPLE_STATE = 'r';
+
+	public final long ledgerIndex;
+	public final int transactionIndex;
+	public final byte[] hash;
+	public final byte[] txBlob;
+	public final byte[] metaBlob;
+	public final RippleAddress[] accounts;
+	RippleBinaryObject transaction;
+	RippleBinaryObject meta;
+
+	public HistoryRecord(long ledgerIndex, int transactionIndex, byte[] hash, byte[] txBlob, byte[] metaBlob, RippleAddress[] accounts) {
+		this.ledgerIndex = ledgerIndex;
+		this.transactionIndex = transactionIndex;
+		this.hash = hash;
+		this.txBlob = txBlob;
+		this.metaBlob = metaBlob;
+		this.accounts = accounts;
+	}
+
+	/**
+	 * @return the record of a transaction received from account_tx or tx in binary mode
+	 */
+	public static HistoryRecord fromBinaryTransaction(BinaryTransaction binaryTx){
+		if(binaryTx.txBlob==null || binaryTx.metaBlob==null){
+			throw new RuntimeException("Only the transactions read in binary mode, with their metadata, can be stored");
+		}
+		Object transactionIndex = binaryTx.meta.getField(BinaryFormatField.TransactionIndex);
+		HistoryRecord record = new HistoryRecord(binaryTx.ledgerIndex, transactionIndex==null ? 0 : ((Number) transactionIndex).intValue(),
+				computeHash(binaryTx.txBlob), binaryTx.txBlob, binaryTx.metaBlob, getAffectedAccounts(binaryTx.transaction, binaryTx.meta));
+		record.transaction = binaryTx.transaction;
+		record.meta = binaryTx.meta;
+		return record;
+	}
+
+	/**
+	 * The transaction id is the half SHA512 of the signed blob prefixed by 'TXN\0'
+	 */
+	public static byte[] computeHash(byte[] txBlob){
+		byte[] prefixedBlob = new byte[TRANSACTION_ID_PREFIX.length+txBlob.length];
+		System.arraycopy(TRANSACTION_ID_PREFIX, 0, prefixedBlob, 0, TRANSACTION_ID_PREFIX.length);
+		System.arraycopy(txBlob, 0, prefixedBlob, TRANSACTION_ID_PREFIX.length, txBlob.length);
+		return RippleDeterministicKeyGenerator.halfSHA512(prefixedBlob);
+	}
+
+	/**
+	 * The sender, the destination, the owners of the account roots, and both sides of the trust lines modified by the transaction.
+	 * Those are the accounts for which account_tx returns the transaction.
+	 */
+	public static RippleAddress[] getAffectedAccounts(RippleBinaryObject transaction, RippleBinaryObject meta){
+		LinkedHashSet<RippleAddress> accounts = new LinkedHashSet<RippleAddress>();
+		addAccount(accounts, transaction.getField(BinaryFormatField.Account));
+		addAccount(accounts, transaction.getField(BinaryFormatField.Destination));
+		List<?> affectedNodes = (List<?>) meta.getField(BinaryFormatField.AffectedNodes);
+		for(int i=0; affectedNodes!=null && i<affectedNodes.size(); i++){
+			RippleBinaryObject affectedNode = (RippleBinaryObject) affectedNodes.get(i);
+			RippleBinaryObject node = (RippleBinaryObject) affectedNode.getField(BinaryFormatField.CreatedNode);
+			if(node==null){
+				node = (RippleBinaryObject) affectedNode.getField(BinaryFormatField.ModifiedNode);
+			}
+			if(node==null){
+				node = (RippleBinaryObject) affectedNode.getField(BinaryFormatField.DeletedNode);
+			}
+			if(node==null){
+				continue;
+			}
+			RippleBinaryObject fields = (RippleBinaryObject) node.getField(BinaryFormatField.FinalFields);
+			if(fields==null){
+				fields = (RippleBinaryObject) node.getField(BinaryFormatField.NewFields);
+			}
+			Object ledgerEntryType = node.getField(BinaryFormatField.LedgerEntryType);
+			if(fields==null || ledgerEntryType==null){
+				continue;
+			}
+			int entryType = ((Number) ledgerEntryType).intValue();
+			if(entryType==LEDGER_ENTRY_ACCOUNT_ROOT){
+				addAccount(accounts, fields.getField(BinaryFormatField.Account));
+			}
+			else if(entryType==LEDGER_ENTRY_RIPPLE_STATE){
+				addIssuer(accounts, fields.getField(BinaryFormatField.LowLimit));
+				addIssuer(accounts, fields.getField(BinaryFormatField.HighLimit));
+			}
+		}
+		return accounts.toArray(new RippleAddress[accounts.size()]);
+	}
+
+	static void addAccount(LinkedHashSet<RippleAddress> accounts, Object account){
+		if(account instanceof RippleAddress){
+			accounts.add((RippleAddress) account);
+		}
+	}
+
+	static void addIssuer(LinkedHashSet<RippleAddress> accounts, Object amount){
+		if(amount instanceof DenominatedIssuedCurrency){
+			addAccount(accounts, ((DenominatedIssuedCurrency) amount).issuer);
+		}
+	}
+
+	/**
+	 * Transactions are ordered by ledger, then by their index in the ledger
+	 */
+	public static long getSortKey(long ledgerIndex, int transactionIndex){
+		return (ledgerIndex<<24) | (transactionIndex & 0xFFFFFF);
+	}
+
+	public long getSortKey(){
+		return getSortKey(ledgerIndex, transactionIndex);
+	}
+
+	public String getHashString(){
+		return DatatypeConverter.printHexBinary(hash);
+	}
+
+	public synchronized RippleBinaryObject getTransaction(){
+		if(transaction==null){
+			transaction = BINARY_SERIALIZER.readBinaryObject(ByteBuffer.wrap(txBlob));
+		}
+		return transaction;
+	}
+
+	public synchronized RippleBinaryObject getMeta(){
+		if(meta==null){
+			meta = BINARY_SERIALIZER.readBinaryObject(ByteBuffer.wrap(metaBlob));
+		}
+		return meta;
+	}
+
+	@Override
+	public String toString() {
+		return ledgerIndex+" "+getHashString()+" "+getTransaction().getTransactionType();
+	}
+}
@@ -0,0 +1,398 @@
+package jrippleapi.history;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import jrippleapi.core.RippleAddress;
+
+/**
+ * One file of the history log. Records are only ever appended, and read through a memory mapping of the file.
+ * The mapping is renewed once the segment grew by REMAP_GROWTH bytes, the records appended since are read from the file.
+ *
+ * A record is laid out as:
+ * <pre>
+ * int payloadLength, int crc32 of the payload
+ * long ledgerIndex, int transactionIndex, 32 bytes hash
+ * int txBlobLength, txBlob, int metaBlobLength, metaBlob
+ * short nbAccounts, 20 bytes per account
+ * </pre>
+ * The accounts are stored so the index is rebuilt without decoding the blobs.
+ * A record cut short by a crash fails its CRC, it is truncated when the segment is opened.
+ *
+ * In the version 2 segments, the header ends with the id of a {@link BlobDictionary}, and both blobs are deflated together with it,
+ * each record on its own so it is still read without the others:
+ * <pre>
+ * long ledgerIndex, int transactionIndex, 32 bytes hash
+ * int txBlobLength, int metaBlobLength, int compressedLength, deflated txBlob and metaBlob
+ * short nbAccounts, 20 bytes per account
+ * </pre>
+ *
+ * Once sealed, a segment gets a summary file with the offset, ledger, hash and accounts of each of its records,
+ * so the store indexes it on open without reading nor checking the records:
+ * <pre>
+ * int magic, int version, long segment size, int nbRecords
+ * per record: int offset, long ledgerIndex, int transactionIndex, 32 bytes hash, short nbAccounts, 20 bytes per account
+ * int crc32 of all the above
+ * </pre>
+ *
+ * @author pmarches
+ */
+class HistorySegment {
+	static final int MAGIC = 0x4A524853; //JRHS
+	static final int VERSION = 1;
+	static final int VERSION_COMPRESSED = 2;
+	static final int HEADER_SIZE = 8;
+	static final int COMPRESSED_HEADER_SIZE = 12;
+	static final int RECORD_HEADER_SIZE = 8;
+	static final int HASH_SIZE = 32;
+	static final int ACCOUNT_SIZE = 20;
+	static final long REMAP_GROWTH = 4*1024*1024;
+	static final int SUMMARY_MAGIC = 0x4A525353; //JRSS
+	static final int SUMMARY_VERSION = 1;
+
+	interface RecordVisitor {
+		void visit(long offset, HistoryRecord record);
+	}
+
+	final int segmentNumber;
+	final File file;
+	final RandomAccessFile randomAccessFile;
+	final FileChannel channel;
+	final int version;
+	final int headerSize;
+	final BlobDictionary dictionary;
+	long size;
+	long nbTruncatedBytes;
+	MappedByteBuffer mappedBuffer;
+
+	/**
+	 * @param newDictionary : the dictionary of the blobs when the segment is created, null to store them raw
+	 * @param dictionaries : the dictionaries of the existing segments, by id
+	 */
+	HistorySegment(File file, int segmentNumber, BlobDictionary newDictionary, Map<Integer, BlobDictionary> dictionaries) throws IOException {
+		this.file = file;
+		this.segmentNumber = segmentNumber;
+		this.randomAccessFile = new RandomAccessFile(file, "rw");
+		this.channel = randomAccessFile.getChannel();
+		this.size = channel.size();
+		if(size==0){
+			version = newDictionary==null ? VERSION : VERSION_COMPRESSED;
+			headerSize = newDictionary==null ? HEADER_SIZE : COMPRESSED_HEADER_SIZE;
+			dictionary = newDictionary;
+			ByteBuffer header = ByteBuffer.allocate(headerSize);
+			header.putInt(MAGIC).putInt(version);
+			if(dictionary!=null){
+				header.putInt(dictionary.getDictionaryId());
+			}
+			header.flip();
+			channel.write(header, 0);
+			size = headerSize;
+		}
+		else{
+			ByteBuffer header = ByteBuffer.allocate(COMPRESSED_HEADER_SIZE);
+			channel.read(header, 0);
+			header.flip();
+			version = size<HEADER_SIZE || header.getInt()!=MAGIC ? -1 : header.getInt();
+			headerSize = version==VERSION_COMPRESSED ? COMPRESSED_HEADER_SIZE : HEADER_SIZE;
+			if((version!=VERSION && version!=VERSION_COMPRESSED) || size<headerSize){
+				close();
+				throw new IOException(file+" is not a history segment");
+			}
+			dictionary = version==VERSION_COMPRESSED ? dictionaries.get(header.getInt()) : null;
+			if(version==VERSION_COMPRESSED && dictionary==null){
+				close();
+				throw new IOException("The blob dictionary of "+file+" is missing");
+			}
+		}
+	}
+
+	ByteBuffer serialize(HistoryRecord record){
+		byte[] compressedBlobs = null;
+		int blobsLength = 4+record.txBlob.length+4+record.metaBlob.length;
+		if(dictionary!=null){
+			byte[] blobs = new byte[record.txBlob.length+record.metaBlob.length];
+			System.arraycopy(record.txBlob, 0, blobs, 0, record.txBlob.length);
+			System.arraycopy(record.metaBlob, 0, blobs, record.txBlob.length, record.metaBlob.length);
+			compressedBlobs = dictionary.deflate(blobs);
+			blobsLength = 4+4+4+compressedBlobs.length;
+		}
+		int payloadLength = 8+4+HASH_SIZE+blobsLength+2+record.accounts.length*ACCOUNT_SIZE;
+		ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE+payloadLength);
+		buffer.position(RECORD_HEADER_SIZE);
+		buffer.putLong(record.ledgerIndex);
+		buffer.putInt(record.transactionIndex);
+		buffer.put(record.hash);
+		if(dictionary==null){
+			buffer.putInt(record.txBlob.length).put(record.txBlob);
+			buffer.putInt(record.metaBlob.length).put(record.metaBlob);
+		}
+		else{
+			buffer.putInt(record.txBlob.length).putInt(record.metaBlob.length);
+			buffer.putInt(compressedBlobs.length).put(compressedBlobs);
+		}
+		buffer.putShort((short) record.accounts.length);
+		for(RippleAddress account : record.accounts){
+			buffer.put(account.getBytes());
+		}
+		CRC32 crc = new CRC32();
+		crc.update(buffer.array(), RECORD_HEADER_SIZE, payloadLength);
+		buffer.putInt(0, payloadLength);
+		buffer.putInt(4, (int) crc.getValue());
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * @return the offset of the record in the segment
+	 */
+	synchronized long append(ByteBuffer serializedRecord) throws IOException {
+		long offset = size;
+		while(serializedRecord.hasRemaining()){
+			size += channel.write(serializedRecord, size);
+		}
+		return offset;
+	}
+
+	/**
+	 * @return the whole segment
+	 */
+	synchronized ByteBuffer getMappedBuffer() throws IOException {
+		if(mappedBuffer==null || mappedBuffer.capacity()<size){
+			mappedBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		}
+		return mappedBuffer.duplicate();
+	}
+
+	/**
+	 * @return the length bytes at offset, from the mapping when it covers them
+	 */
+	ByteBuffer getBytes(long offset, int length) throws IOException {
+		synchronized(this) {
+			if(mappedBuffer==null || (offset+length>mappedBuffer.capacity() && size-mappedBuffer.capacity()>=REMAP_GROWTH)){
+				mappedBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			}
+			if(offset+length<=mappedBuffer.capacity()){
+				ByteBuffer buffer = mappedBuffer.duplicate();
+				buffer.limit((int) offset+length);
+				buffer.position((int) offset);
+				return buffer;
+			}
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while(buffer.hasRemaining()){
+			if(channel.read(buffer, offset+buffer.position())<0){
+				throw new EOFException("No record at "+offset+" in "+file);
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	HistoryRecord read(long offset) throws IOException {
+		int payloadLength = getBytes(offset, RECORD_HEADER_SIZE).getInt();
+		return deserialize(getBytes(offset+RECORD_HEADER_SIZE, payloadLength), true);
+	}
+
+	/**
+	 * @param withBlobs : false to skip the blobs, when only the ledger, hash and accounts are needed
+	 */
+	HistoryRecord deserialize(ByteBuffer buffer, boolean withBlobs){
+		long ledgerIndex = buffer.getLong();
+		int transactionIndex = buffer.getInt();
+		byte[] hash = new byte[HASH_SIZE];
+		buffer.get(hash);
+		byte[] txBlob = null;
+		byte[] metaBlob = null;
+		if(dictionary==null){
+			txBlob = readBlob(buffer, withBlobs);
+			metaBlob = readBlob(buffer, withBlobs);
+		}
+		else{
+			int txBlobLength = buffer.getInt();
+			int metaBlobLength = buffer.getInt();
+			byte[] compressedBlobs = readBlob(buffer, withBlobs);
+			if(withBlobs){
+				byte[] blobs = dictionary.inflate(compressedBlobs, txBlobLength+metaBlobLength);
+				txBlob = Arrays.copyOfRange(blobs, 0, txBlobLength);
+				metaBlob = Arrays.copyOfRange(blobs, txBlobLength, blobs.length);
+			}
+		}
+		RippleAddress[] accounts = new RippleAddress[buffer.getShort()];
+		for(int i=0; i<accounts.length; i++){
+			byte[] accountBytes = new byte[ACCOUNT_SIZE];
+			buffer.get(accountBytes);
+			accounts[i] = new RippleAddress(accountBytes);
+		}
+		return new HistoryRecord(ledgerIndex, transactionIndex, hash, txBlob, metaBlob, accounts);
+	}
+
+	static byte[] readBlob(ByteBuffer buffer, boolean isRead){
+		int blobLength = buffer.getInt();
+		if(isRead==false){
+			buffer.position(buffer.position()+blobLength);
+			return null;
+		}
+		byte[] blob = new byte[blobLength];
+		buffer.get(blob);
+		return blob;
+	}
+
+	/**
+	 * Visits every record in order, without their blobs, and truncates the segment after the last valid one
+	 */
+	synchronized void scan(RecordVisitor visitor) throws IOException {
+		long offset = visitRecords(visitor, true);
+		if(offset<size){ //The last record is incomplete
+			nbTruncatedBytes += size-offset;
+			mappedBuffer = null;
+			channel.truncate(offset);
+			size = offset;
+		}
+	}
+
+	/**
+	 * @param isChecked : true to stop at the first record failing its CRC
+	 * @return the offset after the last record visited
+	 */
+	long visitRecords(RecordVisitor visitor, boolean isChecked) throws IOException {
+		ByteBuffer buffer = getMappedBuffer();
+		long offset = headerSize;
+		CRC32 crc = new CRC32();
+		while(offset+RECORD_HEADER_SIZE<=size){
+			int payloadLength = buffer.getInt((int) offset);
+			int expectedCRC = buffer.getInt((int) offset+4);
+			if(payloadLength<=0 || offset+RECORD_HEADER_SIZE+payloadLength>size){
+				break;
+			}
+			ByteBuffer payload = buffer.duplicate();
+			payload.position((int) offset+RECORD_HEADER_SIZE);
+			payload.limit((int) offset+RECORD_HEADER_SIZE+payloadLength);
+			if(isChecked){
+				crc.reset();
+				byte[] payloadBytes = new byte[payloadLength];
+				payload.duplicate().get(payloadBytes);
+				crc.update(payloadBytes);
+				if((int) crc.getValue()!=expectedCRC){
+					break;
+				}
+			}
+			visitor.visit(offset, deserialize(payload, false));
+			offset += RECORD_HEADER_SIZE+payloadLength;
+		}
+		return offset;
+	}
+
+	/**
+	 * Writes the summary of the records of this sealed segment, they were checked when it was opened or appended
+	 */
+	synchronized void writeSummary(File summaryFile) throws IOException {
+		ByteArrayOutputStream summaryBytes = new ByteArrayOutputStream();
+		final DataOutputStream summary = new DataOutputStream(summaryBytes);
+		final int[] nbRecords = new int[1];
+		summary.writeInt(SUMMARY_MAGIC);
+		summary.writeInt(SUMMARY_VERSION);
+		summary.writeLong(size);
+		summary.writeInt(0);
+		visitRecords(new RecordVisitor() {
+			@Override
+			public void visit(long offset, HistoryRecord record) {
+				try {
+					summary.writeInt((int) offset);
+					summary.writeLong(record.ledgerIndex);
+					summary.writeInt(record.transactionIndex);
+					summary.write(record.hash);
+					summary.writeShort(record.accounts.length);
+					for(RippleAddress account : record.accounts){
+						summary.write(account.getBytes());
+					}
+				} catch (IOException e) {
+					throw new RuntimeException(e); //Not reached, written in memory
+				}
+				nbRecords[0]++;
+			}
+		}, false);
+		summary.flush();
+		ByteBuffer content = ByteBuffer.wrap(summaryBytes.toByteArray());
+		content.putInt(16, nbRecords[0]);
+		CRC32 crc = new CRC32();
+		crc.update(content.array());
+
+		File temporaryFile = new File(summaryFile.getPath()+".tmp");
+		FileOutputStream output = new FileOutputStream(temporaryFile);
+		try {
+			DataOutputStream summaryOutput = new DataOutputStream(output);
+			summaryOutput.write(content.array());
+			summaryOutput.writeInt((int) crc.getValue());
+			summaryOutput.flush();
+			output.getFD().sync();
+		} finally {
+			output.close();
+		}
+		HistoryStore.replaceFile(temporaryFile, summaryFile);
+	}
+
+	/**
+	 * Visits the records listed in the summary, after checking it is complete and matches the segment
+	 * @return false when the summary is missing, torn, or of another segment, nothing was visited then
+	 */
+	synchronized boolean readSummary(File summaryFile, RecordVisitor visitor) throws IOException {
+		if(summaryFile.length()<20+4){
+			return false;
+		}
+		byte[] summaryBytes = new byte[(int) summaryFile.length()];
+		DataInputStream input = new DataInputStream(new FileInputStream(summaryFile));
+		try {
+			input.readFully(summaryBytes);
+		} finally {
+			input.close();
+		}
+		CRC32 crc = new CRC32();
+		crc.update(summaryBytes, 0, summaryBytes.length-4);
+		ByteBuffer summary = ByteBuffer.wrap(summaryBytes);
+		if((int) crc.getValue()!=summary.getInt(summaryBytes.length-4) || summary.getInt()!=SUMMARY_MAGIC || summary.getInt()!=SUMMARY_VERSION || summary.getLong()!=size){
+			return false;
+		}
+		int nbRecords = summary.getInt();
+		for(int i=0; i<nbRecords; i++){
+			long offset = summary.getInt() & 0xFFFFFFFFL;
+			long ledgerIndex = summary.getLong();
+			int transactionIndex = summary.getInt();
+			byte[] hash = new byte[HASH_SIZE];
+			summary.get(hash);
+			RippleAddress[] accounts = new RippleAddress[summary.getShort()];
+			for(int j=0; j<accounts.length; j++){
+				byte[] accountBytes = new byte[ACCOUNT_SIZE];
+				summary.get(accountBytes);
+				accounts[j] = new RippleAddress(accountBytes);
+			}
+			visitor.visit(offset, new HistoryRecord(ledgerIndex, transactionIndex, hash, null, null, accounts));
+		}
+		return true;
+	}
+
+	synchronized long getSize() {
+		return size;
+	}
+
+	void force() throws IOException {
+		channel.force(false);
+	}
+
+	void close() throws IOException {
+		mappedBuffer = null;
+		randomAccessFile.close();
+	}
+}
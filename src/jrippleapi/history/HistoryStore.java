@@ -0,0 +1,429 @@
+package jrippleapi.history;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Properties;
+
+import jrippleapi.core.RippleAddress;
+
+/**
+ * A local copy of the validated transactions of some accounts, so their history is read in milliseconds
+ * instead of paging through account_tx.
+ *
+ * The records are appended to segment files of at most maxSegmentSize bytes, named history-000000.seg, history-000001.seg...
+ * and read back through memory mappings. The index by account and by hash is kept in memory. When a segment is sealed,
+ * its part of the index is saved next to it in history-000000.idx, so only the last segment is read and checked when the store is opened.
+ * The last ledger synchronized for each account is kept in sync.properties.
+ * The other criteria are answered by the {@link HistoryIndex}, kept in index.dat.
+ *
+ * Once a {@link BlobDictionary} is set, the following segments store the blobs deflated with it. The dictionaries are kept
+ * in blob-xxxxxxxx.dict files, named by their id, as long as a segment uses them.
+ *
+ * Thread safe, the synchronizer can append while the history is queried.
+ *
+ * @author pmarches
+ */
+public class HistoryStore implements Closeable {
+	public static final long DEFAULT_MAX_SEGMENT_SIZE = 256*1024*1024;
+	static final String SEGMENT_PREFIX = "history-";
+	static final String SEGMENT_SUFFIX = ".seg";
+	static final String SUMMARY_SUFFIX = ".idx";
+	static final String SYNC_STATE_FILENAME = "sync.properties";
+	static final String INDEX_FILENAME = "index.dat";
+	static final String DICTIONARY_PREFIX = "blob-";
+	static final String DICTIONARY_SUFFIX = ".dict";
+	public static final int DEFAULT_NB_DICTIONARY_SAMPLES = 2000;
+
+	final File directory;
+	final long maxSegmentSize;
+	final ArrayList<HistorySegment> segments = new ArrayList<HistorySegment>();
+	final HashMap<RippleAddress, PostingList> accountIndex = new HashMap<RippleAddress, PostingList>();
+	final HashMap<ByteBuffer, Long> hashIndex = new HashMap<ByteBuffer, Long>();
+	final Properties syncState = new Properties();
+	final HistoryIndex historyIndex;
+	final HashMap<Integer, BlobDictionary> dictionaries = new HashMap<Integer, BlobDictionary>();
+	BlobDictionary blobDictionary;
+	int nbRecords;
+	int nbScannedSegments;
+
+	public HistoryStore(File directory) throws IOException {
+		this(directory, DEFAULT_MAX_SEGMENT_SIZE);
+	}
+
+	public HistoryStore(File directory, long maxSegmentSize) throws IOException {
+		if(maxSegmentSize>Integer.MAX_VALUE){
+			throw new RuntimeException("The segments are read with int offsets, maxSegmentSize must be at most "+Integer.MAX_VALUE+", was "+maxSegmentSize);
+		}
+		this.directory = directory;
+		this.maxSegmentSize = maxSegmentSize;
+		if(directory.isDirectory()==false && directory.mkdirs()==false){
+			throw new IOException("Could not create the history directory "+directory);
+		}
+		loadSyncState();
+		loadDictionaries();
+		historyIndex = new HistoryIndex(this, new File(directory, INDEX_FILENAME));
+		openSegments();
+	}
+
+	protected void openSegments() throws IOException {
+		String[] segmentFilenames = directory.list(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		Arrays.sort(segmentFilenames);
+		final ArrayList<Long> unindexedPositions = new ArrayList<Long>();
+		for(int i=0; i<segmentFilenames.length; i++){
+			String segmentFilename = segmentFilenames[i];
+			int segmentNumber = Integer.parseInt(segmentFilename.substring(SEGMENT_PREFIX.length(), segmentFilename.length()-SEGMENT_SUFFIX.length()));
+			final HistorySegment segment = new HistorySegment(new File(directory, segmentFilename), segmentNumber, null, dictionaries);
+			segments.add(segment);
+			HistorySegment.RecordVisitor indexer = new HistorySegment.RecordVisitor() {
+				@Override
+				public void visit(long offset, HistoryRecord record) {
+					long position = getPosition(segment, offset);
+					index(record, position);
+					if(position>=historyIndex.checkpointPosition){
+						unindexedPositions.add(position);
+					}
+				}
+			};
+			boolean isTail = i==segmentFilenames.length-1;
+			if(isTail || segment.readSummary(getSummaryFile(segment), indexer)==false){
+				//The tail may end with a torn record, a sealed segment without its summary was sealed by a crash
+				segment.scan(indexer);
+				nbScannedSegments++;
+				if(isTail==false){
+					segment.writeSummary(getSummaryFile(segment));
+				}
+			}
+		}
+		if(segments.isEmpty()){
+			rollSegment();
+		}
+		blobDictionary = getActiveSegment().dictionary;
+		if(historyIndex.checkpointPosition>getEndPosition()){ //Ahead of the segments, it is rebuilt
+			historyIndex.clear();
+			unindexedPositions.clear();
+			unindexedPositions.addAll(hashIndex.values());
+			Collections.sort(unindexedPositions);
+		}
+		for(long position : unindexedPositions){
+			historyIndex.add(read(position), position);
+		}
+	}
+
+	protected void rollSegment() throws IOException {
+		int segmentNumber = segments.isEmpty() ? 0 : getActiveSegment().segmentNumber+1;
+		if(segments.isEmpty()==false){
+			getActiveSegment().force();
+			getActiveSegment().writeSummary(getSummaryFile(getActiveSegment()));
+		}
+		segments.add(new HistorySegment(new File(directory, String.format("%s%06d%s", SEGMENT_PREFIX, segmentNumber, SEGMENT_SUFFIX)), segmentNumber, blobDictionary, dictionaries));
+	}
+
+	File getSummaryFile(HistorySegment segment){
+		return new File(directory, String.format("%s%06d%s", SEGMENT_PREFIX, segment.segmentNumber, SUMMARY_SUFFIX));
+	}
+
+	HistorySegment getActiveSegment(){
+		return segments.get(segments.size()-1);
+	}
+
+	static long getPosition(HistorySegment segment, long offset){
+		return ((long) segment.segmentNumber<<32) | offset;
+	}
+
+	/**
+	 * @return the position the next record would have in the active segment
+	 */
+	long getEndPosition(){
+		return getPosition(getActiveSegment(), getActiveSegment().getSize());
+	}
+
+	/**
+	 * The segments are sorted by number, some numbers may be missing
+	 */
+	protected HistorySegment getSegment(long position){
+		int segmentNumber = (int) (position>>>32);
+		int low = 0;
+		int high = segments.size()-1;
+		while(low<=high){
+			int middle = (low+high)>>>1;
+			HistorySegment segment = segments.get(middle);
+			if(segment.segmentNumber<segmentNumber){
+				low = middle+1;
+			}
+			else if(segment.segmentNumber>segmentNumber){
+				high = middle-1;
+			}
+			else{
+				return segment;
+			}
+		}
+		throw new RuntimeException("No segment "+segmentNumber+" in "+directory);
+	}
+
+	protected void index(HistoryRecord record, long position){
+		hashIndex.put(ByteBuffer.wrap(record.hash), position);
+		long sortKey = record.getSortKey();
+		for(RippleAddress account : record.accounts){
+			PostingList postings = accountIndex.get(account);
+			if(postings==null){
+				postings = new PostingList();
+				accountIndex.put(account, postings);
+			}
+			postings.add(sortKey, position);
+		}
+		nbRecords++;
+	}
+
+	/**
+	 * @return false if the transaction was already stored
+	 */
+	public synchronized boolean append(HistoryRecord record) throws IOException {
+		if(hashIndex.containsKey(ByteBuffer.wrap(record.hash))){
+			return false;
+		}
+		ByteBuffer serializedRecord = getActiveSegment().serialize(record);
+		if(getActiveSegment().getSize()+serializedRecord.remaining()>maxSegmentSize && getActiveSegment().getSize()>getActiveSegment().headerSize){
+			rollSegment();
+		}
+		HistorySegment activeSegment = getActiveSegment();
+		long position = getPosition(activeSegment, activeSegment.append(serializedRecord));
+		index(record, position);
+		historyIndex.add(record, position);
+		if(historyIndex.needsCheckpoint()){
+			checkpointIndex();
+		}
+		return true;
+	}
+
+	protected void loadDictionaries() throws IOException {
+		String[] dictionaryFilenames = directory.list(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(DICTIONARY_PREFIX) && name.endsWith(DICTIONARY_SUFFIX);
+			}
+		});
+		for(String dictionaryFilename : dictionaryFilenames){
+			File dictionaryFile = new File(directory, dictionaryFilename);
+			byte[] dictionaryBytes = new byte[(int) dictionaryFile.length()];
+			DataInputStream input = new DataInputStream(new FileInputStream(dictionaryFile));
+			try {
+				input.readFully(dictionaryBytes);
+			} finally {
+				input.close();
+			}
+			BlobDictionary dictionary = new BlobDictionary(dictionaryBytes);
+			dictionaries.put(dictionary.getDictionaryId(), dictionary);
+		}
+	}
+
+	/**
+	 * The records appended from now on are deflated with this dictionary, in a new segment. null to store them raw again.
+	 */
+	public synchronized void setBlobDictionary(BlobDictionary dictionary) throws IOException {
+		if(dictionary!=null && dictionaries.containsKey(dictionary.getDictionaryId())==false){
+			File temporaryFile = new File(directory, DICTIONARY_PREFIX+"tmp"+DICTIONARY_SUFFIX+".tmp");
+			FileOutputStream output = new FileOutputStream(temporaryFile);
+			try {
+				output.write(dictionary.getBytes());
+				output.getFD().sync();
+			} finally {
+				output.close();
+			}
+			replaceFile(temporaryFile, new File(directory, String.format("%s%08x%s", DICTIONARY_PREFIX, dictionary.getDictionaryId(), DICTIONARY_SUFFIX)));
+			dictionaries.put(dictionary.getDictionaryId(), dictionary);
+		}
+		blobDictionary = dictionary;
+		if(getActiveSegment().dictionary!=dictionary){
+			rollSegment();
+		}
+	}
+
+	public synchronized BlobDictionary getBlobDictionary() {
+		return blobDictionary;
+	}
+
+	/**
+	 * Trains a dictionary from the newest records, and deflates the following ones with it
+	 */
+	public synchronized BlobDictionary trainBlobDictionary(int nbSamples) throws IOException {
+		ArrayList<byte[]> samples = new ArrayList<byte[]>();
+		for(int i=segments.size()-1; i>=0 && samples.size()<nbSamples; i--){
+			final HistorySegment segment = segments.get(i);
+			final ArrayList<Long> offsets = new ArrayList<Long>();
+			segment.scan(new HistorySegment.RecordVisitor() {
+				@Override
+				public void visit(long offset, HistoryRecord record) {
+					offsets.add(offset);
+				}
+			});
+			for(int j=offsets.size()-1; j>=0 && samples.size()<nbSamples; j--){
+				HistoryRecord record = segment.read(offsets.get(j));
+				byte[] sample = Arrays.copyOf(record.txBlob, record.txBlob.length+record.metaBlob.length);
+				System.arraycopy(record.metaBlob, 0, sample, record.txBlob.length, record.metaBlob.length);
+				samples.add(sample);
+			}
+		}
+		if(samples.isEmpty()){
+			return null;
+		}
+		BlobDictionary dictionary = BlobDictionary.train(samples, BlobDictionary.DEFAULT_MAX_SIZE);
+		setBlobDictionary(dictionary);
+		return dictionary;
+	}
+
+	protected void checkpointIndex() throws IOException {
+		flush();
+		historyIndex.checkpoint(getEndPosition());
+	}
+
+	public HistoryIndex getIndex() {
+		return historyIndex;
+	}
+
+	/**
+	 * @see HistoryIndex#query(HistoryQuery)
+	 */
+	public List<HistoryRecord> query(HistoryQuery query) throws IOException {
+		return historyIndex.query(query);
+	}
+
+	public synchronized HistoryRecord getTransaction(byte[] hash) throws IOException {
+		Long position = hashIndex.get(ByteBuffer.wrap(hash));
+		if(position==null){
+			return null;
+		}
+		return read(position);
+	}
+
+	protected HistoryRecord read(long position) throws IOException {
+		return getSegment(position).read(position & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * @param minLedgerIndex : inclusive, 0 for no lower bound
+	 * @param maxLedgerIndex : inclusive, -1 for no upper bound
+	 * @return the transactions of the account, newest first
+	 */
+	public synchronized List<HistoryRecord> getAccountHistory(RippleAddress account, long minLedgerIndex, long maxLedgerIndex, int limit) throws IOException {
+		ArrayList<HistoryRecord> history = new ArrayList<HistoryRecord>();
+		PostingList postings = accountIndex.get(account);
+		if(postings==null){
+			return history;
+		}
+		postings.sort();
+		long maxSortKey = maxLedgerIndex<0 ? Long.MAX_VALUE : HistoryRecord.getSortKey(maxLedgerIndex, 0xFFFFFF);
+		long minSortKey = HistoryRecord.getSortKey(Math.max(0, minLedgerIndex), 0);
+		for(int i=postings.upperBound(maxSortKey)-1; i>=0 && postings.sortKeys[i]>=minSortKey && history.size()<limit; i--){
+			history.add(read(postings.positions[i]));
+		}
+		return history;
+	}
+
+	public synchronized int getNbTransactions(RippleAddress account){
+		PostingList postings = accountIndex.get(account);
+		return postings==null ? 0 : postings.size;
+	}
+
+	public synchronized int getNbRecords() {
+		return nbRecords;
+	}
+
+	/**
+	 * @return the bytes of the incomplete records cut from the end of the segments when they were opened, after a crash
+	 */
+	public synchronized long getNbTruncatedBytes() {
+		long nbTruncatedBytes = 0;
+		for(HistorySegment segment : segments){
+			nbTruncatedBytes += segment.nbTruncatedBytes;
+		}
+		return nbTruncatedBytes;
+	}
+
+	/**
+	 * @return true when the index was unreadable or ahead of the segments, and was built again from the records
+	 */
+	public boolean isIndexRebuilt() {
+		return historyIndex.isRebuilt;
+	}
+
+	/**
+	 * @return 0 if the account was never synchronized
+	 */
+	public synchronized long getLastSyncedLedger(RippleAddress account){
+		String lastSyncedLedger = syncState.getProperty(account.toString());
+		return lastSyncedLedger==null ? 0 : Long.parseLong(lastSyncedLedger);
+	}
+
+	/**
+	 * The records are flushed to disk before the new sync state is saved, so a crash never skips transactions
+	 */
+	public synchronized void setLastSyncedLedger(RippleAddress account, long ledgerIndex) throws IOException {
+		flush();
+		syncState.setProperty(account.toString(), Long.toString(ledgerIndex));
+		saveSyncState();
+	}
+
+	protected void loadSyncState() throws IOException {
+		File syncStateFile = new File(directory, SYNC_STATE_FILENAME);
+		if(syncStateFile.exists()==false){
+			return;
+		}
+		FileInputStream input = new FileInputStream(syncStateFile);
+		try {
+			syncState.load(input);
+		} finally {
+			input.close();
+		}
+	}
+
+	protected void saveSyncState() throws IOException {
+		File temporaryFile = new File(directory, SYNC_STATE_FILENAME+".tmp");
+		FileOutputStream output = new FileOutputStream(temporaryFile);
+		try {
+			syncState.store(output, "Last ledger synchronized for each account");
+			output.getFD().sync();
+		} finally {
+			output.close();
+		}
+		replaceFile(temporaryFile, new File(directory, SYNC_STATE_FILENAME));
+	}
+
+	static void replaceFile(File temporaryFile, File file) throws IOException {
+		if(temporaryFile.renameTo(file)==false){
+			file.delete();
+			if(temporaryFile.renameTo(file)==false){
+				throw new IOException("Could not replace "+file);
+			}
+		}
+	}
+
+	public synchronized void flush() throws IOException {
+		getActiveSegment().force();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		checkpointIndex();
+		historyIndex.close();
+		for(HistorySegment segment : segments){
+			segment.close();
+		}
+		segments.clear();
+	}
+}
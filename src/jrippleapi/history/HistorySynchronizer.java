@@ -0,0 +1,149 @@
+package jrippleapi.history;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jrippleapi.connection.BinaryLedger;
+import jrippleapi.connection.BinaryTransaction;
+import jrippleapi.connection.BinaryTransactions;
+import jrippleapi.connection.FutureJSONResponse;
+import jrippleapi.connection.MarkerPagedIterator;
+import jrippleapi.connection.RippleDaemonConnection;
+import jrippleapi.core.RippleAddress;
+
+/**
+ * Copies the validated transactions of an account into a {@link HistoryStore}, starting from the last ledger synchronized.
+ * The pages are requested oldest first, and the progress is saved after each page, so an interrupted sync resumes where it stopped.
+ * The last synchronized ledger is read again, the transactions already stored are skipped.
+ *
+ * @author pmarches
+ */
+public class HistorySynchronizer {
+	public static final int DEFAULT_PAGE_SIZE = 200;
+
+	final RippleDaemonConnection connection;
+	final HistoryStore store;
+	int pageSize = DEFAULT_PAGE_SIZE;
+	final AtomicLong nbCloseTimeFailures = new AtomicLong();
+	volatile Throwable lastCloseTimeFailure;
+
+	public HistorySynchronizer(RippleDaemonConnection connection, HistoryStore store) {
+		this.connection = connection;
+		this.store = store;
+	}
+
+	public void setPageSize(int pageSize) {
+		this.pageSize = pageSize;
+	}
+
+	/**
+	 * The pages of account_tx, oldest first. The following pages are bounded by the newest ledger of the first page,
+	 * and the progress is saved when a page starts with a newer ledger than the previous one ended with.
+	 */
+	class AccountTransactionPages extends MarkerPagedIterator<BinaryTransaction, BinaryTransactions> {
+		final RippleAddress account;
+		final long ledgerIndexMin;
+		long ledgerIndexMax=-1;
+		long lastLedgerIndex;
+
+		AccountTransactionPages(RippleAddress account, long ledgerIndexMin) {
+			this.account = account;
+			this.ledgerIndexMin = ledgerIndexMin;
+		}
+
+		@Override
+		protected FutureJSONResponse<BinaryTransactions> requestPage(Object marker) {
+			return connection.getAccountTransactionsBinaryFuture(account.toString(), ledgerIndexMin, ledgerIndexMax, pageSize, marker, true);
+		}
+
+		@Override
+		protected void onPage(BinaryTransactions page) {
+			if(ledgerIndexMax==-1){
+				ledgerIndexMax=page.ledgerIndexMax;
+			}
+			if(page.isEmpty()){
+				return;
+			}
+			recordCloseTimes(page);
+			long firstLedgerIndex = page.get(0).ledgerIndex;
+			if(lastLedgerIndex!=0 && firstLedgerIndex>lastLedgerIndex){
+				//Every transaction of the previous pages has been stored
+				saveProgress(account, firstLedgerIndex-1);
+			}
+			lastLedgerIndex = page.get(page.size()-1).ledgerIndex;
+		}
+
+		@Override
+		protected Object getMarker(BinaryTransactions page) {
+			return page.marker;
+		}
+	}
+
+	/**
+	 * The close times come with the transactions from recent rippled versions, otherwise the ledger headers are requested
+	 */
+	void recordCloseTimes(BinaryTransactions page){
+		HistoryIndex index = store.getIndex();
+		TreeMap<Long, FutureJSONResponse<BinaryLedger>> ledgerHeaders = new TreeMap<Long, FutureJSONResponse<BinaryLedger>>();
+		for(BinaryTransaction transaction : page){
+			if(transaction.date!=0){
+				index.setLedgerCloseTime(transaction.ledgerIndex, transaction.date);
+			}
+			else if(ledgerHeaders.containsKey(transaction.ledgerIndex)==false && index.hasLedgerCloseTime(transaction.ledgerIndex)==false){
+				ledgerHeaders.put(transaction.ledgerIndex, connection.getLedgerBinaryFuture(transaction.ledgerIndex, false));
+			}
+		}
+		for(Map.Entry<Long, FutureJSONResponse<BinaryLedger>> ledgerHeader : ledgerHeaders.entrySet()){
+			try {
+				index.setLedgerCloseTime(ledgerHeader.getKey(), ledgerHeader.getValue().get().closeTime);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			} catch (ExecutionException e) {
+				//The dates of this ledger will be approximated from its neighbours
+				nbCloseTimeFailures.incrementAndGet();
+				lastCloseTimeFailure = e.getCause();
+			}
+		}
+	}
+
+	/**
+	 * @return the ledger headers which could not be read, the dates of their transactions are approximated
+	 */
+	public long getNbCloseTimeFailures() {
+		return nbCloseTimeFailures.get();
+	}
+
+	public Throwable getLastCloseTimeFailure() {
+		return lastCloseTimeFailure;
+	}
+
+	/**
+	 * @return the number of transactions added to the store
+	 */
+	public int synchronize(RippleAddress account) throws IOException {
+		long lastSyncedLedger = store.getLastSyncedLedger(account);
+		AccountTransactionPages transactions = new AccountTransactionPages(account, lastSyncedLedger==0 ? -1 : lastSyncedLedger);
+		int nbAdded=0;
+		for(BinaryTransaction transaction : transactions){
+			if(transaction.validated && store.append(HistoryRecord.fromBinaryTransaction(transaction))){
+				nbAdded++;
+			}
+		}
+		saveProgress(account, Math.max(transactions.ledgerIndexMax, transactions.lastLedgerIndex));
+		return nbAdded;
+	}
+
+	void saveProgress(RippleAddress account, long ledgerIndex){
+		try {
+			if(ledgerIndex>store.getLastSyncedLedger(account)){
+				store.setLastSyncedLedger(account, ledgerIndex);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Could not save the history progress of "+account, e);
+		}
+	}
+}
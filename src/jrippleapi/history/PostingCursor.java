@@ -0,0 +1,243 @@
+package jrippleapi.history;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Walks the postings of a term from the newest, and skips down to a sort key, so the lists of a query are intersected
+ * without decoding them whole.
+ *
+ * @author pmarches
+ */
+abstract class PostingCursor {
+	boolean isExhausted;
+
+	/**
+	 * Moves to the greatest sort key at most maxSortKey, the cursor never moves up
+	 * @return false once no posting is left
+	 */
+	abstract boolean seek(long maxSortKey);
+
+	abstract long getSortKey();
+
+	abstract long getPosition();
+
+	abstract double getValue();
+
+	/**
+	 * @return the number of postings, the shortest list drives the intersection
+	 */
+	abstract int size();
+
+	boolean next(){
+		return seek(getSortKey()-1);
+	}
+
+	/**
+	 * The sorted postings indexed in memory
+	 */
+	static class MemoryCursor extends PostingCursor {
+		final PostingList postings;
+		int i;
+
+		MemoryCursor(PostingList postings) {
+			this.postings = postings;
+			this.i = postings.size;
+		}
+
+		@Override
+		boolean seek(long maxSortKey) {
+			if(isExhausted){
+				return false;
+			}
+			if(i<postings.size && postings.sortKeys[i]<=maxSortKey){
+				return true;
+			}
+			i = postings.upperBound(maxSortKey, i)-1;
+			isExhausted = i<0;
+			return isExhausted==false;
+		}
+
+		@Override
+		long getSortKey() {
+			return postings.sortKeys[i];
+		}
+
+		@Override
+		long getPosition() {
+			return postings.positions[i];
+		}
+
+		@Override
+		double getValue() {
+			return postings.hasValues() ? postings.values[i] : 0;
+		}
+
+		@Override
+		int size() {
+			return postings.size;
+		}
+	}
+
+	/**
+	 * The postings of a term in an index file, decoded one block at a time.
+	 * The skip table gives the first sort key of each block, a seek decodes only the block it lands in.
+	 */
+	static class BlockCursor extends PostingCursor {
+		final HistoryIndex.DiskTerm term;
+		final int nbBlocks;
+		final PostingList block;
+		int blockIndex;
+		int i;
+
+		BlockCursor(HistoryIndex.DiskTerm term) {
+			this.term = term;
+			this.nbBlocks = (term.size+HistoryIndex.BLOCK_SIZE-1)/HistoryIndex.BLOCK_SIZE;
+			this.block = new PostingList(HistoryIndex.BLOCK_SIZE, term.hasValues);
+			this.blockIndex = nbBlocks;
+		}
+
+		long getFirstSortKey(int blockIndex){
+			return term.buffer.getLong(term.offset+blockIndex*HistoryIndex.SKIP_ENTRY_SIZE);
+		}
+
+		void decode(int blockIndex){
+			ByteBuffer buffer = term.buffer.duplicate();
+			buffer.position(term.offset+term.buffer.getInt(term.offset+blockIndex*HistoryIndex.SKIP_ENTRY_SIZE+8));
+			int blockSize = Math.min(HistoryIndex.BLOCK_SIZE, term.size-blockIndex*HistoryIndex.BLOCK_SIZE);
+			long sortKey = getFirstSortKey(blockIndex);
+			block.sortKeys[0] = sortKey;
+			for(int j=1; j<blockSize; j++){
+				sortKey += HistoryIndex.readVarLong(buffer);
+				block.sortKeys[j] = sortKey;
+			}
+			long position=0;
+			for(int j=0; j<blockSize; j++){
+				long zigzag = HistoryIndex.readVarLong(buffer);
+				position += (zigzag>>>1) ^ -(zigzag & 1);
+				block.positions[j] = position;
+			}
+			if(term.hasValues){
+				buffer.asDoubleBuffer().get(block.values, 0, blockSize);
+			}
+			block.size = blockSize;
+			this.blockIndex = blockIndex;
+		}
+
+		@Override
+		boolean seek(long maxSortKey) {
+			if(isExhausted){
+				return false;
+			}
+			if(blockIndex<nbBlocks){
+				if(block.sortKeys[i]<=maxSortKey){
+					return true;
+				}
+				if(block.sortKeys[0]<=maxSortKey){
+					i = block.upperBound(maxSortKey, i)-1;
+					return true;
+				}
+			}
+			//The last block below the current one starting at most at maxSortKey
+			int low=0, high=blockIndex;
+			while(low<high){
+				int middle = (low+high)>>>1;
+				if(getFirstSortKey(middle)<=maxSortKey){
+					low = middle+1;
+				}
+				else{
+					high = middle;
+				}
+			}
+			if(low==0){
+				isExhausted = true;
+				return false;
+			}
+			decode(low-1);
+			i = block.upperBound(maxSortKey)-1;
+			return true;
+		}
+
+		/**
+		 * Decodes every block, to merge the list into a new index file
+		 */
+		void readAll(PostingList postings){
+			for(int j=0; j<nbBlocks; j++){
+				decode(j);
+				postings.addAll(block);
+			}
+			isExhausted = true;
+		}
+
+		@Override
+		long getSortKey() {
+			return block.sortKeys[i];
+		}
+
+		@Override
+		long getPosition() {
+			return block.positions[i];
+		}
+
+		@Override
+		double getValue() {
+			return term.hasValues ? block.values[i] : 0;
+		}
+
+		@Override
+		int size() {
+			return term.size;
+		}
+	}
+
+	/**
+	 * The postings of a term spread over the index files and the memory, a record is in only one of them
+	 */
+	static class UnionCursor extends PostingCursor {
+		final PostingCursor[] cursors;
+		PostingCursor current;
+
+		UnionCursor(List<PostingCursor> cursors) {
+			this.cursors = cursors.toArray(new PostingCursor[cursors.size()]);
+		}
+
+		@Override
+		boolean seek(long maxSortKey) {
+			if(current!=null && current.getSortKey()<=maxSortKey){
+				return true; //The others are already below it
+			}
+			current = null;
+			for(PostingCursor cursor : cursors){
+				if(cursor.seek(maxSortKey) && (current==null || cursor.getSortKey()>current.getSortKey())){
+					current = cursor;
+				}
+			}
+			isExhausted = current==null;
+			return isExhausted==false;
+		}
+
+		@Override
+		long getSortKey() {
+			return current.getSortKey();
+		}
+
+		@Override
+		long getPosition() {
+			return current.getPosition();
+		}
+
+		@Override
+		double getValue() {
+			return current.getValue();
+		}
+
+		@Override
+		int size() {
+			int size=0;
+			for(PostingCursor cursor : cursors){
+				size += cursor.size();
+			}
+			return size;
+		}
+	}
+}
@@ -0,0 +1,131 @@
+package jrippleapi.history;
+
+import java.util.Arrays;
+
+/**
+ * The records matching a term, as sort keys and positions in parallel arrays, with an optional amount per record.
+ * They are usually added in order, otherwise they are sorted on the next read.
+ *
+ * @author pmarches
+ */
+class PostingList {
+	long[] sortKeys;
+	long[] positions;
+	double[] values;
+	int size;
+	boolean isSorted = true;
+
+	PostingList(int capacity, boolean hasValues) {
+		sortKeys = new long[Math.max(1, capacity)];
+		positions = new long[sortKeys.length];
+		if(hasValues){
+			values = new double[sortKeys.length];
+		}
+	}
+
+	PostingList() {
+		this(8, false);
+	}
+
+	boolean hasValues(){
+		return values!=null;
+	}
+
+	void add(long sortKey, long position){
+		add(sortKey, position, 0);
+	}
+
+	void add(long sortKey, long position, double value){
+		if(size==sortKeys.length){
+			sortKeys = Arrays.copyOf(sortKeys, size*2);
+			positions = Arrays.copyOf(positions, size*2);
+			if(values!=null){
+				values = Arrays.copyOf(values, size*2);
+			}
+		}
+		if(size>0 && sortKey<sortKeys[size-1]){
+			isSorted = false;
+		}
+		sortKeys[size] = sortKey;
+		positions[size] = position;
+		if(values!=null){
+			values[size] = value;
+		}
+		size++;
+	}
+
+	void addAll(PostingList other){
+		for(int i=0; i<other.size; i++){
+			add(other.sortKeys[i], other.positions[i], other.values==null ? 0 : other.values[i]);
+		}
+	}
+
+	void sort(){
+		if(isSorted){
+			return;
+		}
+		sort(0, size-1);
+		isSorted = true;
+	}
+
+	void sort(int low, int high){
+		while(low<high){
+			long pivot = sortKeys[(low+high)>>>1];
+			int i=low, j=high;
+			while(i<=j){
+				while(sortKeys[i]<pivot){
+					i++;
+				}
+				while(sortKeys[j]>pivot){
+					j--;
+				}
+				if(i<=j){
+					swap(i++, j--);
+				}
+			}
+			if(j-low<high-i){
+				sort(low, j);
+				low = i;
+			}
+			else{
+				sort(i, high);
+				high = j;
+			}
+		}
+	}
+
+	void swap(int i, int j){
+		long sortKey = sortKeys[i];
+		sortKeys[i] = sortKeys[j];
+		sortKeys[j] = sortKey;
+		long position = positions[i];
+		positions[i] = positions[j];
+		positions[j] = position;
+		if(values!=null){
+			double value = values[i];
+			values[i] = values[j];
+			values[j] = value;
+		}
+	}
+
+	/**
+	 * @return the index of the first sort key greater than the given one, searching below high
+	 */
+	int upperBound(long sortKey, int high){
+		int low=0;
+		while(low<high){
+			int middle = (low+high)>>>1;
+			if(sortKeys[middle]<=sortKey){
+				low = middle+1;
+			}
+			else{
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	int upperBound(long sortKey){
+		return upperBound(sortKey, size);
+	}
+}
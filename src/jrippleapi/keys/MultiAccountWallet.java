@@ -0,0 +1,522 @@
+package jrippleapi.keys;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.xml.bind.DatatypeConverter;
+
+import jrippleapi.connection.BinaryTransaction;
+import jrippleapi.connection.FutureJSONResponse;
+import jrippleapi.connection.JSONResponseListener;
+import jrippleapi.connection.RippleDaemonConnection;
+import jrippleapi.connection.SubmitResult;
+import jrippleapi.connection.TransactionExpiredException;
+import jrippleapi.connection.TransactionValidator;
+import jrippleapi.core.DenominatedIssuedCurrency;
+import jrippleapi.core.RippleAddress;
+import jrippleapi.core.RipplePaymentTransaction;
+import jrippleapi.core.RippleSeedAddress;
+import jrippleapi.history.HistoryRecord;
+import jrippleapi.serialization.RippleBinaryObject;
+import jrippleapi.serialization.RippleBinarySchema.BinaryFormatField;
+import jrippleapi.serialization.RippleBinarySerializer;
+
+import org.json.simple.JSONObject;
+
+/**
+ * A wallet of many accounts, derived from one seed with {@link RippleSeedAddress#getPrivateKey(int)} or from separate seeds.
+ * Each account allocates its own sequence numbers under the lock of its stripe, so payments from different accounts
+ * do not wait for each other. Signing is done outside of the lock, a sequence whose transaction could not be signed is given to the next one.
+ *
+ * A submitted transaction stays pending until a tx lookup finds it in a validated ledger, the result of the submit is only preliminary.
+ * The payments sent by the wallet carry a LastLedgerSequence, see {@link TransactionValidator}: once it passed,
+ * the blob can never apply and the payment is signed again with the same sequence.
+ *
+ * Like {@link RippleWallet}, the wallet file is a snapshot and the changes since are in a {@link WalletJournal} shared by all the accounts,
+ * so the payments of all the accounts share its fsyncs. The records refer to the accounts by their index in the snapshot.
+ *
+ * @author pmarches
+ */
+public class MultiAccountWallet {
+	public static final int DEFAULT_NB_STRIPES = 64;
+	static final int SNAPSHOT_VERSION = 1;
+
+	/**
+	 * The sequence numbers and the pending transactions are guarded by the lock of the stripe of the account
+	 */
+	public static class WalletAccount {
+		final int accountIndex;
+		final RippleSeedAddress seed;
+		final int accountNumber;
+		final RippleAddress address;
+		final RippleSigner signer;
+		int nextTransactionSequenceNumber;
+		final TreeMap<Integer, byte[]> pendingTransactions = new TreeMap<Integer, byte[]>();
+		final TreeSet<Integer> releasedSequenceNumbers = new TreeSet<Integer>(); //Below nextTransactionSequenceNumber, never signed
+
+		WalletAccount(int accountIndex, RippleSeedAddress seed, int accountNumber, int nextTransactionSequenceNumber) {
+			this.accountIndex = accountIndex;
+			this.seed = seed;
+			this.accountNumber = accountNumber;
+			this.nextTransactionSequenceNumber = nextTransactionSequenceNumber;
+			RippleDeterministicKeyGenerator generator = new RippleDeterministicKeyGenerator(seed.getBytes());
+			this.signer = new RippleSigner(generator.getAccountPrivateKey(accountNumber));
+			this.address = generator.getAccountPublicKey(accountNumber).getAddress();
+		}
+
+		public RippleAddress getAddress() {
+			return address;
+		}
+
+		public int getAccountNumber() {
+			return accountNumber;
+		}
+	}
+
+	final File walletFile;
+	final WalletJournal journal;
+	final ReentrantLock[] stripes;
+	final Object compactionLock = new Object();
+	volatile WalletAccount[] accounts = new WalletAccount[0]; //By index, replaced when an account is added
+	final ConcurrentHashMap<RippleAddress, WalletAccount> accountsByAddress = new ConcurrentHashMap<RippleAddress, WalletAccount>();
+	volatile long compactionSize = RippleWallet.DEFAULT_COMPACTION_SIZE;
+	final ConcurrentHashMap<RippleDaemonConnection, TransactionValidator> validators = new ConcurrentHashMap<RippleDaemonConnection, TransactionValidator>();
+	final AtomicInteger submitCounter = new AtomicInteger();
+
+	public MultiAccountWallet(File walletFile) throws IOException {
+		this(walletFile, DEFAULT_NB_STRIPES);
+	}
+
+	/**
+	 * Opens the wallet, or creates it when the file is missing or empty
+	 */
+	@SuppressWarnings("unchecked")
+	public MultiAccountWallet(File walletFile, int nbStripes) throws IOException {
+		this.walletFile = walletFile;
+		this.stripes = new ReentrantLock[nbStripes];
+		for(int i=0; i<nbStripes; i++){
+			stripes[i] = new ReentrantLock();
+		}
+		if(walletFile.length()>0){
+			ObjectInputStream ois = new ObjectInputStream(new FileInputStream(walletFile));
+			try {
+				if(ois.readInt()!=SNAPSHOT_VERSION){
+					throw new IOException(walletFile+" is not a multi account wallet");
+				}
+				int nbAccounts = ois.readInt();
+				WalletAccount[] loadedAccounts = new WalletAccount[nbAccounts];
+				for(int i=0; i<nbAccounts; i++){
+					RippleSeedAddress seed = (RippleSeedAddress) ois.readObject();
+					int accountNumber = ois.readInt();
+					loadedAccounts[i] = new WalletAccount(i, seed, accountNumber, ois.readInt());
+					loadedAccounts[i].pendingTransactions.putAll((Map<Integer, byte[]>) ois.readObject());
+					accountsByAddress.put(loadedAccounts[i].address, loadedAccounts[i]);
+				}
+				accounts = loadedAccounts;
+			} catch (ClassNotFoundException e) {
+				throw new IOException(e);
+			} finally {
+				ois.close();
+			}
+		}
+		journal = new WalletJournal(RippleWallet.getJournalFile(walletFile));
+		try {
+			replayJournal();
+		} catch (RuntimeException e) {
+			journal.close();
+			throw e;
+		}
+	}
+
+	protected void replayJournal() throws IOException {
+		journal.replay(new WalletJournal.RecordVisitor() {
+			@Override
+			public void visit(byte type, int accountIndex, int sequenceNumber, byte[] signedBlob) {
+				if(accountIndex<0 || accountIndex>=accounts.length){
+					throw new RuntimeException("The journal of "+walletFile+" refers to account "+accountIndex+" but the wallet has "+accounts.length);
+				}
+				WalletAccount account = accounts[accountIndex];
+				if(type==WalletJournal.ALLOCATED){
+					account.pendingTransactions.put(sequenceNumber, signedBlob);
+					account.nextTransactionSequenceNumber = Math.max(account.nextTransactionSequenceNumber, sequenceNumber+1);
+				}
+				else if(type==WalletJournal.COMPLETED){
+					account.pendingTransactions.remove(sequenceNumber);
+				}
+			}
+		});
+	}
+
+	ReentrantLock getStripe(WalletAccount account){
+		return stripes[account.accountIndex%stripes.length];
+	}
+
+	/**
+	 * The account is in the snapshot before any of its transactions is in the journal
+	 * @return the account already in the wallet if it was added before
+	 */
+	public synchronized WalletAccount addAccount(RippleSeedAddress seed, int accountNumber, int nextTransactionSequenceNumber) throws IOException {
+		WalletAccount account = new WalletAccount(accounts.length, seed, accountNumber, nextTransactionSequenceNumber);
+		WalletAccount existingAccount = accountsByAddress.get(account.address);
+		if(existingAccount!=null){
+			return existingAccount;
+		}
+		WalletAccount[] newAccounts = Arrays.copyOf(accounts, accounts.length+1);
+		newAccounts[account.accountIndex] = account;
+		accounts = newAccounts;
+		accountsByAddress.put(account.address, account);
+		compact();
+		return account;
+	}
+
+	/**
+	 * Starts from the next sequence number of the account, as known by the server
+	 */
+	public WalletAccount addAccount(RippleSeedAddress seed, int accountNumber, RippleDaemonConnection connection) throws Exception {
+		RippleDeterministicKeyGenerator generator = new RippleDeterministicKeyGenerator(seed.getBytes());
+		String address = generator.getAccountPublicKey(accountNumber).getAddress().toString();
+		int nextSequenceNumber = (int) connection.getAccountInfoFuture(address).get().nextTransactionSequence;
+		return addAccount(seed, accountNumber, nextSequenceNumber);
+	}
+
+	public WalletAccount getAccount(RippleAddress address) {
+		WalletAccount account = accountsByAddress.get(address);
+		if(account==null){
+			throw new RuntimeException(address+" is not in the wallet");
+		}
+		return account;
+	}
+
+	public List<WalletAccount> getAccounts() {
+		return Arrays.asList(accounts);
+	}
+
+	/**
+	 * Signs a payment with the next sequence of the payer, and returns once it is durable in the journal.
+	 * It has no LastLedgerSequence, it can be submitted at any time.
+	 * @return the signed transaction, to submit
+	 */
+	public byte[] signPayment(RippleAddress payer, RippleAddress payee, DenominatedIssuedCurrency amount) throws Exception {
+		return signPayment(getAccount(payer), payee, amount, 0);
+	}
+
+	/**
+	 * @param lastLedgerSequence : 0 for none
+	 */
+	protected byte[] signPayment(WalletAccount account, RippleAddress payee, DenominatedIssuedCurrency amount, long lastLedgerSequence) throws Exception {
+		int sequenceNumber = allocateSequenceNumber(account);
+		byte[] signedTXBytes;
+		try {
+			RippleBinaryObject payment = new RipplePaymentTransaction(account.address, payee, amount, sequenceNumber).getBinaryObject();
+			if(lastLedgerSequence!=0){
+				payment.putField(BinaryFormatField.LastLedgerSequence, lastLedgerSequence);
+			}
+			signedTXBytes = account.signer.signToBlob(payment);
+		} catch (Exception e) {
+			releaseSequenceNumber(account, sequenceNumber);
+			throw e;
+		}
+		journal.sync(logPending(account, sequenceNumber, signedTXBytes));
+		return signedTXBytes;
+	}
+
+	/**
+	 * Signs the payment with a LastLedgerSequence, then submits it.
+	 * The future completes once the payment is validated and no longer pending,
+	 * or with the preliminary result when it did not apply, see {@link #resubmitPendingTransactions(RippleAddress, RippleDaemonConnection)}.
+	 * It fails when the payment could not be submitted, or when its completion could not be written to the journal.
+	 */
+	public FutureJSONResponse<SubmitResult> sendPayment(RippleAddress payer, RippleAddress payee, DenominatedIssuedCurrency amount, RippleDaemonConnection connection) throws Exception {
+		WalletAccount account = getAccount(payer);
+		byte[] signedTXBytes = signPayment(account, payee, amount, getValidator(connection).getLastLedgerSequence());
+		return submit(account, signedTXBytes, connection);
+	}
+
+	/**
+	 * Sends again the signed transactions of the account still pending, after a restart or a result which did not apply.
+	 * A blob already applied is answered tefALREADY, so it is never applied twice.
+	 * @return the results by sequence number, as for {@link #sendPayment(RippleAddress, RippleAddress, DenominatedIssuedCurrency, RippleDaemonConnection)}
+	 */
+	public TreeMap<Integer, FutureJSONResponse<SubmitResult>> resubmitPendingTransactions(RippleAddress payer, RippleDaemonConnection connection) {
+		WalletAccount account = getAccount(payer);
+		TreeMap<Integer, FutureJSONResponse<SubmitResult>> results = new TreeMap<Integer, FutureJSONResponse<SubmitResult>>();
+		for(Map.Entry<Integer, byte[]> pending : getPendingTransactions(payer).entrySet()){
+			results.put(pending.getKey(), submit(account, pending.getValue(), connection));
+		}
+		return results;
+	}
+
+	protected FutureJSONResponse<SubmitResult> submit(final WalletAccount account, final byte[] signedTXBytes, final RippleDaemonConnection connection) {
+		final FutureJSONResponse<SubmitResult> settled = new FutureJSONResponse<SubmitResult>(submitCounter.getAndIncrement(), null, new SubmitResult());
+		final FutureJSONResponse<SubmitResult> submitted = connection.submitSignedTransactionFuture(signedTXBytes);
+		submitted.addListener(new JSONResponseListener<SubmitResult>() {
+			@Override
+			public void onSuccess(SubmitResult result) {
+				JSONObject response;
+				try {
+					response = submitted.getResponse();
+				} catch (Exception e) {
+					settled.setException(e); //Not reached, the submit is done
+					return;
+				}
+				if(isApplied(result)){
+					awaitValidation(account, signedTXBytes, response, settled, connection);
+				}
+				else{
+					settled.set(response); //Still pending, a ter may apply later or not at all
+				}
+			}
+
+			@Override
+			public void onFailure(Throwable cause) {
+				settled.setException(cause); //Still pending, see resubmitPendingTransactions
+			}
+		}, RippleDaemonConnection.DIRECT_EXECUTOR);
+		return settled;
+	}
+
+	/**
+	 * The transaction is no longer pending once validated. An expired one is signed again with the same sequence and submitted.
+	 */
+	protected void awaitValidation(final WalletAccount account, final byte[] signedTXBytes, final JSONObject response, final FutureJSONResponse<SubmitResult> settled, final RippleDaemonConnection connection){
+		final RippleBinaryObject transaction = new RippleBinarySerializer().readBinaryObject(ByteBuffer.wrap(signedTXBytes));
+		final int sequenceNumber = ((Number) transaction.getField(BinaryFormatField.Sequence)).intValue();
+		Object lastLedgerSequence = transaction.getField(BinaryFormatField.LastLedgerSequence);
+		String txHash = DatatypeConverter.printHexBinary(HistoryRecord.computeHash(signedTXBytes));
+		FutureJSONResponse<BinaryTransaction> validated = getValidator(connection).awaitValidation(txHash, lastLedgerSequence==null ? Long.MAX_VALUE : ((Number) lastLedgerSequence).longValue());
+		validated.addListener(new JSONResponseListener<BinaryTransaction>() {
+			@Override
+			public void onSuccess(BinaryTransaction validatedTransaction) {
+				try {
+					logCompleted(account, sequenceNumber);
+				} catch (IOException e) {
+					settled.setException(e);
+					return;
+				}
+				settled.set(TransactionValidator.getValidatedResponse(response, validatedTransaction));
+			}
+
+			@Override
+			public void onFailure(Throwable cause) {
+				if(cause instanceof TransactionExpiredException==false){
+					settled.setException(cause); //Cancelled by close()
+					return;
+				}
+				try {
+					RippleBinaryObject unsigned = transaction.getUnsignedCopy();
+					unsigned.putField(BinaryFormatField.LastLedgerSequence, getValidator(connection).getLastLedgerSequence());
+					byte[] resignedTXBytes = account.signer.signToBlob(unsigned);
+					journal.sync(logPending(account, sequenceNumber, resignedTXBytes));
+					forward(submit(account, resignedTXBytes, connection), settled);
+				} catch (Exception e) {
+					settled.setException(e);
+				}
+			}
+		}, RippleDaemonConnection.DIRECT_EXECUTOR);
+	}
+
+	static void forward(final FutureJSONResponse<SubmitResult> from, final FutureJSONResponse<SubmitResult> to){
+		from.addListener(new JSONResponseListener<SubmitResult>() {
+			@Override
+			public void onSuccess(SubmitResult result) {
+				try {
+					to.set(from.getResponse());
+				} catch (Exception e) {
+					to.setException(e); //Not reached, it is done
+				}
+			}
+
+			@Override
+			public void onFailure(Throwable cause) {
+				to.setException(cause);
+			}
+		}, RippleDaemonConnection.DIRECT_EXECUTOR);
+	}
+
+	/**
+	 * @return true when the result is the validated one, the transaction is in a ledger either applied or only claiming its fee
+	 */
+	public static boolean isFinal(SubmitResult result) {
+		return result.validated;
+	}
+
+	/**
+	 * @return true when the transaction applied to the open ledger or already is in a ledger, it may still not be validated
+	 */
+	static boolean isApplied(SubmitResult result) {
+		String engineResult = result.engineResult;
+		return engineResult!=null && (engineResult.startsWith("tes") || engineResult.startsWith("tec") || engineResult.equals("tefALREADY") || engineResult.equals("terQUEUED"));
+	}
+
+	/**
+	 * @return follows the transactions submitted to the connection until they are validated, created on first use
+	 */
+	public TransactionValidator getValidator(RippleDaemonConnection connection) {
+		TransactionValidator validator = validators.get(connection);
+		if(validator==null){
+			TransactionValidator newValidator = new TransactionValidator(connection);
+			validator = validators.putIfAbsent(connection, newValidator);
+			if(validator==null){
+				validator = newValidator;
+			}
+		}
+		return validator;
+	}
+
+	/**
+	 * A sequence released by a failed signing is taken first
+	 */
+	protected int allocateSequenceNumber(WalletAccount account){
+		ReentrantLock stripe = getStripe(account);
+		stripe.lock();
+		try {
+			Integer releasedSequenceNumber = account.releasedSequenceNumbers.pollFirst();
+			if(releasedSequenceNumber!=null){
+				return releasedSequenceNumber;
+			}
+			return account.nextTransactionSequenceNumber++;
+		} finally {
+			stripe.unlock();
+		}
+	}
+
+	/**
+	 * The transaction of the sequence was not signed, the sequence goes to the next one so it does not leave a gap
+	 */
+	protected void releaseSequenceNumber(WalletAccount account, int sequenceNumber){
+		ReentrantLock stripe = getStripe(account);
+		stripe.lock();
+		try {
+			if(account.nextTransactionSequenceNumber==sequenceNumber+1){
+				account.nextTransactionSequenceNumber = sequenceNumber;
+			}
+			else{
+				account.releasedSequenceNumbers.add(sequenceNumber);
+			}
+		} finally {
+			stripe.unlock();
+		}
+	}
+
+	/**
+	 * @return the journal position to sync before submitting the transaction
+	 */
+	protected long logPending(WalletAccount account, int sequenceNumber, byte[] signedTransaction) throws IOException {
+		long position;
+		ReentrantLock stripe = getStripe(account);
+		stripe.lock();
+		try {
+			position = journal.append(WalletJournal.ALLOCATED, account.accountIndex, sequenceNumber, signedTransaction);
+			account.pendingTransactions.put(sequenceNumber, signedTransaction);
+		} finally {
+			stripe.unlock();
+		}
+		compactIfNeeded();
+		return position;
+	}
+
+	protected void logCompleted(WalletAccount account, int sequenceNumber) throws IOException {
+		ReentrantLock stripe = getStripe(account);
+		stripe.lock();
+		try {
+			journal.append(WalletJournal.COMPLETED, account.accountIndex, sequenceNumber, null);
+			account.pendingTransactions.remove(sequenceNumber);
+		} finally {
+			stripe.unlock();
+		}
+		compactIfNeeded();
+	}
+
+	/**
+	 * @return the signed transactions of the account not known to be validated, by sequence number
+	 */
+	public TreeMap<Integer, byte[]> getPendingTransactions(RippleAddress address) {
+		WalletAccount account = getAccount(address);
+		ReentrantLock stripe = getStripe(account);
+		stripe.lock();
+		try {
+			return new TreeMap<Integer, byte[]>(account.pendingTransactions);
+		} finally {
+			stripe.unlock();
+		}
+	}
+
+	public int getNextTransactionSequenceNumber(RippleAddress address) {
+		WalletAccount account = getAccount(address);
+		ReentrantLock stripe = getStripe(account);
+		stripe.lock();
+		try {
+			return account.nextTransactionSequenceNumber;
+		} finally {
+			stripe.unlock();
+		}
+	}
+
+	public void setCompactionSize(long compactionSize) {
+		this.compactionSize = compactionSize;
+	}
+
+	protected void compactIfNeeded() throws IOException {
+		if(journal.getSize()>compactionSize){
+			compact();
+		}
+	}
+
+	/**
+	 * Writes the snapshot with all the stripes locked, then empties the journal
+	 */
+	public void compact() throws IOException {
+		synchronized(compactionLock) {
+			for(ReentrantLock stripe : stripes){
+				stripe.lock();
+			}
+			try {
+				saveWallet();
+				journal.reset();
+			} finally {
+				for(ReentrantLock stripe : stripes){
+					stripe.unlock();
+				}
+			}
+		}
+	}
+
+	protected void saveWallet() throws IOException {
+		File tempWalletFile = new File(walletFile.getAbsolutePath()+".tmp");
+		FileOutputStream fos = new FileOutputStream(tempWalletFile);
+		ObjectOutputStream oos = new ObjectOutputStream(fos);
+		WalletAccount[] accounts = this.accounts;
+		oos.writeInt(SNAPSHOT_VERSION);
+		oos.writeInt(accounts.length);
+		for(WalletAccount account : accounts){
+			oos.writeObject(account.seed);
+			oos.writeInt(account.accountNumber);
+			oos.writeInt(account.nextTransactionSequenceNumber);
+			oos.writeObject(account.pendingTransactions);
+		}
+		oos.flush();
+		fos.getFD().sync();
+		oos.close();
+		RippleWallet.replaceFile(tempWalletFile, walletFile);
+	}
+
+	public void close() throws IOException {
+		for(TransactionValidator validator : validators.values()){
+			validator.close();
+		}
+		journal.close();
+	}
+}
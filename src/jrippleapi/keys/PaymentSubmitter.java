@@ -0,0 +1,655 @@
+package jrippleapi.keys;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.bind.DatatypeConverter;
+
+import jrippleapi.connection.BinaryTransaction;
+import jrippleapi.connection.FeeTracker;
+import jrippleapi.connection.FutureJSONResponse;
+import jrippleapi.connection.HashedTimerWheel;
+import jrippleapi.connection.JSONResponseListener;
+import jrippleapi.connection.RippleDaemonConnection;
+import jrippleapi.connection.RippleDaemonException;
+import jrippleapi.connection.SubmitResult;
+import jrippleapi.connection.TransactionExpiredException;
+import jrippleapi.connection.TransactionValidator;
+import jrippleapi.core.DenominatedIssuedCurrency;
+import jrippleapi.core.RippleAddress;
+import jrippleapi.core.RipplePaymentTransaction;
+import jrippleapi.core.RippleSeedAddress;
+import jrippleapi.history.HistoryRecord;
+import jrippleapi.serialization.RippleBinaryObject;
+import jrippleapi.serialization.RippleBinarySchema.BinaryFormatField;
+import jrippleapi.serialization.RippleBinarySchema.TransactionTypes;
+
+import org.json.simple.JSONObject;
+
+/**
+ * Submits many payments from one account without waiting for each of them.
+ * The sequence numbers are allocated locally, the payments are signed on a pool of threads,
+ * then submitted in sequence order with up to maxInFlight submits waiting for their response.
+ *
+ * Each transaction is signed with a LastLedgerSequence a few ledgers ahead, see {@link TransactionValidator}.
+ * The engine result of each submit decides what happens to the payment:
+ * after a tesSUCCESS, terQUEUED or tec it waits for validation, then completes with the validated result.
+ * If its LastLedgerSequence passes first, it can no longer apply: it fails with a {@link TransactionExpiredException} and its sequence is filled.
+ * ter and tel are submitted again later, usually a terPRE_SEQ because an earlier sequence is not applied yet.
+ * With a {@link FeeTracker}, the fee follows the load of the network, and a telINSUF_FEE_P signs the payment again with an escalated fee.
+ * tefPAST_SEQ means the sequence was used by another transaction, the payment is signed again with a new sequence.
+ * Any other tef or tem completes the payment as failed, and an empty AccountSet takes its sequence so the next ones can apply.
+ *
+ * The future of each payment completes with the response of its last submit, check {@link SubmitResult#isSuccess()}.
+ * Only an expiry, or a failure to reach the server after all the retries, completes it with an exception.
+ * When even the empty AccountSet of a gap cannot be signed or submitted, the sequence is given to the next payment if it is the last one allocated,
+ * otherwise the payments after it still waiting to be sent are failed.
+ *
+ * @author pmarches
+ */
+public class PaymentSubmitter {
+	public static final int DEFAULT_MAX_IN_FLIGHT = 64;
+	public static final int DEFAULT_MAX_ATTEMPTS = 10;
+	public static final long DEFAULT_RETRY_DELAY_MS = 500;
+
+	final RippleDaemonConnection connection;
+	final RippleAddress account;
+	final RippleSigner signer;
+	final ExecutorService signingExecutor;
+	final TransactionValidator validator;
+	final int maxInFlight;
+	int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+	long retryDelayMs = DEFAULT_RETRY_DELAY_MS;
+	volatile FeeTracker feeTracker;
+
+	final AtomicLong nextSequenceNumber;
+	volatile long nextSequenceToSend; //Only modified by the dispatching thread
+	final ConcurrentSkipListMap<Long, PendingTransaction> signedBySequence = new ConcurrentSkipListMap<Long, PendingTransaction>();
+	final ConcurrentLinkedQueue<PendingTransaction> resubmitQueue = new ConcurrentLinkedQueue<PendingTransaction>();
+	final AtomicBoolean isDispatching = new AtomicBoolean();
+	final AtomicInteger nbInFlight = new AtomicInteger();
+	final AtomicInteger paymentCounter = new AtomicInteger();
+
+	final AtomicInteger nbPending = new AtomicInteger();
+	final AtomicLong nbSubmits = new AtomicLong();
+	final AtomicLong nbSucceeded = new AtomicLong();
+	final AtomicLong nbFailed = new AtomicLong();
+	final AtomicLong nbRetries = new AtomicLong();
+	final AtomicLong nbResequenced = new AtomicLong();
+	final AtomicLong nbGapsFilled = new AtomicLong();
+	final AtomicLong nbGapFillsRejected = new AtomicLong();
+	final AtomicLong nbGapFillsFailed = new AtomicLong();
+	final AtomicLong nbExpired = new AtomicLong();
+	final AtomicLong nbFeeEscalations = new AtomicLong();
+	volatile long firstSubmitTime;
+	volatile long lastCompletionTime;
+	volatile Throwable lastGapFillFailure;
+
+	class PendingTransaction {
+		final RipplePaymentTransaction payment; //null when filling a gap
+		final FutureJSONResponse<SubmitResult> result;
+		long sequenceNumber;
+		long lastLedgerSequence;
+		byte[] signedBlob; //null for a released sequence, skipped by dispatch
+		String txHash;
+		int nbAttempts;
+		int nbFeeEscalations; //The times it was refused for its fee
+
+		PendingTransaction(RipplePaymentTransaction payment, long sequenceNumber) {
+			this.payment = payment;
+			this.sequenceNumber = sequenceNumber;
+			this.result = payment==null ? null : new FutureJSONResponse<SubmitResult>(paymentCounter.getAndIncrement(), null, new SubmitResult());
+		}
+
+		RippleBinaryObject getBinaryObject(){
+			FeeTracker currentFeeTracker = feeTracker;
+			if(payment!=null){
+				payment.sequenceNumber = sequenceNumber;
+				if(currentFeeTracker!=null){
+					payment.fee = currentFeeTracker.getFee(nbFeeEscalations);
+				}
+				RippleBinaryObject paymentObject = payment.getBinaryObject();
+				paymentObject.putField(BinaryFormatField.LastLedgerSequence, lastLedgerSequence);
+				return paymentObject;
+			}
+			RippleBinaryObject accountSet = new RippleBinaryObject();
+			accountSet.putField(BinaryFormatField.TransactionType, (int) TransactionTypes.ACCOUNT_SET.byteValue);
+			accountSet.putField(BinaryFormatField.Account, account);
+			accountSet.putField(BinaryFormatField.Sequence, sequenceNumber);
+			accountSet.putField(BinaryFormatField.Fee, currentFeeTracker==null ? new DenominatedIssuedCurrency(10) : currentFeeTracker.getFee(nbFeeEscalations));
+			accountSet.putField(BinaryFormatField.Flags, 0L);
+			accountSet.putField(BinaryFormatField.LastLedgerSequence, lastLedgerSequence);
+			return accountSet;
+		}
+	}
+
+	/**
+	 * Starts from the next sequence number of the account, as known by the server
+	 */
+	public PaymentSubmitter(RippleDaemonConnection connection, RippleSeedAddress seed, int nbSigningThreads) throws Exception {
+		this(connection, seed, connection.getAccountInfoFuture(seed.getPublicRippleAddress().toString()).get().nextTransactionSequence, nbSigningThreads, DEFAULT_MAX_IN_FLIGHT);
+	}
+
+	public PaymentSubmitter(RippleDaemonConnection connection, RippleSeedAddress seed, long nextSequenceNumber, int nbSigningThreads, int maxInFlight) {
+		this.connection = connection;
+		this.account = seed.getPublicRippleAddress();
+		this.signer = new RippleSigner(seed.getPrivateKey(0));
+		this.nextSequenceNumber = new AtomicLong(nextSequenceNumber);
+		this.nextSequenceToSend = nextSequenceNumber;
+		this.maxInFlight = maxInFlight;
+		this.signingExecutor = Executors.newFixedThreadPool(nbSigningThreads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread signingThread = new Thread(r, "PaymentSubmitter");
+				signingThread.setDaemon(true);
+				return signingThread;
+			}
+		});
+		this.validator = new TransactionValidator(connection);
+		this.validator.setPollExecutor(signingExecutor);
+	}
+
+	public FutureJSONResponse<SubmitResult> submitPayment(RippleAddress payee, DenominatedIssuedCurrency amount){
+		return submitPayment(new RipplePaymentTransaction(account, payee, amount, 0));
+	}
+
+	/**
+	 * @param payment : its sequence number is replaced by the one allocated here
+	 */
+	public FutureJSONResponse<SubmitResult> submitPayment(RipplePaymentTransaction payment){
+		if(account.equals(payment.payer)==false){
+			throw new RuntimeException("The payment must be sent from "+account+", not "+payment.payer);
+		}
+		if(firstSubmitTime==0){
+			firstSubmitTime = System.currentTimeMillis();
+		}
+		nbPending.incrementAndGet();
+		PendingTransaction pending = new PendingTransaction(payment, nextSequenceNumber.getAndIncrement());
+		signLater(pending, false);
+		return pending.result;
+	}
+
+	/**
+	 * @param isResubmit : the sequence was already dispatched, the transaction does not wait for its turn
+	 */
+	protected void signLater(final PendingTransaction pending, final boolean isResubmit){
+		signingExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					pending.lastLedgerSequence = validator.getLastLedgerSequence();
+					pending.signedBlob = signer.signToBlob(pending.getBinaryObject());
+					pending.txHash = DatatypeConverter.printHexBinary(HistoryRecord.computeHash(pending.signedBlob));
+				} catch (Exception e) {
+					if(pending.payment==null){
+						nbGapFillsFailed.incrementAndGet();
+						abandonGap(pending.sequenceNumber, isResubmit, e);
+						return;
+					}
+					failPayment(pending, e);
+					fillGap(pending.sequenceNumber, isResubmit);
+					return;
+				}
+				if(isResubmit || pending.sequenceNumber<nextSequenceToSend){ //A released sequence taken again is already past
+					resubmitQueue.add(pending);
+				}
+				else{
+					signedBySequence.put(pending.sequenceNumber, pending);
+				}
+				dispatch();
+			}
+		});
+	}
+
+	/**
+	 * Only one thread dispatches at a time. The new sequences are sent in order, the resubmits as soon as possible.
+	 */
+	protected void dispatch(){
+		do {
+			if(isDispatching.compareAndSet(false, true)==false){
+				return;
+			}
+			try {
+				while(nbInFlight.get()<maxInFlight){
+					PendingTransaction pending = resubmitQueue.poll();
+					if(pending==null){
+						pending = signedBySequence.remove(nextSequenceToSend);
+						if(pending==null){
+							break;
+						}
+						nextSequenceToSend++;
+						if(pending.signedBlob==null){
+							continue; //Released, nothing to send
+						}
+					}
+					send(pending);
+				}
+			} finally {
+				isDispatching.set(false);
+			}
+		} while(nbInFlight.get()<maxInFlight && (resubmitQueue.isEmpty()==false || signedBySequence.containsKey(nextSequenceToSend)));
+	}
+
+	protected void send(final PendingTransaction pending){
+		nbInFlight.incrementAndGet();
+		nbSubmits.incrementAndGet();
+		pending.nbAttempts++;
+		final FutureJSONResponse<SubmitResult> submitted = connection.submitSignedTransactionFuture(pending.signedBlob);
+		submitted.addListener(new JSONResponseListener<SubmitResult>() {
+			@Override
+			public void onSuccess(SubmitResult result) {
+				nbInFlight.decrementAndGet();
+				try {
+					onSubmitted(pending, submitted.getResponse(), result);
+				} catch (Exception e) {
+					onSubmitFailed(pending, e); //Already out of flight
+				}
+				dispatch();
+			}
+
+			@Override
+			public void onFailure(Throwable cause) {
+				nbInFlight.decrementAndGet();
+				onSubmitFailed(pending, cause);
+				dispatch();
+			}
+		}, RippleDaemonConnection.DIRECT_EXECUTOR);
+	}
+
+	protected void onSubmitted(PendingTransaction pending, JSONObject response, SubmitResult result){
+		String engineResult = result==null || result.engineResult==null ? "" : result.engineResult;
+		if(result!=null && (result.isSuccess() || result.isClaimedFee())){
+			awaitValidation(pending, response);
+		}
+		else if(engineResult.equals("tefPAST_SEQ")){
+			if(pending.payment==null){
+				return; //The gap was filled by another transaction
+			}
+			if(pending.nbAttempts>1){
+				checkAppliedOrResequence(pending, response, result);
+			}
+			else{
+				resequence(pending);
+			}
+		}
+		else if(engineResult.equals("telINSUF_FEE_P") && feeTracker!=null && pending.nbAttempts<maxAttempts){
+			escalateFee(pending);
+		}
+		else if(engineResult.startsWith("ter") || engineResult.startsWith("tel")){
+			if(pending.nbAttempts<maxAttempts){
+				resubmitLater(pending);
+			}
+			else if(pending.payment!=null && engineResult.startsWith("ter")){
+				checkAppliedOrReject(pending, response, result); //A held ter can still apply
+			}
+			else{
+				rejectTransaction(pending, response, result);
+			}
+		}
+		else{
+			rejectTransaction(pending, response, result);
+		}
+	}
+
+	/**
+	 * The server refused the fee, a tel is not relayed so the previous blob cannot apply
+	 */
+	protected void escalateFee(PendingTransaction pending){
+		nbFeeEscalations.incrementAndGet();
+		pending.nbFeeEscalations++;
+		signLater(pending, true);
+	}
+
+	protected void resequence(PendingTransaction pending){
+		nbResequenced.incrementAndGet();
+		pending.sequenceNumber = nextSequenceNumber.getAndIncrement();
+		signLater(pending, false);
+	}
+
+	/**
+	 * An earlier submit of the same blob may be the one that used the sequence, it must not be paid twice.
+	 * When it was applied, the payment completes as a tefALREADY.
+	 */
+	protected void checkAppliedOrResequence(final PendingTransaction pending, final JSONObject response, final SubmitResult result){
+		nbInFlight.incrementAndGet();
+		connection.getTransactionBinaryFuture(pending.txHash).addListener(new JSONResponseListener<BinaryTransaction>() {
+			@Override
+			public void onSuccess(BinaryTransaction transaction) {
+				nbInFlight.decrementAndGet();
+				if(transaction!=null && transaction.meta!=null){
+					completeApplied(pending, response);
+				}
+				else if(pending.nbAttempts<maxAttempts){
+					resubmitLater(pending); //Known but not applied yet
+				}
+				else{
+					completePayment(pending, response, result);
+				}
+				dispatch();
+			}
+
+			@Override
+			public void onFailure(Throwable cause) {
+				nbInFlight.decrementAndGet();
+				if(cause instanceof RippleDaemonException && "txnNotFound".equals(((RippleDaemonException) cause).error)){
+					resequence(pending);
+				}
+				else if(pending.nbAttempts<maxAttempts){
+					resubmitLater(pending);
+				}
+				else{
+					completePayment(pending, response, result);
+				}
+				dispatch();
+			}
+		}, RippleDaemonConnection.DIRECT_EXECUTOR);
+	}
+
+	/**
+	 * The payment is still not applied after all its attempts, but it may have been held by the server and applied since.
+	 * Only when it was not is it reported as failed and its sequence filled.
+	 */
+	protected void checkAppliedOrReject(final PendingTransaction pending, final JSONObject response, final SubmitResult result){
+		nbInFlight.incrementAndGet();
+		connection.getTransactionBinaryFuture(pending.txHash).addListener(new JSONResponseListener<BinaryTransaction>() {
+			@Override
+			public void onSuccess(BinaryTransaction transaction) {
+				nbInFlight.decrementAndGet();
+				if(transaction!=null && transaction.meta!=null){
+					completeApplied(pending, response);
+				}
+				else{
+					rejectTransaction(pending, response, result);
+				}
+				dispatch();
+			}
+
+			@Override
+			public void onFailure(Throwable cause) {
+				nbInFlight.decrementAndGet();
+				rejectTransaction(pending, response, result);
+				dispatch();
+			}
+		}, RippleDaemonConnection.DIRECT_EXECUTOR);
+	}
+
+	/**
+	 * An earlier submit of its blob was applied, the payment completes as a tefALREADY once validated
+	 */
+	@SuppressWarnings("unchecked")
+	protected void completeApplied(PendingTransaction pending, JSONObject response){
+		JSONObject appliedResult = new JSONObject((JSONObject) response.get("result"));
+		appliedResult.put("engine_result", "tefALREADY");
+		JSONObject appliedResponse = new JSONObject(response);
+		appliedResponse.put("result", appliedResult);
+		awaitValidation(pending, appliedResponse);
+	}
+
+	/**
+	 * The preliminary result is kept until the transaction is validated. If its LastLedgerSequence passes first it can no longer apply,
+	 * the payment fails and its sequence is filled, an expired gap filler is signed again.
+	 */
+	protected void awaitValidation(final PendingTransaction pending, final JSONObject response){
+		validator.awaitValidation(pending.txHash, pending.lastLedgerSequence).addListener(new JSONResponseListener<BinaryTransaction>() {
+			@Override
+			public void onSuccess(BinaryTransaction transaction) {
+				if(pending.payment==null){
+					nbGapsFilled.incrementAndGet();
+				}
+				else{
+					completeValidated(pending, response, transaction);
+				}
+			}
+
+			@Override
+			public void onFailure(Throwable cause) {
+				if(cause instanceof TransactionExpiredException==false){
+					return; //Cancelled by close()
+				}
+				nbExpired.incrementAndGet();
+				if(pending.payment!=null){
+					failPayment(pending, cause);
+					fillGap(pending.sequenceNumber, true);
+				}
+				else if(pending.nbAttempts<maxAttempts){
+					signLater(pending, true);
+				}
+				else{
+					nbGapFillsFailed.incrementAndGet();
+					abandonGap(pending.sequenceNumber, true, cause);
+				}
+			}
+		}, RippleDaemonConnection.DIRECT_EXECUTOR);
+	}
+
+	protected void completeValidated(PendingTransaction pending, JSONObject response, BinaryTransaction transaction){
+		JSONObject validatedResponse = TransactionValidator.getValidatedResponse(response, transaction);
+		SubmitResult validated = new SubmitResult();
+		validated.copyFrom((JSONObject) validatedResponse.get("result"));
+		completePayment(pending, validatedResponse, validated);
+	}
+
+	/**
+	 * The transaction will never apply, its sequence is filled so the next ones can
+	 */
+	protected void rejectTransaction(PendingTransaction pending, JSONObject response, SubmitResult result){
+		if(pending.payment==null){
+			nbGapFillsRejected.incrementAndGet();
+			return;
+		}
+		completePayment(pending, response, result);
+		fillGap(pending.sequenceNumber, true);
+	}
+
+	protected void onSubmitFailed(PendingTransaction pending, Throwable cause){
+		boolean isInvalid = cause instanceof RippleDaemonException && ((RippleDaemonException) cause).error!=null && ((RippleDaemonException) cause).error.startsWith("invalid");
+		if(isInvalid==false && pending.nbAttempts<maxAttempts){
+			resubmitLater(pending); //The same blob, in case the first one was applied
+			return;
+		}
+		if(pending.payment==null){
+			nbGapFillsFailed.incrementAndGet();
+			abandonGap(pending.sequenceNumber, true, cause);
+			return;
+		}
+		failPayment(pending, cause);
+		fillGap(pending.sequenceNumber, true);
+	}
+
+	protected void resubmitLater(final PendingTransaction pending){
+		nbRetries.incrementAndGet();
+		HashedTimerWheel.getSharedTimer().newTimeout(new Runnable() {
+			@Override
+			public void run() {
+				resubmitQueue.add(pending);
+				signingExecutor.execute(new Runnable() {
+					@Override
+					public void run() {
+						dispatch();
+					}
+				});
+			}
+		}, retryDelayMs, TimeUnit.MILLISECONDS);
+	}
+
+	protected void fillGap(long sequenceNumber, boolean isResubmit){
+		signLater(new PendingTransaction(null, sequenceNumber), isResubmit);
+	}
+
+	/**
+	 * The sequence could not be filled, no transaction after it can apply.
+	 * When it is the last one allocated, the next payment takes it. Otherwise it is skipped by dispatch
+	 * and the payments after it still waiting to be sent are failed, the ones already sent fail once their attempts are exhausted.
+	 * @param isDispatched : dispatch already went past the sequence
+	 */
+	protected void abandonGap(long sequenceNumber, boolean isDispatched, Throwable cause){
+		lastGapFillFailure = cause;
+		if(nextSequenceNumber.compareAndSet(sequenceNumber+1, sequenceNumber)){
+			return;
+		}
+		if(isDispatched==false){
+			signedBySequence.put(sequenceNumber, new PendingTransaction(null, sequenceNumber));
+		}
+		RuntimeException unfilled = new RuntimeException("Sequence "+sequenceNumber+" could not be filled", cause);
+		for(Long waitingSequence : signedBySequence.tailMap(sequenceNumber, false).keySet()){
+			PendingTransaction waiting = signedBySequence.get(waitingSequence);
+			if(waiting!=null && waiting.payment!=null && signedBySequence.replace(waitingSequence, waiting, new PendingTransaction(null, waitingSequence))){
+				failPayment(waiting, unfilled);
+			}
+		}
+		dispatch();
+	}
+
+	protected void completePayment(PendingTransaction pending, JSONObject response, SubmitResult result){
+		if(result!=null && result.isSuccess()){
+			nbSucceeded.incrementAndGet();
+		}
+		else{
+			nbFailed.incrementAndGet();
+		}
+		lastCompletionTime = System.currentTimeMillis();
+		nbPending.decrementAndGet();
+		pending.result.set(response);
+	}
+
+	protected void failPayment(PendingTransaction pending, Throwable cause){
+		nbFailed.incrementAndGet();
+		lastCompletionTime = System.currentTimeMillis();
+		nbPending.decrementAndGet();
+		pending.result.setException(cause);
+	}
+
+	public void setMaxAttempts(int maxAttempts) {
+		this.maxAttempts = maxAttempts;
+	}
+
+	public void setRetryDelay(long retryDelay, TimeUnit unit) {
+		this.retryDelayMs = unit.toMillis(retryDelay);
+	}
+
+	/**
+	 * @param feeTracker : gives the fee of the payments signed from now on, null to pay 10 drops
+	 */
+	public void setFeeTracker(FeeTracker feeTracker) {
+		this.feeTracker = feeTracker;
+	}
+
+	/**
+	 * @return the sequence number the next payment will get
+	 */
+	public long getNextSequenceNumber() {
+		return nextSequenceNumber.get();
+	}
+
+	/**
+	 * @return the payments not completed yet
+	 */
+	public int getNbPending() {
+		return nbPending.get();
+	}
+
+	public int getNbInFlight() {
+		return nbInFlight.get();
+	}
+
+	/**
+	 * @return the submit commands sent, including the retries and the gap fills
+	 */
+	public long getNbSubmits() {
+		return nbSubmits.get();
+	}
+
+	public long getNbSucceeded() {
+		return nbSucceeded.get();
+	}
+
+	public long getNbFailed() {
+		return nbFailed.get();
+	}
+
+	public long getNbRetries() {
+		return nbRetries.get();
+	}
+
+	/**
+	 * @return the payments signed again with a new sequence after a tefPAST_SEQ
+	 */
+	public long getNbResequenced() {
+		return nbResequenced.get();
+	}
+
+	/**
+	 * @return the sequences of rejected payments taken by an empty AccountSet
+	 */
+	public long getNbGapsFilled() {
+		return nbGapsFilled.get();
+	}
+
+	/**
+	 * @return the empty AccountSets which were rejected too, their sequences stay unfilled
+	 */
+	public long getNbGapFillsRejected() {
+		return nbGapFillsRejected.get();
+	}
+
+	/**
+	 * @return the empty AccountSets which could not be signed or submitted, see {@link #getLastGapFillFailure()}
+	 */
+	public long getNbGapFillsFailed() {
+		return nbGapFillsFailed.get();
+	}
+
+	public Throwable getLastGapFillFailure() {
+		return lastGapFillFailure;
+	}
+
+	/**
+	 * @return the transactions whose LastLedgerSequence passed before they were validated
+	 */
+	public long getNbExpired() {
+		return nbExpired.get();
+	}
+
+	/**
+	 * @return the number of times a payment was signed again with a higher fee
+	 */
+	public long getNbFeeEscalations() {
+		return nbFeeEscalations.get();
+	}
+
+	/**
+	 * @return the payments completed per second, from the first submit to the last completion
+	 */
+	public double getPaymentsPerSecond() {
+		long elapsed = lastCompletionTime-firstSubmitTime;
+		if(firstSubmitTime==0 || elapsed<=0){
+			return 0;
+		}
+		return (nbSucceeded.get()+nbFailed.get())*1000.0/elapsed;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d succeeded, %d failed, %d pending, %d retries, %d resequenced, %d gaps filled, %.1f payments/s",
+				getNbSucceeded(), getNbFailed(), getNbPending(), getNbRetries(), getNbResequenced(), getNbGapsFilled(), getPaymentsPerSecond());
+	}
+
+	/**
+	 * @return follows the payments until they are validated, its poll interval and ledger offset can be changed
+	 */
+	public TransactionValidator getValidator() {
+		return validator;
+	}
+
+	public void close(){
+		validator.close();
+		signingExecutor.shutdown();
+	}
+}
@@ -4,9 +4,11 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.math.BigInteger;
 
+import jrippleapi.core.RippleAddress;
 import jrippleapi.core.RipplePrivateKey;
 import jrippleapi.serialization.RippleBinaryObject;
 import jrippleapi.serialization.RippleBinarySchema.BinaryFormatField;
+import jrippleapi.serialization.RippleBinarySerializer;
 
 import org.bouncycastle.asn1.ASN1InputStream;
 import org.bouncycastle.asn1.DERInteger;
@@ -45,6 +47,17 @@ public class RippleSigner {
 		return signedRBO;
 	}
 
+	/**
+	 * @return the signed transaction, serialized to be submitted as a tx_blob
+	 */
+	public byte[] signToBlob(RippleBinaryObject transaction) throws Exception {
+		return new RippleBinarySerializer().writeBinaryObject(sign(transaction)).array();
+	}
+
+	public RippleAddress getAddress() {
+		return privateKey.getPublicKey().getAddress();
+	}
+
 	private ECDSASignature signHash(byte[] hashOfBytes) throws Exception {
 		if(hashOfBytes.length!=32){
 			throw new RuntimeException("can sign only a hash of 32 bytes");
@@ -9,6 +9,8 @@ import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.util.Map;
+import java.util.TreeMap;
 
 import jrippleapi.connection.RippleAddressPublicInformation;
 import jrippleapi.connection.RippleDaemonRPCConnection;
@@ -16,21 +18,31 @@ import jrippleapi.core.DenominatedIssuedCurrency;
 import jrippleapi.core.RippleAddress;
 import jrippleapi.core.RipplePaymentTransaction;
 import jrippleapi.core.RippleSeedAddress;
-import jrippleapi.serialization.RippleBinaryObject;
-import jrippleapi.serialization.RippleBinarySerializer;
 
+/**
+ * The wallet file is a snapshot, the changes since are appended to a journal next to it, see {@link WalletJournal}.
+ * A signed transaction is durable in the journal before it is submitted, so after a crash it is still pending
+ * and can be submitted again, which is harmless if it was applied already.
+ * The journal is compacted into a new snapshot once it grows past the compaction size.
+ */
 public class RippleWallet implements Serializable {
 	private static final long serialVersionUID = -4849034810727882329L;
+	public static final long DEFAULT_COMPACTION_SIZE = 1024*1024;
+	static final String JOURNAL_SUFFIX = ".journal";
 
 	transient File walletFile;
+	transient WalletJournal journal;
+	transient long compactionSize = DEFAULT_COMPACTION_SIZE;
 	RippleSeedAddress seed;
 	int nextTransactionSequenceNumber;
-	byte[] pendingTransaction;
+	TreeMap<Integer, byte[]> pendingTransactions = new TreeMap<Integer, byte[]>();
 
 	protected RippleWallet(RippleSeedAddress seed, int nextTransactionSequenceNumber, File walletFile) throws IOException{
 		this.seed = seed;
 		this.nextTransactionSequenceNumber = nextTransactionSequenceNumber;
 		this.walletFile=walletFile;
+		this.journal = new WalletJournal(getJournalFile(walletFile));
+		compact(); //A journal left by another wallet at this place does not apply to this one
 	}
 
 	static public RippleWallet createWallet(RippleSeedAddress seed, File walletFile) {
@@ -38,14 +50,13 @@ public class RippleWallet implements Serializable {
 			RippleDaemonRPCConnection conn = new RippleDaemonRPCConnection();
 			RippleAddressPublicInformation publicInfo = conn.getPublicInformation(seed.getPublicRippleAddress());
 
-			RippleWallet wallet = new RippleWallet(seed, (int) publicInfo.nextTransactionSequence, walletFile);
-			wallet.saveWallet(walletFile);
-			return wallet;
+			return new RippleWallet(seed, (int) publicInfo.nextTransactionSequence, walletFile);
 		} catch (Exception e) {
 			throw new RuntimeException(e);
 		}
 	}
-	
+
+	@SuppressWarnings("unchecked")
 	public RippleWallet(File walletFile) throws Exception {
 		this.walletFile=walletFile;
 		if(walletFile.canWrite()==false){
@@ -55,43 +66,127 @@ public class RippleWallet implements Serializable {
 			ObjectInputStream ois = new ObjectInputStream(new FileInputStream(walletFile));
 			seed = (RippleSeedAddress) ois.readObject();
 			nextTransactionSequenceNumber = ois.readInt();
-			pendingTransaction=(byte[]) ois.readObject();
+			Object pending = ois.readObject();
+			if(pending instanceof byte[]){ //Written before the journal, with at most one pending transaction
+				pendingTransactions.put(nextTransactionSequenceNumber-1, (byte[]) pending);
+			}
+			else if(pending!=null){
+				pendingTransactions.putAll((Map<Integer, byte[]>) pending);
+			}
 			ois.close();
 		}
+		journal = new WalletJournal(getJournalFile(walletFile));
+		journal.replay(new WalletJournal.RecordVisitor() {
+			@Override
+			public void visit(byte type, int accountIndex, int sequenceNumber, byte[] signedBlob) {
+				if(type==WalletJournal.ALLOCATED){
+					pendingTransactions.put(sequenceNumber, signedBlob);
+					nextTransactionSequenceNumber = Math.max(nextTransactionSequenceNumber, sequenceNumber+1);
+				}
+				else if(type==WalletJournal.COMPLETED){
+					pendingTransactions.remove(sequenceNumber);
+				}
+			}
+		});
+	}
+
+	static File getJournalFile(File walletFile){
+		return new File(walletFile.getPath()+JOURNAL_SUFFIX);
 	}
-	
+
 	/**
-	 * This is the all-in-one API, it constructs the TX, signs it, stores it, and submits it to the network 
-	 * 
+	 * This is the all-in-one API, it constructs the TX, signs it, stores it, and submits it to the network.
+	 * Many threads can send at the same time, they share the fsync of the journal.
+	 *
 	 * @param xrpAmount
 	 * @param payee
 	 * @throws Exception
 	 */
 	public void sendXRP(BigInteger xrpAmount, RippleAddress payee) throws Exception{
+		int sequenceNumber = allocateSequenceNumber();
 		DenominatedIssuedCurrency amount = new DenominatedIssuedCurrency(new BigDecimal(xrpAmount));
-		RipplePaymentTransaction tx = new RipplePaymentTransaction(seed.getPublicRippleAddress(), payee, amount, this.nextTransactionSequenceNumber);
-		RippleBinaryObject rbo = tx.getBinaryObject();
-		rbo = new RippleSigner(seed.getPrivateKey(0)).sign(rbo);
+		RipplePaymentTransaction tx = new RipplePaymentTransaction(seed.getPublicRippleAddress(), payee, amount, sequenceNumber);
+		byte[] signedTXBytes = new RippleSigner(seed.getPrivateKey(0)).signToBlob(tx.getBinaryObject());
 
 		RippleDaemonRPCConnection conn = new RippleDaemonRPCConnection();
-		byte[] signedTXBytes = new RippleBinarySerializer().writeBinaryObject(rbo).array();
-		pendingTransaction = signedTXBytes;
-		nextTransactionSequenceNumber++;
-		saveWallet(walletFile);
+		journal.sync(logPending(sequenceNumber, signedTXBytes));
 		conn.submitTransaction(signedTXBytes);
-		pendingTransaction = null;
+		logCompleted(sequenceNumber); //Not synced, if it is lost the transaction is submitted again
+	}
+
+	protected synchronized int allocateSequenceNumber(){
+		return nextTransactionSequenceNumber++;
+	}
+
+	/**
+	 * @return the journal position to sync before submitting the transaction
+	 */
+	protected synchronized long logPending(int sequenceNumber, byte[] signedTransaction) throws IOException {
+		long position = journal.append(WalletJournal.ALLOCATED, 0, sequenceNumber, signedTransaction);
+		pendingTransactions.put(sequenceNumber, signedTransaction);
+		compactIfNeeded();
+		return position;
+	}
+
+	protected synchronized void logCompleted(int sequenceNumber) throws IOException {
+		journal.append(WalletJournal.COMPLETED, 0, sequenceNumber, null);
+		pendingTransactions.remove(sequenceNumber);
+		compactIfNeeded();
+	}
+
+	protected void compactIfNeeded() throws IOException {
+		if(journal.getSize()>compactionSize){
+			compact();
+		}
+	}
+
+	/**
+	 * Writes the snapshot, then empties the journal
+	 */
+	public synchronized void compact() throws IOException {
 		saveWallet(walletFile);
+		journal.reset();
+	}
+
+	/**
+	 * @return the signed transactions not known to be submitted, by sequence number
+	 */
+	public synchronized TreeMap<Integer, byte[]> getPendingTransactions() {
+		return new TreeMap<Integer, byte[]>(pendingTransactions);
+	}
+
+	public synchronized int getNextTransactionSequenceNumber() {
+		return nextTransactionSequenceNumber;
+	}
+
+	public void setCompactionSize(long compactionSize) {
+		this.compactionSize = compactionSize;
 	}
 
-	public void saveWallet(File saveToFile) throws IOException {
+	public synchronized void saveWallet(File saveToFile) throws IOException {
 		File tempWalletFile = new File(saveToFile.getAbsolutePath()+".tmp");
-		ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(tempWalletFile));
+		FileOutputStream fos = new FileOutputStream(tempWalletFile);
+		ObjectOutputStream oos = new ObjectOutputStream(fos);
 		oos.writeObject(seed);
 		oos.writeInt(nextTransactionSequenceNumber);
-		oos.writeObject(pendingTransaction);
+		oos.writeObject(pendingTransactions);
+		oos.flush();
+		fos.getFD().sync();
 		oos.close();
 
-		saveToFile.delete();
-		tempWalletFile.renameTo(saveToFile);
+		replaceFile(tempWalletFile, saveToFile);
+	}
+
+	static void replaceFile(File temporaryFile, File file) throws IOException {
+		if(temporaryFile.renameTo(file)==false){
+			file.delete();
+			if(temporaryFile.renameTo(file)==false){
+				throw new IOException("Could not replace "+file);
+			}
+		}
+	}
+
+	public void close() throws IOException {
+		journal.close();
 	}
 }
@@ -0,0 +1,212 @@
+package jrippleapi.keys;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * The changes to a wallet since its last snapshot, only ever appended.
+ *
+ * A record is laid out as:
+ * <pre>
+ * int payloadLength, int crc32 of the payload
+ * byte type, int accountIndex, int sequenceNumber, the signed blob for an ALLOCATED record
+ * </pre>
+ * A record cut short by a crash fails its CRC, it is truncated when the journal is replayed.
+ *
+ * Appending does not make a record durable, sync does. The threads waiting to sync while another one forces the file
+ * are all made durable by the next force, so many concurrent sends share one fsync.
+ *
+ * @author pmarches
+ */
+class WalletJournal {
+	static final int MAGIC = 0x4A52574A; //JRWJ
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 8;
+	static final int RECORD_HEADER_SIZE = 8;
+	static final int RECORD_FIELDS_SIZE = 1+4+4;
+
+	/**
+	 * The sequence number was signed into a transaction, which may be submitted once the record is durable
+	 */
+	static final byte ALLOCATED = 1;
+	/**
+	 * The transaction of the sequence number was submitted, it is no longer pending
+	 */
+	static final byte COMPLETED = 2;
+
+	interface RecordVisitor {
+		void visit(byte type, int accountIndex, int sequenceNumber, byte[] signedBlob);
+	}
+
+	final File file;
+	final RandomAccessFile randomAccessFile;
+	final FileChannel channel;
+	final Object forceLock = new Object();
+	long size;
+	long nbTruncatedBytes;
+	long appendedPosition; //Counts all the bytes appended since opened, unlike the size it never goes back
+	volatile long syncedPosition;
+	long nbSyncs;
+	long nbForces;
+
+	WalletJournal(File file) throws IOException {
+		this.file = file;
+		this.randomAccessFile = new RandomAccessFile(file, "rw");
+		this.channel = randomAccessFile.getChannel();
+		this.size = channel.size();
+		if(size==0){
+			writeHeader();
+		}
+		else{
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			channel.read(header, 0);
+			header.flip();
+			if(size<HEADER_SIZE || header.getInt()!=MAGIC || header.getInt()!=VERSION){
+				close();
+				throw new IOException(file+" is not a wallet journal");
+			}
+		}
+	}
+
+	void writeHeader() throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC).putInt(VERSION);
+		header.flip();
+		channel.write(header, 0);
+		size = HEADER_SIZE;
+	}
+
+	/**
+	 * Visits every record in order, and truncates the journal after the last valid one
+	 */
+	synchronized void replay(RecordVisitor visitor) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate((int) size);
+		channel.read(buffer, 0);
+		int offset = HEADER_SIZE;
+		CRC32 crc = new CRC32();
+		while(offset+RECORD_HEADER_SIZE<=size){
+			int payloadLength = buffer.getInt(offset);
+			int expectedCRC = buffer.getInt(offset+4);
+			if(payloadLength<RECORD_FIELDS_SIZE || offset+RECORD_HEADER_SIZE+payloadLength>size){
+				break;
+			}
+			crc.reset();
+			crc.update(buffer.array(), offset+RECORD_HEADER_SIZE, payloadLength);
+			if((int) crc.getValue()!=expectedCRC){
+				break;
+			}
+			byte type = buffer.get(offset+RECORD_HEADER_SIZE);
+			int accountIndex = buffer.getInt(offset+RECORD_HEADER_SIZE+1);
+			int sequenceNumber = buffer.getInt(offset+RECORD_HEADER_SIZE+5);
+			byte[] signedBlob = null;
+			if(type==ALLOCATED){
+				signedBlob = new byte[payloadLength-RECORD_FIELDS_SIZE];
+				System.arraycopy(buffer.array(), offset+RECORD_HEADER_SIZE+RECORD_FIELDS_SIZE, signedBlob, 0, signedBlob.length);
+			}
+			visitor.visit(type, accountIndex, sequenceNumber, signedBlob);
+			offset += RECORD_HEADER_SIZE+payloadLength;
+		}
+		if(offset<size){ //The last record is incomplete
+			nbTruncatedBytes += size-offset;
+			channel.truncate(offset);
+			size = offset;
+		}
+	}
+
+	/**
+	 * @param accountIndex : the account of a wallet having many, 0 otherwise
+	 * @return the position to sync for this record to be durable
+	 */
+	synchronized long append(byte type, int accountIndex, int sequenceNumber, byte[] signedBlob) throws IOException {
+		int payloadLength = RECORD_FIELDS_SIZE+(signedBlob==null ? 0 : signedBlob.length);
+		ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE+payloadLength);
+		buffer.position(RECORD_HEADER_SIZE);
+		buffer.put(type);
+		buffer.putInt(accountIndex);
+		buffer.putInt(sequenceNumber);
+		if(signedBlob!=null){
+			buffer.put(signedBlob);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(buffer.array(), RECORD_HEADER_SIZE, payloadLength);
+		buffer.putInt(0, payloadLength);
+		buffer.putInt(4, (int) crc.getValue());
+		buffer.flip();
+		while(buffer.hasRemaining()){
+			size += channel.write(buffer, size);
+		}
+		appendedPosition += RECORD_HEADER_SIZE+payloadLength;
+		return appendedPosition;
+	}
+
+	/**
+	 * Returns once the records appended up to the position are durable.
+	 * Only one thread forces at a time, the records appended while it does are forced together by the next one.
+	 */
+	void sync(long position) throws IOException {
+		synchronized(forceLock) {
+			nbSyncs++;
+			if(syncedPosition>=position){
+				return;
+			}
+			long forcedPosition;
+			synchronized(this) {
+				forcedPosition = appendedPosition;
+			}
+			channel.force(false);
+			nbForces++;
+			syncedPosition = forcedPosition;
+		}
+	}
+
+	/**
+	 * Drops all the records, once they are in a durable snapshot
+	 */
+	void reset() throws IOException {
+		synchronized(forceLock) {
+			synchronized(this) {
+				channel.truncate(HEADER_SIZE);
+				size = HEADER_SIZE;
+				channel.force(false);
+				syncedPosition = appendedPosition;
+			}
+		}
+	}
+
+	synchronized long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return the bytes of the incomplete records dropped by the replays
+	 */
+	synchronized long getNbTruncatedBytes() {
+		return nbTruncatedBytes;
+	}
+
+	/**
+	 * @return the calls to sync
+	 */
+	long getNbSyncs() {
+		synchronized(forceLock) {
+			return nbSyncs;
+		}
+	}
+
+	/**
+	 * @return the calls to sync that forced the file, the others were made durable by a force of another thread
+	 */
+	long getNbForces() {
+		synchronized(forceLock) {
+			return nbForces;
+		}
+	}
+
+	void close() throws IOException {
+		randomAccessFile.close();
+	}
+}
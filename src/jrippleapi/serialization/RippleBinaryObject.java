@@ -2,15 +2,20 @@ package jrippleapi.serialization;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map.Entry;
 
+import javax.xml.bind.DatatypeConverter;
+
+import jrippleapi.core.DenominatedIssuedCurrency;
 import jrippleapi.keys.RippleDeterministicKeyGenerator;
 import jrippleapi.serialization.RippleBinarySchema.BinaryFormatField;
 import jrippleapi.serialization.RippleBinarySchema.PrimitiveTypes;
 import jrippleapi.serialization.RippleBinarySchema.TransactionTypes;
 
+import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 
 public class RippleBinaryObject {
@@ -82,23 +87,67 @@ public class RippleBinaryObject {
 	}
 
 	public String toJSONString() {
+		return toJSON().toJSONString();
+	}
+
+	/**
+	 * Close to the JSON rippled returns when not in binary mode, hashes and blobs are in hexadecimal
+	 */
+	@SuppressWarnings("unchecked")
+	public JSONObject toJSON() {
 		JSONObject root = new JSONObject();
 		for(Entry<BinaryFormatField, Object> field:fields.entrySet()){
-			PrimitiveTypes primitive = field.getKey().primitive;
-			if(primitive==PrimitiveTypes.UINT8 || primitive==PrimitiveTypes.UINT16
-					|| primitive==PrimitiveTypes.UINT32 || primitive==PrimitiveTypes.UINT64){
-				root.put(field.getKey().toString(), field.getValue());
-			}
-			else{
-				root.put(field.getKey().toString(), field.getValue().toString());
+			root.put(field.getKey().toString(), toJSONValue(field.getKey().primitive, field.getValue()));
+		}
+		return root;
+	}
+
+	@SuppressWarnings("unchecked")
+	protected Object toJSONValue(PrimitiveTypes primitive, Object value) {
+		if(primitive==PrimitiveTypes.UINT8 || primitive==PrimitiveTypes.UINT16
+				|| primitive==PrimitiveTypes.UINT32 || primitive==PrimitiveTypes.UINT64){
+			return value;
+		}
+		else if(value instanceof byte[]){
+			return DatatypeConverter.printHexBinary((byte[]) value);
+		}
+		else if(value instanceof DenominatedIssuedCurrency){
+			return ((DenominatedIssuedCurrency) value).toJSON();
+		}
+		else if(primitive==PrimitiveTypes.OBJECT){
+			return ((RippleBinaryObject) value).toJSON();
+		}
+		else if(primitive==PrimitiveTypes.ARRAY || primitive==PrimitiveTypes.VECTOR256){
+			JSONArray jsonArray = new JSONArray();
+			for(Object element : (List<Object>) value){
+				if(element instanceof RippleBinaryObject){
+					jsonArray.add(((RippleBinaryObject) element).toJSON());
+				}
+				else{
+					jsonArray.add(DatatypeConverter.printHexBinary((byte[]) element));
+				}
 			}
+			return jsonArray;
 		}
-		return root.toJSONString();
+		return value.toString();
 	}
 
+	/**
+	 * The canonical order, by type code and then by field code
+	 */
+	static final Comparator<BinaryFormatField> CANONICAL_ORDER = new Comparator<BinaryFormatField>() {
+		@Override
+		public int compare(BinaryFormatField field1, BinaryFormatField field2) {
+			if(field1.primitive.typeCode!=field2.primitive.typeCode){
+				return field1.primitive.typeCode-field2.primitive.typeCode;
+			}
+			return field1.fieldId-field2.fieldId;
+		}
+	};
+
 	public List<BinaryFormatField> getSortedField() {
 		ArrayList<BinaryFormatField> sortedFields = new ArrayList<BinaryFormatField>(fields.keySet());
-		Collections.sort(sortedFields);
+		Collections.sort(sortedFields, CANONICAL_ORDER);
 		return sortedFields;
 	}
 
@@ -124,6 +124,7 @@ public class RippleBinarySchema {
 		SendMax(PrimitiveTypes.AMOUNT, 9),
 		MinimumOffer(PrimitiveTypes.AMOUNT, 16),
 		RippleEscrow(PrimitiveTypes.AMOUNT, 17),
+		DeliveredAmount(PrimitiveTypes.AMOUNT, 18),
 
 		PublicKey(PrimitiveTypes.VARIABLE_LENGTH, 1),
 		MessageKey(PrimitiveTypes.VARIABLE_LENGTH, 2),
@@ -136,6 +137,8 @@ public class RippleBinarySchema {
 		RemoveCode(PrimitiveTypes.VARIABLE_LENGTH, 9),
 		ExpireCode(PrimitiveTypes.VARIABLE_LENGTH, 10),
 		CreateCode(PrimitiveTypes.VARIABLE_LENGTH, 11),
+		MemoType(PrimitiveTypes.VARIABLE_LENGTH, 12),
+		MemoData(PrimitiveTypes.VARIABLE_LENGTH, 13),
 
 		Account(PrimitiveTypes.ACCOUNT, 1),
 		Owner(PrimitiveTypes.ACCOUNT, 2),
@@ -150,6 +153,7 @@ public class RippleBinarySchema {
 		Hashes(PrimitiveTypes.VECTOR256, 2),
 		Features(PrimitiveTypes.VECTOR256, 3),
 
+		ObjectEndMarker(PrimitiveTypes.OBJECT, 1),
 		TransactionMetaData(PrimitiveTypes.OBJECT, 2),
 		CreatedNode(PrimitiveTypes.OBJECT, 3),
 		DeletedNode(PrimitiveTypes.OBJECT, 4),
@@ -158,14 +162,17 @@ public class RippleBinarySchema {
 		FinalFields(PrimitiveTypes.OBJECT, 7),
 		NewFields(PrimitiveTypes.OBJECT, 8),
 		TemplateEntry(PrimitiveTypes.OBJECT, 9),
+		Memo(PrimitiveTypes.OBJECT, 10),
 
+		ArrayEndMarker(PrimitiveTypes.ARRAY, 1),
 		SigningAccounts(PrimitiveTypes.ARRAY, 2),
 		TxnSignatures(PrimitiveTypes.ARRAY, 3),
 		Signatures(PrimitiveTypes.ARRAY, 4),
 		Template(PrimitiveTypes.ARRAY, 5),
 		Necessary(PrimitiveTypes.ARRAY, 6),
 		Sufficient(PrimitiveTypes.ARRAY, 7),
-		AffectedNodes(PrimitiveTypes.ARRAY, 8);
+		AffectedNodes(PrimitiveTypes.ARRAY, 8),
+		Memos(PrimitiveTypes.ARRAY, 9);
 
 		PrimitiveTypes primitive;
 		int fieldId;
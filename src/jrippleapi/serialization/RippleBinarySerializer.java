@@ -2,7 +2,9 @@ package jrippleapi.serialization;
 
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.List;
 
 import javax.xml.bind.DatatypeConverter;
@@ -23,32 +25,72 @@ public class RippleBinarySerializer {
 	protected static final long MAX_VALUE = 9999999999999999l;
 
 	public RippleBinaryObject readBinaryObject(ByteBuffer input) {
+		return readObject(input, false);
+	}
+
+	/**
+	 * @param isInnerObject : An inner object ends with an {@link BinaryFormatField#ObjectEndMarker}, the outer one at the end of the input
+	 */
+	protected RippleBinaryObject readObject(ByteBuffer input, boolean isInnerObject) {
 		RippleBinaryObject serializedObject = new RippleBinaryObject();
 		while(input.hasRemaining()){
-			byte firstByte = input.get();
-			int type=(0xF0 & firstByte)>>4;
-			if(type==0){
-				type = input.get();
-			}
-			int field=0x0F & firstByte;
-			if(field==0){
-				field = input.get();
-				firstByte=(byte)field;
+			BinaryFormatField serializedField = readFieldHeader(input);
+			if(serializedField==BinaryFormatField.ObjectEndMarker && isInnerObject){
+				break;
 			}
-
-			BinaryFormatField serializedField = BinaryFormatField.lookup(type, field);
 			Object value = readPrimitive(input, serializedField.primitive);
 			serializedObject.fields.put(serializedField, value );
 		}
 		return serializedObject;
 	}
 
+	protected BinaryFormatField readFieldHeader(ByteBuffer input) {
+		byte firstByte = input.get();
+		int type=(0xF0 & firstByte)>>4;
+		if(type==0){
+			type = 0xFF & input.get();
+		}
+		int field=0x0F & firstByte;
+		if(field==0){
+			field = 0xFF & input.get();
+		}
+		return BinaryFormatField.lookup(type, field);
+	}
+
+	/**
+	 * Each element of an array is an object wrapped in a field, like {"ModifiedNode":{...}} in the AffectedNodes of the metadata.
+	 */
+	protected List<RippleBinaryObject> readArray(ByteBuffer input) {
+		ArrayList<RippleBinaryObject> array = new ArrayList<RippleBinaryObject>();
+		while(true){
+			BinaryFormatField elementField = readFieldHeader(input);
+			if(elementField==BinaryFormatField.ArrayEndMarker){
+				break;
+			}
+			RippleBinaryObject element = new RippleBinaryObject();
+			element.fields.put(elementField, readPrimitive(input, elementField.primitive));
+			array.add(element);
+		}
+		return array;
+	}
+
+	protected List<byte[]> readVector256(ByteBuffer input) {
+		byte[] vectorBytes = readVariableLength(input);
+		ArrayList<byte[]> hashes = new ArrayList<byte[]>(vectorBytes.length/32);
+		for(int i=0; i+32<=vectorBytes.length; i+=32){
+			byte[] hash = new byte[32];
+			System.arraycopy(vectorBytes, i, hash, 0, 32);
+			hashes.add(hash);
+		}
+		return hashes;
+	}
+
 	protected Object readPrimitive(ByteBuffer input, PrimitiveTypes primitive) {
 		if(primitive==PrimitiveTypes.UINT16){
-			return 0xFFFFFFFF & input.getShort();
+			return 0xFFFF & input.getShort();
 		}
 		else if(primitive==PrimitiveTypes.UINT32){
-			return 0xFFFFFFFFFFFFFFFFl & input.getInt();
+			return 0xFFFFFFFFl & input.getInt();
 		}
 		else if(primitive==PrimitiveTypes.UINT64){
 			byte[] eightBytes = new byte[8];
@@ -75,13 +117,13 @@ public class RippleBinarySerializer {
 			return readAccount(input);
 		}
 		else if(primitive==PrimitiveTypes.OBJECT){
-			throw new RuntimeException("Object type, not yet supported");
+			return readObject(input, true);
 		}
 		else if(primitive==PrimitiveTypes.ARRAY){
-			throw new RuntimeException("Array type, not yet supported");
+			return readArray(input);
 		}
 		else if(primitive==PrimitiveTypes.UINT8){
-			return 0xFFFF & input.get();
+			return 0xFF & input.get();
 		}
 		else if(primitive==PrimitiveTypes.HASH160){
 			return readIssuer(input);
@@ -90,7 +132,7 @@ public class RippleBinarySerializer {
 			return readPathSet(input);
 		}
 		else if(primitive==PrimitiveTypes.VECTOR256){
-			throw new RuntimeException("Vector");
+			return readVector256(input);
 		}
 		throw new RuntimeException("Unsupported primitive "+primitive);
 	}
@@ -126,7 +168,7 @@ public class RippleBinarySerializer {
 			if(decimalPosition<DenominatedIssuedCurrency.MIN_SCALE || decimalPosition>DenominatedIssuedCurrency.MAX_SCALE){
 				throw new RuntimeException("invalid scale "+decimalPosition);
 			}
-			BigInteger biMagnitude = BigInteger.valueOf(longMagnitude);
+			BigInteger biMagnitude = BigInteger.valueOf(sign*longMagnitude);
 			BigDecimal fractionalValue=new BigDecimal(biMagnitude, decimalPosition);
 			return new DenominatedIssuedCurrency(fractionalValue, issuer, currencyStr);
 		}
@@ -150,18 +192,18 @@ public class RippleBinarySerializer {
 
 	protected byte[] readVariableLength(ByteBuffer input) {
 		int byteLen=0;
-		int firstByte = input.get();
+		int firstByte = 0xFF & input.get();
 		int secondByte=0;
-		if(firstByte<192){
+		if(firstByte<=192){
 			byteLen=firstByte;
 		}
-		else if(firstByte<240){
-			secondByte = input.get();
+		else if(firstByte<=240){
+			secondByte = 0xFF & input.get();
 			byteLen=193+(firstByte-193)*256 + secondByte;
 		}
-		else if(firstByte<254){
-			secondByte = input.get();
-			int thirdByte = input.get();
+		else if(firstByte<=254){
+			secondByte = 0xFF & input.get();
+			int thirdByte = 0xFF & input.get();
 			byteLen=12481 + (firstByte-241)*65536 + secondByte*256 + thirdByte;
 		}
 		else {
@@ -207,26 +249,16 @@ public class RippleBinarySerializer {
 	}
 
 	public ByteBuffer writeBinaryObject(RippleBinaryObject serializedObj) {
-		ByteBuffer output = ByteBuffer.allocate(2000); //FIXME Hum.. CReate GRowable ByteBuffer class or use ByteArrayOutputStream?
-		List<BinaryFormatField> sortedFields = serializedObj.getSortedField();
-		for(BinaryFormatField field: sortedFields){
-			byte typeHalfByte=0;
-			if(field.primitive.typeCode<=15){
-				typeHalfByte = (byte) (field.primitive.typeCode<<4);
-			}
-			byte fieldHalfByte = 0;
-			if(field.fieldId<=15){
-				fieldHalfByte = (byte) (field.fieldId&0x0F);
-			}
-			output.put((byte) (typeHalfByte|fieldHalfByte));
-			if(typeHalfByte==0){
-				output.put((byte) field.primitive.typeCode);
-			}
-			if(fieldHalfByte==0){
-				output.put((byte) field.fieldId);
+		int bufferSize=2000;
+		ByteBuffer output;
+		while(true){
+			output = ByteBuffer.allocate(bufferSize);
+			try {
+				writeFields(output, serializedObj);
+				break;
+			} catch (BufferOverflowException e) {
+				bufferSize*=4; //Metadata and ledger entries can be much larger than a transaction
 			}
-			
-			writePrimitive(output, field.primitive, serializedObj.getField(field));
 		}
 		output.flip();
 		ByteBuffer compactBuffer = ByteBuffer.allocate(output.limit());
@@ -235,6 +267,48 @@ public class RippleBinarySerializer {
 		return compactBuffer;
 	}
 
+	protected void writeFields(ByteBuffer output, RippleBinaryObject serializedObj) {
+		List<BinaryFormatField> sortedFields = serializedObj.getSortedField();
+		for(BinaryFormatField field: sortedFields){
+			writeFieldHeader(output, field);
+			writePrimitive(output, field.primitive, serializedObj.getField(field));
+		}
+	}
+
+	protected void writeFieldHeader(ByteBuffer output, BinaryFormatField field) {
+		byte typeHalfByte=0;
+		if(field.primitive.typeCode<=15){
+			typeHalfByte = (byte) (field.primitive.typeCode<<4);
+		}
+		byte fieldHalfByte = 0;
+		if(field.fieldId<=15){
+			fieldHalfByte = (byte) (field.fieldId&0x0F);
+		}
+		output.put((byte) (typeHalfByte|fieldHalfByte));
+		if(typeHalfByte==0){
+			output.put((byte) field.primitive.typeCode);
+		}
+		if(fieldHalfByte==0){
+			output.put((byte) field.fieldId);
+		}
+	}
+
+	protected void writeArray(ByteBuffer output, List<RippleBinaryObject> array) {
+		for(RippleBinaryObject element : array){
+			writeFields(output, element);
+		}
+		writeFieldHeader(output, BinaryFormatField.ArrayEndMarker);
+	}
+
+	protected void writeVector256(ByteBuffer output, List<byte[]> hashes) {
+		byte[] vectorBytes = new byte[hashes.size()*32];
+		for(int i=0; i<hashes.size(); i++){
+			System.arraycopy(hashes.get(i), 0, vectorBytes, i*32, 32);
+		}
+		writeVariableLength(output, vectorBytes);
+	}
+
+	@SuppressWarnings("unchecked")
 	protected void writePrimitive(ByteBuffer output, PrimitiveTypes primitive, Object value) {
 		if(primitive==PrimitiveTypes.UINT16){
 			int intValue = (int) value;
@@ -285,17 +359,18 @@ public class RippleBinarySerializer {
 			writeAccount(output, (RippleAddress) value);
 		}
 		else if(primitive==PrimitiveTypes.OBJECT){
-			throw new RuntimeException("Object type, not yet supported");
+			writeFields(output, (RippleBinaryObject) value);
+			writeFieldHeader(output, BinaryFormatField.ObjectEndMarker);
 		}
 		else if(primitive==PrimitiveTypes.ARRAY){
-			throw new RuntimeException("Array type, not yet supported");
+			writeArray(output, (List<RippleBinaryObject>) value);
 		}
 		else if(primitive==PrimitiveTypes.UINT8){
 			int intValue = (int) value;
 			if(intValue>0xFF){
 				throw new RuntimeException("UINT8 overflow for value "+value);
 			}
-			output.put((byte) value);
+			output.put((byte) intValue);
 		}
 		else if(primitive==PrimitiveTypes.HASH160){
 			writeIssuer(output, (RippleAddress) value);
@@ -304,7 +379,7 @@ public class RippleBinarySerializer {
 			writePathSet(output, (RipplePathSet) value);
 		}
 		else if(primitive==PrimitiveTypes.VECTOR256){
-			throw new RuntimeException("Vector");
+			writeVector256(output, (List<byte[]>) value);
 		}
 		else{
 			throw new RuntimeException("Unsupported primitive "+primitive);
@@ -357,26 +432,23 @@ public class RippleBinarySerializer {
 		writeVariableLength(output, address.getBytes());
 	}
 
-	//TODO Unit test this function
 	protected void writeVariableLength(ByteBuffer output, byte[] value) {
-		if(value.length<192){
+		if(value.length<=192){
 			output.put((byte) value.length);
 		}
-		else if(value.length<12480){ //193 + (b1-193)*256 + b2
-			//FIXME This is not right...
-			int firstByte=(value.length/256)+193;
-			output.put((byte) firstByte);
-			//FIXME What about arrays of length 193?
-			int secondByte=value.length-firstByte-193;
-			output.put((byte) secondByte);
-		}
-		else if(value.length<918744){ //12481 + (b1-241)*65536 + b2*256 + b3
-			int firstByte=(value.length/65536)+241;
-			output.put((byte) firstByte);
-			int secondByte=(value.length-firstByte)/256;
-			output.put((byte) secondByte);
-			int thirdByte=value.length-firstByte-secondByte-12481;
-			output.put((byte) thirdByte);
+		else if(value.length<=12480){ //193 + (b1-193)*256 + b2
+			int encodedLength=value.length-193;
+			output.put((byte) (193+(encodedLength>>>8)));
+			output.put((byte) (encodedLength&0xFF));
+		}
+		else if(value.length<=918744){ //12481 + (b1-241)*65536 + b2*256 + b3
+			int encodedLength=value.length-12481;
+			output.put((byte) (241+(encodedLength>>>16)));
+			output.put((byte) ((encodedLength>>8)&0xFF));
+			output.put((byte) (encodedLength&0xFF));
+		}
+		else{
+			throw new RuntimeException("Variable length field of "+value.length+" bytes is too long");
 		}
 		output.put(value);
 	}
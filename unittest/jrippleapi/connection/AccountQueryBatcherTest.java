@@ -0,0 +1,160 @@
+package jrippleapi.connection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONObject;
+import org.junit.Test;
+
+public class AccountQueryBatcherTest {
+	static final int NB_ACCOUNTS=10;
+
+	/**
+	 * Holds the account_info responses, the account data echoes the account queried
+	 */
+	static class AccountServer extends FakeRippleDaemonConnection {
+		AccountServer() {
+			super(false);
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		protected JSONObject createResult(JSONObject command) {
+			JSONObject accountData = new JSONObject();
+			accountData.put("Account", command.get("account"));
+			accountData.put("Balance", "1000000");
+			accountData.put("Sequence", 7L);
+			JSONObject result = new JSONObject();
+			result.put("account_data", accountData);
+			return result;
+		}
+	}
+
+	@Test
+	public void testSameQuerySharesOneRequest() throws Exception {
+		AccountServer server = new AccountServer();
+		AccountQueryBatcher batcher = new AccountQueryBatcher(server, 16);
+		FutureJSONResponse<RippleAddressPublicInformation> first = batcher.getAccountInfoFuture("r1", AccountQueryBatcher.VALIDATED_LEDGER);
+		FutureJSONResponse<RippleAddressPublicInformation> second = batcher.getAccountInfoFuture("r1", AccountQueryBatcher.VALIDATED_LEDGER);
+		FutureJSONResponse<RippleAddressPublicInformation> otherLedger = batcher.getAccountInfoFuture("r1", AccountQueryBatcher.CURRENT_LEDGER);
+		assertNotSame(first, second); //Each caller can cancel its own
+		assertEquals(2, server.getNbSent());
+		assertEquals(1, batcher.getNbDeduplicated());
+
+		server.answerNext(null);
+		assertEquals("r1", first.get(1, TimeUnit.SECONDS).account);
+		assertEquals("r1", second.get(1, TimeUnit.SECONDS).account);
+		assertNotSame(first.get(), second.get());
+		assertFalse(otherLedger.isDone());
+		FutureJSONResponse<RippleAddressPublicInformation> afterCompletion = batcher.getAccountInfoFuture("r1", AccountQueryBatcher.VALIDATED_LEDGER);
+		assertNotSame(first, afterCompletion); //The completed query is not cached
+		assertEquals(3, server.getNbSent());
+	}
+
+	/**
+	 * Many threads query the same accounts while their responses are held, one request goes out per account
+	 */
+	@Test
+	public void testConcurrentQueriesAreDeduplicated() throws Exception {
+		AccountServer server = new AccountServer();
+		final AccountQueryBatcher batcher = new AccountQueryBatcher(server, 64);
+		final int nbThreads=8;
+		final List<List<FutureJSONResponse<RippleAddressPublicInformation>>> responsesByThread = new ArrayList<List<FutureJSONResponse<RippleAddressPublicInformation>>>();
+		ArrayList<Thread> threads = new ArrayList<Thread>();
+		for(int t=0; t<nbThreads; t++){
+			final List<FutureJSONResponse<RippleAddressPublicInformation>> responses = new ArrayList<FutureJSONResponse<RippleAddressPublicInformation>>();
+			responsesByThread.add(responses);
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for(int i=0; i<NB_ACCOUNTS; i++){
+						responses.add(batcher.getAccountInfoFuture("r"+i, AccountQueryBatcher.VALIDATED_LEDGER));
+					}
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		for(Thread thread : threads){
+			thread.join();
+		}
+		assertEquals(NB_ACCOUNTS, server.getNbSent());
+		assertEquals(nbThreads*NB_ACCOUNTS, batcher.getNbQueries());
+		assertEquals((nbThreads-1)*NB_ACCOUNTS, batcher.getNbDeduplicated());
+
+		while(server.getNbHeld()>0){
+			server.answerNext(null);
+		}
+		for(int t=0; t<nbThreads; t++){
+			for(int i=0; i<NB_ACCOUNTS; i++){
+				FutureJSONResponse<RippleAddressPublicInformation> response = responsesByThread.get(t).get(i);
+				assertEquals("r"+i, response.get(1, TimeUnit.SECONDS).account);
+			}
+		}
+		assertEquals(0, batcher.getNbInFlight());
+	}
+
+	@Test
+	public void testRequestIsCancelledByTheLastCaller() throws Exception {
+		AccountServer server = new AccountServer();
+		AccountQueryBatcher batcher = new AccountQueryBatcher(server, 16);
+		FutureJSONResponse<RippleAddressPublicInformation> first = batcher.getAccountInfoFuture("r1", AccountQueryBatcher.VALIDATED_LEDGER);
+		FutureJSONResponse<RippleAddressPublicInformation> second = batcher.getAccountInfoFuture("r1", AccountQueryBatcher.VALIDATED_LEDGER);
+		first.cancel(false);
+		assertTrue(first.isCancelled());
+		assertFalse(second.isDone());
+		assertFalse(server.getSentResponse(0).isDone());
+
+		second.cancel(false);
+		assertTrue(server.getSentResponse(0).isCancelled());
+		assertEquals(0, batcher.getNbInFlight());
+
+		FutureJSONResponse<RippleAddressPublicInformation> third = batcher.getAccountInfoFuture("r1", AccountQueryBatcher.VALIDATED_LEDGER);
+		assertEquals(2, server.getNbSent()); //Not joined to the cancelled request
+		server.answerNext(null); //The cancelled one, discarded
+		server.answerNext(null);
+		assertEquals("r1", third.get(1, TimeUnit.SECONDS).account);
+	}
+
+	@Test
+	public void testQueryCancelledWhileQueuedIsNotSent() throws Exception {
+		AccountServer server = new AccountServer();
+		AccountQueryBatcher batcher = new AccountQueryBatcher(server, 1);
+		batcher.getAccountInfoFuture("r1", AccountQueryBatcher.VALIDATED_LEDGER);
+		FutureJSONResponse<RippleAddressPublicInformation> queued = batcher.getAccountInfoFuture("r2", AccountQueryBatcher.VALIDATED_LEDGER);
+		queued.cancel(false);
+		server.answerNext(null);
+		assertEquals(1, server.getNbSent());
+		assertEquals(0, batcher.getNbInFlight());
+		assertEquals(0, batcher.getNbQueued());
+	}
+
+	@Test
+	public void testMaxInFlight() throws Exception {
+		AccountServer server = new AccountServer();
+		AccountQueryBatcher batcher = new AccountQueryBatcher(server, 2);
+		ArrayList<FutureJSONResponse<RippleAddressPublicInformation>> responses = new ArrayList<FutureJSONResponse<RippleAddressPublicInformation>>();
+		for(int i=0; i<5; i++){
+			responses.add(batcher.getAccountInfoFuture("r"+i, AccountQueryBatcher.VALIDATED_LEDGER));
+		}
+		assertEquals(2, server.getNbHeld());
+		assertEquals(3, batcher.getNbQueued());
+
+		server.answerNext(null);
+		assertEquals(2, server.getNbHeld());
+		assertEquals(2, batcher.getNbQueued());
+		while(server.getNbHeld()>0){
+			server.answerNext(null);
+		}
+		for(int i=0; i<responses.size(); i++){
+			assertEquals("r"+i, responses.get(i).get(1, TimeUnit.SECONDS).account);
+		}
+		assertEquals(5, batcher.getNbSent());
+	}
+}
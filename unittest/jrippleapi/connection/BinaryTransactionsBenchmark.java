@@ -0,0 +1,60 @@
+package jrippleapi.connection;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+
+/**
+ * Compares the binary account_tx results with the expanded JSON ones, from the string received on the websocket to the decoded transactions,
+ * and prints the bytes/s and transactions/s of each. Run from the project directory, it reads testdata/unittest-tx.json.
+ *
+ * @author pmarches
+ */
+public class BinaryTransactionsBenchmark {
+	static final int NB_WARMUPS=2;
+	static final int NB_ITERATIONS=50;
+
+	final BinaryTransactionsTest resultSource = new BinaryTransactionsTest();
+	long checksum;
+
+	public static void main(String[] args) throws Exception {
+		new BinaryTransactionsBenchmark().run();
+	}
+
+	void run() throws Exception {
+		String binaryResult = resultSource.createBinaryResult(resultSource.readTestTransaction());
+		BinaryTransactions decodedTransactions = new BinaryTransactions();
+		decodedTransactions.copyFrom((JSONObject) new JSONParser().parse(binaryResult));
+		String expandedResult = resultSource.createExpandedResult(decodedTransactions);
+
+		JSONParser parser = new JSONParser();
+		for(int warmup=0; warmup<=NB_WARMUPS; warmup++){
+			long startJSON = System.nanoTime();
+			for(int i=0; i<NB_ITERATIONS; i++){
+				JSONObject expanded = (JSONObject) parser.parse(expandedResult);
+				checksum += ((JSONArray) expanded.get("transactions")).size();
+			}
+			long jsonNanos = System.nanoTime()-startJSON;
+
+			long startBinary = System.nanoTime();
+			for(int i=0; i<NB_ITERATIONS; i++){
+				BinaryTransactions transactions = new BinaryTransactions();
+				transactions.copyFrom((JSONObject) parser.parse(binaryResult));
+				checksum += transactions.size();
+			}
+			long binaryNanos = System.nanoTime()-startBinary;
+
+			if(warmup==NB_WARMUPS){
+				printThroughput("JSON  ", expandedResult.length(), jsonNanos);
+				printThroughput("binary", binaryResult.length(), binaryNanos);
+			}
+		}
+		System.out.println("checksum "+checksum);
+	}
+
+	void printThroughput(String mode, int resultLength, long nanos){
+		double seconds = nanos/1e9;
+		System.out.printf("%s: %d bytes per result, %.1f MB/s, %.0f transactions/s%n", mode, resultLength,
+				resultLength*(double) NB_ITERATIONS/seconds/1e6, BinaryTransactionsTest.NB_TRANSACTIONS*(double) NB_ITERATIONS/seconds);
+	}
+}
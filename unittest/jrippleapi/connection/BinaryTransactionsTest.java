@@ -0,0 +1,97 @@
+package jrippleapi.connection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.FileReader;
+import java.util.List;
+
+import jrippleapi.serialization.RippleBinaryObject;
+import jrippleapi.serialization.RippleBinarySchema.BinaryFormatField;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.junit.Test;
+
+public class BinaryTransactionsTest {
+	static final int NB_TRANSACTIONS=200;
+
+	JSONObject readTestTransaction() throws Exception {
+		JSONArray allTx = (JSONArray) new JSONParser().parse(new FileReader("testdata/unittest-tx.json"));
+		return (JSONObject) allTx.get(0);
+	}
+
+	String createBinaryResult(JSONObject testTx){
+		JSONArray transactions = new JSONArray();
+		for(int i=0; i<NB_TRANSACTIONS; i++){
+			JSONObject binaryTx = new JSONObject();
+			binaryTx.put("tx_blob", testTx.get("tx"));
+			binaryTx.put("meta", testTx.get("meta"));
+			binaryTx.put("ledger_index", testTx.get("ledger_index"));
+			binaryTx.put("validated", true);
+			transactions.add(binaryTx);
+		}
+		JSONObject result = new JSONObject();
+		result.put("account", testTx.get("payer"));
+		result.put("transactions", transactions);
+		return result.toJSONString();
+	}
+
+	String createExpandedResult(BinaryTransactions binaryTransactions){
+		JSONArray transactions = new JSONArray();
+		for(BinaryTransaction binaryTx : binaryTransactions){
+			JSONObject expandedTx = new JSONObject();
+			expandedTx.put("tx", binaryTx.transaction.toJSON());
+			expandedTx.put("meta", binaryTx.meta.toJSON());
+			expandedTx.put("ledger_index", binaryTx.ledgerIndex);
+			expandedTx.put("validated", true);
+			transactions.add(expandedTx);
+		}
+		JSONObject result = new JSONObject();
+		result.put("account", binaryTransactions.account);
+		result.put("transactions", transactions);
+		return result.toJSONString();
+	}
+
+	@Test
+	public void testDecodeAccountTx() throws Exception {
+		JSONObject testTx = readTestTransaction();
+		BinaryTransactions transactions = new BinaryTransactions();
+		transactions.copyFrom((JSONObject) new JSONParser().parse(createBinaryResult(testTx)));
+		assertEquals(NB_TRANSACTIONS, transactions.size());
+		assertNull(transactions.marker);
+
+		BinaryTransaction binaryTx = transactions.get(0);
+		assertEquals(testTx.get("payee"), binaryTx.transaction.getField(BinaryFormatField.Destination).toString());
+		assertEquals(2905136, binaryTx.ledgerIndex);
+		List<?> affectedNodes = (List<?>) binaryTx.meta.getField(BinaryFormatField.AffectedNodes);
+		assertEquals(2, affectedNodes.size());
+		RippleBinaryObject modifiedNode = (RippleBinaryObject) ((RippleBinaryObject) affectedNodes.get(1)).getField(BinaryFormatField.ModifiedNode);
+		RippleBinaryObject finalFields = (RippleBinaryObject) modifiedNode.getField(BinaryFormatField.FinalFields);
+		assertEquals(testTx.get("payer"), finalFields.getField(BinaryFormatField.Account).toString());
+	}
+
+	/**
+	 * The binary result is the smaller one to receive, and decodes to the same transactions as the expanded JSON
+	 */
+	@Test
+	public void testBinaryResultSmallerThanJSON() throws Exception {
+		JSONObject testTx = readTestTransaction();
+		String binaryResult = createBinaryResult(testTx);
+		BinaryTransactions decodedTransactions = new BinaryTransactions();
+		decodedTransactions.copyFrom((JSONObject) new JSONParser().parse(binaryResult));
+		String expandedResult = createExpandedResult(decodedTransactions);
+		assertTrue(binaryResult.length()<expandedResult.length());
+
+		JSONArray expandedTransactions = (JSONArray) ((JSONObject) new JSONParser().parse(expandedResult)).get("transactions");
+		assertEquals(NB_TRANSACTIONS, expandedTransactions.size());
+		for(int i=0; i<NB_TRANSACTIONS; i++){
+			JSONObject expandedTx = (JSONObject) expandedTransactions.get(i);
+			BinaryTransaction binaryTx = decodedTransactions.get(i);
+			assertEquals(binaryTx.transaction.toJSONString(), ((JSONObject) expandedTx.get("tx")).toJSONString());
+			assertEquals(binaryTx.meta.toJSONString(), ((JSONObject) expandedTx.get("meta")).toJSONString());
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package jrippleapi.connection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+
+import org.json.simple.JSONObject;
+import org.junit.Test;
+
+public class CachingRippleDaemonConnectionTest {
+	static final String ACCOUNT = "rEQQNvhuLt1KTYmDWmw12mPvmJD4KCtxmS";
+
+	/**
+	 * Answers the ledger_index of the command
+	 */
+	static class LedgerServer extends FakeRippleDaemonConnection {
+		@Override
+		protected JSONObject createResult(JSONObject command) {
+			JSONObject jsonResult = new JSONObject();
+			jsonResult.put("ledger_index", command.get("ledger_index"));
+			return jsonResult;
+		}
+	}
+
+	static JSONObject accountLinesCommand(Object ledgerIndex){
+		JSONObject command = new JSONObject();
+		command.put("command", "account_lines");
+		command.put("account", ACCOUNT);
+		if(ledgerIndex!=null){
+			command.put("ledger_index", ledgerIndex);
+		}
+		return command;
+	}
+
+	static LedgerClosedEvent ledgerClosed(long ledgerIndex){
+		LedgerClosedEvent event = new LedgerClosedEvent();
+		event.ledgerIndex=ledgerIndex;
+		return event;
+	}
+
+	@Test
+	public void testCurrentLedgerIsInvalidatedOnClose() throws Exception {
+		LedgerServer server = new LedgerServer();
+		CachingRippleDaemonConnection connection = new CachingRippleDaemonConnection(server);
+		connection.sendCommand(accountLinesCommand(null), new GenericJSONSerializable()).get();
+		assertEquals(1, server.getNbSent()); //Not cached until the first ledger close
+
+		connection.onEvent(ledgerClosed(100), 0, true);
+		GenericJSONSerializable first = connection.sendCommand(accountLinesCommand(null), new GenericJSONSerializable()).get();
+		GenericJSONSerializable second = connection.sendCommand(accountLinesCommand(null), new GenericJSONSerializable()).get();
+		assertEquals(2, server.getNbSent());
+		assertNotSame(first, second);
+		assertEquals(1, connection.getNbHits());
+
+		connection.onEvent(ledgerClosed(101), 1, true);
+		connection.sendCommand(accountLinesCommand(null), new GenericJSONSerializable()).get();
+		assertEquals(3, server.getNbSent());
+	}
+
+	@Test
+	public void testValidatedLedgerSurvivesClose() throws Exception {
+		LedgerServer server = new LedgerServer();
+		CachingRippleDaemonConnection connection = new CachingRippleDaemonConnection(server, 2);
+		connection.onEvent(ledgerClosed(100), 0, true);
+		connection.sendCommand(accountLinesCommand(100L), new GenericJSONSerializable()).get();
+		connection.sendCommand(accountLinesCommand(101L), new GenericJSONSerializable()).get(); //Not validated yet
+		connection.onEvent(ledgerClosed(101), 1, true);
+		connection.sendCommand(accountLinesCommand(100L), new GenericJSONSerializable()).get();
+		assertEquals(2, server.getNbSent());
+
+		connection.sendCommand(accountLinesCommand(99L), new GenericJSONSerializable()).get();
+		connection.sendCommand(accountLinesCommand(98L), new GenericJSONSerializable()).get(); //Evicts 100
+		connection.sendCommand(accountLinesCommand(100L), new GenericJSONSerializable()).get();
+		assertEquals(5, server.getNbSent());
+		assertEquals(2, connection.getNbCachedResponses());
+	}
+
+	@Test
+	public void testWritesAreNotCached() throws Exception {
+		LedgerServer server = new LedgerServer();
+		CachingRippleDaemonConnection connection = new CachingRippleDaemonConnection(server);
+		connection.onEvent(ledgerClosed(100), 0, true);
+		for(int i=0; i<2; i++){
+			JSONObject submitCommand = new JSONObject();
+			submitCommand.put("command", "submit");
+			connection.sendCommand(submitCommand, new GenericJSONSerializable()).get();
+		}
+		assertEquals(2, server.getNbSent());
+	}
+
+	@Test
+	public void testStopUnsubscribesFromTheLedgerStream() {
+		LoopbackWebsocketConnection streamConnection = new LoopbackWebsocketConnection();
+		CachingRippleDaemonConnection connection = new CachingRippleDaemonConnection(streamConnection);
+		connection.start();
+		assertEquals(1, streamConnection.getNbSubscriptions());
+		connection.stop();
+		assertEquals(0, streamConnection.getNbSubscriptions());
+		assertEquals("unsubscribe", streamConnection.takeWrittenCommands().get(1).get("command"));
+	}
+}
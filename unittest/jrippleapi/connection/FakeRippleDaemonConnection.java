@@ -0,0 +1,108 @@
+package jrippleapi.connection;
+
+import java.util.ArrayList;
+
+import org.json.simple.JSONObject;
+
+/**
+ * Stands for rippled in the tests. Answers each command right away with the result of {@link #createResult(JSONObject)},
+ * or with the error code when one is set, or holds the response until the test answers it.
+ *
+ * @author pmarches
+ */
+public class FakeRippleDaemonConnection extends RippleDaemonConnection {
+	public volatile boolean isAnswering;
+	public volatile String errorCode; //Answered instead of a result when set
+	final ArrayList<JSONObject> sentCommands = new ArrayList<JSONObject>();
+	final ArrayList<FutureJSONResponse<?>> sentResponses = new ArrayList<FutureJSONResponse<?>>();
+	final ArrayList<FutureJSONResponse<?>> heldResponses = new ArrayList<FutureJSONResponse<?>>();
+
+	public FakeRippleDaemonConnection() {
+		this(true);
+	}
+
+	/**
+	 * @param isAnswering : false to hold the responses until {@link #answerNext(String)}
+	 */
+	public FakeRippleDaemonConnection(boolean isAnswering) {
+		this.isAnswering = isAnswering;
+		requestTimeoutMillis=0;
+	}
+
+	/**
+	 * @return the result of a successful response to the command, empty unless overridden
+	 */
+	protected JSONObject createResult(JSONObject command){
+		return new JSONObject();
+	}
+
+	@SuppressWarnings("unchecked")
+	protected JSONObject createResponse(JSONObject command, String error){
+		JSONObject jsonResponse = new JSONObject();
+		if(error==null){
+			jsonResponse.put("status", "success");
+			jsonResponse.put("result", createResult(command));
+		}
+		else{
+			jsonResponse.put("status", "error");
+			jsonResponse.put("error", error);
+		}
+		return jsonResponse;
+	}
+
+	@Override
+	public <T extends JSONSerializable> FutureJSONResponse<T> sendCommand(JSONObject command, T unserializedResponse) {
+		FutureJSONResponse<T> response = new FutureJSONResponse<T>(requestCounter.getAndIncrement(), null, unserializedResponse);
+		response.command = command;
+		boolean isHeld = isAnswering==false;
+		synchronized (this) {
+			sentCommands.add(command);
+			sentResponses.add(response);
+			if(isHeld){
+				heldResponses.add(response);
+			}
+		}
+		if(isHeld==false){
+			response.set(createResponse(command, errorCode));
+		}
+		return response;
+	}
+
+	/**
+	 * Answers the oldest held response
+	 * @param error : the error code of rippled, null for a success
+	 */
+	public void answerNext(String error){
+		FutureJSONResponse<?> next;
+		synchronized (this) {
+			next = heldResponses.remove(0);
+		}
+		next.set(createResponse(next.command, error));
+	}
+
+	public synchronized int getNbHeld(){
+		return heldResponses.size();
+	}
+
+	public synchronized int getNbSent(){
+		return sentCommands.size();
+	}
+
+	public synchronized int getNbSent(String commandName){
+		int nbSent=0;
+		for(JSONObject command : sentCommands){
+			if(commandName.equals(command.get("command"))){
+				nbSent++;
+			}
+		}
+		return nbSent;
+	}
+
+	public synchronized JSONObject getSentCommand(int index){
+		return sentCommands.get(index);
+	}
+
+	public synchronized FutureJSONResponse<?> getSentResponse(int index){
+		return sentResponses.get(index);
+	}
+}
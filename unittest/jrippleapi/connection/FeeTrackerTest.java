@@ -0,0 +1,109 @@
+package jrippleapi.connection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.math.BigInteger;
+
+import jrippleapi.core.DenominatedIssuedCurrency;
+import jrippleapi.serialization.RippleBinaryObject;
+import jrippleapi.serialization.RippleBinarySchema.BinaryFormatField;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.junit.Test;
+
+public class FeeTrackerTest {
+
+	static JSONObject parse(String json) throws Exception {
+		return (JSONObject) new JSONParser().parse(json);
+	}
+
+	@Test
+	public void testFollowsTheStreams() throws Exception {
+		FeeTracker tracker = new FeeTracker(null);
+		assertEquals(10, tracker.getLoadedFee());
+		tracker.onEvent(StreamEvent.fromJSON(parse("{\"type\":\"ledgerClosed\",\"ledger_index\":1234,\"fee_base\":12,\"fee_ref\":10,\"reserve_base\":10000000,\"reserve_inc\":2000000}")), 0, true);
+		assertEquals(12, tracker.getLoadedFee());
+		assertEquals(1234, tracker.getLedgerIndex());
+		assertEquals(10000000+3*2000000, tracker.getAccountReserve(3));
+
+		tracker.onEvent(StreamEvent.fromJSON(parse("{\"type\":\"serverStatus\",\"load_base\":256,\"load_factor\":640,\"server_status\":\"full\"}")), 1, true);
+		assertEquals(2.5, tracker.getLoadRatio(), 0);
+		assertEquals(30, tracker.getLoadedFee());
+		assertEquals(30, tracker.getFee().amount.intValue());
+		assertEquals(2, tracker.getNbUpdates());
+	}
+
+	@Test
+	public void testEscalationPolicy() {
+		FeeTracker tracker = new FeeTracker(null);
+		tracker.setEscalationPolicy(new FeeTracker.MultiplierEscalationPolicy(1.5, 2, 100));
+		assertEquals(15, tracker.getFeeDrops(0));
+		assertEquals(30, tracker.getFeeDrops(1));
+		assertEquals(60, tracker.getFeeDrops(2));
+		assertEquals(100, tracker.getFeeDrops(3));
+		assertEquals(100, tracker.getFeeDrops(100));
+
+		RippleBinaryObject transaction = new RippleBinaryObject();
+		tracker.fillFee(transaction, 1);
+		assertEquals(30, ((DenominatedIssuedCurrency) transaction.getField(BinaryFormatField.Fee)).amount.intValue());
+	}
+
+	@Test
+	public void testFeeSettingsAndServerInfo() throws Exception {
+		FeeTracker tracker = new FeeTracker(new RippleDaemonConnection() {
+			@Override
+			public <T extends JSONSerializable> FutureJSONResponse<T> sendCommand(JSONObject command, T unserializedResponse) {
+				FutureJSONResponse<T> future = new FutureJSONResponse<T>(requestCounter.getAndIncrement(), null, unserializedResponse);
+				try {
+					future.set(parse("{\"status\":\"success\",\"result\":{\"info\":{\"load_factor\":2,\"validated_ledger\":{\"base_fee_xrp\":0.00001,\"reserve_base_xrp\":20,\"reserve_inc_xrp\":5,\"seq\":5}}}}"));
+				} catch (Exception e) {
+					future.setException(e);
+				}
+				return future;
+			}
+		});
+		RippleBinaryObject feeSettings = new RippleBinaryObject();
+		feeSettings.putField(BinaryFormatField.BaseFee, BigInteger.valueOf(15));
+		feeSettings.putField(BinaryFormatField.ReserveBase, 1000L);
+		feeSettings.putField(BinaryFormatField.ReserveIncrement, 100L);
+		feeSettings.putField(BinaryFormatField.LoadFee, 512L);
+		tracker.copyFrom(feeSettings);
+		assertEquals(15, tracker.getBaseFee());
+		assertEquals(1200, tracker.getAccountReserve(2));
+		assertEquals(30, tracker.getLoadedFee());
+
+		tracker.refresh().get();
+		assertEquals(10, tracker.getBaseFee());
+		assertEquals(20000000, tracker.getReserveBase());
+		assertEquals(5000000, tracker.getReserveIncrement());
+		assertEquals(20, tracker.getLoadedFee());
+	}
+
+	@Test
+	public void testFailedRefreshMarksTheFeesStale() throws Exception {
+		FakeRippleDaemonConnection server = new FakeRippleDaemonConnection();
+		server.errorCode = "noNetwork";
+		FeeTracker tracker = new FeeTracker(server);
+		tracker.refresh();
+		assertTrue(tracker.isStale());
+		assertEquals(1, tracker.getNbFailures());
+		assertEquals("noNetwork", ((RippleDaemonException) tracker.getLastFailure()).error);
+
+		tracker.onEvent(StreamEvent.fromJSON(parse("{\"type\":\"ledgerClosed\",\"ledger_index\":1234,\"fee_base\":12}")), 0, true);
+		assertFalse(tracker.isStale());
+	}
+
+	@Test
+	public void testStreamsNeedAWebsocket() {
+		try {
+			new FeeTracker(new FakeRippleDaemonConnection()).start();
+			fail();
+		} catch (RuntimeException e) {
+			assertTrue(e.getMessage().contains("FakeRippleDaemonConnection"));
+		}
+	}
+}
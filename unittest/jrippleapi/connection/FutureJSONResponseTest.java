@@ -0,0 +1,66 @@
+package jrippleapi.connection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.simple.JSONObject;
+import org.junit.Test;
+
+public class FutureJSONResponseTest {
+
+	static JSONObject createResponse(){
+		JSONObject result = new JSONObject();
+		result.put("ledger_index", 1);
+		JSONObject response = new JSONObject();
+		response.put("status", "success");
+		response.put("result", result);
+		return response;
+	}
+
+	@Test
+	public void testThrowingCallbackDoesNotStopTheOthers() throws Exception {
+		FutureJSONResponse<GenericJSONSerializable> future = new FutureJSONResponse<GenericJSONSerializable>(1, null, new GenericJSONSerializable());
+		final AtomicInteger nbRun = new AtomicInteger();
+		future.addCompletionCallback(new Runnable() {
+			@Override
+			public void run() {
+				throw new IllegalStateException("Thrown on purpose by the test");
+			}
+		});
+		future.addCompletionCallback(new Runnable() {
+			@Override
+			public void run() {
+				nbRun.incrementAndGet();
+			}
+		});
+		long nbFailedBefore = FutureJSONResponse.getNbFailedCallbacks();
+		future.set(createResponse());
+		assertEquals(1, nbRun.get());
+		assertTrue(future.isDone());
+		assertEquals(nbFailedBefore+1, FutureJSONResponse.getNbFailedCallbacks());
+		assertEquals("Thrown on purpose by the test", FutureJSONResponse.getLastCallbackFailure().getMessage());
+	}
+
+	@Test
+	public void testChainedStepReturningNull() throws Exception {
+		FutureJSONResponse<GenericJSONSerializable> first = new FutureJSONResponse<GenericJSONSerializable>(1, null, new GenericJSONSerializable());
+		FutureJSONResponse<GenericJSONSerializable> chained = first.thenSend(new AsyncJSONFunction<GenericJSONSerializable, GenericJSONSerializable>() {
+			@Override
+			public FutureJSONResponse<GenericJSONSerializable> apply(GenericJSONSerializable previousResult) {
+				return null;
+			}
+		});
+		first.set(createResponse());
+		try {
+			chained.get(1, TimeUnit.SECONDS);
+			fail("The chain has no next response");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof NullPointerException);
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package jrippleapi.connection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.junit.Test;
+
+public class HashedTimerWheelTest {
+
+	@Test
+	public void testExpireAndCancel() throws Exception {
+		HashedTimerWheel timer = new HashedTimerWheel(5, TimeUnit.MILLISECONDS, 8);
+		final CountDownLatch expired = new CountDownLatch(2);
+		final AtomicInteger nbCancelledRuns = new AtomicInteger();
+		Runnable countDown = new Runnable() {
+			@Override
+			public void run() {
+				expired.countDown();
+			}
+		};
+		timer.newTimeout(countDown, 10, TimeUnit.MILLISECONDS);
+		timer.newTimeout(countDown, 100, TimeUnit.MILLISECONDS); //Several turns of the wheel
+		HashedTimerWheel.Timeout cancelled = timer.newTimeout(new Runnable() {
+			@Override
+			public void run() {
+				nbCancelledRuns.incrementAndGet();
+			}
+		}, 20, TimeUnit.MILLISECONDS);
+		assertTrue(cancelled.cancel());
+		assertFalse(cancelled.cancel());
+
+		assertTrue(expired.await(2, TimeUnit.SECONDS));
+		Thread.sleep(50);
+		assertEquals(0, nbCancelledRuns.get());
+		assertEquals(2, timer.getNbExpired());
+		assertEquals(0, timer.getNbPendingTimeouts());
+		timer.stop();
+	}
+
+	@Test
+	public void testRequestDeadline() throws Exception {
+		HashedTimerWheel timer = new HashedTimerWheel(5, TimeUnit.MILLISECONDS, 64);
+		JSONResponseHolder holder = new JSONResponseHolder();
+		FutureJSONResponse<GenericJSONSerializable> pendingResponse = new FutureJSONResponse<GenericJSONSerializable>(3, holder, new GenericJSONSerializable());
+		holder.addPendingResponse(pendingResponse);
+		final AtomicInteger nbTimeouts = new AtomicInteger();
+		pendingResponse.setDeadline(timer, 20, new Runnable() {
+			@Override
+			public void run() {
+				nbTimeouts.incrementAndGet();
+			}
+		});
+
+		try {
+			pendingResponse.get(1, TimeUnit.MILLISECONDS);
+			fail();
+		} catch (TimeoutException e) {
+		}
+		try {
+			pendingResponse.get(2, TimeUnit.SECONDS);
+			fail();
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof TimeoutException);
+		}
+		assertEquals(1, nbTimeouts.get());
+		assertEquals(0, holder.getNbPendingResponses());
+
+		holder.setResponseContent((JSONObject) new JSONParser().parse("{\"id\":3,\"result\":{},\"status\":\"success\",\"type\":\"response\"}"));
+		assertEquals(1, holder.getNbLateResponses());
+		timer.stop();
+	}
+
+	@Test
+	public void testCompletedRequestCancelsDeadline() throws Exception {
+		HashedTimerWheel timer = new HashedTimerWheel(5, TimeUnit.MILLISECONDS, 64);
+		JSONResponseHolder holder = new JSONResponseHolder();
+		FutureJSONResponse<GenericJSONSerializable> pendingResponse = new FutureJSONResponse<GenericJSONSerializable>(4, holder, new GenericJSONSerializable());
+		holder.addPendingResponse(pendingResponse);
+		pendingResponse.setDeadline(timer, 10000, null);
+		assertEquals(1, timer.getNbPendingTimeouts());
+		holder.setResponseContent((JSONObject) new JSONParser().parse("{\"id\":4,\"result\":{},\"status\":\"success\",\"type\":\"response\"}"));
+		assertEquals(0, timer.getNbPendingTimeouts());
+		pendingResponse.get();
+		timer.stop();
+	}
+
+	@Test
+	public void testFailingTaskIsCounted() throws Exception {
+		HashedTimerWheel timer = new HashedTimerWheel(5, TimeUnit.MILLISECONDS, 8);
+		final CountDownLatch expired = new CountDownLatch(1);
+		timer.newTimeout(new Runnable() {
+			@Override
+			public void run() {
+				throw new IllegalStateException("failing task");
+			}
+		}, 5, TimeUnit.MILLISECONDS);
+		timer.newTimeout(new Runnable() {
+			@Override
+			public void run() {
+				expired.countDown();
+			}
+		}, 20, TimeUnit.MILLISECONDS);
+		assertTrue(expired.await(1, TimeUnit.SECONDS)); //The timer thread survived
+		assertEquals(1, timer.getNbFailedTasks());
+		assertEquals("failing task", timer.getLastTaskFailure().getMessage());
+		timer.stop();
+	}
+}
@@ -0,0 +1,97 @@
+package jrippleapi.connection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONObject;
+import org.junit.Test;
+
+public class HedgingRippleDaemonConnectionTest {
+
+	@Test
+	public void testFastPrimaryIsNotHedged() throws Exception {
+		FakeRippleDaemonConnection primary = new FakeRippleDaemonConnection(true);
+		FakeRippleDaemonConnection secondary = new FakeRippleDaemonConnection(true);
+		HedgingRippleDaemonConnection connection = new HedgingRippleDaemonConnection(primary, secondary);
+		for(int i=0; i<10; i++){
+			connection.pingFuture().get(1, TimeUnit.SECONDS);
+		}
+		assertEquals(10, connection.getNbHedgeableReads());
+		assertEquals(0, connection.getNbHedges());
+		assertEquals(0, secondary.getNbSent());
+	}
+
+	@Test
+	public void testSlowPrimaryIsHedged() throws Exception {
+		FakeRippleDaemonConnection primary = new FakeRippleDaemonConnection(false);
+		FakeRippleDaemonConnection secondary = new FakeRippleDaemonConnection(true);
+		HedgingRippleDaemonConnection connection = new HedgingRippleDaemonConnection(primary, secondary);
+		connection.setInitialHedgeDelay(20, TimeUnit.MILLISECONDS);
+		assertTrue(connection.pingFuture().get(2, TimeUnit.SECONDS)!=null);
+		assertEquals(1, connection.getNbHedges());
+		assertEquals(1.0, connection.getHedgeWinRate(), 0);
+		FutureJSONResponse<?> primaryResponse = primary.getSentResponse(0);
+		for(int i=0; i<100 && primaryResponse.isCancelled()==false; i++){
+			Thread.sleep(10); //The loser is cancelled after the waiters are released
+		}
+		assertTrue(primaryResponse.isCancelled());
+	}
+
+	@Test
+	public void testHedgeIsSentFromTheHedgeExecutor() throws Exception {
+		FakeRippleDaemonConnection primary = new FakeRippleDaemonConnection(false);
+		final Thread[] senderThread = new Thread[1];
+		FakeRippleDaemonConnection secondary = new FakeRippleDaemonConnection(true) {
+			@Override
+			public <T extends JSONSerializable> FutureJSONResponse<T> sendCommand(JSONObject command, T unserializedResponse) {
+				senderThread[0] = Thread.currentThread();
+				return super.sendCommand(command, unserializedResponse);
+			}
+		};
+		HedgingRippleDaemonConnection connection = new HedgingRippleDaemonConnection(primary, secondary);
+		connection.setHedgeExecutor(new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				new Thread(command, "hedge").start();
+			}
+		});
+		connection.setInitialHedgeDelay(20, TimeUnit.MILLISECONDS);
+		connection.pingFuture().get(2, TimeUnit.SECONDS);
+		assertEquals("hedge", senderThread[0].getName());
+	}
+
+	@Test
+	public void testWritesAreNotHedged() throws Exception {
+		FakeRippleDaemonConnection primary = new FakeRippleDaemonConnection(false);
+		FakeRippleDaemonConnection secondary = new FakeRippleDaemonConnection(true);
+		HedgingRippleDaemonConnection connection = new HedgingRippleDaemonConnection(primary, secondary);
+		connection.setInitialHedgeDelay(1, TimeUnit.MILLISECONDS);
+		JSONObject submitCommand = new JSONObject();
+		submitCommand.put("command", "submit");
+		connection.sendCommand(submitCommand, new GenericJSONSerializable());
+		Thread.sleep(50);
+		assertEquals(0, connection.getNbHedgeableReads());
+		assertEquals(0, secondary.getNbSent());
+	}
+
+	@Test
+	public void testDaemonErrorIsNotHedged() throws Exception {
+		FakeRippleDaemonConnection primary = new FakeRippleDaemonConnection(true);
+		primary.errorCode = "actNotFound";
+		FakeRippleDaemonConnection secondary = new FakeRippleDaemonConnection(true);
+		HedgingRippleDaemonConnection connection = new HedgingRippleDaemonConnection(primary, secondary);
+		try {
+			connection.getAccountInfoFuture("rhcfR9Cg98qCxHpCcPBmMonbDBXo84wyTn").get(1, TimeUnit.SECONDS);
+			fail("The account is not found");
+		} catch (ExecutionException e) {
+			assertEquals("actNotFound", ((RippleDaemonException) e.getCause()).error);
+		}
+		assertEquals(0, connection.getNbHedges());
+		assertEquals(0, secondary.getNbSent());
+	}
+}
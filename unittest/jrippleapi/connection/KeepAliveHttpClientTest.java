@@ -0,0 +1,312 @@
+package jrippleapi.connection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class KeepAliveHttpClientTest {
+	HttpServer server;
+	ExecutorService serverExecutor = Executors.newCachedThreadPool();
+	URI serverURI;
+	volatile HttpHandler handler;
+
+	@Before
+	public void setUp() throws Exception {
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) {
+				try {
+					handler.handle(exchange);
+				} catch (Exception e) {
+					//The client went away, after a timeout
+				}
+				exchange.close();
+			}
+		});
+		server.setExecutor(serverExecutor);
+		server.start();
+		serverURI = URI.create("http://localhost:"+server.getAddress().getPort()+"/");
+	}
+
+	@After
+	public void tearDown() {
+		server.stop(0);
+		serverExecutor.shutdownNow();
+	}
+
+	/**
+	 * Keeps the outcome of one post
+	 */
+	static class Response implements KeepAliveHttpClient.ResponseHandler {
+		final LinkedBlockingQueue<Object> outcome = new LinkedBlockingQueue<Object>();
+
+		@Override
+		public void onResponse(int statusCode, byte[] body) {
+			outcome.add(statusCode+" "+new String(body, KeepAliveHttpClient.US_ASCII));
+		}
+
+		@Override
+		public void onFailure(Throwable cause) {
+			outcome.add(cause);
+		}
+
+		Object get() throws InterruptedException {
+			Object result = outcome.poll(5, TimeUnit.SECONDS);
+			if(result==null){
+				throw new RuntimeException("No response");
+			}
+			return result;
+		}
+	}
+
+	static byte[] readBody(HttpExchange exchange) throws Exception {
+		InputStream body = exchange.getRequestBody();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int nbRead;
+		while((nbRead=body.read(buffer))!=-1){
+			bytes.write(buffer, 0, nbRead);
+		}
+		return bytes.toByteArray();
+	}
+
+	Response post(KeepAliveHttpClient client, String body){
+		Response response = new Response();
+		client.post("text/plain", ByteBuffer.wrap(body.getBytes(KeepAliveHttpClient.US_ASCII)), response);
+		return response;
+	}
+
+	@Test
+	public void testContentLengthOnOneConnection() throws Exception {
+		handler = new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				byte[] echo;
+				try {
+					echo = readBody(exchange);
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+				exchange.sendResponseHeaders(200, echo.length);
+				exchange.getResponseBody().write(echo);
+			}
+		};
+		KeepAliveHttpClient client = new KeepAliveHttpClient(serverURI, 2);
+		for(int i=0; i<5; i++){
+			assertEquals("200 hello "+i, post(client, "hello "+i).get());
+		}
+		assertEquals(1, client.getNbConnectionsOpened());
+		client.close();
+	}
+
+	@Test
+	public void testChunkedGzipResponse() throws Exception {
+		final StringBuilder largeBody = new StringBuilder();
+		for(int i=0; i<20000; i++){
+			largeBody.append(i).append(',');
+		}
+		handler = new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+				exchange.sendResponseHeaders(200, 0); //Chunked
+				GZIPOutputStream gzip = new GZIPOutputStream(exchange.getResponseBody());
+				gzip.write(largeBody.toString().getBytes(KeepAliveHttpClient.US_ASCII));
+				gzip.close();
+			}
+		};
+		KeepAliveHttpClient client = new KeepAliveHttpClient(serverURI, 1);
+		assertEquals("200 "+largeBody, post(client, "").get());
+		assertEquals("200 "+largeBody, post(client, "").get());
+		client.close();
+	}
+
+	@Test
+	public void testTimeoutReleasesTheConnection() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		handler = new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				byte[] body;
+				try {
+					body = readBody(exchange);
+					if(new String(body, KeepAliveHttpClient.US_ASCII).equals("slow")){
+						release.await();
+					}
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+				exchange.sendResponseHeaders(200, body.length);
+				exchange.getResponseBody().write(body);
+			}
+		};
+		KeepAliveHttpClient client = new KeepAliveHttpClient(serverURI, 1);
+		client.setRequestTimeout(200, TimeUnit.MILLISECONDS);
+		assertTrue(post(client, "slow").get() instanceof TimeoutException);
+		assertEquals("200 fast", post(client, "fast").get()); //The only connection was released
+		release.countDown();
+		client.close();
+	}
+
+	/**
+	 * The server reads the request then closes the connection without answering, it may have executed it
+	 */
+	@Test
+	public void testWrittenRequestIsNotRetried() throws Exception {
+		final ServerSocket closingServer = new ServerSocket(0);
+		final AtomicInteger nbAccepted = new AtomicInteger();
+		Thread acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while(true){
+						Socket socket = closingServer.accept();
+						nbAccepted.incrementAndGet();
+						socket.getInputStream().read(new byte[4096]);
+						socket.close();
+					}
+				} catch (Exception e) {
+				}
+			}
+		});
+		acceptor.setDaemon(true);
+		acceptor.start();
+		KeepAliveHttpClient client = new KeepAliveHttpClient(URI.create("http://localhost:"+closingServer.getLocalPort()+"/"), 1);
+		assertTrue(post(client, "submit").get() instanceof ConnectionLostException);
+		Thread.sleep(100);
+		assertEquals(1, nbAccepted.get());
+		client.close();
+		closingServer.close();
+	}
+
+	/**
+	 * The server closes the keep-alive connection after the first response, the next request goes on a new one
+	 */
+	@Test
+	public void testIdleConnectionClosedByTheServerIsDropped() throws Exception {
+		final ServerSocket closingServer = new ServerSocket(0);
+		final AtomicInteger nbAccepted = new AtomicInteger();
+		Thread acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while(true){
+						Socket socket = closingServer.accept();
+						nbAccepted.incrementAndGet();
+						socket.getInputStream().read(new byte[4096]);
+						socket.getOutputStream().write("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok".getBytes(KeepAliveHttpClient.US_ASCII));
+						socket.close();
+					}
+				} catch (Exception e) {
+				}
+			}
+		});
+		acceptor.setDaemon(true);
+		acceptor.start();
+		KeepAliveHttpClient client = new KeepAliveHttpClient(URI.create("http://localhost:"+closingServer.getLocalPort()+"/"), 1);
+		assertEquals("200 ok", post(client, "submit").get());
+		Thread.sleep(100); //The end of the stream reaches the idle connection
+		assertEquals("200 ok", post(client, "submit").get());
+		assertEquals(2, nbAccepted.get());
+		assertEquals(2, client.getNbConnectionsOpened());
+		client.close();
+		closingServer.close();
+	}
+
+	/**
+	 * The commands queued while the only connection is busy are sent in one batch, each one gets its own response
+	 */
+	@Test
+	public void testRPCBatching() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		final ArrayList<Integer> batchSizes = new ArrayList<Integer>();
+		handler = new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				byte[] responseBody;
+				try {
+					JSONObject request = (JSONObject) new JSONParser().parse(new String(readBody(exchange), "UTF-8"));
+					release.await();
+					if("batch".equals(request.get("method"))){
+						JSONArray commands = (JSONArray) request.get("params");
+						JSONArray responses = new JSONArray();
+						for(Object command : commands){
+							responses.add(createEchoResponse((JSONObject) command));
+						}
+						synchronized (batchSizes) {
+							batchSizes.add(commands.size());
+						}
+						JSONObject batchResponse = new JSONObject();
+						batchResponse.put("result", responses);
+						responseBody = batchResponse.toJSONString().getBytes("UTF-8");
+					}
+					else{
+						synchronized (batchSizes) {
+							batchSizes.add(1);
+						}
+						responseBody = createEchoResponse(request).toJSONString().getBytes("UTF-8");
+					}
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+				exchange.sendResponseHeaders(200, responseBody.length);
+				exchange.getResponseBody().write(responseBody);
+			}
+		};
+		RippleDaemonRPCConnection connection = new RippleDaemonRPCConnection(serverURI);
+		ArrayList<FutureJSONResponse<GenericJSONSerializable>> responses = new ArrayList<FutureJSONResponse<GenericJSONSerializable>>();
+		for(int i=0; i<KeepAliveHttpClient.DEFAULT_MAX_CONNECTIONS+10; i++){
+			JSONObject command = new JSONObject();
+			command.put("command", "account_info");
+			command.put("account", "account"+i);
+			responses.add(connection.sendCommand(command, new GenericJSONSerializable()));
+		}
+		release.countDown();
+		for(int i=0; i<responses.size(); i++){
+			assertEquals("account"+i, responses.get(i).get(5, TimeUnit.SECONDS).jsonCommandResult.get("account"));
+		}
+		assertEquals(responses.size(), connection.getNbBatchedCommands());
+		assertTrue(connection.getNbPosts()<responses.size());
+		assertTrue(batchSizes.contains(1) && batchSizes.size()<responses.size());
+		connection.close();
+	}
+
+	static JSONObject createEchoResponse(JSONObject rpcCommand){
+		JSONObject params = (JSONObject) ((JSONArray) rpcCommand.get("params")).get(0);
+		JSONObject result = new JSONObject();
+		result.put("status", "success");
+		result.put("account", params.get("account"));
+		JSONObject response = new JSONObject();
+		response.put("result", result);
+		return response;
+	}
+}
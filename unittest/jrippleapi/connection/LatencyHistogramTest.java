@@ -0,0 +1,71 @@
+package jrippleapi.connection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void testBuckets() {
+		long previousUpperBound = -1;
+		for(int i=0; i<LatencyHistogram.NB_BUCKETS; i++){
+			long upperBound = LatencyHistogram.getBucketUpperBound(i);
+			assertEquals(i, LatencyHistogram.getBucketIndex(previousUpperBound+1));
+			assertEquals(i, LatencyHistogram.getBucketIndex(upperBound));
+			assertTrue(upperBound-previousUpperBound<=Math.max(1, upperBound/LatencyHistogram.SUB_BUCKETS+1));
+			previousUpperBound = upperBound;
+		}
+		assertEquals(LatencyHistogram.MAX_TRACKABLE_VALUE, previousUpperBound);
+	}
+
+	@Test
+	public void testPercentiles() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getValueAtPercentile(99));
+		for(int i=1; i<=1000; i++){
+			histogram.record(i*1000000L); //1 to 1000ms
+		}
+		assertEquals(1000, histogram.getCount());
+		assertEquals(500, histogram.getMillisAtPercentile(50), 500/16.0);
+		assertEquals(990, histogram.getMillisAtPercentile(99), 990/16.0);
+		assertEquals(1000, histogram.getMillisAtPercentile(100), 0);
+		assertEquals(500.5e6, histogram.getMeanNanos(), 1);
+
+		histogram.record(-5);
+		histogram.record(Long.MAX_VALUE);
+		assertEquals(0, histogram.getValueAtPercentile(0));
+		assertEquals(LatencyHistogram.MAX_TRACKABLE_VALUE, histogram.getMaxNanos());
+
+		histogram.reset();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getValueAtPercentile(50));
+	}
+
+	@Test
+	public void testConcurrentRecording() throws Exception {
+		final LatencyHistogram histogram = new LatencyHistogram();
+		ArrayList<Thread> threads = new ArrayList<Thread>();
+		for(int i=0; i<8; i++){
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for(int j=0; j<100000; j++){
+						histogram.record(j);
+					}
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		for(Thread thread : threads){
+			thread.join();
+		}
+		assertEquals(800000, histogram.getCount());
+		assertEquals(99999, histogram.getMaxNanos());
+		assertEquals(50000, histogram.getValueAtPercentile(50), 50000/16.0);
+	}
+}
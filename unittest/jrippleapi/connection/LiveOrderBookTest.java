@@ -0,0 +1,198 @@
+package jrippleapi.connection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LiveOrderBookTest {
+	static final String ISSUER = OrderBookTest.ISSUER;
+	static final long SNAPSHOT_LEDGER = 42;
+
+	LiveOrderBook liveBook;
+
+	/**
+	 * Answers book_offers from a list of offers, the marker is the position of the next page
+	 */
+	static class PagingServer extends FakeRippleDaemonConnection {
+		final List<String> offers;
+		final ArrayList<Object> requestedLedgers = new ArrayList<Object>();
+
+		PagingServer(String... offers) {
+			this.offers = Arrays.asList(offers);
+		}
+
+		@Override
+		protected synchronized JSONObject createResult(JSONObject command) {
+			requestedLedgers.add(command.get("ledger_index"));
+			int start = command.get("marker")==null ? 0 : ((Number) command.get("marker")).intValue();
+			int end = Math.min(offers.size(), start+((Number) command.get("limit")).intValue());
+			JSONArray jsonOffers = new JSONArray();
+			for(int i=start; i<end; i++){
+				jsonOffers.add(parse(offers.get(i)));
+			}
+			JSONObject result = new JSONObject();
+			result.put("offers", jsonOffers);
+			result.put("ledger_index", SNAPSHOT_LEDGER);
+			if(end<offers.size()){
+				result.put("marker", (long) end);
+			}
+			return result;
+		}
+	}
+
+	static JSONObject parse(String json){
+		try {
+			return (JSONObject) new JSONParser().parse(json);
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	static String offer(String index, String rate, String takerGetsDrops, String takerPaysValue){
+		return OrderBookTest.offer(index, OrderBookTest.quality(rate), takerGetsDrops, takerPaysValue);
+	}
+
+	/**
+	 * @param nodeType : CreatedNode, ModifiedNode or DeletedNode
+	 */
+	static StreamEvent createOfferEvent(long ledgerIndex, String nodeType, String index, String jsonOffer){
+		JSONObject jsonNode = new JSONObject();
+		jsonNode.put("LedgerEntryType", "Offer");
+		jsonNode.put("LedgerIndex", index);
+		jsonNode.put(nodeType.equals("CreatedNode") ? "NewFields" : "FinalFields", parse(jsonOffer));
+		JSONObject affectedNode = new JSONObject();
+		affectedNode.put(nodeType, jsonNode);
+		JSONArray affectedNodes = new JSONArray();
+		affectedNodes.add(affectedNode);
+		JSONObject meta = new JSONObject();
+		meta.put("AffectedNodes", affectedNodes);
+		JSONObject jsonMessage = new JSONObject();
+		jsonMessage.put("type", "transaction");
+		jsonMessage.put("ledger_index", ledgerIndex);
+		jsonMessage.put("validated", true);
+		jsonMessage.put("transaction", new JSONObject());
+		jsonMessage.put("meta", meta);
+		return StreamEvent.fromJSON(jsonMessage);
+	}
+
+	static StreamEvent createLedgerClosedEvent(long ledgerIndex){
+		JSONObject jsonMessage = new JSONObject();
+		jsonMessage.put("type", "ledgerClosed");
+		jsonMessage.put("ledger_index", ledgerIndex);
+		return StreamEvent.fromJSON(jsonMessage);
+	}
+
+	@Before
+	public void setUp() {
+		liveBook = new LiveOrderBook(null, "XRP", null, "USD", ISSUER) {
+			@Override
+			protected int getConnectionEpoch() {
+				return 0; //Never reconnects
+			}
+		};
+	}
+
+	void applySnapshot(String... offers){
+		liveBook.applySnapshot(liveBook.nbSynchronizations, liveBook.readSnapshot(new PagingServer(offers)));
+	}
+
+	@Test
+	public void testSnapshotIsPaged() {
+		PagingServer server = new PagingServer(offer("C", "0.03", "1000", "30"), offer("A", "0.01", "1000", "10"), offer("F", "0.06", "1000", "60"),
+				offer("B", "0.02", "1000", "20"), offer("E", "0.05", "1000", "50"), offer("D", "0.04", "1000", "40"), offer("G", "0.07", "1000", "70"));
+		liveBook.setSnapshotPageSize(3);
+		OrderBook snapshot = liveBook.readSnapshot(server);
+		assertEquals(7, snapshot.size());
+		assertEquals("A", snapshot.getBestOffer().offerIndex);
+		assertEquals(7, snapshot.getNbLevels());
+		assertEquals(SNAPSHOT_LEDGER, snapshot.ledgerIndex);
+		assertEquals(Arrays.<Object>asList(AccountQueryBatcher.VALIDATED_LEDGER, SNAPSHOT_LEDGER, SNAPSHOT_LEDGER), server.requestedLedgers);
+	}
+
+	@Test
+	public void testBufferedChangesMergedWithSnapshot() {
+		assertNull(liveBook.getOrderBook());
+		liveBook.onEvent(createOfferEvent(SNAPSHOT_LEDGER, "CreatedNode", "X", offer("X", "0.005", "1000", "5")), 0, true); //Already in the snapshot
+		liveBook.onEvent(createOfferEvent(SNAPSHOT_LEDGER+1, "DeletedNode", "A", offer("A", "0.01", "1000", "10")), 1, true);
+		applySnapshot(offer("A", "0.01", "1000", "10"), offer("B", "0.02", "1000", "20"));
+
+		OrderBook snapshotView = liveBook.getOrderBook();
+		assertEquals(SNAPSHOT_LEDGER, snapshotView.ledgerIndex);
+		assertEquals("A", snapshotView.getBestOffer().offerIndex);
+		assertEquals(2, snapshotView.size());
+
+		liveBook.onEvent(createLedgerClosedEvent(SNAPSHOT_LEDGER+2), 2, true);
+		OrderBook view = liveBook.getOrderBook();
+		assertEquals(SNAPSHOT_LEDGER+1, view.ledgerIndex);
+		assertEquals("B", view.getBestOffer().offerIndex);
+		assertEquals(1, view.size());
+		assertEquals(SNAPSHOT_LEDGER, snapshotView.ledgerIndex); //Untouched
+		assertEquals(2, snapshotView.size());
+	}
+
+	@Test
+	public void testStreamedChanges() {
+		applySnapshot(offer("A", "0.01", "1000", "10"), offer("B", "0.02", "1000", "20"));
+		liveBook.onEvent(createOfferEvent(SNAPSHOT_LEDGER+1, "CreatedNode", "D", offer("D", "0.005", "2000", "10")), 0, true);
+		liveBook.onEvent(createOfferEvent(SNAPSHOT_LEDGER+1, "ModifiedNode", "B", offer("B", "0.02", "400", "8")), 1, true);
+		String otherBookOffer = "{\"TakerGets\":{\"currency\":\"EUR\",\"issuer\":\""+ISSUER+"\",\"value\":\"1\"},\"TakerPays\":\"1000\"}";
+		liveBook.onEvent(createOfferEvent(SNAPSHOT_LEDGER+1, "CreatedNode", "Z", otherBookOffer), 2, true);
+		assertEquals(SNAPSHOT_LEDGER, liveBook.getOrderBook().ledgerIndex); //Ledger 43 is not complete yet
+
+		liveBook.onEvent(createLedgerClosedEvent(SNAPSHOT_LEDGER+2), 3, true);
+		OrderBook view = liveBook.getOrderBook();
+		assertEquals(SNAPSHOT_LEDGER+1, view.ledgerIndex);
+		assertEquals(3, view.size());
+		assertEquals("D", view.getBestOffer().offerIndex);
+		assertEquals(400, view.getLevelSize(2), 1e-9);
+		assertEquals(2, liveBook.getNbAppliedChanges()); //Not the offer of the other book
+
+		liveBook.onEvent(createOfferEvent(SNAPSHOT_LEDGER+2, "CreatedNode", "Z", otherBookOffer), 4, true);
+		liveBook.onEvent(createLedgerClosedEvent(SNAPSHOT_LEDGER+3), 5, true);
+		OrderBook nextView = liveBook.getOrderBook();
+		assertNotSame(view, nextView);
+		assertEquals(SNAPSHOT_LEDGER+2, nextView.ledgerIndex);
+		assertEquals(SNAPSHOT_LEDGER+1, view.ledgerIndex);
+		assertEquals(3, nextView.size());
+	}
+
+	@Test
+	public void testOverflowTakesANewSnapshot() {
+		LoopbackWebsocketConnection connection = new LoopbackWebsocketConnection();
+		LiveOrderBook streamedBook = new LiveOrderBook(connection, "XRP", null, "USD", ISSUER);
+		streamedBook.applySnapshot(streamedBook.nbSynchronizations, streamedBook.readSnapshot(new PagingServer(offer("A", "0.01", "1000", "10"))));
+		assertTrue(streamedBook.isSynchronized);
+
+		streamedBook.onEvent(new StreamOverflowEvent(3), 0, true);
+		assertFalse(streamedBook.isSynchronized);
+		assertEquals(1, streamedBook.nbSynchronizations);
+		JSONObject subscribeCommand = connection.takeWrittenCommands().get(0);
+		assertEquals("subscribe", subscribeCommand.get("command"));
+		assertNotNull(subscribeCommand.get("books"));
+
+		streamedBook.stop();
+		assertEquals(0, connection.getNbSubscriptions());
+	}
+
+	@Test
+	public void testLedgerClosedAdvancesTheLedger() {
+		applySnapshot(offer("A", "0.01", "1000", "10"));
+		liveBook.onEvent(createLedgerClosedEvent(SNAPSHOT_LEDGER+1), 0, true);
+		assertEquals(SNAPSHOT_LEDGER+1, liveBook.currentLedgerIndex);
+		liveBook.onEvent(createLedgerClosedEvent(SNAPSHOT_LEDGER+2), 1, true);
+		assertEquals(SNAPSHOT_LEDGER+1, liveBook.getOrderBook().ledgerIndex); //Complete once the next ledger closed
+	}
+}
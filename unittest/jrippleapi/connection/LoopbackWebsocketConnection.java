@@ -0,0 +1,66 @@
+package jrippleapi.connection;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * A websocket connection without a socket: the commands written are kept until the test answers them,
+ * in any order and from any thread, the answers go through {@link #onMessage(String)} as the messages of rippled do.
+ *
+ * @author pmarches
+ */
+public class LoopbackWebsocketConnection extends RippleDaemonWebsocketConnection {
+	final ArrayList<JSONObject> writtenCommands = new ArrayList<JSONObject>();
+
+	public LoopbackWebsocketConnection() {
+		session = (Session) Proxy.newProxyInstance(Session.class.getClassLoader(), new Class<?>[]{Session.class}, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				throw new UnsupportedOperationException(method.getName()); //Only its presence matters, sendString does the writing
+			}
+		});
+	}
+
+	@Override
+	public void sendString(String jsonString) {
+		try {
+			JSONObject command = (JSONObject) new JSONParser().parse(jsonString);
+			synchronized (writtenCommands) {
+				writtenCommands.add(command);
+			}
+		} catch (ParseException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * @return the commands written and not answered yet, they are forgotten
+	 */
+	public ArrayList<JSONObject> takeWrittenCommands(){
+		synchronized (writtenCommands) {
+			ArrayList<JSONObject> commands = new ArrayList<JSONObject>(writtenCommands);
+			writtenCommands.clear();
+			return commands;
+		}
+	}
+
+	/**
+	 * Answers the command with a result holding the given fields
+	 */
+	@SuppressWarnings("unchecked")
+	public void answer(JSONObject command, JSONObject result){
+		JSONObject response = new JSONObject();
+		response.put("id", command.get("id"));
+		response.put("type", "response");
+		response.put("status", "success");
+		response.put("result", result);
+		onMessage(response.toJSONString());
+	}
+}
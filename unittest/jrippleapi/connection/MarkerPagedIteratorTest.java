@@ -0,0 +1,66 @@
+package jrippleapi.connection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.junit.Test;
+
+public class MarkerPagedIteratorTest {
+	static final int NB_LINES=25;
+
+	/**
+	 * Serves the trust lines by pages, the marker is the index of the next line
+	 */
+	static class PagingServer extends FakeRippleDaemonConnection {
+		@Override
+		protected JSONObject createResult(JSONObject command) {
+			int limit = ((Number) command.get("limit")).intValue();
+			int firstLine = command.get("marker")==null ? 0 : Integer.parseInt((String) command.get("marker"));
+			JSONArray jsonLines = new JSONArray();
+			for(int i=firstLine; i<Math.min(NB_LINES, firstLine+limit); i++){
+				JSONObject jsonLine = new JSONObject();
+				jsonLine.put("account", "r"+i);
+				jsonLine.put("quality_in", 0L);
+				jsonLine.put("quality_out", 0L);
+				jsonLines.add(jsonLine);
+			}
+			JSONObject jsonResult = new JSONObject();
+			jsonResult.put("lines", jsonLines);
+			jsonResult.put("ledger_index", 1000L);
+			if(firstLine+limit<NB_LINES){
+				jsonResult.put("marker", Integer.toString(firstLine+limit));
+			}
+			return jsonResult;
+		}
+	}
+
+	@Test
+	public void testFollowMarkers() {
+		PagingServer server = new PagingServer();
+		MarkerPagedIterator<TrustLine, TrustLines> lines = server.iterateCreditLines("rEQQNvhuLt1KTYmDWmw12mPvmJD4KCtxmS", 10);
+		int nbLines=0;
+		for(TrustLine line : lines){
+			assertEquals("r"+nbLines, line.otherAccount);
+			nbLines++;
+			assertEquals(Math.min(3, (nbLines+9)/10+1), server.getNbSent()); //One page ahead
+		}
+		assertEquals(NB_LINES, nbLines);
+		assertEquals(3, lines.getNbPages());
+		assertFalse(lines.hasNext());
+
+		assertEquals("validated", server.getSentCommand(0).get("ledger_index"));
+		assertEquals(1000L, server.getSentCommand(1).get("ledger_index"));
+	}
+
+	@Test
+	public void testClose() {
+		PagingServer server = new PagingServer();
+		MarkerPagedIterator<TrustLine, TrustLines> lines = server.iterateCreditLines("rEQQNvhuLt1KTYmDWmw12mPvmJD4KCtxmS", 10);
+		lines.next();
+		lines.close();
+		assertFalse(lines.hasNext());
+		assertEquals(2, server.getNbSent());
+	}
+}
@@ -0,0 +1,64 @@
+package jrippleapi.connection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigDecimal;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.junit.Test;
+
+public class OrderBookTest {
+	static final String ISSUER = "rvYAfWj5gh67oV6fW32ZzP3Aw4Eubs59B";
+
+	static String offer(String index, String quality, String takerGetsDrops, String takerPaysValue){
+		return "{\"Account\":\"rEQQNvhuLt1KTYmDWmw12mPvmJD4KCtxmS\",\"BookDirectory\":\"4627DFFCFF8B5A265EDBD8AE8C14A52325DBFEDAF4F5C32E"+quality+"\","
+				+ "\"Sequence\":1,\"TakerGets\":\""+takerGetsDrops+"\",\"TakerPays\":{\"currency\":\"USD\",\"issuer\":\""+ISSUER+"\",\"value\":\""+takerPaysValue+"\"},\"index\":\""+index+"\"}";
+	}
+
+	static String quality(String rate){
+		return String.format("%016X", OrderBookEntry.encodeQuality(new BigDecimal(rate)));
+	}
+
+	OrderBook parseBook() throws Exception {
+		String jsonBook = "{\"ledger_index\":42,\"offers\":["
+				+ offer("C", quality("0.02"), "1000", "20") + ","
+				+ offer("A", quality("0.01"), "1000", "10") + ","
+				+ offer("B", quality("0.01"), "500", "5")
+				+ "]}";
+		OrderBook book = new OrderBook();
+		book.copyFrom((JSONObject) new JSONParser().parse(jsonBook));
+		return book;
+	}
+
+	@Test
+	public void testQualityEncoding() {
+		long quality = OrderBookEntry.encodeQuality(new BigDecimal("0.000012345"));
+		assertEquals(0, new BigDecimal("0.000012345").compareTo(OrderBookEntry.decodeQuality(quality)));
+		assertTrue(OrderBookEntry.compareQualities(quality, OrderBookEntry.encodeQuality(new BigDecimal("1000")))<0);
+		assertEquals(quality, OrderBookEntry.getQualityFromBookDirectory("4627DFFCFF8B5A265EDBD8AE8C14A52325DBFEDAF4F5C32E"+String.format("%016X", quality)));
+	}
+
+	@Test
+	public void testLevels() throws Exception {
+		OrderBook book = parseBook();
+		assertEquals(42, book.ledgerIndex);
+		assertEquals("A", book.getBestOffer().offerIndex);
+		assertEquals(2, book.getNbLevels());
+		assertEquals(0.01, book.getBestPrice(), 1e-12);
+		assertEquals(1500, book.getBestSize(), 1e-9);
+		assertEquals(2500, book.getDepth(10), 1e-9);
+	}
+
+	@Test
+	public void testFillQueries() throws Exception {
+		OrderBook book = parseBook();
+		assertEquals(0, book.getFillableSize(0.005), 1e-9);
+		assertEquals(1500, book.getFillableSize(0.015), 1e-9);
+		assertEquals(2500, book.getFillableSize(0.02), 1e-9);
+		assertEquals(35, book.getFillCost(0.02), 1e-9);
+		assertEquals(25, book.getCostOfSize(2000), 1e-9);
+		assertTrue(Double.isNaN(book.getCostOfSize(3000)));
+	}
+}
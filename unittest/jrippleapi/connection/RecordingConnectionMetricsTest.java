@@ -0,0 +1,100 @@
+package jrippleapi.connection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.json.simple.JSONObject;
+import org.junit.Test;
+
+public class RecordingConnectionMetricsTest {
+
+	/**
+	 * Answers ping, and fails account_info with actNotFound
+	 */
+	static class InstrumentedServer extends RippleDaemonConnection {
+		InstrumentedServer() {
+			metrics = new RecordingConnectionMetrics();
+		}
+
+		@Override
+		public <T extends JSONSerializable> FutureJSONResponse<T> sendCommand(JSONObject command, T unserializedResponse) {
+			String commandName = (String) command.get("command");
+			FutureJSONResponse<T> future = new FutureJSONResponse<T>(requestCounter.getAndIncrement(), null, unserializedResponse);
+			instrument(future, commandName);
+			metrics.onBytesSent(command.toJSONString().length());
+			JSONObject response = new JSONObject();
+			if("account_info".equals(commandName)){
+				response.put("status", "error");
+				response.put("error", "actNotFound");
+			}
+			else{
+				response.put("status", "success");
+				response.put("result", new JSONObject());
+			}
+			metrics.onBytesReceived(response.toJSONString().length());
+			metrics.onResponse(commandName, 2000000, 1000);
+			future.set(response);
+			return future;
+		}
+	}
+
+	@Test
+	public void testCountsAndErrors() throws Exception {
+		InstrumentedServer server = new InstrumentedServer();
+		for(int i=0; i<10; i++){
+			server.pingFuture().get();
+		}
+		try {
+			server.getAccountInfoFuture("rhcfR9Cg98qCxHpCcPBmMonbDBXo84wyTn").get();
+		} catch (ExecutionException e) {
+		}
+		RecordingConnectionMetrics metrics = (RecordingConnectionMetrics) server.getMetrics();
+		assertEquals(11, metrics.getNbRequests());
+		assertEquals(0, metrics.getNbInFlight());
+		assertEquals(1, metrics.getNbErrors());
+		assertEquals(Long.valueOf(1), metrics.getErrorCountsByCode().get("actNotFound"));
+		assertEquals(Long.valueOf(10), metrics.getRequestCountsByCommand().get("ping"));
+		assertEquals(2, metrics.getSendToFirstByteP99MillisByCommand().get("ping"), 2/16.0);
+		assertTrue(metrics.getBytesSent()>0 && metrics.getBytesReceived()>0);
+		assertEquals(11, metrics.getEndToEnd().getCount());
+		assertTrue(metrics.toString().startsWith("11 requests, 0 in flight, 1 errors {actNotFound=1}"));
+		assertTrue(metrics.toString().contains("\n  ping: 10 requests, 0 errors"));
+
+		metrics.reset();
+		assertEquals(0, metrics.getNbRequests());
+		assertEquals(0, metrics.getEndToEnd().getCount());
+	}
+
+	@Test
+	public void testErrorCodes() {
+		assertEquals(null, RippleDaemonConnection.getErrorCode(new JSONObject()));
+		assertEquals("timeout", RippleDaemonConnection.getErrorCode(new FutureJSONResponse.Failure(new TimeoutException())));
+		assertEquals("IllegalStateException", RippleDaemonConnection.getErrorCode(new FutureJSONResponse.Failure(new IllegalStateException())));
+	}
+
+	@Test
+	public void testMBean() throws Exception {
+		InstrumentedServer server = new InstrumentedServer();
+		server.pingFuture().get();
+		RecordingConnectionMetrics metrics = (RecordingConnectionMetrics) server.getMetrics();
+		ObjectName name = metrics.registerMBean("test");
+		MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+		assertEquals(1L, mbeanServer.getAttribute(name, "NbRequests"));
+		assertTrue((Double) mbeanServer.getAttribute(name, "EndToEndP99Millis")>=0);
+		mbeanServer.getAttribute(name, "EndToEndP99MillisByCommand");
+		metrics.unregisterMBean();
+		assertEquals(false, mbeanServer.isRegistered(name));
+
+		metrics.registerMBean("test");
+		mbeanServer.unregisterMBean(name); //Unregistered behind its back
+		metrics.unregisterMBean();
+		assertEquals(null, metrics.registeredName);
+	}
+}
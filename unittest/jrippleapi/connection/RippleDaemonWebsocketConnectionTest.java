@@ -14,6 +14,7 @@ import jrippleapi.core.DenominatedIssuedCurrency;
 import jrippleapi.core.RippleAddress;
 import jrippleapi.core.RipplePaymentTransaction;
 import jrippleapi.core.RippleSeedAddress;
+import jrippleapi.keys.RippleSigner;
 
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
@@ -99,6 +100,18 @@ public class RippleDaemonWebsocketConnectionTest {
 		conn.setTrustLine(TestUtilities.getTestSeed(), RippleAddress.RIPPLE_ADDRESS_PMARCHES, trustAmount);
 	}
 	
+	@Test
+	public void testLocallySignedPaymentAndTrustLine() throws Exception{
+		RippleSigner signer = new RippleSigner(TestUtilities.getTestSeed().getPrivateKey(0));
+		long sequenceNumber = conn.getAccountInfo(signer.getAddress().toString()).nextTransactionSequence;
+		SubmitResult result = conn.sendPayment(signer, RippleAddress.RIPPLE_ADDRESS_PMARCHES, new DenominatedIssuedCurrency(1000), sequenceNumber);
+		assertTrue(result.engineResult, result.isSuccess());
+
+		DenominatedIssuedCurrency trustAmount = new DenominatedIssuedCurrency(BigDecimal.ONE, null, "BTC");
+		result = conn.setTrustLine(signer, RippleAddress.RIPPLE_ADDRESS_PMARCHES, trustAmount, sequenceNumber+1);
+		assertTrue(result.engineResult, result.isSuccess());
+	}
+
 	@Test
 	public void testGetCreditLines() throws Exception {
 		TrustLines creditLines = conn.getCreditLines(RippleAddress.RIPPLE_ADDRESS_JRIPPLEAPI.toString());
@@ -0,0 +1,93 @@
+package jrippleapi.connection;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RippleDaemonWebsocketPoolTest {
+	LoopbackWebsocketConnection[] sessions = new LoopbackWebsocketConnection[3];
+	RippleDaemonWebsocketPool pool;
+
+	@Before
+	public void setUp() {
+		for(int i=0; i<sessions.length; i++){
+			sessions[i] = new LoopbackWebsocketConnection();
+		}
+		pool = new RippleDaemonWebsocketPool(sessions);
+	}
+
+	@Test
+	public void testLeastInFlightRouting() throws Exception {
+		for(int i=0; i<4; i++){
+			pool.pingFuture();
+		}
+		assertArrayEquals(new int[]{2, 1, 1}, pool.getInFlightCounts()); //Ties go to the first session
+
+		JSONObject command = sessions[1].takeWrittenCommands().get(0);
+		sessions[1].answer(command, new JSONObject());
+		assertArrayEquals(new int[]{2, 0, 1}, pool.getInFlightCounts());
+		pool.pingFuture();
+		assertArrayEquals(new int[]{2, 1, 1}, pool.getInFlightCounts());
+		assertEquals(4, pool.getNbInFlight());
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testSubscriptionsStayOnTheFirstSession() throws Exception {
+		pool.pingFuture();
+		assertSame(sessions[1], pool.getLeastLoadedSession());
+		JSONArray streams = new JSONArray();
+		streams.add("ledger");
+		JSONObject command = new JSONObject();
+		command.put("command", "subscribe");
+		command.put("streams", streams);
+		FutureJSONResponse<GenericJSONSerializable> subscription = pool.sendCommand(command, new GenericJSONSerializable());
+		assertArrayEquals(new int[]{2, 0, 0}, pool.getInFlightCounts());
+
+		JSONObject subscribeCommand = sessions[0].takeWrittenCommands().get(1);
+		assertEquals("subscribe", subscribeCommand.get("command"));
+		sessions[0].answer(subscribeCommand, new JSONObject());
+		subscription.get(1, TimeUnit.SECONDS);
+		assertEquals(1, sessions[0].getNbSubscriptions());
+	}
+
+	@Test
+	public void testMetricsCountForTheWholePool() throws Exception {
+		for(int i=0; i<6; i++){
+			pool.pingFuture();
+		}
+		for(LoopbackWebsocketConnection session : sessions){
+			assertSame(pool.getMetrics(), session.getMetrics());
+			for(JSONObject command : session.takeWrittenCommands()){
+				session.answer(command, new JSONObject());
+			}
+		}
+		RecordingConnectionMetrics metrics = (RecordingConnectionMetrics) pool.getMetrics();
+		assertEquals(6, metrics.getNbRequests());
+		assertEquals(0, metrics.getNbInFlight());
+		assertEquals(6, metrics.getEndToEnd().getCount());
+
+		RecordingConnectionMetrics replacedMetrics = new RecordingConnectionMetrics();
+		pool.setMetrics(replacedMetrics);
+		pool.pingFuture();
+		assertEquals(1, replacedMetrics.getNbRequests());
+		assertEquals(6, metrics.getNbRequests());
+	}
+
+	@Test
+	public void testOneSessionAtLeast() {
+		try {
+			new RippleDaemonWebsocketPool(new RippleDaemonWebsocketConnection[0]);
+			fail();
+		} catch (RuntimeException e) {
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package jrippleapi.connection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.junit.Test;
+
+public class StreamEventDispatcherTest {
+	static final String LEDGER_CLOSED = "{\"fee_base\":10,\"fee_ref\":10,\"ledger_hash\":\"AB\",\"ledger_index\":3092541,\"ledger_time\":436036890,"
+			+ "\"reserve_base\":20000000,\"reserve_inc\":5000000,\"txn_count\":4,\"type\":\"ledgerClosed\",\"validated_ledgers\":\"32570-3092541\"}";
+
+	@Test
+	public void testTypedEvents() throws Exception {
+		StreamEvent event = StreamEvent.fromJSON((JSONObject) new JSONParser().parse(LEDGER_CLOSED));
+		assertTrue(event instanceof LedgerClosedEvent);
+		LedgerClosedEvent ledgerClosed = (LedgerClosedEvent) event;
+		assertEquals(3092541, ledgerClosed.ledgerIndex);
+		assertEquals(20000000, ledgerClosed.reserveBase);
+	}
+
+	@Test
+	public void testEventsAreDispatchedInOrder() throws Exception {
+		final int nbEvents = 10000;
+		final CountDownLatch allHandled = new CountDownLatch(nbEvents);
+		final long[] lastSequence = {-1};
+		StreamEventDispatcher dispatcher = new StreamEventDispatcher(nbEvents, StreamEventDispatcher.WaitStrategy.BLOCKING);
+		dispatcher.addHandler(new StreamEventHandler() {
+			@Override
+			public void onEvent(StreamEvent event, long sequence, boolean endOfBatch) {
+				assertEquals(lastSequence[0]+1, sequence);
+				lastSequence[0]=sequence;
+				allHandled.countDown();
+			}
+		});
+		dispatcher.start();
+		JSONObject jsonMessage = (JSONObject) new JSONParser().parse(LEDGER_CLOSED);
+		for(int i=0; i<nbEvents; i++){
+			assertTrue(dispatcher.publish(StreamEvent.fromJSON(jsonMessage)));
+		}
+		assertTrue(allHandled.await(10, TimeUnit.SECONDS));
+		dispatcher.stop();
+		assertEquals(nbEvents, dispatcher.getNbPublished());
+		assertEquals(0, dispatcher.getNbDropped());
+	}
+
+	@Test
+	public void testDropWhenFull() throws Exception {
+		StreamEventDispatcher dispatcher = new StreamEventDispatcher(4, StreamEventDispatcher.WaitStrategy.SLEEPING);
+		StreamEvent event = StreamEvent.fromJSON((JSONObject) new JSONParser().parse(LEDGER_CLOSED));
+		for(int i=0; i<4; i++){
+			assertTrue(dispatcher.publish(event));
+		}
+		assertFalse(dispatcher.publish(event));
+		assertEquals(1, dispatcher.getNbDropped());
+		assertEquals(4, dispatcher.getLag());
+
+		dispatcher.consumedSequence.set(0); //One slot free, the overflow needs it with the next event
+		assertFalse(dispatcher.publish(event));
+		assertEquals(2, dispatcher.getNbDropped());
+		dispatcher.consumedSequence.set(3);
+		assertTrue(dispatcher.publish(event));
+		StreamEvent overflow = dispatcher.ringBuffer[4 & dispatcher.indexMask];
+		assertTrue(overflow instanceof StreamOverflowEvent);
+		assertEquals(2, ((StreamOverflowEvent) overflow).nbDropped);
+		assertSame(event, dispatcher.ringBuffer[5 & dispatcher.indexMask]);
+		assertEquals(6, dispatcher.getNbPublished());
+	}
+
+	@Test
+	public void testFailingHandlerIsCounted() throws Exception {
+		final CountDownLatch handled = new CountDownLatch(1);
+		StreamEventDispatcher dispatcher = new StreamEventDispatcher(4, StreamEventDispatcher.WaitStrategy.BLOCKING);
+		dispatcher.addHandler(new StreamEventHandler() {
+			@Override
+			public void onEvent(StreamEvent event, long sequence, boolean endOfBatch) {
+				throw new IllegalStateException("broken handler");
+			}
+		});
+		dispatcher.addHandler(new StreamEventHandler() {
+			@Override
+			public void onEvent(StreamEvent event, long sequence, boolean endOfBatch) {
+				handled.countDown();
+			}
+		});
+		dispatcher.start();
+		dispatcher.publish(StreamEvent.fromJSON((JSONObject) new JSONParser().parse(LEDGER_CLOSED)));
+		assertTrue(handled.await(10, TimeUnit.SECONDS));
+		dispatcher.stop();
+		assertEquals(1, dispatcher.getNbHandlerFailures());
+		assertEquals("broken handler", dispatcher.getLastHandlerFailure().getMessage());
+	}
+}
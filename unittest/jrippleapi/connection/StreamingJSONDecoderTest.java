@@ -0,0 +1,70 @@
+package jrippleapi.connection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.junit.Test;
+
+public class StreamingJSONDecoderTest {
+	static final String BOOK_OFFERS_RESPONSE = "{\"id\":7,\"result\":{\"ledger_current_index\":3092541,\"offers\":["
+			+ "{\"Account\":\"rEQQNvhuLt1KTYmDWmw12mPvmJD4KCtxmS\",\"BookDirectory\":\"4627DFFCFF8B5A265EDBD8AE8C14A52325DBFEDAF4F5C32E5B0C1ACF8A4D5B6A\",\"BookNode\":\"0000000000000000\",\"Flags\":0,"
+			+ "\"LedgerEntryType\":\"Offer\",\"OwnerNode\":\"0000000000000000\",\"PreviousTxnID\":\"AB\",\"PreviousTxnLgrSeq\":3092540,\"Sequence\":12,"
+			+ "\"TakerGets\":{\"currency\":\"BTC\",\"issuer\":\"rvYAfWj5gh67oV6fW32ZzP3Aw4Eubs59B\",\"value\":\"0.5\"},\"TakerPays\":\"1000000\",\"index\":\"CD\",\"quality\":\"2000000\"}"
+			+ "]},\"status\":\"success\",\"type\":\"response\"}";
+
+	@Test
+	public void testDecodeWithoutFieldFilter() throws Exception {
+		JSONResponseHolder holder = new JSONResponseHolder();
+		holder.addPendingResponse(new FutureJSONResponse<ExchangeOffer>(7, holder, new ExchangeOffer()));
+		StreamingJSONDecoder decoder = new StreamingJSONDecoder(holder);
+		JSONObject decoded = decoder.decode(BOOK_OFFERS_RESPONSE);
+		assertEquals(new JSONParser().parse(BOOK_OFFERS_RESPONSE), decoded);
+	}
+
+	@Test
+	public void testSkipLateResponse() throws Exception {
+		JSONResponseHolder holder = new JSONResponseHolder();
+		StreamingJSONDecoder decoder = new StreamingJSONDecoder(holder);
+		JSONObject decoded = decoder.decode(BOOK_OFFERS_RESPONSE);
+		assertEquals(7L, decoded.get("id"));
+		assertTrue(((JSONObject) decoded.get("result")).isEmpty());
+		holder.setResponseContent(decoded);
+		assertEquals(1, holder.getNbLateResponses());
+	}
+
+	@Test
+	public void testSkipUnselectedFields() throws Exception {
+		JSONResponseHolder holder = new JSONResponseHolder();
+		holder.addPendingResponse(new FutureJSONResponse<OrderBook>(7, holder, new OrderBook()));
+		StreamingJSONDecoder decoder = new StreamingJSONDecoder(holder);
+		JSONObject decoded = decoder.decode(BOOK_OFFERS_RESPONSE);
+		assertEquals(7L, decoded.get("id"));
+		assertEquals("success", decoded.get("status"));
+
+		JSONObject result = (JSONObject) decoded.get("result");
+		assertFalse(result.containsKey("ledger_current_index"));
+		JSONObject offer = (JSONObject) ((JSONArray) result.get("offers")).get(0);
+		assertTrue(offer.containsKey("TakerGets"));
+		assertNotNull(((JSONObject) offer.get("TakerGets")).get("issuer"));
+		assertFalse(offer.containsKey("PreviousTxnID"));
+		assertFalse(offer.containsKey("Flags"));
+
+		OrderBook book = new OrderBook();
+		book.copyFrom(result);
+		assertEquals(1, book.size());
+		assertEquals("rEQQNvhuLt1KTYmDWmw12mPvmJD4KCtxmS", book.get(0).accountStr);
+	}
+
+	@Test
+	public void testDecoderIsReusable() throws Exception {
+		StreamingJSONDecoder decoder = new StreamingJSONDecoder(new JSONResponseHolder());
+		decoder.decode(BOOK_OFFERS_RESPONSE);
+		JSONObject pong = decoder.decode("{\"id\":8,\"result\":{},\"status\":\"success\",\"type\":\"response\"}");
+		assertEquals(8L, pong.get("id"));
+	}
+}
@@ -0,0 +1,81 @@
+package jrippleapi.connection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class ThrottlingRippleDaemonConnectionTest {
+
+	@Test
+	public void testLimitQueuesTheExcess() throws Exception {
+		FakeRippleDaemonConnection server = new FakeRippleDaemonConnection(false);
+		ThrottlingRippleDaemonConnection connection = new ThrottlingRippleDaemonConnection(server);
+		connection.setLimits(1, 4, 16);
+		ArrayList<FutureJSONResponse<GenericJSONSerializable>> responses = new ArrayList<FutureJSONResponse<GenericJSONSerializable>>();
+		for(int i=0; i<10; i++){
+			responses.add(connection.pingFuture());
+		}
+		assertEquals(4, server.getNbHeld());
+		assertEquals(6, connection.getNbQueued());
+
+		while(server.getNbHeld()>0){
+			server.answerNext(null);
+		}
+		for(FutureJSONResponse<GenericJSONSerializable> response : responses){
+			response.get(1, TimeUnit.SECONDS);
+		}
+		assertEquals(0, connection.getNbQueued());
+		assertEquals(0, connection.getNbInFlight());
+	}
+
+	@Test
+	public void testLoadSheddingHalvesTheLimit() throws Exception {
+		FakeRippleDaemonConnection server = new FakeRippleDaemonConnection(false);
+		ThrottlingRippleDaemonConnection connection = new ThrottlingRippleDaemonConnection(server);
+		connection.setLimits(1, 16, 16);
+		for(int i=0; i<16; i++){
+			connection.pingFuture();
+		}
+		server.answerNext("tooBusy");
+		assertEquals(8, connection.getLimit(), 0);
+		assertEquals(1, connection.getNbLoadErrors());
+
+		ServerStatusEvent statusEvent = new ServerStatusEvent();
+		statusEvent.loadBase=256;
+		statusEvent.loadFactor=1024;
+		connection.lastDecreaseNanos-=TimeUnit.SECONDS.toNanos(1); //The decrease for tooBusy is not recent anymore
+		connection.onEvent(statusEvent, 0, true);
+		assertEquals(4, connection.getLimit(), 0);
+	}
+
+	@Test
+	public void testBoundedQueue() throws Exception {
+		FakeRippleDaemonConnection server = new FakeRippleDaemonConnection(false);
+		ThrottlingRippleDaemonConnection connection = new ThrottlingRippleDaemonConnection(server);
+		connection.setLimits(1, 1, 1);
+		connection.setQueueBounds(1, 20, TimeUnit.MILLISECONDS);
+		connection.pingFuture();
+		FutureJSONResponse<GenericJSONSerializable> queued = connection.pingFuture();
+		FutureJSONResponse<GenericJSONSerializable> rejected = connection.pingFuture();
+		assertTrue(rejected.isDone());
+		try {
+			queued.get(2, TimeUnit.SECONDS);
+			fail();
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof RejectedExecutionException);
+		}
+		assertEquals(2, connection.getNbRejected());
+		assertEquals(0, connection.getNbQueued()); //The expired command left the queue
+
+		FutureJSONResponse<GenericJSONSerializable> queuedAfterExpiry = connection.pingFuture();
+		assertTrue(queuedAfterExpiry.isDone()==false);
+		assertEquals(1, connection.getNbQueued());
+	}
+}
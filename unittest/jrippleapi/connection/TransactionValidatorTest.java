@@ -0,0 +1,79 @@
+package jrippleapi.connection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.FileReader;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.junit.Test;
+
+public class TransactionValidatorTest {
+
+	/**
+	 * Each read of the validated ledger gets the next one, the transaction is found but validated only from validatingLedger on
+	 */
+	static class LedgerServer extends FakeRippleDaemonConnection {
+		final JSONObject testTx;
+		volatile long validatedLedger = 100;
+		volatile long validatingLedger = Long.MAX_VALUE;
+
+		LedgerServer() throws Exception {
+			JSONArray allTx = (JSONArray) new JSONParser().parse(new FileReader("testdata/unittest-tx.json"));
+			testTx = (JSONObject) allTx.get(0);
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		protected JSONObject createResult(JSONObject command) {
+			JSONObject result = new JSONObject();
+			if("ledger".equals(command.get("command"))){
+				result.put("ledger_index", ++validatedLedger);
+				result.put("validated", true);
+				return result;
+			}
+			result.put("tx", testTx.get("tx"));
+			result.put("meta", testTx.get("meta"));
+			result.put("hash", command.get("transaction"));
+			result.put("ledger_index", validatedLedger);
+			result.put("validated", validatedLedger>=validatingLedger);
+			return result;
+		}
+	}
+
+	@Test
+	public void testCompletesOnceValidated() throws Exception {
+		LedgerServer server = new LedgerServer();
+		server.validatingLedger = 103;
+		TransactionValidator validator = new TransactionValidator(server);
+		validator.setPollInterval(5, TimeUnit.MILLISECONDS);
+		assertEquals(101+TransactionValidator.DEFAULT_LEDGER_OFFSET, validator.getLastLedgerSequence());
+
+		BinaryTransaction transaction = validator.awaitValidation("AB", 105).get(10, TimeUnit.SECONDS);
+		assertTrue(transaction.validated);
+		assertEquals(103, transaction.ledgerIndex);
+		assertEquals(1, validator.getNbValidated());
+		assertEquals(0, validator.getNbPending());
+	}
+
+	@Test
+	public void testExpiresOncePastItsLastLedger() throws Exception {
+		LedgerServer server = new LedgerServer();
+		TransactionValidator validator = new TransactionValidator(server);
+		validator.setPollInterval(5, TimeUnit.MILLISECONDS);
+		try {
+			validator.awaitValidation("AB", 103).get(10, TimeUnit.SECONDS);
+			fail();
+		} catch (ExecutionException e) {
+			TransactionExpiredException expired = (TransactionExpiredException) e.getCause();
+			assertEquals(104, expired.validatedLedgerIndex);
+		}
+		assertEquals(1, validator.getNbExpired());
+		assertEquals(0, validator.getNbPollFailures());
+	}
+}
@@ -0,0 +1,107 @@
+package jrippleapi.connection;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONObject;
+import org.junit.Test;
+
+public class WebsocketMultiplexingTest {
+	static final int NB_THREADS=8;
+	static final int NB_COMMANDS_PER_THREAD=500;
+
+	@SuppressWarnings("unchecked")
+	static JSONObject accountInfoCommand(String account){
+		JSONObject command = new JSONObject();
+		command.put("command", "account_info");
+		command.put("account", account);
+		return command;
+	}
+
+	List<Thread> startAll(List<Runnable> tasks){
+		ArrayList<Thread> threads = new ArrayList<Thread>();
+		for(Runnable task : tasks){
+			Thread thread = new Thread(task);
+			thread.start();
+			threads.add(thread);
+		}
+		return threads;
+	}
+
+	void joinAll(List<Thread> threads) throws InterruptedException {
+		for(Thread thread : threads){
+			thread.join();
+		}
+	}
+
+	/**
+	 * Many threads send at once, the responses arrive shuffled on several threads, each one completes the future of its own request
+	 */
+	@Test
+	public void testConcurrentRequestsGetTheirOwnResponse() throws Exception {
+		final LoopbackWebsocketConnection connection = new LoopbackWebsocketConnection();
+		final List<List<FutureJSONResponse<GenericJSONSerializable>>> responsesByThread = new ArrayList<List<FutureJSONResponse<GenericJSONSerializable>>>();
+		ArrayList<Runnable> senders = new ArrayList<Runnable>();
+		for(int t=0; t<NB_THREADS; t++){
+			final int threadIndex = t;
+			final List<FutureJSONResponse<GenericJSONSerializable>> responses = new ArrayList<FutureJSONResponse<GenericJSONSerializable>>();
+			responsesByThread.add(responses);
+			senders.add(new Runnable() {
+				@Override
+				public void run() {
+					for(int i=0; i<NB_COMMANDS_PER_THREAD; i++){
+						responses.add(connection.sendCommand(accountInfoCommand("r"+threadIndex+"-"+i), new GenericJSONSerializable()));
+					}
+				}
+			});
+		}
+		joinAll(startAll(senders));
+		assertEquals(NB_THREADS*NB_COMMANDS_PER_THREAD, connection.getNbInFlight());
+
+		List<JSONObject> commands = connection.takeWrittenCommands();
+		assertEquals(NB_THREADS*NB_COMMANDS_PER_THREAD, commands.size());
+		Collections.shuffle(commands, new Random(42));
+		ArrayList<Runnable> responders = new ArrayList<Runnable>();
+		for(int t=0; t<NB_THREADS; t++){
+			final List<JSONObject> answeredCommands = commands.subList(t*NB_COMMANDS_PER_THREAD, (t+1)*NB_COMMANDS_PER_THREAD);
+			responders.add(new Runnable() {
+				@Override
+				@SuppressWarnings("unchecked")
+				public void run() {
+					for(JSONObject command : answeredCommands){
+						JSONObject result = new JSONObject();
+						result.put("account", command.get("account"));
+						connection.answer(command, result);
+					}
+				}
+			});
+		}
+		joinAll(startAll(responders));
+
+		for(int t=0; t<NB_THREADS; t++){
+			for(int i=0; i<NB_COMMANDS_PER_THREAD; i++){
+				GenericJSONSerializable response = responsesByThread.get(t).get(i).get(1, TimeUnit.SECONDS);
+				assertEquals("r"+t+"-"+i, response.jsonCommandResult.get("account"));
+			}
+		}
+		assertEquals(0, connection.getNbInFlight());
+		assertEquals(0, connection.responseHolder.getNbPendingResponses());
+		assertEquals(0, connection.getNbLateResponses());
+	}
+
+	@Test
+	public void testLateResponseIsDiscarded() throws Exception {
+		LoopbackWebsocketConnection connection = new LoopbackWebsocketConnection();
+		FutureJSONResponse<GenericJSONSerializable> response = connection.sendCommand(accountInfoCommand("r1"), new GenericJSONSerializable());
+		response.cancel(false);
+		JSONObject command = connection.takeWrittenCommands().get(0);
+		connection.answer(command, new JSONObject());
+		assertEquals(1, connection.getNbLateResponses());
+		assertEquals(0, connection.getNbInFlight());
+	}
+}
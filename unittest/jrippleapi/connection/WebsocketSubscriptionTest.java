@@ -0,0 +1,71 @@
+package jrippleapi.connection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.junit.Test;
+
+public class WebsocketSubscriptionTest {
+
+	@Test
+	public void testPartialUnsubscribeKeepsTheOtherStreams() throws Exception {
+		LoopbackWebsocketConnection connection = new LoopbackWebsocketConnection();
+		connection.subscribeToStreamsFuture("ledger", "server");
+		connection.subscribeToAccountsFuture("r1");
+		assertEquals(3, connection.getNbSubscriptions());
+
+		connection.unsubscribeFromStreamsFuture("server");
+		assertEquals(2, connection.getNbSubscriptions());
+		List<JSONObject> commands = connection.takeWrittenCommands();
+		JSONObject unsubscribeCommand = commands.get(commands.size()-1);
+		assertEquals("unsubscribe", unsubscribeCommand.get("command"));
+		assertEquals(1, ((JSONArray) unsubscribeCommand.get("streams")).size());
+		assertEquals("server", ((JSONArray) unsubscribeCommand.get("streams")).get(0));
+	}
+
+	@Test
+	public void testSharedStreamIsUnsubscribedByTheLastSubscriber() throws Exception {
+		LoopbackWebsocketConnection connection = new LoopbackWebsocketConnection();
+		connection.subscribeToStreamsFuture("ledger");
+		connection.subscribeToStreamsFuture("ledger");
+		assertEquals(1, connection.getNbSubscriptions());
+		connection.takeWrittenCommands();
+
+		FutureJSONResponse<GenericJSONSerializable> firstUnsubscribe = connection.unsubscribeFromStreamsFuture("ledger");
+		firstUnsubscribe.get(1, TimeUnit.SECONDS);
+		assertTrue(connection.takeWrittenCommands().isEmpty());
+		assertEquals(1, connection.getNbSubscriptions());
+
+		connection.unsubscribeFromStreamsFuture("ledger");
+		assertEquals(1, connection.takeWrittenCommands().size());
+		assertEquals(0, connection.getNbSubscriptions());
+	}
+
+	@Test
+	public void testBookIsTrackedWithoutItsSnapshotFlag() throws Exception {
+		LoopbackWebsocketConnection connection = new LoopbackWebsocketConnection();
+		connection.subscribeToBookFuture("USD", "r1", "XRP", null, true);
+		connection.unsubscribeFromBookFuture("USD", "r1", "XRP", null);
+		assertEquals(0, connection.getNbSubscriptions());
+	}
+
+	@Test
+	public void testCloseWithoutReconnectionFailsThePendingCommands() throws Exception {
+		LoopbackWebsocketConnection connection = new LoopbackWebsocketConnection();
+		FutureJSONResponse<GenericJSONSerializable> response = connection.sendCommand(WebsocketMultiplexingTest.accountInfoCommand("r1"), new GenericJSONSerializable());
+		connection.onClose(1006, "gone");
+		try {
+			response.get(1, TimeUnit.SECONDS);
+			fail();
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof ConnectionLostException);
+		}
+	}
+}
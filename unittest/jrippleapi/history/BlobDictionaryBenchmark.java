@@ -0,0 +1,99 @@
+package jrippleapi.history;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stores the test blobs raw, deflated each on its own, deflated with the dictionary, and deflated with the dictionary by blocks.
+ * Then reads them one by one in a random order, as the history queries do, and prints the size and speed of each mode.
+ * Run from the project directory, it reads testdata/unittest-tx.json.
+ *
+ * @author pmarches
+ */
+public class BlobDictionaryBenchmark {
+	static final int NB_WARMUPS=2;
+	static final int NB_ITERATIONS=5;
+
+	final BlobDictionaryTest blobSource = new BlobDictionaryTest();
+	long checksum;
+
+	public static void main(String[] args) throws Exception {
+		new BlobDictionaryBenchmark().run();
+	}
+
+	void run() throws Exception {
+		blobSource.setUp();
+		try {
+			BlobDictionary dictionary = BlobDictionary.train(blobSource.createBlobs(BlobDictionaryTest.NB_TRAINING_BLOBS), BlobDictionary.DEFAULT_MAX_SIZE);
+			List<byte[]> blobs = blobSource.createBlobs(BlobDictionaryTest.NB_TEST_BLOBS);
+			int[] readOrder = new int[blobs.size()];
+			for(int i=0; i<readOrder.length; i++){
+				readOrder[i] = blobSource.random.nextInt(blobs.size());
+			}
+			long rawSize = blobSource.getLength(blobs);
+
+			ArrayList<byte[]> deflatedBlobs = new ArrayList<byte[]>();
+			ArrayList<byte[]> dictionaryBlobs = new ArrayList<byte[]>();
+			for(byte[] blob : blobs){
+				deflatedBlobs.add(blobSource.deflateWithoutDictionary(blob));
+				dictionaryBlobs.add(dictionary.deflate(blob));
+			}
+			int blockSize = BlobDictionaryTest.BLOCK_SIZE;
+			ArrayList<byte[]> dictionaryBlocks = new ArrayList<byte[]>();
+			int[] blockLengths = new int[(blobs.size()+blockSize-1)/blockSize];
+			for(int i=0; i<blobs.size(); i+=blockSize){
+				List<byte[]> blockBlobs = blobs.subList(i, Math.min(blobs.size(), i+blockSize));
+				dictionaryBlocks.add(dictionary.deflate(blobSource.concatenate(blockBlobs)));
+				blockLengths[i/blockSize] = blobSource.getLength(blockBlobs);
+			}
+
+			for(int warmup=0; warmup<=NB_WARMUPS; warmup++){
+				long rawNanos=0, deflatedNanos=0, dictionaryNanos=0, blockNanos=0;
+				for(int iteration=0; iteration<NB_ITERATIONS; iteration++){
+					long start = System.nanoTime();
+					for(int i : readOrder){
+						checksum += blobs.get(i).clone().length;
+					}
+					rawNanos += System.nanoTime()-start;
+
+					start = System.nanoTime();
+					for(int i : readOrder){
+						checksum += blobSource.inflateWithoutDictionary(deflatedBlobs.get(i), blobs.get(i).length).length;
+					}
+					deflatedNanos += System.nanoTime()-start;
+
+					start = System.nanoTime();
+					for(int i : readOrder){
+						checksum += dictionary.inflate(dictionaryBlobs.get(i), blobs.get(i).length).length;
+					}
+					dictionaryNanos += System.nanoTime()-start;
+
+					start = System.nanoTime();
+					for(int i : readOrder){
+						int block = i/blockSize;
+						checksum += dictionary.inflate(dictionaryBlocks.get(block), blockLengths[block]).length;
+					}
+					blockNanos += System.nanoTime()-start;
+				}
+				if(warmup==NB_WARMUPS){
+					printResult("raw                  ", rawSize, rawSize, rawNanos, readOrder.length);
+					printResult("deflate              ", rawSize, blobSource.getLength(deflatedBlobs), deflatedNanos, readOrder.length);
+					printResult("deflate+dictionary   ", rawSize, blobSource.getLength(dictionaryBlobs), dictionaryNanos, readOrder.length);
+					printResult("deflate+dictionary/"+blockSize, rawSize, blobSource.getLength(dictionaryBlocks), blockNanos, readOrder.length);
+				}
+			}
+			System.out.println("checksum "+checksum);
+		} finally {
+			blobSource.tearDown();
+		}
+	}
+
+	/**
+	 * The read speed is in bytes of blobs returned, a block is inflated whole to read one of its blobs
+	 */
+	void printResult(String mode, long rawSize, long storedSize, long nanos, int nbReads){
+		double seconds = nanos/1e9;
+		System.out.printf("%s: %.1f bytes per blob, ratio %.2f, %.0f random reads/s, %.1f MB/s%n", mode, storedSize/(double) BlobDictionaryTest.NB_TEST_BLOBS,
+				rawSize/(double) storedSize, nbReads*(double) NB_ITERATIONS/seconds, rawSize*(double) NB_ITERATIONS/seconds/1e6);
+	}
+}
@@ -0,0 +1,260 @@
+package jrippleapi.history;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileReader;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.xml.bind.DatatypeConverter;
+
+import jrippleapi.core.DenominatedIssuedCurrency;
+import jrippleapi.core.RippleAddress;
+import jrippleapi.serialization.RippleBinaryObject;
+import jrippleapi.serialization.RippleBinarySchema.BinaryFormatField;
+import jrippleapi.serialization.RippleBinarySerializer;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BlobDictionaryTest {
+	static final int NB_TRAINING_BLOBS=1000;
+	static final int NB_TEST_BLOBS=2000;
+	static final int NB_ACCOUNTS=50;
+	static final int BLOCK_SIZE=16;
+
+	File directory;
+	Random random = new Random(42);
+	ArrayList<RippleBinaryObject> testTransactions = new ArrayList<RippleBinaryObject>();
+	ArrayList<byte[]> testMetas = new ArrayList<byte[]>();
+	ArrayList<RippleAddress> accounts = new ArrayList<RippleAddress>();
+	ArrayList<byte[]> publicKeys = new ArrayList<byte[]>();
+	Inflater plainInflater = new Inflater(true);
+
+	@Before
+	public void setUp() throws Exception {
+		directory = File.createTempFile("history", "");
+		directory.delete();
+		JSONArray allTx = (JSONArray) new JSONParser().parse(new FileReader("testdata/unittest-tx.json"));
+		RippleBinarySerializer serializer = new RippleBinarySerializer();
+		for(Object testTx : allTx){
+			byte[] txBlob = DatatypeConverter.parseHexBinary((String) ((JSONObject) testTx).get("tx"));
+			testTransactions.add(serializer.readBinaryObject(ByteBuffer.wrap(txBlob)));
+			testMetas.add(DatatypeConverter.parseHexBinary((String) ((JSONObject) testTx).get("meta")));
+		}
+		for(int i=0; i<NB_ACCOUNTS; i++){
+			accounts.add(new RippleAddress(randomBytes(20)));
+			byte[] publicKey = randomBytes(33);
+			publicKey[0] = 2;
+			publicKeys.add(publicKey);
+		}
+	}
+
+	@After
+	public void tearDown() {
+		if(directory.exists()==false){
+			return;
+		}
+		for(File file : directory.listFiles()){
+			file.delete();
+		}
+		directory.delete();
+	}
+
+	byte[] randomBytes(int length){
+		byte[] bytes = new byte[length];
+		random.nextBytes(bytes);
+		return bytes;
+	}
+
+	/**
+	 * One of the test transactions, between accounts of a small population, with its own sequence, amount and signature
+	 */
+	byte[] createTxBlob(int testIndex){
+		RippleBinaryObject transaction = new RippleBinaryObject(testTransactions.get(testIndex));
+		int sender = random.nextInt(NB_ACCOUNTS);
+		transaction.putField(BinaryFormatField.Account, accounts.get(sender));
+		transaction.putField(BinaryFormatField.SigningPubKey, publicKeys.get(sender));
+		transaction.putField(BinaryFormatField.Destination, accounts.get(random.nextInt(NB_ACCOUNTS)));
+		transaction.putField(BinaryFormatField.Sequence, (long) random.nextInt(10000));
+		DenominatedIssuedCurrency amount = (DenominatedIssuedCurrency) transaction.getField(BinaryFormatField.Amount);
+		transaction.putField(BinaryFormatField.Amount, new DenominatedIssuedCurrency(BigDecimal.valueOf(random.nextInt(1000000), 2), amount.issuer, amount.currency));
+		transaction.putField(BinaryFormatField.TxnSignature, randomBytes(70+random.nextInt(3)));
+		ByteBuffer txBuffer = new RippleBinarySerializer().writeBinaryObject(transaction);
+		byte[] txBlob = new byte[txBuffer.remaining()];
+		txBuffer.get(txBlob);
+		return txBlob;
+	}
+
+	/**
+	 * The transaction followed by its metadata, with the hashes of the metadata replaced by random bytes
+	 */
+	byte[] createBlob(){
+		int testIndex = random.nextInt(testTransactions.size());
+		byte[] txBlob = createTxBlob(testIndex);
+		byte[] meta = testMetas.get(testIndex).clone();
+		for(int i=0; i<meta.length-33; i++){
+			if(meta[i]==0x55 || meta[i]==0x56){ //PreviousTxnID, LedgerIndex
+				System.arraycopy(randomBytes(32), 0, meta, i+1, 32);
+				i+=32;
+			}
+		}
+		byte[] blob = new byte[txBlob.length+meta.length];
+		System.arraycopy(txBlob, 0, blob, 0, txBlob.length);
+		System.arraycopy(meta, 0, blob, txBlob.length, meta.length);
+		return blob;
+	}
+
+	List<byte[]> createBlobs(int nbBlobs){
+		ArrayList<byte[]> blobs = new ArrayList<byte[]>();
+		for(int i=0; i<nbBlobs; i++){
+			blobs.add(createBlob());
+		}
+		return blobs;
+	}
+
+	@Test
+	public void testRoundTrip() {
+		BlobDictionary dictionary = BlobDictionary.train(createBlobs(NB_TRAINING_BLOBS), BlobDictionary.DEFAULT_MAX_SIZE);
+		assertTrue(dictionary.getBytes().length>0);
+		assertTrue(dictionary.getBytes().length<=BlobDictionary.DEFAULT_MAX_SIZE);
+		for(byte[] blob : createBlobs(100)){
+			byte[] compressedBlob = dictionary.deflate(blob);
+			assertArrayEquals(blob, dictionary.inflate(compressedBlob, blob.length));
+		}
+		assertArrayEquals(new byte[0], dictionary.inflate(dictionary.deflate(new byte[0]), 0));
+	}
+
+	/**
+	 * Stores the test blobs deflated each on its own, deflated with the dictionary, and deflated with the dictionary by blocks.
+	 * Then reads them one by one in a random order, as the history queries do.
+	 */
+	@Test
+	public void testCompressionRatios() {
+		BlobDictionary dictionary = BlobDictionary.train(createBlobs(NB_TRAINING_BLOBS), BlobDictionary.DEFAULT_MAX_SIZE);
+		List<byte[]> blobs = createBlobs(NB_TEST_BLOBS);
+		long rawSize = getLength(blobs);
+
+		ArrayList<byte[]> deflatedBlobs = new ArrayList<byte[]>();
+		ArrayList<byte[]> dictionaryBlobs = new ArrayList<byte[]>();
+		for(byte[] blob : blobs){
+			deflatedBlobs.add(deflateWithoutDictionary(blob));
+			dictionaryBlobs.add(dictionary.deflate(blob));
+		}
+		ArrayList<byte[]> dictionaryBlocks = new ArrayList<byte[]>();
+		for(int i=0; i<blobs.size(); i+=BLOCK_SIZE){
+			dictionaryBlocks.add(dictionary.deflate(concatenate(blobs.subList(i, Math.min(blobs.size(), i+BLOCK_SIZE)))));
+		}
+
+		for(int read=0; read<NB_TEST_BLOBS; read++){
+			int i = random.nextInt(NB_TEST_BLOBS);
+			assertArrayEquals(blobs.get(i), inflateWithoutDictionary(deflatedBlobs.get(i), blobs.get(i).length));
+			assertArrayEquals(blobs.get(i), dictionary.inflate(dictionaryBlobs.get(i), blobs.get(i).length));
+			int block = i/BLOCK_SIZE;
+			List<byte[]> blockBlobs = blobs.subList(block*BLOCK_SIZE, Math.min(blobs.size(), (block+1)*BLOCK_SIZE));
+			assertArrayEquals(concatenate(blockBlobs), dictionary.inflate(dictionaryBlocks.get(block), getLength(blockBlobs)));
+		}
+
+		assertTrue(getLength(deflatedBlobs)<rawSize);
+		assertTrue(getLength(dictionaryBlobs)<getLength(deflatedBlobs));
+		assertTrue(getLength(dictionaryBlobs)<rawSize*3/4);
+		assertTrue(getLength(dictionaryBlocks)<getLength(dictionaryBlobs));
+	}
+
+	byte[] deflateWithoutDictionary(byte[] blob){
+		Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+		deflater.setInput(blob);
+		deflater.finish();
+		byte[] output = new byte[blob.length*2+64];
+		int outputLength = deflater.deflate(output);
+		deflater.end();
+		byte[] deflatedBlob = new byte[outputLength];
+		System.arraycopy(output, 0, deflatedBlob, 0, outputLength);
+		return deflatedBlob;
+	}
+
+	byte[] inflateWithoutDictionary(byte[] deflatedBlob, int length){
+		plainInflater.reset();
+		plainInflater.setInput(deflatedBlob);
+		byte[] blob = new byte[length];
+		try {
+			plainInflater.inflate(blob);
+		} catch (DataFormatException e) {
+			throw new RuntimeException(e);
+		}
+		return blob;
+	}
+
+	byte[] concatenate(List<byte[]> blobs){
+		byte[] concatenation = new byte[getLength(blobs)];
+		int offset=0;
+		for(byte[] blob : blobs){
+			System.arraycopy(blob, 0, concatenation, offset, blob.length);
+			offset += blob.length;
+		}
+		return concatenation;
+	}
+
+	int getLength(List<byte[]> blobs){
+		int length=0;
+		for(byte[] blob : blobs){
+			length += blob.length;
+		}
+		return length;
+	}
+
+	/**
+	 * The metadata is kept as is, so the index can decode it
+	 */
+	HistoryRecord createRecord(long ledgerIndex){
+		int testIndex = random.nextInt(testTransactions.size());
+		byte[] txBlob = createTxBlob(testIndex);
+		return new HistoryRecord(ledgerIndex, 0, HistoryRecord.computeHash(txBlob), txBlob, testMetas.get(testIndex), new RippleAddress[]{accounts.get(0)});
+	}
+
+	@Test
+	public void testCompressedSegments() throws Exception {
+		HistoryStore store = new HistoryStore(directory);
+		ArrayList<HistoryRecord> records = new ArrayList<HistoryRecord>();
+		for(int i=1; i<=500; i++){
+			records.add(createRecord(i));
+			store.append(records.get(i-1));
+		}
+		long rawSize = store.getActiveSegment().getSize();
+		BlobDictionary dictionary = store.trainBlobDictionary(HistoryStore.DEFAULT_NB_DICTIONARY_SAMPLES);
+		assertNotNull(dictionary);
+		assertEquals(2, store.segments.size());
+		for(int i=501; i<=1000; i++){
+			records.add(createRecord(i));
+			store.append(records.get(i-1));
+		}
+		long compressedSize = store.getActiveSegment().getSize();
+		assertTrue(compressedSize<rawSize*3/4);
+		store.close();
+
+		store = new HistoryStore(directory);
+		assertEquals(dictionary.getDictionaryId(), store.getBlobDictionary().getDictionaryId());
+		assertEquals(HistorySegment.VERSION_COMPRESSED, store.getActiveSegment().version);
+		for(HistoryRecord record : records){
+			HistoryRecord storedRecord = store.getTransaction(record.hash);
+			assertArrayEquals(record.txBlob, storedRecord.txBlob);
+			assertArrayEquals(record.metaBlob, storedRecord.metaBlob);
+		}
+		assertEquals(1000, store.query(new HistoryQuery().account(accounts.get(0))).size());
+		store.close();
+	}
+}
@@ -0,0 +1,198 @@
+package jrippleapi.history;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileReader;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.Date;
+import java.util.List;
+
+import jrippleapi.connection.BinaryTransaction;
+import jrippleapi.core.DenominatedIssuedCurrency;
+import jrippleapi.core.RippleAddress;
+import jrippleapi.serialization.RippleBinaryObject;
+import jrippleapi.serialization.RippleBinarySchema.BinaryFormatField;
+import jrippleapi.serialization.RippleBinarySchema.TransactionTypes;
+import jrippleapi.serialization.RippleBinarySerializer;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HistoryIndexTest {
+	static final int NB_RECORDS=2000;
+
+	File directory;
+	HistoryRecord testRecord;
+	DenominatedIssuedCurrency testAmount;
+	RippleAddress payer;
+	RippleAddress payee;
+
+	@Before
+	public void setUp() throws Exception {
+		directory = File.createTempFile("history", "");
+		directory.delete();
+		JSONArray allTx = (JSONArray) new JSONParser().parse(new FileReader("testdata/unittest-tx.json"));
+		JSONObject testTx = (JSONObject) allTx.get(0);
+		JSONObject binaryTx = new JSONObject();
+		binaryTx.put("tx_blob", testTx.get("tx"));
+		binaryTx.put("meta", testTx.get("meta"));
+		binaryTx.put("ledger_index", 1L);
+		binaryTx.put("validated", true);
+		BinaryTransaction transaction = new BinaryTransaction();
+		transaction.copyFrom(binaryTx);
+		testRecord = HistoryRecord.fromBinaryTransaction(transaction);
+		testAmount = (DenominatedIssuedCurrency) testRecord.getTransaction().getField(BinaryFormatField.Amount);
+		payer = new RippleAddress((String) testTx.get("payer"));
+		payee = new RippleAddress((String) testTx.get("payee"));
+	}
+
+	@After
+	public void tearDown() {
+		if(directory.exists()==false){
+			return;
+		}
+		for(File file : directory.listFiles()){
+			file.delete();
+		}
+		directory.delete();
+	}
+
+	/**
+	 * The test payment, in another ledger and for the given amount of its currency
+	 */
+	HistoryRecord createRecord(long ledgerIndex, int amount){
+		RippleBinaryObject transaction = new RippleBinaryObject(testRecord.getTransaction());
+		transaction.putField(BinaryFormatField.Amount, new DenominatedIssuedCurrency(BigDecimal.valueOf(amount), testAmount.issuer, testAmount.currency));
+		ByteBuffer blobBuffer = new RippleBinarySerializer().writeBinaryObject(transaction);
+		byte[] txBlob = new byte[blobBuffer.remaining()];
+		blobBuffer.get(txBlob);
+		return new HistoryRecord(ledgerIndex, 0, HistoryRecord.computeHash(txBlob), txBlob, testRecord.metaBlob, testRecord.accounts);
+	}
+
+	HistoryStore createStore() throws Exception {
+		HistoryStore store = new HistoryStore(directory, 64*1024);
+		for(int i=1; i<=NB_RECORDS; i++){
+			assertTrue(store.append(createRecord(i, i)));
+			store.getIndex().setLedgerCloseTime(i, 1000L*i);
+		}
+		return store;
+	}
+
+	Date toDate(long closeTime){
+		return new Date((closeTime+HistoryQuery.RIPPLE_EPOCH_OFFSET)*1000);
+	}
+
+	void checkQueries(HistoryStore store) throws Exception {
+		List<HistoryRecord> records = store.query(new HistoryQuery().account(payer).counterparty(payee).transactionType(TransactionTypes.PAYMENT).limit(5));
+		assertEquals(5, records.size());
+		assertEquals(NB_RECORDS, records.get(0).ledgerIndex);
+
+		assertEquals(0, store.query(new HistoryQuery().account(payer).transactionType(TransactionTypes.OFFER_CREATE)).size());
+
+		records = store.query(new HistoryQuery().account(payer).currency(testAmount.currency, testAmount.issuer).minAmount(toQueryAmount(1500)));
+		assertEquals(NB_RECORDS-1500+1, records.size());
+		assertEquals(1500, records.get(records.size()-1).ledgerIndex);
+
+		records = store.query(new HistoryQuery().currency(testAmount.currency, testAmount.issuer).minAmount(toQueryAmount(1000)).dateRange(toDate(100*1000), toDate(1200*1000)));
+		assertEquals(201, records.size());
+		assertEquals(1200, records.get(0).ledgerIndex);
+		assertEquals(1000, records.get(200).ledgerIndex);
+
+		records = store.query(new HistoryQuery().account(payee).ledgerRange(10, 19).dateRange(toDate(15*1000), null));
+		assertEquals(5, records.size());
+	}
+
+	/**
+	 * XRP amounts are stored in drops and queried in XRP
+	 */
+	double toQueryAmount(int amount){
+		return testAmount.isNative() ? amount/1e6 : amount;
+	}
+
+	@Test
+	public void testQueryFromMemory() throws Exception {
+		HistoryStore store = createStore();
+		assertEquals(0, store.getIndex().diskTerms.size());
+		checkQueries(store);
+		store.close();
+	}
+
+	@Test
+	public void testQueryFromDisk() throws Exception {
+		HistoryStore store = createStore();
+		store.close();
+		assertTrue(new File(directory, HistoryStore.INDEX_FILENAME).exists());
+
+		store = new HistoryStore(directory, 64*1024);
+		assertEquals(0, store.getIndex().memoryTerms.size());
+		assertTrue(store.getIndex().diskTerms.size()>3);
+		checkQueries(store);
+		store.close();
+	}
+
+	@Test
+	public void testCheckpointWhileAppending() throws Exception {
+		HistoryStore store = new HistoryStore(directory, 64*1024);
+		store.getIndex().setCheckpointPostings(1100);
+		for(int i=1; i<=NB_RECORDS; i++){
+			store.append(createRecord(i, i));
+			store.getIndex().setLedgerCloseTime(i, 1000L*i);
+		}
+		assertTrue(store.getIndex().checkpointPosition>0);
+		assertTrue(store.getIndex().nbMemoryPostings>0 && store.getIndex().nbMemoryPostings<1100);
+		checkQueries(store);
+		store.flush(); //A crash, the last records are indexed again on open
+		store.getIndex().close();
+
+		store = new HistoryStore(directory, 64*1024);
+		assertTrue(store.getIndex().memoryTerms.size()>0);
+		assertEquals(NB_RECORDS, store.query(new HistoryQuery().account(payer)).size());
+		store.close();
+	}
+
+	@Test
+	public void testCheckpointsAppendDeltasUntilMerged() throws Exception {
+		HistoryStore store = new HistoryStore(directory, 64*1024);
+		store.getIndex().setCheckpointPostings(1000);
+		for(int i=1; i<=NB_RECORDS; i++){
+			store.append(createRecord(i, i));
+			store.getIndex().setLedgerCloseTime(i, 1000L*i);
+		}
+		File indexFile = new File(directory, HistoryStore.INDEX_FILENAME);
+		long indexSize = indexFile.length();
+		assertTrue(store.getIndex().nbDeltas>1); //The first checkpoint wrote index.dat
+		assertTrue(new File(directory, HistoryStore.INDEX_FILENAME+".2").exists());
+		checkQueries(store);
+		store.close();
+
+		store = new HistoryStore(directory, 64*1024);
+		assertFalse(store.isIndexRebuilt());
+		assertEquals(0, store.getIndex().memoryTerms.size());
+		checkQueries(store);
+		store.getIndex().merge(store.getEndPosition());
+		assertEquals(0, store.getIndex().nbDeltas);
+		assertFalse(new File(directory, HistoryStore.INDEX_FILENAME+".1").exists());
+		assertTrue(indexFile.length()>indexSize);
+		checkQueries(store);
+		store.close();
+	}
+
+	@Test
+	public void testOneCurrencyPerQuery() throws Exception {
+		HistoryQuery query = new HistoryQuery().currency(testAmount.currency, testAmount.issuer);
+		try {
+			query.currency("XRP", null);
+			fail();
+		} catch (RuntimeException e) {
+		}
+	}
+}
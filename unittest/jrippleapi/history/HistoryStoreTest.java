@@ -0,0 +1,253 @@
+package jrippleapi.history;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import jrippleapi.connection.BinaryTransaction;
+import jrippleapi.connection.FakeRippleDaemonConnection;
+import jrippleapi.core.RippleAddress;
+import jrippleapi.serialization.RippleBinarySchema.BinaryFormatField;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HistoryStoreTest {
+	File directory;
+	JSONObject testTx;
+	HistoryRecord testRecord;
+
+	@Before
+	public void setUp() throws Exception {
+		directory = File.createTempFile("history", "");
+		directory.delete();
+		JSONArray allTx = (JSONArray) new JSONParser().parse(new FileReader("testdata/unittest-tx.json"));
+		testTx = (JSONObject) allTx.get(0);
+		JSONObject binaryTx = createBinaryTx(2905136);
+		BinaryTransaction transaction = new BinaryTransaction();
+		transaction.copyFrom(binaryTx);
+		testRecord = HistoryRecord.fromBinaryTransaction(transaction);
+	}
+
+	@After
+	public void tearDown() {
+		if(directory.exists()==false){
+			return;
+		}
+		for(File file : directory.listFiles()){
+			file.delete();
+		}
+		directory.delete();
+	}
+
+	JSONObject createBinaryTx(long ledgerIndex){
+		JSONObject binaryTx = new JSONObject();
+		binaryTx.put("tx_blob", testTx.get("tx"));
+		binaryTx.put("meta", testTx.get("meta"));
+		binaryTx.put("ledger_index", ledgerIndex);
+		binaryTx.put("date", 1000L*ledgerIndex);
+		binaryTx.put("validated", true);
+		return binaryTx;
+	}
+
+	/**
+	 * The same transaction, as if it had been in another ledger
+	 */
+	HistoryRecord createRecord(long ledgerIndex, int transactionIndex){
+		byte[] hash = testRecord.hash.clone();
+		hash[0] = (byte) ledgerIndex;
+		hash[1] = (byte) (ledgerIndex>>8);
+		hash[2] = (byte) transactionIndex;
+		return new HistoryRecord(ledgerIndex, transactionIndex, hash, testRecord.txBlob, testRecord.metaBlob, testRecord.accounts);
+	}
+
+	@Test
+	public void testAffectedAccounts() {
+		assertEquals(testTx.get("payer"), testRecord.accounts[0].toString());
+		assertEquals(testTx.get("payee"), testRecord.accounts[1].toString());
+		assertEquals(32, testRecord.hash.length);
+	}
+
+	@Test
+	public void testAppendAndQuery() throws Exception {
+		HistoryStore store = new HistoryStore(directory);
+		for(int ledgerIndex=1000; ledgerIndex>=1; ledgerIndex--){ //Out of order, to force a sort
+			assertTrue(store.append(createRecord(ledgerIndex, 0)));
+		}
+		assertFalse(store.append(createRecord(500, 0)));
+		assertEquals(1000, store.getNbRecords());
+
+		RippleAddress payer = new RippleAddress((String) testTx.get("payer"));
+		List<HistoryRecord> history = store.getAccountHistory(payer, 0, -1, 10);
+		assertEquals(10, history.size());
+		assertEquals(1000, history.get(0).ledgerIndex);
+		assertEquals(991, history.get(9).ledgerIndex);
+
+		history = store.getAccountHistory(payer, 200, 300, 1000);
+		assertEquals(101, history.size());
+		assertEquals(300, history.get(0).ledgerIndex);
+		assertEquals(200, history.get(100).ledgerIndex);
+		assertEquals(testTx.get("payee"), history.get(0).getTransaction().getField(BinaryFormatField.Destination).toString());
+
+		HistoryRecord record = store.getTransaction(createRecord(42, 0).hash);
+		assertEquals(42, record.ledgerIndex);
+		assertArrayEquals(testRecord.metaBlob, record.metaBlob);
+		assertNull(store.getTransaction(new byte[32]));
+		assertEquals(0, store.getAccountHistory(new RippleAddress(new byte[20]), 0, -1, 10).size());
+		store.close();
+	}
+
+	@Test
+	public void testReopenAndRecover() throws Exception {
+		HistoryStore store = new HistoryStore(directory, 4096);
+		for(int ledgerIndex=1; ledgerIndex<=100; ledgerIndex++){
+			store.append(createRecord(ledgerIndex, 0));
+		}
+		RippleAddress payer = new RippleAddress((String) testTx.get("payer"));
+		store.setLastSyncedLedger(payer, 100);
+		int nbSegments = store.segments.size();
+		assertTrue(nbSegments>1);
+		store.close();
+
+		File lastSegment = new File(directory, String.format("history-%06d.seg", nbSegments-1));
+		RandomAccessFile file = new RandomAccessFile(lastSegment, "rw");
+		file.setLength(file.length()-10); //A torn write
+		file.close();
+
+		store = new HistoryStore(directory, 4096);
+		assertTrue(store.getNbTruncatedBytes()>0);
+		assertTrue(store.isIndexRebuilt()); //Its checkpoint was past the torn record
+		assertEquals(99, store.getNbRecords());
+		assertEquals(100, store.getLastSyncedLedger(payer));
+		assertEquals(99, store.getAccountHistory(payer, 0, -1, 1).get(0).ledgerIndex);
+		assertTrue(store.append(createRecord(100, 0)));
+		assertEquals(100, store.getAccountHistory(payer, 0, -1, 1).get(0).ledgerIndex);
+		store.close();
+	}
+
+	@Test
+	public void testReadAppendedRecordsWithoutRemapping() throws Exception {
+		HistoryStore store = new HistoryStore(directory);
+		store.append(createRecord(1, 0));
+		assertEquals(1, store.getTransaction(createRecord(1, 0).hash).ledgerIndex);
+		HistorySegment segment = store.getActiveSegment();
+		Object mapping = segment.mappedBuffer;
+		for(int ledgerIndex=2; ledgerIndex<=50; ledgerIndex++){
+			store.append(createRecord(ledgerIndex, 0));
+			assertEquals(ledgerIndex, store.getTransaction(createRecord(ledgerIndex, 0).hash).ledgerIndex);
+		}
+		assertTrue(mapping==segment.mappedBuffer); //Read from the file, the segment did not grow by REMAP_GROWTH
+		assertEquals(1, store.getTransaction(createRecord(1, 0).hash).ledgerIndex);
+		store.close();
+	}
+
+	@Test
+	public void testMaxSegmentSizeAboveIntRange() throws Exception {
+		try {
+			new HistoryStore(directory, 1L<<31);
+			fail("The offsets in a segment are ints");
+		} catch (RuntimeException e) {
+		}
+	}
+
+	@Test
+	public void testSealedSegmentsAreOpenedFromTheirSummary() throws Exception {
+		HistoryStore store = new HistoryStore(directory, 4096);
+		for(int ledgerIndex=1; ledgerIndex<=100; ledgerIndex++){
+			store.append(createRecord(ledgerIndex, 0));
+		}
+		int nbSegments = store.segments.size();
+		store.close();
+		File secondSummary = new File(directory, String.format("history-%06d.idx", 1));
+		assertTrue(secondSummary.exists());
+		assertTrue(secondSummary.delete()); //As if the store crashed while sealing it
+
+		store = new HistoryStore(directory, 4096);
+		assertEquals(2, store.nbScannedSegments); //The tail, and the one without its summary
+		assertTrue(secondSummary.exists());
+		assertEquals(100, store.getNbRecords());
+		assertEquals(42, store.getTransaction(createRecord(42, 0).hash).ledgerIndex);
+		store.close();
+
+		store = new HistoryStore(directory, 4096);
+		assertEquals(1, store.nbScannedSegments);
+		assertEquals(nbSegments, store.segments.size());
+		RippleAddress payer = new RippleAddress((String) testTx.get("payer"));
+		assertEquals(100, store.getNbTransactions(payer));
+		assertEquals(100, store.getAccountHistory(payer, 0, -1, 1).get(0).ledgerIndex);
+		store.close();
+	}
+
+	@Test
+	public void testMissingSegmentNumbers() throws Exception {
+		HistoryStore store = new HistoryStore(directory, 4096);
+		for(int ledgerIndex=1; ledgerIndex<=100; ledgerIndex++){
+			store.append(createRecord(ledgerIndex, 0));
+		}
+		store.close();
+		assertTrue(new File(directory, String.format("history-%06d.seg", 0)).delete()); //The oldest records were dropped
+		assertTrue(new File(directory, String.format("history-%06d.idx", 0)).delete());
+
+		store = new HistoryStore(directory, 4096);
+		assertTrue(store.getNbRecords()<100);
+		RippleAddress payer = new RippleAddress((String) testTx.get("payer"));
+		assertEquals(100, store.getAccountHistory(payer, 0, -1, 1).get(0).ledgerIndex);
+		assertEquals(100, store.getTransaction(createRecord(100, 0).hash).ledgerIndex);
+		assertNull(store.getTransaction(createRecord(1, 0).hash));
+		store.close();
+	}
+
+	/**
+	 * Serves the transactions of ledgers 1 to 30, oldest first, by pages of 10
+	 */
+	class AccountTxServer extends FakeRippleDaemonConnection {
+		@Override
+		@SuppressWarnings("unchecked")
+		protected JSONObject createResult(JSONObject command) {
+			assertEquals(true, command.get("forward"));
+			long ledgerIndexMin = Math.max(1, ((Number) command.get("ledger_index_min")).longValue());
+			long ledgerIndex = command.get("marker")==null ? ledgerIndexMin : Long.parseLong((String) command.get("marker"));
+			JSONArray transactions = new JSONArray();
+			for(; ledgerIndex<=30 && transactions.size()<10; ledgerIndex++){
+				transactions.add(createBinaryTx(ledgerIndex));
+			}
+			JSONObject result = new JSONObject();
+			result.put("transactions", transactions);
+			result.put("ledger_index_min", ledgerIndexMin);
+			result.put("ledger_index_max", 30L);
+			if(ledgerIndex<=30){
+				result.put("marker", Long.toString(ledgerIndex));
+			}
+			return result;
+		}
+	}
+
+	@Test
+	public void testSynchronize() throws Exception {
+		HistoryStore store = new HistoryStore(directory);
+		AccountTxServer server = new AccountTxServer();
+		HistorySynchronizer synchronizer = new HistorySynchronizer(server, store);
+		synchronizer.setPageSize(10);
+		RippleAddress payer = new RippleAddress((String) testTx.get("payer"));
+		//All the pages carry the same blob, so only the first transaction has a new hash
+		assertEquals(1, synchronizer.synchronize(payer));
+		assertEquals(3, server.getNbSent());
+		assertEquals(30, store.getLastSyncedLedger(payer));
+
+		assertEquals(0, synchronizer.synchronize(payer));
+		assertEquals(4, server.getNbSent());
+		store.close();
+	}
+}
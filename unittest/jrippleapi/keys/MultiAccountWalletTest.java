@@ -0,0 +1,280 @@
+package jrippleapi.keys;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileReader;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.bind.DatatypeConverter;
+
+import jrippleapi.connection.FakeRippleDaemonConnection;
+import jrippleapi.connection.FutureJSONResponse;
+import jrippleapi.connection.SubmitResult;
+import jrippleapi.core.DenominatedIssuedCurrency;
+import jrippleapi.core.RippleAddress;
+import jrippleapi.core.RippleSeedAddress;
+import jrippleapi.history.HistoryRecord;
+import jrippleapi.serialization.RippleBinaryObject;
+import jrippleapi.serialization.RippleBinarySchema.BinaryFormatField;
+import jrippleapi.serialization.RippleBinarySerializer;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MultiAccountWalletTest {
+	static final int NB_ACCOUNTS = 4;
+	static final int NB_PAYMENTS_PER_ACCOUNT = 5;
+
+	File walletFile;
+	RippleSeedAddress seed = new RippleSeedAddress(DatatypeConverter.parseHexBinary("71ED064155FFADFA38782C5E0158CB26"));
+	DenominatedIssuedCurrency amount = new DenominatedIssuedCurrency(BigDecimal.valueOf(100));
+
+	@Before
+	public void setUp() throws Exception {
+		walletFile = File.createTempFile("wallet", "");
+	}
+
+	@After
+	public void tearDown() {
+		walletFile.delete();
+		RippleWallet.getJournalFile(walletFile).delete();
+	}
+
+	MultiAccountWallet createWallet() throws Exception {
+		MultiAccountWallet wallet = new MultiAccountWallet(walletFile, 2);
+		for(int i=0; i<NB_ACCOUNTS; i++){
+			wallet.addAccount(seed, i, 100*(i+1));
+		}
+		return wallet;
+	}
+
+	@Test
+	public void testDerivedAccounts() throws Exception {
+		MultiAccountWallet wallet = createWallet();
+		assertEquals(NB_ACCOUNTS, wallet.getAccounts().size());
+		assertEquals("rhcfR9Cg98qCxHpCcPBmMonbDBXo84wyTn", wallet.getAccounts().get(0).getAddress().toString());
+		assertEquals(seed.getPrivateKey(2).getPublicKey().getAddress(), wallet.getAccounts().get(2).getAddress());
+		assertSame(wallet.getAccounts().get(1), wallet.addAccount(seed, 1, 0));
+		wallet.close();
+	}
+
+	@Test
+	public void testParallelPayments() throws Exception {
+		final MultiAccountWallet wallet = createWallet();
+		ArrayList<Thread> threads = new ArrayList<Thread>();
+		for(final MultiAccountWallet.WalletAccount account : wallet.getAccounts()){
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						for(int i=0; i<NB_PAYMENTS_PER_ACCOUNT; i++){
+							wallet.signPayment(account.getAddress(), RippleAddress.RIPPLE_ADDRESS_PMARCHES, amount);
+						}
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		for(Thread thread : threads){
+			thread.join();
+		}
+		wallet.close(); //Without compaction, the payments are in the journal
+
+		MultiAccountWallet reopened = new MultiAccountWallet(walletFile);
+		for(int i=0; i<NB_ACCOUNTS; i++){
+			RippleAddress address = seed.getPrivateKey(i).getPublicKey().getAddress();
+			assertEquals(100*(i+1)+NB_PAYMENTS_PER_ACCOUNT, reopened.getNextTransactionSequenceNumber(address));
+			TreeMap<Integer, byte[]> pending = reopened.getPendingTransactions(address);
+			assertEquals(NB_PAYMENTS_PER_ACCOUNT, pending.size());
+			RippleBinaryObject payment = new RippleBinarySerializer().readBinaryObject(ByteBuffer.wrap(pending.firstEntry().getValue()));
+			assertEquals(address, payment.getField(BinaryFormatField.Account));
+			assertEquals(100L*(i+1), payment.getField(BinaryFormatField.Sequence));
+			assertTrue(reopened.getAccount(address).signer.isSignatureVerified(payment));
+		}
+		reopened.close();
+	}
+
+	/**
+	 * Answers every submit with engineResult. The blobs submitted are found validated once isValidating,
+	 * except the ones dropped which are never found. Each read of the validated ledger gets the next one.
+	 */
+	static class SubmitServer extends FakeRippleDaemonConnection {
+		final JSONObject testTx;
+		volatile String engineResult = "tesSUCCESS";
+		volatile boolean isValidating = true;
+		int nbSubmitsToDrop;
+		final HashSet<String> droppedHashes = new HashSet<String>();
+		long validatedLedger = 100;
+
+		SubmitServer() throws Exception {
+			JSONArray allTx = (JSONArray) new JSONParser().parse(new FileReader("testdata/unittest-tx.json"));
+			testTx = (JSONObject) allTx.get(0);
+		}
+
+		@Override
+		protected synchronized JSONObject createResponse(JSONObject command, String error) {
+			if("tx".equals(command.get("command")) && droppedHashes.contains(command.get("transaction"))){
+				error = "txnNotFound";
+			}
+			if("submit".equals(command.get("command")) && nbSubmitsToDrop>0){
+				nbSubmitsToDrop--;
+				droppedHashes.add(DatatypeConverter.printHexBinary(HistoryRecord.computeHash(DatatypeConverter.parseHexBinary((String) command.get("tx_blob")))));
+			}
+			return super.createResponse(command, error);
+		}
+
+		@Override
+		protected JSONObject createResult(JSONObject command) {
+			JSONObject result = new JSONObject();
+			if("ledger".equals(command.get("command"))){
+				result.put("ledger_index", ++validatedLedger);
+				result.put("validated", true);
+			}
+			else if("tx".equals(command.get("command"))){
+				result.put("tx", testTx.get("tx"));
+				result.put("meta", testTx.get("meta"));
+				result.put("hash", command.get("transaction"));
+				result.put("ledger_index", validatedLedger);
+				result.put("validated", isValidating);
+			}
+			else{
+				result.put("engine_result", engineResult);
+			}
+			return result;
+		}
+	}
+
+	SubmitServer createServer(MultiAccountWallet wallet) throws Exception {
+		SubmitServer connection = new SubmitServer();
+		wallet.getValidator(connection).setPollInterval(5, TimeUnit.MILLISECONDS);
+		return connection;
+	}
+
+	@Test
+	public void testSendPaymentCompletes() throws Exception {
+		MultiAccountWallet wallet = createWallet();
+		wallet.setCompactionSize(0); //Compacts after every record
+		SubmitServer connection = createServer(wallet);
+		RippleAddress payer = wallet.getAccounts().get(3).getAddress();
+		SubmitResult result = wallet.sendPayment(payer, RippleAddress.RIPPLE_ADDRESS_PMARCHES, amount, connection).get(10, TimeUnit.SECONDS);
+		assertTrue(result.isSuccess());
+		assertTrue(MultiAccountWallet.isFinal(result));
+		assertEquals(0, wallet.getPendingTransactions(payer).size());
+		wallet.close();
+
+		wallet = new MultiAccountWallet(walletFile);
+		assertEquals(401, wallet.getNextTransactionSequenceNumber(payer));
+		assertEquals(0, wallet.getPendingTransactions(payer).size());
+		wallet.close();
+	}
+
+	@Test
+	public void testRetriedPaymentStaysPending() throws Exception {
+		MultiAccountWallet wallet = createWallet();
+		SubmitServer connection = createServer(wallet);
+		connection.engineResult = "terRETRY";
+		RippleAddress payer = wallet.getAccounts().get(1).getAddress();
+		wallet.sendPayment(payer, RippleAddress.RIPPLE_ADDRESS_PMARCHES, amount, connection).get();
+		wallet.sendPayment(payer, RippleAddress.RIPPLE_ADDRESS_PMARCHES, amount, connection).get();
+		assertEquals(2, wallet.getPendingTransactions(payer).size());
+		wallet.close();
+
+		wallet = new MultiAccountWallet(walletFile);
+		wallet.getValidator(connection).setPollInterval(5, TimeUnit.MILLISECONDS);
+		connection.engineResult = "tefALREADY";
+		TreeMap<Integer, FutureJSONResponse<SubmitResult>> results = wallet.resubmitPendingTransactions(payer, connection);
+		assertEquals(2, results.size());
+		assertEquals(Integer.valueOf(200), results.firstKey());
+		for(FutureJSONResponse<SubmitResult> result : results.values()){
+			assertTrue(MultiAccountWallet.isFinal(result.get(10, TimeUnit.SECONDS)));
+		}
+		assertEquals(4, connection.getNbSent("submit"));
+		assertEquals(0, wallet.getPendingTransactions(payer).size());
+		wallet.close();
+	}
+
+	@Test
+	public void testPaymentStaysPendingUntilValidated() throws Exception {
+		MultiAccountWallet wallet = createWallet();
+		SubmitServer connection = createServer(wallet);
+		connection.isValidating = false;
+		RippleAddress payer = wallet.getAccounts().get(0).getAddress();
+		FutureJSONResponse<SubmitResult> result = wallet.sendPayment(payer, RippleAddress.RIPPLE_ADDRESS_PMARCHES, amount, connection);
+		while(connection.getNbSent("tx")<3){
+			Thread.sleep(5);
+		}
+		assertFalse(result.isDone());
+		assertEquals(1, wallet.getPendingTransactions(payer).size());
+
+		connection.isValidating = true;
+		assertTrue(result.get(10, TimeUnit.SECONDS).isSuccess());
+		assertEquals(0, wallet.getPendingTransactions(payer).size());
+		wallet.close();
+	}
+
+	/**
+	 * The first blob is answered tesSUCCESS but never makes it to a ledger, the payment is signed again once it expired
+	 */
+	@Test
+	public void testExpiredPaymentIsSignedAgain() throws Exception {
+		MultiAccountWallet wallet = createWallet();
+		SubmitServer connection = createServer(wallet);
+		connection.nbSubmitsToDrop = 1;
+		RippleAddress payer = wallet.getAccounts().get(0).getAddress();
+		SubmitResult result = wallet.sendPayment(payer, RippleAddress.RIPPLE_ADDRESS_PMARCHES, amount, connection).get(10, TimeUnit.SECONDS);
+		assertTrue(result.isSuccess());
+		assertEquals(2, connection.getNbSent("submit"));
+		assertEquals(1, wallet.getValidator(connection).getNbExpired());
+		assertEquals(0, wallet.getPendingTransactions(payer).size());
+		assertEquals(101, wallet.getNextTransactionSequenceNumber(payer));
+		wallet.close();
+	}
+
+	@Test
+	public void testUnsignedPaymentReleasesItsSequence() throws Exception {
+		MultiAccountWallet wallet = createWallet();
+		RippleAddress payer = wallet.getAccounts().get(0).getAddress();
+		try {
+			wallet.signPayment(payer, RippleAddress.RIPPLE_ADDRESS_PMARCHES, null);
+			fail();
+		} catch (Exception e) {
+			//Expected, a payment without an amount cannot be serialized
+		}
+		assertEquals(100, wallet.getNextTransactionSequenceNumber(payer));
+		assertEquals(0, wallet.getPendingTransactions(payer).size());
+		byte[] signed = wallet.signPayment(payer, RippleAddress.RIPPLE_ADDRESS_PMARCHES, amount);
+		RippleBinaryObject payment = new RippleBinarySerializer().readBinaryObject(ByteBuffer.wrap(signed));
+		assertEquals(100L, payment.getField(BinaryFormatField.Sequence));
+		wallet.close();
+	}
+
+	@Test
+	public void testJournalOfUnknownAccount() throws Exception {
+		WalletJournal journal = new WalletJournal(RippleWallet.getJournalFile(walletFile));
+		journal.sync(journal.append(WalletJournal.ALLOCATED, 7, 1, new byte[10]));
+		journal.close();
+		try {
+			new MultiAccountWallet(walletFile);
+			fail("The journal refers to an account missing from the snapshot");
+		} catch (RuntimeException e) {
+			assertTrue(e.getMessage().contains("account 7"));
+		}
+	}
+}
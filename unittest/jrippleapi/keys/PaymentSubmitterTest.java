@@ -0,0 +1,377 @@
+package jrippleapi.keys;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.FileReader;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.bind.DatatypeConverter;
+
+import jrippleapi.connection.FeeTracker;
+import jrippleapi.connection.FutureJSONResponse;
+import jrippleapi.connection.JSONSerializable;
+import jrippleapi.connection.RippleDaemonConnection;
+import jrippleapi.connection.SubmitResult;
+import jrippleapi.connection.TransactionExpiredException;
+import jrippleapi.core.DenominatedIssuedCurrency;
+import jrippleapi.core.RippleAddress;
+import jrippleapi.core.RippleSeedAddress;
+import jrippleapi.history.HistoryRecord;
+import jrippleapi.serialization.RippleBinaryObject;
+import jrippleapi.serialization.RippleBinarySchema.BinaryFormatField;
+import jrippleapi.serialization.RippleBinarySchema.TransactionTypes;
+import jrippleapi.serialization.RippleBinarySerializer;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PaymentSubmitterTest {
+	static final long FIRST_SEQUENCE = 1000;
+	static final int BAD_AMOUNT = 13;
+	static final long FIRST_VALIDATED_LEDGER = 100;
+
+	RippleSeedAddress seed = new RippleSeedAddress(DatatypeConverter.parseHexBinary("71ED064155FFADFA38782C5E0158CB26"));
+	RippleAddress payee = RippleAddress.RIPPLE_ADDRESS_PMARCHES;
+	String testMeta;
+	LedgerServer server;
+	PaymentSubmitter submitter;
+
+	@Before
+	public void setUp() throws Exception {
+		JSONArray allTx = (JSONArray) new JSONParser().parse(new FileReader("testdata/unittest-tx.json"));
+		testMeta = (String) ((JSONObject) allTx.get(0)).get("meta");
+		server = new LedgerServer();
+	}
+
+	@After
+	public void tearDown() {
+		if(submitter!=null){
+			submitter.close();
+		}
+		server.executor.shutdown();
+	}
+
+	/**
+	 * Applies the submits in sequence order, the ones ahead are held and applied when their turn comes, as rippled does.
+	 * What is applied is validated at once, unless ledgers are advancing: then each read of the validated ledger gets a new one.
+	 * The responses are sent from several threads, so they are processed out of order.
+	 */
+	class LedgerServer extends RippleDaemonConnection {
+		final ExecutorService executor = Executors.newFixedThreadPool(4);
+		final RippleSigner verifier = new RippleSigner(seed.getPrivateKey(0));
+		long accountSequence = FIRST_SEQUENCE;
+		long minFee;
+		String stuckEngineResult; //Answered to every submit when set, whatever was done
+		int nbSubmitsToDrop; //Answered tesSUCCESS but never applied
+		boolean isAdvancingLedgers;
+		long validatedLedger = FIRST_VALIDATED_LEDGER;
+		final TreeMap<Long, byte[]> heldBySequence = new TreeMap<Long, byte[]>();
+		final HashMap<String, byte[]> appliedByHash = new HashMap<String, byte[]>();
+		final List<RippleBinaryObject> applied = new ArrayList<RippleBinaryObject>();
+
+		@Override
+		public <T extends JSONSerializable> FutureJSONResponse<T> sendCommand(final JSONObject command, T unserializedResponse) {
+			final FutureJSONResponse<T> future = new FutureJSONResponse<T>(requestCounter.getAndIncrement(), null, unserializedResponse);
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					if("tx".equals(command.get("command"))){
+						future.set(lookup((String) command.get("transaction")));
+					}
+					else if("ledger".equals(command.get("command"))){
+						future.set(readValidatedLedger());
+					}
+					else{
+						future.set(submit(DatatypeConverter.parseHexBinary((String) command.get("tx_blob"))));
+					}
+				}
+			});
+			return future;
+		}
+
+		synchronized JSONObject submit(byte[] blob){
+			RippleBinaryObject transaction = new RippleBinarySerializer().readBinaryObject(ByteBuffer.wrap(blob));
+			long sequence = (Long) transaction.getField(BinaryFormatField.Sequence);
+			Long lastLedgerSequence = (Long) transaction.getField(BinaryFormatField.LastLedgerSequence);
+			String engineResult;
+			if(lastLedgerSequence==null || lastLedgerSequence<validatedLedger){
+				engineResult = "tefMAX_LEDGER";
+			}
+			else if(((DenominatedIssuedCurrency) transaction.getField(BinaryFormatField.Fee)).amount.longValue()<minFee){
+				engineResult = "telINSUF_FEE_P";
+			}
+			else if(sequence<accountSequence){
+				engineResult = appliedByHash.containsKey(hashOf(blob)) ? "tefALREADY" : "tefPAST_SEQ";
+			}
+			else if(sequence>accountSequence){
+				heldBySequence.put(sequence, blob);
+				engineResult = "terPRE_SEQ";
+			}
+			else if(isBadAmount(transaction)){
+				engineResult = "temBAD_AMOUNT";
+			}
+			else if(nbSubmitsToDrop>0){
+				nbSubmitsToDrop--;
+				engineResult = "tesSUCCESS";
+			}
+			else{
+				apply(blob, transaction);
+				while(heldBySequence.isEmpty()==false && heldBySequence.firstKey()<=accountSequence){
+					byte[] heldBlob = heldBySequence.pollFirstEntry().getValue();
+					RippleBinaryObject heldTransaction = new RippleBinarySerializer().readBinaryObject(ByteBuffer.wrap(heldBlob));
+					if((Long) heldTransaction.getField(BinaryFormatField.Sequence)==accountSequence && isBadAmount(heldTransaction)==false){
+						apply(heldBlob, heldTransaction);
+					}
+				}
+				engineResult = "tesSUCCESS";
+			}
+			if(stuckEngineResult!=null){
+				engineResult = stuckEngineResult;
+			}
+			JSONObject txJSON = new JSONObject();
+			txJSON.put("hash", hashOf(blob));
+			txJSON.put("Sequence", sequence);
+			JSONObject result = new JSONObject();
+			result.put("engine_result", engineResult);
+			result.put("tx_json", txJSON);
+			return createResponse(result);
+		}
+
+		boolean isBadAmount(RippleBinaryObject transaction){
+			DenominatedIssuedCurrency amount = (DenominatedIssuedCurrency) transaction.getField(BinaryFormatField.Amount);
+			return amount!=null && amount.amount.intValue()==BAD_AMOUNT;
+		}
+
+		void apply(byte[] blob, RippleBinaryObject transaction){
+			assertTrue(verifier.isSignatureVerified(transaction));
+			appliedByHash.put(hashOf(blob), blob);
+			applied.add(transaction);
+			accountSequence++;
+		}
+
+		synchronized JSONObject lookup(String hash){
+			byte[] blob = appliedByHash.get(hash);
+			if(blob==null){
+				JSONObject error = new JSONObject();
+				error.put("error", "txnNotFound");
+				return error;
+			}
+			JSONObject result = new JSONObject();
+			result.put("tx", DatatypeConverter.printHexBinary(blob));
+			result.put("meta", testMeta);
+			result.put("hash", hash);
+			result.put("ledger_index", validatedLedger);
+			result.put("validated", true);
+			return createResponse(result);
+		}
+
+		synchronized JSONObject readValidatedLedger(){
+			if(isAdvancingLedgers){
+				validatedLedger++;
+			}
+			JSONObject result = new JSONObject();
+			result.put("ledger_index", validatedLedger);
+			result.put("validated", true);
+			return createResponse(result);
+		}
+
+		String hashOf(byte[] blob){
+			return DatatypeConverter.printHexBinary(HistoryRecord.computeHash(blob));
+		}
+
+		JSONObject createResponse(JSONObject result){
+			JSONObject response = new JSONObject();
+			response.put("status", "success");
+			response.put("result", result);
+			return response;
+		}
+
+		synchronized long getAccountSequence(){
+			return accountSequence;
+		}
+
+		synchronized int getNbPayments(){
+			int nbPayments = 0;
+			for(RippleBinaryObject transaction : applied){
+				if(transaction.getTransactionType()==TransactionTypes.PAYMENT){
+					nbPayments++;
+				}
+			}
+			return nbPayments;
+		}
+	}
+
+	PaymentSubmitter newSubmitter(long firstSequence){
+		submitter = new PaymentSubmitter(server, seed, firstSequence, 4, 16);
+		submitter.setRetryDelay(5, TimeUnit.MILLISECONDS);
+		submitter.getValidator().setPollInterval(5, TimeUnit.MILLISECONDS);
+		return submitter;
+	}
+
+	List<FutureJSONResponse<SubmitResult>> submitPayments(long firstSequence, int nbPayments, int badPaymentIndex){
+		newSubmitter(firstSequence);
+		submitter.setMaxAttempts(1000);
+		List<FutureJSONResponse<SubmitResult>> results = new ArrayList<FutureJSONResponse<SubmitResult>>();
+		for(int i=0; i<nbPayments; i++){
+			int drops = i==badPaymentIndex ? BAD_AMOUNT : 100+i;
+			results.add(submitter.submitPayment(payee, new DenominatedIssuedCurrency(BigDecimal.valueOf(drops))));
+		}
+		return results;
+	}
+
+	@Test
+	public void testPipelinedPayments() throws Exception {
+		List<FutureJSONResponse<SubmitResult>> results = submitPayments(FIRST_SEQUENCE, 100, -1);
+		for(FutureJSONResponse<SubmitResult> result : results){
+			SubmitResult submitResult = result.get(10, TimeUnit.SECONDS);
+			assertTrue(submitResult.isSuccess());
+			assertTrue(submitResult.validated);
+			assertEquals(FIRST_VALIDATED_LEDGER, submitResult.ledgerIndex);
+		}
+		assertEquals(100, server.getNbPayments());
+		assertEquals(FIRST_SEQUENCE+100, server.getAccountSequence());
+		assertEquals(100, submitter.getNbSucceeded());
+		assertEquals(0, submitter.getNbPending());
+		assertTrue(submitter.getPaymentsPerSecond()>0);
+		assertEquals(0, submitter.getNbFailed());
+	}
+
+	@Test
+	public void testRejectedPaymentFillsGap() throws Exception {
+		List<FutureJSONResponse<SubmitResult>> results = submitPayments(FIRST_SEQUENCE, 50, 20);
+		for(int i=0; i<results.size(); i++){
+			SubmitResult result = results.get(i).get(10, TimeUnit.SECONDS);
+			assertEquals(i!=20, result.isSuccess());
+		}
+		assertEquals("temBAD_AMOUNT", results.get(20).get().engineResult);
+		while(server.getAccountSequence()<FIRST_SEQUENCE+50 || submitter.getNbGapsFilled()==0){
+			Thread.sleep(10); //The gap filler completes after the payments waiting for it
+		}
+		assertEquals(49, server.getNbPayments());
+		assertEquals(1, submitter.getNbFailed());
+		assertEquals(1, submitter.getNbGapsFilled());
+		assertEquals(0, submitter.getNbGapFillsRejected());
+	}
+
+	@Test
+	public void testResequenceStaleSequence() throws Exception {
+		List<FutureJSONResponse<SubmitResult>> results = submitPayments(FIRST_SEQUENCE-5, 50, -1);
+		for(FutureJSONResponse<SubmitResult> result : results){
+			assertTrue(result.get(10, TimeUnit.SECONDS).isSuccess());
+		}
+		assertEquals(50, server.getNbPayments());
+		assertEquals(FIRST_SEQUENCE+50, server.getAccountSequence());
+		assertEquals(5, submitter.getNbResequenced());
+	}
+
+	@Test
+	public void testEscalateRefusedFee() throws Exception {
+		server.minFee = 30;
+		newSubmitter(FIRST_SEQUENCE);
+		submitter.setFeeTracker(new FeeTracker(server)); //10 drops, doubled on each refusal
+		List<FutureJSONResponse<SubmitResult>> results = new ArrayList<FutureJSONResponse<SubmitResult>>();
+		for(int i=0; i<10; i++){
+			results.add(submitter.submitPayment(payee, new DenominatedIssuedCurrency(BigDecimal.valueOf(100+i))));
+		}
+		for(FutureJSONResponse<SubmitResult> result : results){
+			assertTrue(result.get(10, TimeUnit.SECONDS).isSuccess());
+		}
+		assertEquals(10, server.getNbPayments());
+		assertEquals(20, submitter.getNbFeeEscalations());
+		assertEquals(40, ((DenominatedIssuedCurrency) server.applied.get(0).getField(BinaryFormatField.Fee)).amount.intValue());
+	}
+
+	/**
+	 * The server keeps answering a ter although it applied the payment, it must not be reported as failed once the attempts are out
+	 */
+	@Test
+	public void testExhaustedTerWhichApplied() throws Exception {
+		server.stuckEngineResult = "terRETRY";
+		newSubmitter(FIRST_SEQUENCE);
+		submitter.setMaxAttempts(2);
+		SubmitResult result = submitter.submitPayment(payee, new DenominatedIssuedCurrency(BigDecimal.valueOf(100))).get(10, TimeUnit.SECONDS);
+		assertEquals("tefALREADY", result.engineResult);
+		assertTrue(result.isSuccess());
+		assertTrue(result.validated);
+		assertEquals(1, server.getNbPayments());
+		assertEquals(FIRST_SEQUENCE+1, server.getAccountSequence());
+		assertEquals(0, submitter.getNbFailed());
+	}
+
+	/**
+	 * The server answers tesSUCCESS but the payment never makes it to a validated ledger
+	 */
+	@Test
+	public void testDroppedPaymentExpires() throws Exception {
+		server.nbSubmitsToDrop = 1;
+		server.isAdvancingLedgers = true;
+		newSubmitter(FIRST_SEQUENCE);
+		FutureJSONResponse<SubmitResult> result = submitter.submitPayment(payee, new DenominatedIssuedCurrency(BigDecimal.valueOf(100)));
+		try {
+			result.get(10, TimeUnit.SECONDS);
+			fail();
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof TransactionExpiredException);
+		}
+		while(submitter.getNbGapsFilled()==0){
+			Thread.sleep(10);
+		}
+		assertEquals(0, server.getNbPayments());
+		assertEquals(FIRST_SEQUENCE+1, server.getAccountSequence());
+		assertEquals(1, submitter.getNbExpired());
+		assertEquals(1, submitter.getNbFailed());
+	}
+
+	/**
+	 * Neither the payment nor the empty AccountSet of its gap can be signed, the sequence goes to the next payment
+	 */
+	@Test
+	public void testUnsignableGapFillerReleasesItsSequence() throws Exception {
+		newSubmitter(FIRST_SEQUENCE);
+		submitter.setFeeTracker(new FeeTracker(server) {
+			int nbFailuresLeft = 2;
+
+			@Override
+			public synchronized DenominatedIssuedCurrency getFee(int attempt) {
+				if(nbFailuresLeft>0){
+					nbFailuresLeft--;
+					throw new RuntimeException("No fee");
+				}
+				return super.getFee(attempt);
+			}
+		});
+		FutureJSONResponse<SubmitResult> unsigned = submitter.submitPayment(payee, new DenominatedIssuedCurrency(BigDecimal.valueOf(100)));
+		try {
+			unsigned.get(10, TimeUnit.SECONDS);
+			fail();
+		} catch (ExecutionException e) {
+			assertEquals("No fee", e.getCause().getMessage());
+		}
+		while(submitter.getNbGapFillsFailed()==0){
+			Thread.sleep(10);
+		}
+		assertNotNull(submitter.getLastGapFillFailure());
+		assertEquals(FIRST_SEQUENCE, submitter.getNextSequenceNumber());
+
+		SubmitResult result = submitter.submitPayment(payee, new DenominatedIssuedCurrency(BigDecimal.valueOf(101))).get(10, TimeUnit.SECONDS);
+		assertTrue(result.isSuccess());
+		assertEquals(FIRST_SEQUENCE, result.sequenceNumber);
+		assertEquals(1, server.getNbPayments());
+	}
+}
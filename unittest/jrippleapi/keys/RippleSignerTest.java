@@ -4,6 +4,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.io.FileReader;
+import java.math.BigDecimal;
 import java.nio.ByteBuffer;
 
 import javax.xml.bind.DatatypeConverter;
@@ -11,8 +12,14 @@ import javax.xml.bind.DatatypeConverter;
 import jrippleapi.TestUtilities;
 import jrippleapi.connection.GenericJSONSerializable;
 import jrippleapi.connection.RippleDaemonWebsocketConnection;
+import jrippleapi.core.DenominatedIssuedCurrency;
+import jrippleapi.core.RippleAddress;
 import jrippleapi.core.RipplePrivateKey;
+import jrippleapi.core.RippleSeedAddress;
+import jrippleapi.core.RippleTrustSetTransaction;
 import jrippleapi.serialization.RippleBinaryObject;
+import jrippleapi.serialization.RippleBinarySchema.BinaryFormatField;
+import jrippleapi.serialization.RippleBinarySchema.TransactionTypes;
 import jrippleapi.serialization.RippleBinarySerializer;
 
 import org.json.simple.JSONArray;
@@ -21,6 +28,23 @@ import org.json.simple.parser.JSONParser;
 import org.junit.Test;
 
 public class RippleSignerTest {
+	@Test
+	public void testSignTrustSetToBlob() throws Exception {
+		RippleSigner signer = new RippleSigner(new RippleSeedAddress(DatatypeConverter.parseHexBinary("71ED064155FFADFA38782C5E0158CB26")).getPrivateKey(0));
+		assertEquals("rhcfR9Cg98qCxHpCcPBmMonbDBXo84wyTn", signer.getAddress().toString());
+		DenominatedIssuedCurrency oneBTC = new DenominatedIssuedCurrency(BigDecimal.ONE, null, "BTC");
+		RippleTrustSetTransaction trustSet = new RippleTrustSetTransaction(signer.getAddress(), RippleAddress.RIPPLE_ADDRESS_PMARCHES, oneBTC, 12);
+		byte[] signedBytes = signer.signToBlob(trustSet.getBinaryObject());
+
+		RippleBinaryObject signedRBO = new RippleBinarySerializer().readBinaryObject(ByteBuffer.wrap(signedBytes));
+		assertEquals(TransactionTypes.TRUST_SET, signedRBO.getTransactionType());
+		assertEquals(12L, signedRBO.getField(BinaryFormatField.Sequence));
+		DenominatedIssuedCurrency limitAmount = (DenominatedIssuedCurrency) signedRBO.getField(BinaryFormatField.LimitAmount);
+		assertEquals(RippleAddress.RIPPLE_ADDRESS_PMARCHES, limitAmount.issuer);
+		assertEquals("BTC", limitAmount.currency);
+		assertTrue(signer.isSignatureVerified(signedRBO));
+	}
+
 	@Test
 	public void testSubmitSignedTransaction() throws Exception{
 		RippleBinarySerializer binSer=new RippleBinarySerializer();
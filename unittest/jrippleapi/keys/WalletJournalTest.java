@@ -0,0 +1,140 @@
+package jrippleapi.keys;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.TreeMap;
+
+import javax.xml.bind.DatatypeConverter;
+
+import jrippleapi.core.RippleSeedAddress;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WalletJournalTest {
+	File walletFile;
+	File journalFile;
+	RippleSeedAddress seed = new RippleSeedAddress(DatatypeConverter.parseHexBinary("71ED064155FFADFA38782C5E0158CB26"));
+
+	@Before
+	public void setUp() throws Exception {
+		walletFile = File.createTempFile("wallet", "");
+		journalFile = RippleWallet.getJournalFile(walletFile);
+	}
+
+	@After
+	public void tearDown() {
+		walletFile.delete();
+		journalFile.delete();
+	}
+
+	byte[] createBlob(int sequenceNumber){
+		byte[] blob = new byte[100+sequenceNumber%50];
+		blob[0] = (byte) sequenceNumber;
+		return blob;
+	}
+
+	@Test
+	public void testGroupCommit() throws Exception {
+		final WalletJournal journal = new WalletJournal(journalFile);
+		final int NB_THREADS = 16;
+		final int NB_RECORDS_PER_THREAD = 50;
+		ArrayList<Thread> threads = new ArrayList<Thread>();
+		for(int i=0; i<NB_THREADS; i++){
+			final int threadIndex = i;
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						for(int j=0; j<NB_RECORDS_PER_THREAD; j++){
+							int sequenceNumber = threadIndex*NB_RECORDS_PER_THREAD+j;
+							journal.sync(journal.append(WalletJournal.ALLOCATED, 0, sequenceNumber, createBlob(sequenceNumber)));
+						}
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		for(Thread thread : threads){
+			thread.join();
+		}
+		assertEquals(NB_THREADS*NB_RECORDS_PER_THREAD, journal.getNbSyncs());
+		assertTrue(journal.getNbForces()>0);
+		assertTrue(journal.getNbForces()<journal.getNbSyncs());
+		journal.close();
+
+		final TreeMap<Integer, byte[]> replayed = new TreeMap<Integer, byte[]>();
+		WalletJournal reopened = new WalletJournal(journalFile);
+		reopened.replay(new WalletJournal.RecordVisitor() {
+			@Override
+			public void visit(byte type, int accountIndex, int sequenceNumber, byte[] signedBlob) {
+				replayed.put(sequenceNumber, signedBlob);
+			}
+		});
+		assertEquals(NB_THREADS*NB_RECORDS_PER_THREAD, replayed.size());
+		assertArrayEquals(createBlob(123), replayed.get(123));
+		reopened.close();
+	}
+
+	@Test
+	public void testTruncateIncompleteRecord() throws Exception {
+		WalletJournal journal = new WalletJournal(journalFile);
+		journal.append(WalletJournal.ALLOCATED, 0, 1, createBlob(1));
+		journal.append(WalletJournal.COMPLETED, 0, 1, null);
+		long validSize = journal.getSize();
+		journal.append(WalletJournal.ALLOCATED, 0, 2, createBlob(2));
+		long fullSize = journal.getSize();
+		journal.close();
+		RandomAccessFile file = new RandomAccessFile(journalFile, "rw");
+		file.setLength(file.length()-10);
+		file.close();
+
+		final ArrayList<Integer> replayed = new ArrayList<Integer>();
+		journal = new WalletJournal(journalFile);
+		journal.replay(new WalletJournal.RecordVisitor() {
+			@Override
+			public void visit(byte type, int accountIndex, int sequenceNumber, byte[] signedBlob) {
+				replayed.add(sequenceNumber);
+			}
+		});
+		assertEquals(2, replayed.size());
+		assertEquals(validSize, journal.getSize());
+		assertEquals(validSize, journalFile.length());
+		assertEquals(fullSize-10-validSize, journal.getNbTruncatedBytes());
+		journal.close();
+	}
+
+	@Test
+	public void testWalletRecovery() throws Exception {
+		RippleWallet wallet = new RippleWallet(seed, 100, walletFile);
+		wallet.setCompactionSize(4096);
+		for(int i=0; i<200; i++){
+			int sequenceNumber = wallet.allocateSequenceNumber();
+			wallet.logPending(sequenceNumber, createBlob(sequenceNumber));
+			if(sequenceNumber%10!=0){
+				wallet.logCompleted(sequenceNumber);
+			}
+		}
+		assertTrue(journalFile.length()<=4096+200);
+		wallet.close(); //A crash, the journal was not compacted
+
+		wallet = new RippleWallet(walletFile);
+		assertEquals(300, wallet.getNextTransactionSequenceNumber());
+		TreeMap<Integer, byte[]> pending = wallet.getPendingTransactions();
+		assertEquals(20, pending.size());
+		assertArrayEquals(createBlob(150), pending.get(150));
+		assertNull(pending.get(151));
+		assertEquals(seed.toString(), wallet.seed.toString());
+		wallet.close();
+	}
+}
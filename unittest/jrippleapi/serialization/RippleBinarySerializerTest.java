@@ -1,9 +1,11 @@
 package jrippleapi.serialization;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.FileReader;
 import java.io.IOException;
@@ -17,6 +19,9 @@ import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import javax.xml.bind.DatatypeConverter;
 
@@ -144,4 +149,93 @@ public class RippleBinarySerializerTest {
         String scale13ExpectedHex="950386CDCE6B232200000000000000000000000055534400000000000000000000000000000000000000000000000001";
         assertEquals(scale13ExpectedHex, hex);
 	}
+
+	/**
+	 * Metadata nests objects in arrays in objects, each inner object ends with its own end marker
+	 */
+	@Test
+	public void testWriteAndReadNestedMetadata(){
+		RippleBinaryObject meta = new RippleBinaryObject();
+		meta.putField(BinaryFormatField.TransactionIndex, 7l);
+		meta.putField(BinaryFormatField.TransactionResult, 0);
+		List<RippleBinaryObject> affectedNodes = new ArrayList<RippleBinaryObject>();
+		affectedNodes.add(createModifiedNode(RippleAddress.RIPPLE_ADDRESS_JRIPPLEAPI, 1000));
+		affectedNodes.add(createModifiedNode(RippleAddress.RIPPLE_ADDRESS_PMARCHES, 2000));
+		meta.putField(BinaryFormatField.AffectedNodes, affectedNodes);
+
+		RippleBinarySerializer binSer = new RippleBinarySerializer();
+		ByteBuffer writtenMeta = binSer.writeBinaryObject(meta);
+		RippleBinaryObject metaRead = binSer.readBinaryObject(writtenMeta);
+		assertEquals(7l, metaRead.getField(BinaryFormatField.TransactionIndex));
+		List<?> nodesRead = (List<?>) metaRead.getField(BinaryFormatField.AffectedNodes);
+		assertEquals(2, nodesRead.size());
+		RippleBinaryObject modifiedNode = (RippleBinaryObject) ((RippleBinaryObject) nodesRead.get(1)).getField(BinaryFormatField.ModifiedNode);
+		assertEquals(0x61, modifiedNode.getField(BinaryFormatField.LedgerEntryType));
+		RippleBinaryObject finalFields = (RippleBinaryObject) modifiedNode.getField(BinaryFormatField.FinalFields);
+		assertEquals(RippleAddress.RIPPLE_ADDRESS_PMARCHES.toString(), finalFields.getField(BinaryFormatField.Account).toString());
+		assertEquals(BigDecimal.valueOf(2000), ((DenominatedIssuedCurrency) finalFields.getField(BinaryFormatField.Balance)).amount);
+
+		writtenMeta.rewind();
+		assertEquals(writtenMeta, binSer.writeBinaryObject(metaRead));
+	}
+
+	RippleBinaryObject createModifiedNode(RippleAddress account, long balance){
+		RippleBinaryObject finalFields = new RippleBinaryObject();
+		finalFields.putField(BinaryFormatField.Account, account);
+		finalFields.putField(BinaryFormatField.Balance, new DenominatedIssuedCurrency(BigDecimal.valueOf(balance)));
+		RippleBinaryObject modifiedNode = new RippleBinaryObject();
+		modifiedNode.putField(BinaryFormatField.LedgerEntryType, 0x61);
+		modifiedNode.putField(BinaryFormatField.PreviousTxnID, new byte[32]);
+		modifiedNode.putField(BinaryFormatField.FinalFields, finalFields);
+		RippleBinaryObject arrayElement = new RippleBinaryObject();
+		arrayElement.putField(BinaryFormatField.ModifiedNode, modifiedNode);
+		return arrayElement;
+	}
+
+	/**
+	 * The length prefix takes one byte up to 192, two up to 12480 and three up to 918744
+	 */
+	@Test
+	public void testVariableLengths(){
+		RippleBinarySerializer binSer = new RippleBinarySerializer();
+		int[] lengths = {0, 192, 193, 200, 12480, 12481, 13000, 918744};
+		int[] prefixLengths = {1, 1, 2, 2, 2, 3, 3, 3};
+		for(int i=0; i<lengths.length; i++){
+			byte[] value = new byte[lengths[i]];
+			Arrays.fill(value, (byte) i);
+			ByteBuffer output = ByteBuffer.allocate(lengths[i]+3);
+			binSer.writeVariableLength(output, value);
+			assertEquals(lengths[i]+prefixLengths[i], output.position());
+			output.flip();
+			assertArrayEquals(value, binSer.readVariableLength(output));
+			assertFalse(output.hasRemaining());
+		}
+
+		try {
+			binSer.writeVariableLength(ByteBuffer.allocate(918748), new byte[918745]);
+			fail();
+		} catch (RuntimeException e) {
+		}
+	}
+
+	@Test
+	public void testWriteAndReadLongVariableLengthFields(){
+		RippleBinaryObject tx = new RippleBinaryObject();
+		byte[] signature = new byte[200];
+		Arrays.fill(signature, (byte) 0x5A);
+		tx.putField(BinaryFormatField.TxnSignature, signature);
+		byte[] memo = new byte[13000];
+		for(int i=0; i<memo.length; i++){
+			memo[i] = (byte) i;
+		}
+		tx.putField(BinaryFormatField.MemoData, memo);
+		tx.putField(BinaryFormatField.Account, RippleAddress.RIPPLE_ADDRESS_JRIPPLEAPI);
+
+		RippleBinarySerializer binSer = new RippleBinarySerializer();
+		ByteBuffer writtenTx = binSer.writeBinaryObject(tx);
+		RippleBinaryObject txRead = binSer.readBinaryObject(writtenTx);
+		assertArrayEquals(signature, (byte[]) txRead.getField(BinaryFormatField.TxnSignature));
+		assertArrayEquals(memo, (byte[]) txRead.getField(BinaryFormatField.MemoData));
+		assertEquals(RippleAddress.RIPPLE_ADDRESS_JRIPPLEAPI.toString(), txRead.getField(BinaryFormatField.Account).toString());
+	}
 }